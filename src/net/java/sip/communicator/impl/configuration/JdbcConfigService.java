@@ -22,6 +22,7 @@
 import java.sql.*;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.Pattern;
 
 import org.jitsi.service.configuration.*;
@@ -32,6 +33,11 @@
 
 /**
  * Implementation of the {@link ConfigurationService} based on JDBC.
+ * <p>
+ * All stored properties are loaded in memory when the service is created and
+ * read from there. Changes are applied in memory right away and written to
+ * the database by a background thread shortly after, those made meanwhile
+ * are written together in a single transaction.
  * 
  * @author Ingo Bauersachs
  */
@@ -44,6 +50,19 @@
     private final Logger logger
         = Logger.getLogger(JdbcConfigService.class);
 
+    /**
+     * The time in milliseconds changed properties wait before they are
+     * written to the database, so that the changes made meanwhile are written
+     * in the same transaction.
+     */
+    private static final long WRITE_DELAY = 500;
+
+    /**
+     * The time in milliseconds before the changes which could not be written
+     * to the database are written again.
+     */
+    private static final long WRITE_RETRY_DELAY = 10000;
+
     /**
      * Name of the file containing default properties.
      */
@@ -76,6 +95,45 @@
     private Map<String, String> defaultProperties
         = new HashMap<String, String>();
 
+    /**
+     * The properties stored in the database, including the changes not
+     * written yet.
+     */
+    private final ConcurrentMap<String, String> properties
+        = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The sorted index of the names of {@link #properties}, answering the
+     * prefix queries.
+     */
+    private final PropertyNameIndex propertyNames = new PropertyNameIndex();
+
+    /**
+     * The changes not written to the database yet in the order they were
+     * made, with <tt>null</tt> values for the removed properties. Guarded by
+     * itself.
+     */
+    private final Map<String, String> pendingWrites
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * The timer writing the pending changes to the database or <tt>null</tt>
+     * if it has not been created yet or has been canceled when the connection
+     * was closed. Guarded by {@link #pendingWrites}.
+     */
+    private Timer writeTimer;
+
+    /**
+     * The scheduled write of the pending changes or <tt>null</tt>. Guarded by
+     * {@link #pendingWrites}.
+     */
+    private TimerTask writeTask;
+
+    /**
+     * Serializes the access to the database connection.
+     */
+    private final Object connectionLock = new Object();
+
     /**
      * Registered property change listeners that may veto a change.
      */
@@ -94,8 +152,6 @@
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
@@ -128,9 +184,20 @@ public JdbcConfigService(FileAccessService fas) throws Exception
             migrate = true;
         }
 
-        // open the connection
+        // open the connection and load the stored properties
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
-        checkConnection();
+        synchronized (connectionLock)
+        {
+            checkConnection();
+
+            ResultSet q = this.selectAll.executeQuery();
+            while (q.next())
+            {
+                properties.put(q.getString(1), q.getString(2));
+                propertyNames.add(q.getString(1));
+            }
+            q.close();
+        }
 
         // then do the actual migration
         if (migrate)
@@ -138,14 +205,12 @@ public JdbcConfigService(FileAccessService fas) throws Exception
             Properties p = new Properties();
             p.load(new FileInputStream(oldProps));
 
-            this.connection.setAutoCommit(false);
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
                 this.setProperty(e.getKey().toString(), e.getValue(), false);
             }
 
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+            this.writePendingChanges();
         }
 
         // and finally load the (mandatory) system properties
@@ -203,10 +268,6 @@ private void checkConnection() throws SQLException
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -266,28 +327,146 @@ public synchronized void setProperty(String propertyName, Object property,
                 return;
             }
 
+            Object oldValue = this.getProperty(propertyName);
+            this.fireVetoableChange(propertyName, oldValue, property);
+
+            String value = (property == null) ? null : property.toString();
+            if (value == null)
+            {
+                properties.remove(propertyName);
+                propertyNames.remove(propertyName);
+            }
+            else
+            {
+                properties.put(propertyName, value);
+                propertyNames.add(propertyName);
+            }
+            this.scheduleWrite(propertyName, value);
+
+            this.fireChange(propertyName, oldValue, property);
+        }
+    }
+
+    /**
+     * Queues the change of a property to be written to the database.
+     *
+     * @param propertyName the name of the property
+     * @param value the new value of the property or <tt>null</tt> if it was
+     * removed
+     */
+    private void scheduleWrite(String propertyName, String value)
+    {
+        synchronized (pendingWrites)
+        {
+            // the last change of a property is the only one to write
+            pendingWrites.remove(propertyName);
+            pendingWrites.put(propertyName, value);
+
+            scheduleWriteTask(WRITE_DELAY);
+        }
+    }
+
+    /**
+     * Schedules the write of the pending changes unless it is scheduled
+     * already. (It is assumed that <tt>pendingWrites</tt> is locked.)
+     *
+     * @param delay the delay in milliseconds before the write
+     */
+    private void scheduleWriteTask(long delay)
+    {
+        if (writeTask != null)
+            return;
+
+        if (writeTimer == null)
+            writeTimer = new Timer("JdbcConfigService writer", true);
+
+        writeTask = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                writePendingChanges();
+            }
+        };
+        writeTimer.schedule(writeTask, delay);
+    }
+
+    /**
+     * Writes the pending changes to the database in a single transaction.
+     * If writing fails they are kept to be written with the next changes.
+     */
+    private void writePendingChanges()
+    {
+        synchronized (connectionLock)
+        {
+            Map<String, String> changes;
+
+            synchronized (pendingWrites)
+            {
+                if (writeTask != null)
+                {
+                    writeTask.cancel();
+                    writeTask = null;
+                }
+
+                if (pendingWrites.isEmpty())
+                    return;
+
+                changes = new LinkedHashMap<String, String>(pendingWrites);
+                pendingWrites.clear();
+            }
+
             try
             {
                 this.checkConnection();
-                Object oldValue = this.getProperty(propertyName);
-                this.fireVetoableChange(propertyName, oldValue, property);
-                if (property == null)
+                this.connection.setAutoCommit(false);
+                try
                 {
-                    this.delete.setString(1, propertyName);
-                    this.delete.execute();
+                    for (Map.Entry<String, String> e : changes.entrySet())
+                    {
+                        if (e.getValue() == null)
+                        {
+                            this.delete.setString(1, e.getKey());
+                            this.delete.addBatch();
+                        }
+                        else
+                        {
+                            this.insertOrUpdate.setString(1, e.getKey());
+                            this.insertOrUpdate.setString(2, e.getValue());
+                            this.insertOrUpdate.addBatch();
+                        }
+                    }
+
+                    this.delete.executeBatch();
+                    this.insertOrUpdate.executeBatch();
+                    this.connection.commit();
                 }
-                else
+                catch (SQLException e)
                 {
-                    this.insertOrUpdate.setString(1, propertyName);
-                    this.insertOrUpdate.setString(2, property.toString());
-                    this.insertOrUpdate.execute();
+                    this.connection.rollback();
+                    throw e;
+                }
+                finally
+                {
+                    this.connection.setAutoCommit(true);
                 }
-
-                this.fireChange(propertyName, oldValue, property);
             }
             catch (SQLException e)
             {
-                throw new RuntimeException(e);
+                logger.error("Could not write configuration changes", e);
+
+                // keep the changes made since then as they are newer
+                synchronized (pendingWrites)
+                {
+                    for (Map.Entry<String, String> change : changes.entrySet())
+                    {
+                        if (!pendingWrites.containsKey(change.getKey()))
+                            pendingWrites.put(change.getKey(), change.getValue());
+                    }
+
+                    // try again later rather than waiting for the next change
+                    scheduleWriteTask(WRITE_RETRY_DELAY);
+                }
             }
         }
     }
@@ -302,21 +481,10 @@ public synchronized void setProperty(String propertyName, Object property,
     @Override
     public synchronized void setProperties(Map<String, Object> properties)
     {
-        try
-        {
-            checkConnection();
-            this.connection.setAutoCommit(false);
-            for (Map.Entry<String, Object> e : properties.entrySet())
-            {
-                this.setProperty(e.getKey(), e.getValue(), false);
-            }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
-        }
-        catch (SQLException e1)
+        // the changes are queued together and written in one transaction
+        for (Map.Entry<String, Object> e : properties.entrySet())
         {
-            throw new RuntimeException(e1);
+            this.setProperty(e.getKey(), e.getValue(), false);
         }
     }
 
@@ -328,7 +496,7 @@ public synchronized void setProperties(Map<String, Object> properties)
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -336,22 +504,7 @@ public synchronized Object getProperty(String propertyName)
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
-
+        value = properties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -398,20 +551,7 @@ public List<String> getAllPropertyNames()
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-            throw new RuntimeException(e);
-        }
+        data.addAll(properties.keySet());
 
         return data;
     }
@@ -427,46 +567,7 @@ public List<String> getAllPropertyNames()
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
-        {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-
-                if(exactPrefixMatch)
-                {
-                    int ix = key.lastIndexOf('.');
-                    if(ix == -1)
-                    {
-                        continue;
-                    }
-
-                    String keyPrefix = key.substring(0, ix);
-
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
-                {
-                    if(key.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-            }
-
-            return resultSet;
-        }
-        catch (SQLException e)
-        {
-            throw new RuntimeException(e);
-        }
+        return propertyNames.getByPrefix(prefix, exactPrefixMatch);
     }
 
     /*
@@ -479,26 +580,15 @@ public List<String> getPropertyNamesByPrefix(String prefix,
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
-        {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
-            }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
+        List<String> resultKeySet = new ArrayList<String>(20);
+        for (String key : properties.keySet())
         {
-            throw new RuntimeException(e);
+            int ix = key.lastIndexOf('.');
+            if (ix != -1 && suffix.equals(key.substring(ix + 1)))
+                resultKeySet.add(key);
         }
+
+        return resultKeySet;
     }
 
     /*
@@ -765,17 +855,38 @@ public void removeVetoableChangeListener(String propertyName,
     @Override
     public void storeConfiguration() throws IOException
     {
-        try
-        {
-            this.connection.close();
-        }
-        catch (SQLException e)
-        {
-            logger.error(e);
-        }
-        finally
+        this.writePendingChanges();
+
+        synchronized (connectionLock)
         {
-            this.connection = null;
+            // The changes which still could not be written stay pending and
+            // a new timer is created with the next change.
+            synchronized (pendingWrites)
+            {
+                if (writeTask != null)
+                {
+                    writeTask.cancel();
+                    writeTask = null;
+                }
+                if (writeTimer != null)
+                {
+                    writeTimer.cancel();
+                    writeTimer = null;
+                }
+            }
+
+            try
+            {
+                this.connection.close();
+            }
+            catch (SQLException e)
+            {
+                logger.error(e);
+            }
+            finally
+            {
+                this.connection = null;
+            }
         }
     }
 
@@ -796,18 +907,28 @@ public void reloadConfiguration() throws IOException
      * ()
      */
     @Override
-    public void purgeStoredConfiguration()
+    public synchronized void purgeStoredConfiguration()
     {
-        try
-        {
-            this.checkConnection();
-            Statement st = this.connection.createStatement();
-            st.executeUpdate("TRUNCATE TABLE Props");
-        }
-        catch (SQLException e)
+        synchronized (connectionLock)
         {
-            logger.error(e);
-            throw new RuntimeException(e);
+            synchronized (pendingWrites)
+            {
+                pendingWrites.clear();
+            }
+            properties.clear();
+            propertyNames.clear();
+
+            try
+            {
+                this.checkConnection();
+                Statement st = this.connection.createStatement();
+                st.executeUpdate("TRUNCATE TABLE Props");
+            }
+            catch (SQLException e)
+            {
+                logger.error(e);
+                throw new RuntimeException(e);
+            }
         }
     }
 
@@ -0,0 +1,123 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A sorted index of configuration property names answering the prefix
+ * queries of <tt>ConfigurationService</tt> without scanning all properties.
+ * <p>
+ * The names of a subtree, i.e. those starting with a given prefix, are
+ * contiguous in the sorted index, so they are found in logarithmic time and
+ * iterated without looking at any other name. The direct children of a
+ * prefix are found the same way, skipping the subtree below every child
+ * with a single lookup instead of iterating it.
+ * <p>
+ * The index can be read and modified concurrently without locking.
+ */
+final class PropertyNameIndex
+{
+    /**
+     * The character following the separator of the name components in the
+     * sort order, used to find the end of a subtree.
+     */
+    private static final char AFTER_SEPARATOR = '.' + 1;
+
+    /**
+     * The indexed property names.
+     */
+    private final NavigableSet<String> names
+        = new ConcurrentSkipListSet<String>();
+
+    /**
+     * Adds a property name to the index.
+     *
+     * @param name the property name
+     */
+    void add(String name)
+    {
+        names.add(name);
+    }
+
+    /**
+     * Removes a property name from the index.
+     *
+     * @param name the property name
+     */
+    void remove(String name)
+    {
+        names.remove(name);
+    }
+
+    /**
+     * Removes all property names from the index.
+     */
+    void clear()
+    {
+        names.clear();
+    }
+
+    /**
+     * Returns the property names starting with <tt>prefix</tt>, with the
+     * semantics of <tt>ConfigurationService.getPropertyNamesByPrefix</tt>.
+     *
+     * @param prefix the prefix of the property names
+     * @param exactPrefixMatch <tt>true</tt> to only return the names whose
+     * part before the last dot is exactly <tt>prefix</tt>, <tt>false</tt> to
+     * return all names starting with <tt>prefix</tt>
+     * @return the matching property names in their sort order
+     */
+    List<String> getByPrefix(String prefix, boolean exactPrefixMatch)
+    {
+        List<String> result = new ArrayList<String>();
+
+        if (!exactPrefixMatch)
+        {
+            for (String name : names.tailSet(prefix, true))
+            {
+                if (!name.startsWith(prefix))
+                    break;
+                result.add(name);
+            }
+            return result;
+        }
+
+        String childPrefix = prefix + '.';
+        String name = names.ceiling(childPrefix);
+
+        while (name != null && name.startsWith(childPrefix))
+        {
+            int ix = name.indexOf('.', childPrefix.length());
+
+            if (ix == -1)
+            {
+                result.add(name);
+                name = names.higher(name);
+            }
+            else
+            {
+                // skip the names below this child, they are all between
+                // "child." and "child/"
+                name = names.ceiling(name.substring(0, ix) + AFTER_SEPARATOR);
+            }
+        }
+        return result;
+    }
+}
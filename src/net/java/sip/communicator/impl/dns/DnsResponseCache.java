@@ -0,0 +1,616 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.dns;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.xbill.DNS.*;
+
+/**
+ * A cache of the responses received by <tt>ParallelResolverImpl</tt>, kept
+ * for as long as the TTLs of their records allow and persisted to a file so
+ * that it survives restarts.
+ * <p>
+ * Negative responses (NXDOMAIN and NODATA) are cached for the time given by
+ * the SOA record of their authority section, as described in RFC 2308, or
+ * for a short default time when there is none. Responses are served with
+ * their TTLs decreased by the time they spent in the cache.
+ * <p>
+ * A response served when most of its lifetime has passed is reported as
+ * needing a refresh, so that it can be resolved again in the background
+ * before it expires and the next lookup does not wait for the network.
+ */
+class DnsResponseCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>DnsResponseCache</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(DnsResponseCache.class);
+
+    /**
+     * The version of the format of the cache file.
+     */
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * The time in seconds negative responses without a SOA record are
+     * cached.
+     */
+    private static final long DEFAULT_NEGATIVE_TTL = 60;
+
+    /**
+     * The maximum time in seconds negative responses are cached.
+     */
+    private static final long MAX_NEGATIVE_TTL = 15 * 60;
+
+    /**
+     * The maximum time in seconds responses are cached.
+     */
+    private static final long MAX_TTL = 24 * 60 * 60;
+
+    /**
+     * The part of the lifetime of a response which has to remain when it is
+     * served for it not to need a refresh.
+     */
+    private static final int REFRESH_PERCENT = 10;
+
+    /**
+     * The time in milliseconds changes wait before the cache is saved to its
+     * file, so that the responses received meanwhile are saved together.
+     */
+    private static final long SAVE_DELAY = 60 * 1000;
+
+    /**
+     * The cached responses in least recently used order.
+     */
+    private final LinkedHashMap<Key, Entry> entries
+        = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+
+    /**
+     * The maximum number of cached responses.
+     */
+    private final int maxEntries;
+
+    /**
+     * The file the cache is persisted to or <tt>null</tt>.
+     */
+    private final File file;
+
+    /**
+     * The timer saving the cache to its file, created when first needed.
+     */
+    private Timer saveTimer = null;
+
+    /**
+     * Whether a save of the cache is scheduled.
+     */
+    private boolean saveScheduled = false;
+
+    /**
+     * Creates a cache and loads the responses saved in its file which did
+     * not expire yet.
+     *
+     * @param maxEntries the maximum number of cached responses
+     * @param file the file to persist the cache to or <tt>null</tt> to keep
+     * it in memory only
+     */
+    DnsResponseCache(int maxEntries, File file)
+    {
+        this.maxEntries = maxEntries;
+        this.file = file;
+
+        if (file != null && file.exists())
+            load();
+    }
+
+    /**
+     * Returns the cached response to a query, with the ID of the query and
+     * the TTLs of its records decreased by the time spent in the cache.
+     *
+     * @param query the query
+     * @return the response or <tt>null</tt> if there is none or it expired
+     */
+    Message get(Message query)
+    {
+        Key key = Key.forMessage(query);
+
+        if (key == null)
+            return null;
+
+        Entry entry;
+        long now = System.currentTimeMillis();
+
+        synchronized (entries)
+        {
+            entry = entries.get(key);
+            if (entry == null)
+                return null;
+            if (entry.expires <= now)
+            {
+                entries.remove(key);
+                return null;
+            }
+        }
+
+        try
+        {
+            Message response = new Message(entry.wire);
+            long remaining = (entry.expires - now) / 1000;
+
+            for (int section = Section.ANSWER;
+                    section <= Section.ADDITIONAL;
+                    section++)
+            {
+                Record[] records = response.getSectionArray(section);
+
+                response.removeAllRecords(section);
+                for (Record r : records)
+                {
+                    // the TTL of an OPT record holds its flags
+                    if (r.getType() != Type.OPT && r.getTTL() > remaining)
+                    {
+                        r = Record.newRecord(
+                            r.getName(), r.getType(), r.getDClass(),
+                            remaining, r.rdataToWireCanonical());
+                    }
+                    response.addRecord(r, section);
+                }
+            }
+            response.getHeader().setID(query.getHeader().getID());
+            return response;
+        }
+        catch (IOException e)
+        {
+            // cannot happen as the response was parsed before it was cached
+            logger.error("Could not read cached DNS response", e);
+            synchronized (entries)
+            {
+                entries.remove(key);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the cached response to a query is close to its expiry
+     * and marks it as being refreshed, so that it is refreshed only once.
+     *
+     * @param query the query
+     * @return <tt>true</tt> if the caller should resolve the query again and
+     * {@link #put(Message)} the response
+     */
+    boolean startRefresh(Message query)
+    {
+        Key key = Key.forMessage(query);
+
+        if (key == null)
+            return false;
+
+        synchronized (entries)
+        {
+            Entry entry = entries.get(key);
+
+            if (entry == null || entry.refreshing)
+                return false;
+
+            long lifetime = entry.expires - entry.created;
+            long remaining = entry.expires - System.currentTimeMillis();
+
+            if (remaining * 100 > lifetime * REFRESH_PERCENT)
+                return false;
+
+            entry.refreshing = true;
+            return true;
+        }
+    }
+
+    /**
+     * Caches a response if it can be cached, i.e. if it is complete and is
+     * either positive, NXDOMAIN or NODATA.
+     *
+     * @param response the response
+     */
+    void put(Message response)
+    {
+        Key key = Key.forMessage(response);
+
+        if (key == null || response.getHeader().getFlag(Flags.TC))
+            return;
+
+        long ttl = getTtl(response);
+
+        if (ttl <= 0)
+            return;
+
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(
+            response.toWire(), now, now + ttl * 1000, isNegative(response));
+
+        synchronized (entries)
+        {
+            entries.put(key, entry);
+
+            Iterator<Entry> iter = entries.values().iterator();
+            while (entries.size() > maxEntries && iter.hasNext())
+            {
+                iter.next();
+                iter.remove();
+            }
+        }
+
+        scheduleSave();
+    }
+
+    /**
+     * Removes the cached negative responses. Called when the network
+     * changes, as a name which did not exist may exist for the new DNS
+     * servers.
+     */
+    void removeNegative()
+    {
+        synchronized (entries)
+        {
+            Iterator<Entry> iter = entries.values().iterator();
+
+            while (iter.hasNext())
+            {
+                if (iter.next().negative)
+                    iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the time a response can be cached.
+     *
+     * @param response the response
+     * @return the time in seconds, <tt>0</tt> if it cannot be cached
+     */
+    private static long getTtl(Message response)
+    {
+        int rcode = response.getRcode();
+        if (!isNegative(response))
+        {
+            long ttl = MAX_TTL;
+
+            for (Record r : response.getSectionArray(Section.ANSWER))
+                ttl = Math.min(ttl, r.getTTL());
+            return ttl;
+        }
+
+        if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN)
+            return 0;
+
+        for (Record r
+                : response.getSectionArray(Section.AUTHORITY))
+        {
+            if (r instanceof SOARecord)
+            {
+                long ttl = Math.min(
+                    r.getTTL(), ((SOARecord) r).getMinimum());
+
+                return Math.min(ttl, MAX_NEGATIVE_TTL);
+            }
+        }
+        return DEFAULT_NEGATIVE_TTL;
+    }
+
+    /**
+     * Checks whether a response is negative, i.e. NXDOMAIN or NODATA.
+     *
+     * @param response the response
+     * @return <tt>true</tt> if the response has no answer
+     */
+    private static boolean isNegative(Message response)
+    {
+        return response.getRcode() != Rcode.NOERROR
+            || response.getSectionArray(Section.ANSWER).length == 0;
+    }
+
+    /**
+     * Schedules the save of the cache to its file.
+     */
+    private synchronized void scheduleSave()
+    {
+        if (file == null || saveScheduled)
+            return;
+
+        if (saveTimer == null)
+            saveTimer = new Timer("DnsResponseCache", true);
+
+        saveScheduled = true;
+        saveTimer.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                save();
+            }
+        }, SAVE_DELAY);
+    }
+
+    /**
+     * Cancels the pending save of the cache and saves it right away.
+     */
+    void close()
+    {
+        synchronized (this)
+        {
+            if (saveTimer != null)
+            {
+                saveTimer.cancel();
+                saveTimer = null;
+            }
+            if (!saveScheduled)
+                return;
+        }
+        save();
+    }
+
+    /**
+     * Saves the responses which did not expire yet to the file of the
+     * cache.
+     */
+    void save()
+    {
+        if (file == null)
+            return;
+
+        List<Entry> toSave;
+        long now = System.currentTimeMillis();
+
+        synchronized (this)
+        {
+            saveScheduled = false;
+        }
+        synchronized (entries)
+        {
+            toSave = new ArrayList<Entry>(entries.size());
+            for (Entry entry : entries.values())
+            {
+                if (entry.expires > now)
+                    toSave.add(entry);
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+
+        try
+        {
+            out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_VERSION);
+            out.writeInt(toSave.size());
+            for (Entry entry : toSave)
+            {
+                out.writeLong(entry.created);
+                out.writeLong(entry.expires);
+                out.writeInt(entry.wire.length);
+                out.write(entry.wire);
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file))
+            {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("Could not replace " + file);
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not save the DNS cache to " + file, e);
+        }
+        finally
+        {
+            if (out != null)
+            {
+                try
+                {
+                    out.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Loads the responses saved in the file of the cache which did not
+     * expire yet, in the least recently used order they were saved in.
+     */
+    private void load()
+    {
+        DataInputStream in = null;
+        long now = System.currentTimeMillis();
+
+        try
+        {
+            in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION)
+                return;
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                long created = in.readLong();
+                long expires = in.readLong();
+                byte[] wire = new byte[in.readInt()];
+
+                in.readFully(wire);
+                if (expires <= now)
+                    continue;
+
+                Message response = new Message(wire);
+                Key key = Key.forMessage(response);
+                if (key != null)
+                {
+                    entries.put(key, new Entry(
+                        wire, created, expires, isNegative(response)));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            // a damaged cache is only a cold cache
+            logger.warn("Could not load the DNS cache from " + file, e);
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+    }
+
+    /**
+     * The key of a cached response, the question it answers.
+     */
+    private static class Key
+    {
+        /**
+         * The queried name.
+         */
+        private final Name name;
+
+        /**
+         * The queried type.
+         */
+        private final int type;
+
+        /**
+         * The queried class.
+         */
+        private final int dclass;
+
+        /**
+         * Creates a key.
+         *
+         * @param name the queried name
+         * @param type the queried type
+         * @param dclass the queried class
+         */
+        private Key(Name name, int type, int dclass)
+        {
+            this.name = name;
+            this.type = type;
+            this.dclass = dclass;
+        }
+
+        /**
+         * Returns the key of the question of a query or a response.
+         *
+         * @param message the query or response
+         * @return the key or <tt>null</tt> if the message has no question
+         */
+        static Key forMessage(Message message)
+        {
+            Record question = message.getQuestion();
+
+            return (question == null)
+                ? null
+                : new Key(
+                    question.getName(),
+                    question.getType(),
+                    question.getDClass());
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+
+            return type == other.type
+                && dclass == other.dclass
+                && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (name.hashCode() * 31 + type) * 31 + dclass;
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    private static class Entry
+    {
+        /**
+         * The response in wire format.
+         */
+        final byte[] wire;
+
+        /**
+         * The time the response was received in milliseconds.
+         */
+        final long created;
+
+        /**
+         * The time the response expires in milliseconds.
+         */
+        final long expires;
+
+        /**
+         * Whether the response is NXDOMAIN or NODATA.
+         */
+        final boolean negative;
+
+        /**
+         * Whether the response is being refreshed.
+         */
+        boolean refreshing = false;
+
+        /**
+         * Creates a cached response.
+         *
+         * @param wire the response in wire format
+         * @param created the time the response was received
+         * @param expires the time the response expires
+         * @param negative whether the response is NXDOMAIN or NODATA
+         */
+        Entry(byte[] wire, long created, long expires, boolean negative)
+        {
+            this.wire = wire;
+            this.created = created;
+            this.expires = expires;
+            this.negative = negative;
+        }
+    }
+}
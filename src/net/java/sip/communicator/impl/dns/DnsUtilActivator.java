@@ -27,11 +27,13 @@
 
 import net.java.sip.communicator.util.Logger;
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.resources.*;
 import org.jitsi.util.*;
 import org.osgi.framework.*;
 import org.xbill.DNS.*;
 
+import java.io.*;
 import java.net.*;
 
 /**
@@ -102,6 +104,42 @@
     public static final String PNAME_BACKUP_RESOLVER
         = "net.java.sip.communicator.util.dns.BACKUP_RESOLVER";
 
+    /**
+     * The name of the property that users may use to disable the cache of
+     * the DNS responses.
+     */
+    public static final String PNAME_DNS_CACHE_ENABLED
+        = "net.java.sip.communicator.util.dns.CACHE_ENABLED";
+
+    /**
+     * The default of the property that users may use to disable the cache
+     * of the DNS responses.
+     */
+    public static final boolean PDEFAULT_DNS_CACHE_ENABLED = true;
+
+    /**
+     * The name of the property that users may use to override the maximum
+     * number of DNS responses kept in the cache.
+     */
+    public static final String PNAME_DNS_CACHE_SIZE
+        = "net.java.sip.communicator.util.dns.CACHE_SIZE";
+
+    /**
+     * The default maximum number of DNS responses kept in the cache.
+     */
+    public static final int PDEFAULT_DNS_CACHE_SIZE = 500;
+
+    /**
+     * The name of the file the cache of the DNS responses is saved to.
+     */
+    private static final String DNS_CACHE_FILE_NAME = "dnscache.dat";
+
+    /**
+     * The cache of the DNS responses of the registered parallel resolver or
+     * <tt>null</tt> if there is none.
+     */
+    private static DnsResponseCache responseCache;
+
     /**
      * Calls <tt>Thread.setUncaughtExceptionHandler()</tt>
      *
@@ -137,9 +175,20 @@ public void start(BundleContext context)
                 CustomResolver.PNAME_DNSSEC_RESOLVER_ENABLED,
                 CustomResolver.PDEFAULT_DNSSEC_RESOLVER_ENABLED))
         {
+            if (getConfigurationService().getBoolean(
+                    PNAME_DNS_CACHE_ENABLED,
+                    PDEFAULT_DNS_CACHE_ENABLED))
+            {
+                responseCache = new DnsResponseCache(
+                    getConfigurationService().getInt(
+                        PNAME_DNS_CACHE_SIZE,
+                        PDEFAULT_DNS_CACHE_SIZE),
+                    getResponseCacheFile());
+            }
+
             bundleContext.registerService(
                 CustomResolver.class.getName(),
-                new ParallelResolverImpl(),
+                new ParallelResolverImpl(responseCache),
                 null);
             logger.info("ParallelResolver ... [REGISTERED]");
         }
@@ -306,6 +355,38 @@ private static void logDNSServers()
     public void stop(BundleContext context)
         throws Exception
     {
+        if (responseCache != null)
+        {
+            responseCache.close();
+            responseCache = null;
+        }
+    }
+
+    /**
+     * Returns the file the cache of the DNS responses is saved to.
+     *
+     * @return the file of the cache or <tt>null</tt> if it cannot be
+     * obtained, in which case the cache is only kept in memory
+     */
+    private static File getResponseCacheFile()
+    {
+        FileAccessService fileAccessService
+            = ServiceUtils.getService(bundleContext, FileAccessService.class);
+
+        if (fileAccessService == null)
+            return null;
+
+        try
+        {
+            return fileAccessService.getPrivatePersistentFile(
+                DNS_CACHE_FILE_NAME,
+                FileCategory.CACHE);
+        }
+        catch (Exception e)
+        {
+            logger.warn("Could not obtain the DNS cache file", e);
+            return null;
+        }
     }
 
     /**
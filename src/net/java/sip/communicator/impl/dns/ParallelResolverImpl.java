@@ -102,11 +102,20 @@
     /** Thread pool that processes the backup queries. */
     private ExecutorService backupQueriesPool;
 
+    /**
+     * The cache of the responses or <tt>null</tt> if it is disabled.
+     */
+    private final DnsResponseCache responseCache;
+
     /**
      * Creates a new instance of this class.
+     *
+     * @param responseCache the cache of the responses or <tt>null</tt> to
+     * always query the DNS servers
      */
-    ParallelResolverImpl()
+    ParallelResolverImpl(DnsResponseCache responseCache)
     {
+        this.responseCache = responseCache;
         backupQueriesPool = Executors.newCachedThreadPool();
         DnsUtilActivator.getConfigurationService()
             .addPropertyChangeListener(this);
@@ -208,7 +217,54 @@ private void setBackupServers(InetSocketAddress[] backupServers)
      *
      * @throws IOException An error occurred while sending or receiving.
      */
-    public Message send(Message query)
+    public Message send(final Message query)
+        throws IOException
+    {
+        if (responseCache == null)
+            return resolve(query);
+
+        Message response = responseCache.get(query);
+
+        if (response == null)
+        {
+            response = resolve(query);
+            responseCache.put(response);
+        }
+        else if (responseCache.startRefresh(query))
+        {
+            // resolve again in the background a response about to expire
+            backupQueriesPool.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        responseCache.put(resolve(query));
+                    }
+                    catch (Throwable t)
+                    {
+                        if (logger.isDebugEnabled())
+                        {
+                            logger.debug("Could not refresh cached response"
+                                + " for " + query.getQuestion(), t);
+                        }
+                    }
+                }
+            });
+        }
+        return response;
+    }
+
+    /**
+     * Sends a message to the DNS servers, and to the backup ones as well
+     * when in redundant mode, and waits for a response.
+     *
+     * @param query The query to send.
+     * @return The response
+     *
+     * @throws IOException An error occurred while sending or receiving.
+     */
+    private Message resolve(Message query)
         throws IOException
     {
         ParallelResolution resolution = new ParallelResolution(query);
@@ -384,6 +440,10 @@ public final void reset()
     {
         Lookup.refreshDefault();
 
+        // names which did not exist may exist for the new servers
+        if (responseCache != null)
+            responseCache.removeNegative();
+
         // populate with new servers after refreshing configuration
         try
         {
@@ -0,0 +1,408 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+
+/**
+ * A size bounded cache of the parsed files of all histories, shared by the
+ * histories of a <tt>HistoryServiceImpl</tt>.
+ * <p>
+ * The size of every cached value is estimated when it is added. When the
+ * estimated size of all values exceeds the maximum size of the cache, the
+ * least recently used values are evicted. Every history also has a soft
+ * limit: when the values of a history exceed it, the least recently used
+ * values of that history are evicted first, so that browsing one large
+ * history does not push all the others out of the cache.
+ * <p>
+ * Values which are dirty, i.e. which hold changes not written to disk yet,
+ * are never evicted.
+ */
+class HistoryDocumentCache
+{
+    /**
+     * The cached values in least recently used order.
+     */
+    private final LinkedHashMap<Key, Value> values
+        = new LinkedHashMap<Key, Value>(16, 0.75f, true);
+
+    /**
+     * The estimated size of the cached values of every history.
+     */
+    private final Map<HistoryID, Long> historySizes
+        = new HashMap<HistoryID, Long>();
+
+    /**
+     * The maximum estimated size of all cached values in bytes.
+     */
+    private final long maxSize;
+
+    /**
+     * The soft limit of the estimated size of the cached values of a single
+     * history in bytes.
+     */
+    private final long maxHistorySize;
+
+    /**
+     * The estimated size of all cached values in bytes.
+     */
+    private long size = 0;
+
+    /**
+     * The number of lookups which found their value in the cache.
+     */
+    private long hitCount = 0;
+
+    /**
+     * The number of lookups which did not find their value in the cache.
+     */
+    private long missCount = 0;
+
+    /**
+     * The number of values evicted from the cache to make room.
+     */
+    private long evictionCount = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the maximum estimated size of all cached values in
+     * bytes, nothing is cached if it is not positive
+     * @param maxHistorySize the soft limit of the estimated size of the cached
+     * values of a single history in bytes
+     */
+    HistoryDocumentCache(long maxSize, long maxHistorySize)
+    {
+        this.maxSize = maxSize;
+        this.maxHistorySize = maxHistorySize;
+    }
+
+    /**
+     * Returns a cached value.
+     *
+     * @param id the identifier of the history
+     * @param filename the name of the history file
+     * @param type the type of the value
+     * @return the cached value or <tt>null</tt>
+     */
+    synchronized <T> T get(HistoryID id, String filename, Class<T> type)
+    {
+        Value value = values.get(new Key(id, filename, type));
+
+        if (value == null)
+        {
+            missCount++;
+            return null;
+        }
+
+        hitCount++;
+        return type.cast(value.value);
+    }
+
+    /**
+     * Adds a value to the cache, replacing the one with the same type for
+     * the same file, and evicts values as needed to keep the cache within its
+     * limits.
+     *
+     * @param id the identifier of the history
+     * @param filename the name of the history file
+     * @param type the type of the value
+     * @param value the value
+     * @param estimatedSize the estimated size of the value in bytes
+     * @param dirty whether the value holds changes not written to disk yet
+     */
+    synchronized <T> void put(HistoryID id,
+                              String filename,
+                              Class<T> type,
+                              T value,
+                              long estimatedSize,
+                              boolean dirty)
+    {
+        Key key = new Key(id, filename, type);
+
+        remove(key);
+
+        // values which would not fit are not worth evicting everything else
+        if (!dirty && estimatedSize > maxSize)
+            return;
+
+        values.put(key, new Value(value, estimatedSize, dirty));
+        size += estimatedSize;
+        addHistorySize(id, estimatedSize);
+
+        if (getHistorySize(id) > maxHistorySize)
+            evict(id, maxHistorySize, key);
+        if (size > maxSize)
+            evict(null, maxSize, key);
+    }
+
+    /**
+     * Removes a cached value.
+     *
+     * @param id the identifier of the history
+     * @param filename the name of the history file
+     * @param type the type of the value
+     */
+    synchronized void remove(HistoryID id, String filename, Class<?> type)
+    {
+        remove(new Key(id, filename, type));
+    }
+
+    /**
+     * Removes all the cached values of a history.
+     *
+     * @param id the identifier of the history
+     */
+    synchronized void removeHistory(HistoryID id)
+    {
+        Iterator<Map.Entry<Key, Value>> iter = values.entrySet().iterator();
+
+        while (iter.hasNext())
+        {
+            Map.Entry<Key, Value> e = iter.next();
+
+            if (e.getKey().id.equals(id))
+            {
+                size -= e.getValue().size;
+                iter.remove();
+            }
+        }
+        historySizes.remove(id);
+    }
+
+    /**
+     * Removes all cached values.
+     */
+    synchronized void clear()
+    {
+        values.clear();
+        historySizes.clear();
+        size = 0;
+    }
+
+    /**
+     * Returns the number of lookups which found their value in the cache.
+     *
+     * @return the number of cache hits
+     */
+    synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups which did not find their value in the
+     * cache.
+     *
+     * @return the number of cache misses
+     */
+    synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of values evicted from the cache to make room.
+     *
+     * @return the number of evictions
+     */
+    synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    /**
+     * Returns the estimated size of all cached values.
+     *
+     * @return the estimated size of the cache in bytes
+     */
+    synchronized long getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Removes a cached value.
+     *
+     * @param key the key of the value
+     */
+    private void remove(Key key)
+    {
+        Value value = values.remove(key);
+
+        if (value != null)
+        {
+            size -= value.size;
+            addHistorySize(key.id, -value.size);
+        }
+    }
+
+    /**
+     * Evicts the least recently used clean values, of a single history or of
+     * all of them, until their size is within the given limit.
+     *
+     * @param id the identifier of the history to evict values of or
+     * <tt>null</tt> to evict values of any history
+     * @param limit the size to get within
+     * @param keep the key of the value which must not be evicted
+     */
+    private void evict(HistoryID id, long limit, Key keep)
+    {
+        Iterator<Map.Entry<Key, Value>> iter = values.entrySet().iterator();
+
+        while (iter.hasNext()
+                && ((id == null) ? size : getHistorySize(id)) > limit)
+        {
+            Map.Entry<Key, Value> e = iter.next();
+            Key key = e.getKey();
+            Value value = e.getValue();
+
+            if (value.dirty
+                    || key.equals(keep)
+                    || (id != null && !key.id.equals(id)))
+                continue;
+
+            iter.remove();
+            size -= value.size;
+            addHistorySize(key.id, -value.size);
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Returns the estimated size of the cached values of a history.
+     *
+     * @param id the identifier of the history
+     * @return the size of the values of the history in bytes
+     */
+    private long getHistorySize(HistoryID id)
+    {
+        Long historySize = historySizes.get(id);
+
+        return (historySize == null) ? 0 : historySize;
+    }
+
+    /**
+     * Changes the estimated size of the cached values of a history.
+     *
+     * @param id the identifier of the history
+     * @param delta the change of the size in bytes
+     */
+    private void addHistorySize(HistoryID id, long delta)
+    {
+        long historySize = getHistorySize(id) + delta;
+
+        if (historySize > 0)
+            historySizes.put(id, historySize);
+        else
+            historySizes.remove(id);
+    }
+
+    /**
+     * The key of a cached value.
+     */
+    private static class Key
+    {
+        /**
+         * The identifier of the history.
+         */
+        final HistoryID id;
+
+        /**
+         * The name of the history file.
+         */
+        final String filename;
+
+        /**
+         * The type of the value, a file may be cached both as a document and
+         * as a snapshot.
+         */
+        final Class<?> type;
+
+        /**
+         * Creates a key.
+         *
+         * @param id the identifier of the history
+         * @param filename the name of the history file
+         * @param type the type of the value
+         */
+        Key(HistoryID id, String filename, Class<?> type)
+        {
+            this.id = id;
+            this.filename = filename;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+
+            return id.equals(other.id)
+                && filename.equals(other.filename)
+                && type.equals(other.type);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (id.hashCode() * 31 + filename.hashCode()) * 31
+                + type.hashCode();
+        }
+    }
+
+    /**
+     * A cached value.
+     */
+    private static class Value
+    {
+        /**
+         * The value.
+         */
+        final Object value;
+
+        /**
+         * The estimated size of the value in bytes.
+         */
+        final long size;
+
+        /**
+         * Whether the value holds changes not written to disk yet.
+         */
+        boolean dirty;
+
+        /**
+         * Creates a cached value.
+         *
+         * @param value the value
+         * @param size the estimated size of the value in bytes
+         * @param dirty whether the value holds changes not written to disk
+         */
+        Value(Object value, long size, boolean dirty)
+        {
+            this.value = value;
+            this.size = size;
+            this.dirty = dirty;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * Keeps, for every file of a history, the smallest and the biggest timestamp
+ * of its records and the number of records it holds. Date queries use it to
+ * open only the files overlapping the requested period instead of parsing all
+ * of them.
+ * <p>
+ * The index is persisted in the history directory. Every entry also remembers
+ * the length and the modification time its file had when the entry was
+ * computed, and entries not matching the file on disk anymore are ignored and
+ * recomputed, so a stale index (after a crash for example) is never trusted.
+ */
+class HistoryFileIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryFileIndex.class);
+
+    /**
+     * The name of the file the index is persisted to.
+     */
+    static final String INDEX_FILE_NAME = "timestamps.idx";
+
+    /**
+     * Identifies the index file format.
+     */
+    private static final int MAGIC = 0x48494458;
+
+    /**
+     * The version of the index file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The file the index is persisted to.
+     */
+    private final File indexFile;
+
+    /**
+     * The entries of the index by file name.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Whether the index was changed since it was last persisted.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Creates the index of the history kept in the given directory and loads
+     * it if it was previously persisted.
+     *
+     * @param directory the directory of the history
+     */
+    HistoryFileIndex(File directory)
+    {
+        this.directory = directory;
+        this.indexFile = new File(directory, INDEX_FILE_NAME);
+
+        load();
+    }
+
+    /**
+     * Returns the entry of the given file if it is known and still matches
+     * the file on disk.
+     *
+     * @param filename the name of the history file
+     * @return the entry of the file or <tt>null</tt> if it has to be computed
+     */
+    synchronized Entry get(String filename)
+    {
+        Entry entry = entries.get(filename);
+
+        if (entry != null)
+        {
+            File file = new File(directory, filename);
+
+            if (entry.length != file.length()
+                    || entry.lastModified != file.lastModified())
+            {
+                entries.remove(filename);
+                dirty = true;
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Sets the entry of a file computed from all of its records.
+     *
+     * @param filename the name of the history file
+     * @param minTimestamp the smallest timestamp in the file
+     * @param maxTimestamp the biggest timestamp in the file
+     * @param recordCount the number of records in the file
+     * @return the new entry
+     */
+    synchronized Entry put(String filename,
+                           long minTimestamp,
+                           long maxTimestamp,
+                           int recordCount)
+    {
+        File file = new File(directory, filename);
+
+        return put(filename, minTimestamp, maxTimestamp, recordCount,
+            file.length(), file.lastModified());
+    }
+
+    /**
+     * Sets the entry of a file computed from all of its records when the
+     * file had the given length and modification time.
+     *
+     * @param filename the name of the history file
+     * @param minTimestamp the smallest timestamp in the file
+     * @param maxTimestamp the biggest timestamp in the file
+     * @param recordCount the number of records in the file
+     * @param length the length of the file the records were read from
+     * @param lastModified the modification time of the file the records
+     * were read from
+     * @return the new entry
+     */
+    synchronized Entry put(String filename,
+                           long minTimestamp,
+                           long maxTimestamp,
+                           int recordCount,
+                           long length,
+                           long lastModified)
+    {
+        Entry entry = new Entry();
+
+        entry.minTimestamp = minTimestamp;
+        entry.maxTimestamp = maxTimestamp;
+        entry.recordCount = recordCount;
+        entry.length = length;
+        entry.lastModified = lastModified;
+
+        entries.put(filename, entry);
+        dirty = true;
+        return entry;
+    }
+
+    /**
+     * Updates the entry of a file after records were appended to it and
+     * written together. Does nothing if the entry is unknown as it will be
+     * computed when needed.
+     *
+     * @param filename the name of the history file
+     * @param minTimestamp the smallest timestamp of the appended records
+     * @param maxTimestamp the largest timestamp of the appended records
+     * @param count the number of appended records
+     */
+    synchronized void recordsAdded(String filename,
+                                   long minTimestamp,
+                                   long maxTimestamp,
+                                   int count)
+    {
+        Entry entry = entries.get(filename);
+
+        if (entry == null)
+            return;
+
+        // a concurrent reader may have indexed the file after the records
+        // were written, then they are already accounted
+        File file = new File(directory, filename);
+        if (entry.length == file.length()
+                && entry.lastModified == file.lastModified())
+            return;
+
+        if (minTimestamp < entry.minTimestamp)
+            entry.minTimestamp = minTimestamp;
+        if (maxTimestamp > entry.maxTimestamp)
+            entry.maxTimestamp = maxTimestamp;
+        entry.recordCount += count;
+        updateFileState(filename, entry);
+        dirty = true;
+    }
+
+    /**
+     * Forgets the entry of a file, so it gets recomputed when needed.
+     *
+     * @param filename the name of the history file
+     */
+    synchronized void invalidate(String filename)
+    {
+        if (entries.remove(filename) != null)
+            dirty = true;
+    }
+
+    /**
+     * Persists the index if it changed since it was loaded or last stored.
+     */
+    synchronized void store()
+    {
+        if (!dirty)
+            return;
+
+        File tmpFile = new File(directory, INDEX_FILE_NAME + ".tmp");
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet())
+                {
+                    Entry entry = e.getValue();
+
+                    out.writeUTF(e.getKey());
+                    out.writeLong(entry.minTimestamp);
+                    out.writeLong(entry.maxTimestamp);
+                    out.writeInt(entry.recordCount);
+                    out.writeLong(entry.length);
+                    out.writeLong(entry.lastModified);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            indexFile.delete();
+            if (!tmpFile.renameTo(indexFile))
+                throw new IOException("Could not rename " + tmpFile);
+
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            // the index is only an optimization, queries still work without
+            logger.warn("Failed to store history index " + indexFile, e);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Loads the persisted index, if any.
+     */
+    private void load()
+    {
+        if (!indexFile.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+            try
+            {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                {
+                    dirty = true;
+                    return;
+                }
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    String filename = in.readUTF();
+                    Entry entry = new Entry();
+
+                    entry.minTimestamp = in.readLong();
+                    entry.maxTimestamp = in.readLong();
+                    entry.recordCount = in.readInt();
+                    entry.length = in.readLong();
+                    entry.lastModified = in.readLong();
+                    entries.put(filename, entry);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to load history index " + indexFile, e);
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Remembers the current length and modification time of a file in its
+     * entry.
+     *
+     * @param filename the name of the history file
+     * @param entry the entry of the file
+     */
+    private void updateFileState(String filename, Entry entry)
+    {
+        File file = new File(directory, filename);
+
+        entry.length = file.length();
+        entry.lastModified = file.lastModified();
+    }
+
+    /**
+     * The index entry of a single history file.
+     */
+    static class Entry
+    {
+        /**
+         * The smallest timestamp in the file.
+         */
+        long minTimestamp = Long.MAX_VALUE;
+
+        /**
+         * The biggest timestamp in the file.
+         */
+        long maxTimestamp = Long.MIN_VALUE;
+
+        /**
+         * The number of records in the file.
+         */
+        int recordCount = 0;
+
+        /**
+         * The length of the file when the entry was computed.
+         */
+        long length;
+
+        /**
+         * The modification time of the file when the entry was computed.
+         */
+        long lastModified;
+
+        /**
+         * Checks whether the file may hold records with timestamp in the
+         * given period.
+         *
+         * @param startDate the start of the period (inclusive) or
+         * <tt>null</tt>
+         * @param endDate the end of the period (exclusive) or <tt>null</tt>
+         * @return <tt>true</tt> if the file overlaps the period
+         */
+        boolean overlaps(Date startDate, Date endDate)
+        {
+            if (recordCount == 0)
+                return false;
+            if (startDate != null && maxTimestamp < startDate.getTime())
+                return false;
+            if (endDate != null && minTimestamp >= endDate.getTime())
+                return false;
+            return true;
+        }
+    }
+}
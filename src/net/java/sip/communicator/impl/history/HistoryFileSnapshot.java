@@ -0,0 +1,416 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+import org.apache.commons.lang3.*;
+import org.w3c.dom.*;
+
+/**
+ * An immutable view of the records of a history XML file as they were when
+ * the file was read.
+ * <p>
+ * DOM documents cannot be read by several threads at the same time, so the
+ * readers of a history never work on the documents shared with the writer.
+ * They work on snapshots instead, which can be shared by any number of
+ * concurrent queries. A snapshot remembers the length and the modification
+ * time of its file, so one taken before the file changed is recognized and
+ * taken again.
+ */
+final class HistoryFileSnapshot
+{
+    /**
+     * The timestamp of the records whose timestamp could not be parsed.
+     */
+    static final long INVALID_TIMESTAMP = Long.MIN_VALUE;
+
+    /**
+     * The length of the file when it was read.
+     */
+    private final long length;
+
+    /**
+     * The modification time of the file when it was read.
+     */
+    private final long lastModified;
+
+    /**
+     * The timestamps of the records.
+     */
+    private final long[] timestamps;
+
+    /**
+     * The property names of the records.
+     */
+    private final String[][] names;
+
+    /**
+     * The property values of the records as they are stored in the file,
+     * <tt>null</tt> for the properties without a value.
+     */
+    private final String[][] values;
+
+    /**
+     * The estimated memory used by this snapshot in bytes.
+     */
+    private final long estimatedSize;
+
+    /**
+     * Creates a snapshot.
+     *
+     * @param length the length of the file when it was read
+     * @param lastModified the modification time of the file when it was read
+     * @param timestamps the timestamps of the records
+     * @param names the property names of the records
+     * @param values the property values of the records
+     */
+    private HistoryFileSnapshot(long length,
+                                long lastModified,
+                                long[] timestamps,
+                                String[][] names,
+                                String[][] values)
+    {
+        this.length = length;
+        this.lastModified = lastModified;
+        this.timestamps = timestamps;
+        this.names = names;
+        this.values = values;
+
+        // object headers and references, the property names are shared
+        // between the records as the parser interns them
+        long estimatedSize = 64 + 8L * timestamps.length;
+        for (int i = 0; i < values.length; i++)
+        {
+            estimatedSize += 48 + 8L * values[i].length;
+            for (String value : values[i])
+            {
+                if (value != null)
+                    estimatedSize += 40 + 2L * value.length();
+            }
+        }
+        this.estimatedSize = estimatedSize;
+    }
+
+    /**
+     * Creates the snapshot of a file without records.
+     *
+     * @param length the length of the file
+     * @param lastModified the modification time of the file
+     * @return the snapshot
+     */
+    static HistoryFileSnapshot createEmpty(long length, long lastModified)
+    {
+        return new HistoryFileSnapshot(
+            length, lastModified, new long[0], new String[0][], new String[0][]);
+    }
+
+    /**
+     * Creates the snapshot of a file from its parsed document.
+     *
+     * @param doc the document of the file
+     * @param length the length of the file before it was parsed
+     * @param lastModified the modification time of the file before it was
+     * parsed
+     * @return the snapshot
+     */
+    static HistoryFileSnapshot create(Document doc,
+                                      long length,
+                                      long lastModified)
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        NodeList nodes = doc.getElementsByTagName("record");
+        int count = nodes.getLength();
+        long[] timestamps = new long[count];
+        String[][] names = new String[count][];
+        String[][] values = new String[count][];
+
+        List<String> recordNames = new ArrayList<String>();
+        List<String> recordValues = new ArrayList<String>();
+        for (int i = 0; i < count; i++)
+        {
+            Element node = (Element) nodes.item(i);
+
+            timestamps[i] = HistoryFileStreamReader.parseTimestamp(
+                sdf, node.getAttribute("timestamp"));
+
+            NodeList propertyNodes = node.getChildNodes();
+            for (int j = 0; j < propertyNodes.getLength(); j++)
+            {
+                Node propertyNode = propertyNodes.item(j);
+
+                if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                    continue;
+
+                // Get nested TEXT node's value
+                Node nestedNode = propertyNode.getFirstChild();
+
+                recordNames.add(propertyNode.getNodeName());
+                recordValues.add(
+                    (nestedNode == null) ? null : nestedNode.getNodeValue());
+            }
+
+            names[i] = recordNames.toArray(new String[recordNames.size()]);
+            values[i] = recordValues.toArray(new String[recordValues.size()]);
+            recordNames.clear();
+            recordValues.clear();
+        }
+
+        return new HistoryFileSnapshot(
+            length, lastModified, timestamps, names, values);
+    }
+
+    /**
+     * Checks whether the file did not change since it was read.
+     *
+     * @param file the file of this snapshot
+     * @return <tt>true</tt> if this snapshot is still up to date
+     */
+    boolean matches(File file)
+    {
+        return length == file.length() && lastModified == file.lastModified();
+    }
+
+    /**
+     * Returns the length of the file when it was read.
+     *
+     * @return the length of the file when it was read
+     */
+    long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the modification time of the file when it was read.
+     *
+     * @return the modification time of the file when it was read
+     */
+    long getLastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * Returns the estimated memory used by this snapshot.
+     *
+     * @return the estimated size of this snapshot in bytes
+     */
+    long getEstimatedSize()
+    {
+        return estimatedSize;
+    }
+
+    /**
+     * Returns the number of records in the file.
+     *
+     * @return the number of records in the file
+     */
+    int getRecordCount()
+    {
+        return timestamps.length;
+    }
+
+    /**
+     * Returns the timestamp of a record.
+     *
+     * @param index the ordinal of the record
+     * @return the timestamp of the record or {@link #INVALID_TIMESTAMP}
+     */
+    long getTimestamp(int index)
+    {
+        return timestamps[index];
+    }
+
+    /**
+     * Checks whether all the properties of a record have a value. Records
+     * with empty properties are considered broken by some queries.
+     *
+     * @param index the ordinal of the record
+     * @return <tt>true</tt> if no property of the record is empty
+     */
+    boolean isComplete(int index)
+    {
+        return isComplete(values[index]);
+    }
+
+    /**
+     * Checks whether all the properties of a record have a value.
+     *
+     * @param values the property values of the record
+     * @return <tt>true</tt> if no property of the record is empty
+     */
+    static boolean isComplete(String[] values)
+    {
+        for (String value : values)
+        {
+            if (value == null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the value of a property of a record, unescaped.
+     *
+     * @param index the ordinal of the record
+     * @param name the name of the property
+     * @return the value of the property or <tt>null</tt>
+     */
+    String getValue(int index, String name)
+    {
+        String[] recordNames = names[index];
+
+        for (int i = 0; i < recordNames.length; i++)
+        {
+            if (recordNames[i].equals(name))
+            {
+                String value = values[index][i];
+
+                return (value == null)
+                    ? null
+                    : StringEscapeUtils.unescapeXml(value);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a record, skipping its empty properties.
+     *
+     * @param index the ordinal of the record
+     * @param unescape whether to unescape the values of the properties
+     * @return the record
+     */
+    HistoryRecord getRecord(int index, boolean unescape)
+    {
+        return createRecord(timestamps[index], names[index], values[index],
+            unescape, null, null, false);
+    }
+
+    /**
+     * Returns a record if its value for <tt>field</tt> contains all the
+     * <tt>keywords</tt>. The empty properties of the record are skipped and
+     * the values are unescaped.
+     *
+     * @param index the ordinal of the record
+     * @param keywords the keywords or <tt>null</tt> to accept the record
+     * @param field the field to search the keywords in
+     * @param caseSensitive whether the keywords are case sensitive
+     * @return the record or <tt>null</tt> if it does not match
+     */
+    HistoryRecord filterByKeyword(int index,
+                                  String[] keywords,
+                                  String field,
+                                  boolean caseSensitive)
+    {
+        return createRecord(timestamps[index], names[index], values[index],
+            true, keywords, field, caseSensitive);
+    }
+
+    /**
+     * Passes the records of this snapshot to a handler, until it asks to
+     * stop.
+     *
+     * @param handler the handler
+     */
+    void read(HistoryFileStreamReader.RecordHandler handler)
+    {
+        handler.start(length, lastModified);
+        for (int i = 0; i < timestamps.length; i++)
+        {
+            if (!handler.handleRecord(timestamps[i], names[i], values[i]))
+                return;
+        }
+    }
+
+    /**
+     * Returns a record if its value for <tt>field</tt> contains all the
+     * <tt>keywords</tt>, skipping its empty properties.
+     *
+     * @param timestamp the timestamp of the record
+     * @param recordNames the property names of the record
+     * @param recordValues the property values of the record as stored in
+     * the file, <tt>null</tt> for the empty ones
+     * @param unescape whether to unescape the values of the properties
+     * @param keywords the keywords or <tt>null</tt> to accept the record
+     * @param field the field to search the keywords in
+     * @param caseSensitive whether the keywords are case sensitive
+     * @return the record or <tt>null</tt> if it does not match
+     */
+    static HistoryRecord createRecord(long timestamp,
+                                      String[] recordNames,
+                                      String[] recordValues,
+                                      boolean unescape,
+                                      String[] keywords,
+                                      String field,
+                                      boolean caseSensitive)
+    {
+        int count = 0;
+        boolean targetNodeFound = false;
+
+        for (String value : recordValues)
+        {
+            if (value != null)
+                count++;
+        }
+
+        String[] propertyNames = new String[count];
+        String[] propertyValues = new String[count];
+        int j = 0;
+        for (int i = 0; i < recordNames.length; i++)
+        {
+            String value = recordValues[i];
+
+            if (value == null)
+                continue;
+
+            // unescape xml chars, we have escaped when writing values
+            if (unescape)
+                value = StringEscapeUtils.unescapeXml(value);
+
+            if (field != null && field.equals(recordNames[i]))
+            {
+                targetNodeFound = true;
+
+                if (!HistoryReaderImpl.matchKeyword(
+                        value, keywords, caseSensitive))
+                    return null;
+            }
+
+            propertyNames[j] = recordNames[i];
+            propertyValues[j] = value;
+            j++;
+        }
+
+        // if we need to find a particular record but the target node is not
+        // present skip this record
+        if (keywords != null && keywords.length > 0 && !targetNodeFound)
+            return null;
+
+        return new HistoryRecord(
+            propertyNames, propertyValues, new Date(timestamp));
+    }
+}
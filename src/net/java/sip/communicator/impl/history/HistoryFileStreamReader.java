@@ -0,0 +1,269 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+/**
+ * Reads the records of a history XML file with a streaming (StAX) parser
+ * and passes them one by one to a <tt>RecordHandler</tt>, which can stop the
+ * reading as soon as it has what it needs. Unlike parsing the file into a DOM
+ * document, no tree of the whole file is built and the part of the file after
+ * the last needed record is not even read.
+ */
+class HistoryFileStreamReader
+{
+    /**
+     * The factory of the stream readers. Adjacent text and CDATA sections
+     * are coalesced, so a property value is reported as one piece of text
+     * like the text node of a DOM document.
+     */
+    private static final XMLInputFactory inputFactory;
+
+    static
+    {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(
+            XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    /**
+     * Reads the records of a file.
+     *
+     * @param file the history file
+     * @param handler the handler to pass the records to
+     * @param readProperties whether the properties of the records are needed
+     * or only their timestamps
+     * @throws IOException if the file could not be read
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    static void read(File file, RecordHandler handler, boolean readProperties)
+        throws IOException,
+               XMLStreamException
+    {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+
+        try
+        {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+
+            try
+            {
+                read(reader, handler, readProperties);
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the records from a stream reader.
+     *
+     * @param reader the stream reader positioned at the start of the file
+     * @param handler the handler to pass the records to
+     * @param readProperties whether the properties of the records are needed
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    private static void read(XMLStreamReader reader,
+                             RecordHandler handler,
+                             boolean readProperties)
+        throws XMLStreamException
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+
+        while (reader.hasNext())
+        {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT
+                    || !"record".equals(reader.getLocalName()))
+                continue;
+
+            long timestamp = parseTimestamp(
+                sdf, reader.getAttributeValue(null, "timestamp"));
+
+            if (!readProperties)
+            {
+                skipElement(reader);
+                if (!handler.handleRecord(timestamp, null, null))
+                    return;
+                continue;
+            }
+
+            // the children of the record are its properties
+            int event;
+            while ((event = reader.next()) != XMLStreamConstants.END_ELEMENT)
+            {
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+
+                names.add(reader.getLocalName());
+                values.add(readText(reader));
+            }
+
+            boolean proceed = handler.handleRecord(
+                timestamp,
+                names.toArray(new String[names.size()]),
+                values.toArray(new String[values.size()]));
+
+            names.clear();
+            values.clear();
+            if (!proceed)
+                return;
+        }
+    }
+
+    /**
+     * Reads the text of the current element, skipping its child elements if
+     * there are any.
+     *
+     * @param reader the stream reader positioned at the start of the element
+     * @return the text of the element or <tt>null</tt> if it is empty
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    private static String readText(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        String text = null;
+        int depth = 1;
+
+        while (depth > 0)
+        {
+            switch (reader.next())
+            {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                // the value is the first text, like the first child of the
+                // element in a DOM document
+                if (text == null && depth == 1)
+                    text = reader.getText();
+                break;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Skips the current element and its content.
+     *
+     * @param reader the stream reader positioned at the start of the element
+     * @throws XMLStreamException if the file is not well-formed
+     */
+    private static void skipElement(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        int depth = 1;
+
+        while (depth > 0)
+        {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+    /**
+     * Parses the value of the timestamp attribute of a record.
+     *
+     * @param sdf the format of the timestamps
+     * @param ts the value of the attribute
+     * @return the timestamp or {@link HistoryFileSnapshot#INVALID_TIMESTAMP}
+     */
+    static long parseTimestamp(SimpleDateFormat sdf, String ts)
+    {
+        if (ts == null)
+            return HistoryFileSnapshot.INVALID_TIMESTAMP;
+
+        try
+        {
+            return sdf.parse(ts).getTime();
+        }
+        catch (ParseException e)
+        {
+            try
+            {
+                return Long.parseLong(ts);
+            }
+            catch (NumberFormatException nfe)
+            {
+                return HistoryFileSnapshot.INVALID_TIMESTAMP;
+            }
+        }
+    }
+
+    /**
+     * Receives the records of a history file, in the order they are stored.
+     */
+    static abstract class RecordHandler
+    {
+        /**
+         * Called before the first record of the file. If reading the file
+         * fails and it is read again, this is called again and the handler
+         * must forget the records it received.
+         *
+         * @param length the length of the file the records are read from
+         * @param lastModified the modification time of the file the records
+         * are read from
+         */
+        void start(long length, long lastModified)
+        {
+        }
+
+        /**
+         * Receives a record.
+         *
+         * @param timestamp the timestamp of the record or
+         * {@link HistoryFileSnapshot#INVALID_TIMESTAMP}
+         * @param names the property names of the record or <tt>null</tt> if
+         * the properties were not requested
+         * @param values the property values of the record as stored in the
+         * file, <tt>null</tt> for the empty ones
+         * @return <tt>true</tt> to receive the next record, <tt>false</tt> to
+         * stop reading
+         */
+        abstract boolean handleRecord(long timestamp,
+                                      String[] names,
+                                      String[] values);
+    }
+}
@@ -19,7 +19,10 @@
 
 import java.io.*;
 import java.security.*;
+import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
@@ -59,8 +62,50 @@
 
     private HistoryWriter writer;
 
-    private SortedMap<String, Object> historyDocuments
-        = new TreeMap<String, Object>();
+    /**
+     * The estimated memory used by a parsed DOM document for every byte of
+     * its file.
+     */
+    private static final int DOCUMENT_SIZE_FACTOR = 8;
+
+    /**
+     * The files of this history by name. Their parsed documents and
+     * snapshots are kept in the document cache of the history service.
+     */
+    private final ConcurrentNavigableMap<String, File> historyDocuments
+        = new ConcurrentSkipListMap<String, File>();
+
+    /**
+     * Guards the files of this history against being read while they are
+     * written. Writing a file takes the write lock. Reading the file records
+     * are being appended to takes the read lock, the other files are
+     * rewritten so rarely that they are read without locking and read again
+     * if a concurrent write is detected.
+     */
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock();
+
+    /**
+     * The name of the file records are being appended to.
+     */
+    private volatile String tailFile = null;
+
+    /**
+     * The store of the binary storage engine or <tt>null</tt> if this
+     * history is kept in XML files.
+     */
+    private SegmentHistoryStore segmentStore = null;
+
+    /**
+     * The timestamp range index of the XML files of this history.
+     */
+    private HistoryFileIndex fileIndex = null;
+
+    /**
+     * The keyword indexes of this history by indexed field. The index of a
+     * field is loaded (or built) by the first keyword search on that field.
+     */
+    private final Map<String, HistoryKeywordIndex> keywordIndexes
+        = new HashMap<String, HistoryKeywordIndex>();
 
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
@@ -93,6 +138,19 @@ protected HistoryImpl(HistoryID id, File directory,
             this.writer = null;
 
             this.reloadDocumentList();
+
+            // histories keep the engine they were created with, the
+            // configured one is only used for new (empty) histories
+            if (SegmentHistoryStore.containsSegments(directory)
+                || (this.historyDocuments.isEmpty()
+                    && historyServiceImpl.isBinaryStorageEnabled()))
+            {
+                this.segmentStore = new SegmentHistoryStore(directory);
+            }
+            else
+            {
+                this.fileIndex = new HistoryFileIndex(directory);
+            }
         } finally {
             log.logExit();
         }
@@ -140,7 +198,10 @@ public HistoryReader getReader()
     {
         if (this.reader == null)
         {
-            this.reader = new HistoryReaderImpl(this);
+            if (segmentStore != null)
+                this.reader = new SegmentHistoryReaderImpl(this);
+            else
+                this.reader = new HistoryReaderImpl(this);
         }
 
         return this.reader;
@@ -164,10 +225,59 @@ public InteractiveHistoryReader getInteractiveReader()
     public HistoryWriter getWriter()
     {
         if (writer == null)
-            writer = new HistoryWriterImpl(this);
+        {
+            if (segmentStore != null)
+                writer = new SegmentHistoryWriterImpl(this);
+            else
+                writer = new HistoryWriterImpl(this);
+        }
         return writer;
     }
 
+    /**
+     * Writes the records added to this history which are still waiting to
+     * be written, so that they are seen by the queries reading the files.
+     */
+    void flushWriter()
+    {
+        HistoryWriter writer = this.writer;
+
+        if (writer == null)
+            return;
+
+        try
+        {
+            writer.flush();
+        }
+        catch (IOException e)
+        {
+            log.error("Could not write the pending records of history " + id,
+                e);
+        }
+    }
+
+    /**
+     * Drops the records added to this history which are still waiting to
+     * be written, used when the files of the history are deleted.
+     */
+    void discardPendingWrites()
+    {
+        HistoryWriter writer = this.writer;
+
+        if (writer instanceof HistoryWriterImpl)
+            ((HistoryWriterImpl) writer).discardPendingRecords();
+    }
+
+    /**
+     * Returns the store of the binary storage engine if this history uses it.
+     * @return the <tt>SegmentHistoryStore</tt> of this history or
+     * <tt>null</tt> if the history is kept in XML files
+     */
+    SegmentHistoryStore getSegmentStore()
+    {
+        return segmentStore;
+    }
+
     protected HistoryServiceImpl getHistoryServiceImpl()
     {
         return this.historyServiceImpl;
@@ -175,24 +285,21 @@ protected HistoryServiceImpl getHistoryServiceImpl()
 
     void reloadDocumentList()
     {
-        synchronized (this.historyDocuments)
-        {
-            this.historyDocuments.clear();
+        this.historyDocuments.clear();
 
-            File[] files = this.directory.listFiles();
-            // TODO: Assert: Assert.assertNonNull(files, "The list of files
-            // should be non-null.");
+        File[] files = this.directory.listFiles();
+        // TODO: Assert: Assert.assertNonNull(files, "The list of files
+        // should be non-null.");
 
-            for (int i = 0; i < files.length; i++)
+        for (int i = 0; i < files.length; i++)
+        {
+            if (!files[i].isDirectory())
             {
-                if (!files[i].isDirectory())
-                {
-                    String filename = files[i].getName();
+                String filename = files[i].getName();
 
-                    if (filename.endsWith(SUPPORTED_FILETYPE))
-                    {
-                        this.historyDocuments.put(filename, files[i]);
-                    }
+                if (filename.endsWith(SUPPORTED_FILETYPE))
+                {
+                    this.historyDocuments.put(filename, files[i]);
                 }
             }
         }
@@ -200,69 +307,296 @@ void reloadDocumentList()
 
     protected Document createDocument(String filename)
     {
-        Document retVal = null;
+        File file = new File(this.directory, filename);
 
-        synchronized (this.historyDocuments)
-        {
-            if (this.historyDocuments.containsKey(filename))
-            {
-                retVal = getDocumentForFile(filename);
-            } else {
-                retVal = this.historyServiceImpl.getDocumentBuilder()
-                        .newDocument();
-                retVal.appendChild(retVal.createElement("history"));
+        if (this.historyDocuments.putIfAbsent(filename, file) != null)
+            return getDocumentForFile(filename);
 
-                this.historyDocuments.put(filename, retVal);
-            }
-        }
+        Document retVal = this.historyServiceImpl.getDocumentBuilder()
+                .newDocument();
+        retVal.appendChild(retVal.createElement("history"));
+
+        // the document only exists in memory until it is written
+        this.historyServiceImpl.getDocumentCache().put(
+            id, filename, Document.class, retVal, estimateDocumentSize(file),
+            true);
 
         return retVal;
     }
 
     protected void writeFile(String filename) throws InvalidParameterException,
             IOException {
+        if (!this.historyDocuments.containsKey(filename))
+        {
+            throw new InvalidParameterException("The requested "
+                    + "filename does not exist in the document list.");
+        }
+
+        Document doc = this.historyServiceImpl.getDocumentCache().get(
+            id, filename, Document.class);
+
+        if (doc != null)
+            writeFile(filename, doc);
+    }
+
+    protected void writeFile(String filename, Document doc)
+        throws InvalidParameterException, IOException
+    {
         File file = new File(this.directory, filename);
 
-        synchronized (this.historyDocuments)
+        if (!this.historyDocuments.containsKey(filename))
         {
-            if (!this.historyDocuments.containsKey(filename))
+            throw new InvalidParameterException("The requested "
+                    + "filename does not exist in the document list.");
+        }
+
+        Lock lock = fileLock.writeLock();
+        lock.lock();
+        try
+        {
+            synchronized (doc)
             {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
+                XMLUtils.writeXML(doc, file);
             }
 
-            Object obj = this.historyDocuments.get(filename);
+            HistoryDocumentCache cache
+                = this.historyServiceImpl.getDocumentCache();
 
-            if (obj instanceof Document)
+            cache.remove(id, filename, HistoryFileSnapshot.class);
+            if (historyServiceImpl.isCacheEnabled())
             {
-                Document doc = (Document) obj;
-
-                synchronized (doc)
-                {
-                    XMLUtils.writeXML(doc, file);
-                }
+                cache.put(id, filename, Document.class, doc,
+                    estimateDocumentSize(file), false);
             }
+            else
+                cache.remove(id, filename, Document.class);
+        }
+        finally
+        {
+            lock.unlock();
         }
     }
 
-    protected void writeFile(String filename, Document doc)
-        throws InvalidParameterException, IOException
+    /**
+     * Sets the file records are being appended to. Reading it is guarded
+     * against the writes made by every new record.
+     *
+     * @param filename the name of the file records are appended to
+     */
+    void setTailFile(String filename)
+    {
+        this.tailFile = filename;
+    }
+
+    /**
+     * Returns an immutable snapshot of the records of a file. Snapshots are
+     * what readers work on, so that any number of them can run concurrently
+     * with each other and with the writer.
+     *
+     * @param filename the name of the file
+     * @return the snapshot of the file or <tt>null</tt> if it could not be
+     * read
+     * @throws InvalidParameterException if the file is not a file of this
+     * history
+     */
+    HistoryFileSnapshot getSnapshot(String filename)
+        throws InvalidParameterException
     {
+        if (!this.historyDocuments.containsKey(filename))
+        {
+            throw new InvalidParameterException("The requested "
+                    + "filename does not exist in the document list.");
+        }
+
         File file = new File(this.directory, filename);
+        HistoryDocumentCache cache = this.historyServiceImpl.getDocumentCache();
+        HistoryFileSnapshot snapshot = getCachedSnapshot(filename, file);
 
-        synchronized (this.historyDocuments)
+        if (snapshot != null)
+            return snapshot;
+
+        // the file being appended to is rewritten with every new record
+        boolean tail = filename.equals(this.tailFile);
+        Lock lock = tail ? fileLock.readLock() : null;
+
+        if (lock != null)
+            lock.lock();
+        try
         {
-            if (!this.historyDocuments.containsKey(filename))
+            long length = file.length();
+            long lastModified = file.lastModified();
+
+            // a document which was created but not written yet
+            if (!file.exists())
+                return HistoryFileSnapshot.createEmpty(length, lastModified);
+
+            Document doc = null;
+            try
             {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
+                doc = this.historyServiceImpl.parse(file);
+            }
+            catch (Exception e)
+            {
+                // may be a concurrent write, parse again exclusively below
+                if (tail)
+                    log.error("Error occured while parsing XML document.", e);
             }
 
-            synchronized (doc)
+            if (doc != null)
             {
-                XMLUtils.writeXML(doc, file);
+                snapshot = HistoryFileSnapshot.create(doc, length, lastModified);
+
+                // the writer drops the snapshots of the files it writes with
+                // the write lock held so the snapshot of the tail file is up
+                // to date as long as the read lock is held
+                cache.put(id, filename, HistoryFileSnapshot.class, snapshot,
+                    snapshot.getEstimatedSize(), false);
+
+                return snapshot;
             }
         }
+        finally
+        {
+            if (lock != null)
+                lock.unlock();
+        }
+
+        return getFixedSnapshot(filename, file);
+    }
+
+    /**
+     * Returns the cached snapshot of a file if it is still up to date.
+     *
+     * @param filename the name of the file
+     * @param file the file
+     * @return the snapshot of the file or <tt>null</tt>
+     */
+    private HistoryFileSnapshot getCachedSnapshot(String filename, File file)
+    {
+        HistoryFileSnapshot snapshot
+            = this.historyServiceImpl.getDocumentCache().get(
+                id, filename, HistoryFileSnapshot.class);
+
+        return (snapshot != null && snapshot.matches(file)) ? snapshot : null;
+    }
+
+    /**
+     * Passes the records of a file to a handler, in the order they are
+     * stored, until the handler asks to stop. The records come from the
+     * cached snapshot of the file if there is one, otherwise they are
+     * streamed from the file without parsing it into a document, so a
+     * handler which only needs a few records does not pay for the others.
+     *
+     * @param filename the name of the file
+     * @param handler the handler to pass the records to
+     * @param readProperties whether the handler needs the properties of the
+     * records or only their timestamps
+     * @throws InvalidParameterException if the file is not a file of this
+     * history
+     */
+    void readRecords(String filename,
+                     HistoryFileStreamReader.RecordHandler handler,
+                     boolean readProperties)
+        throws InvalidParameterException
+    {
+        if (!this.historyDocuments.containsKey(filename))
+        {
+            throw new InvalidParameterException("The requested "
+                    + "filename does not exist in the document list.");
+        }
+
+        File file = new File(this.directory, filename);
+        HistoryFileSnapshot snapshot = getCachedSnapshot(filename, file);
+
+        if (snapshot != null)
+        {
+            snapshot.read(handler);
+            return;
+        }
+
+        // the file being appended to is rewritten with every new record
+        Lock lock = filename.equals(this.tailFile) ? fileLock.readLock() : null;
+
+        if (lock != null)
+            lock.lock();
+        try
+        {
+            handler.start(file.length(), file.lastModified());
+
+            // a document which was created but not written yet
+            if (!file.exists())
+                return;
+
+            HistoryFileStreamReader.read(file, handler, readProperties);
+            return;
+        }
+        catch (Exception e)
+        {
+            // may be a concurrent write, read the file again exclusively
+            if (log.isDebugEnabled())
+                log.debug("Failed to stream history file " + file, e);
+        }
+        finally
+        {
+            if (lock != null)
+                lock.unlock();
+        }
+
+        snapshot = getFixedSnapshot(filename, file);
+        if (snapshot != null)
+            snapshot.read(handler);
+    }
+
+    /**
+     * Reads a file which could not be parsed with the writes to the history
+     * locked out. The file is fixed if it is really corrupted.
+     *
+     * @param filename the name of the file
+     * @param file the file
+     * @return the snapshot of the file or <tt>null</tt> if it could not be
+     * fixed
+     */
+    private HistoryFileSnapshot getFixedSnapshot(String filename, File file)
+    {
+        Lock lock = fileLock.writeLock();
+
+        lock.lock();
+        try
+        {
+            long length = file.length();
+            long lastModified = file.lastModified();
+            Document doc;
+
+            try
+            {
+                doc = this.historyServiceImpl.parse(file);
+            }
+            catch (Exception e)
+            {
+                log.error("Error occured while parsing XML document.", e);
+
+                // will try to fix the xml file
+                doc = getFixedDocument(file);
+                if (doc == null)
+                    return null;
+
+                length = file.length();
+                lastModified = file.lastModified();
+            }
+
+            HistoryFileSnapshot snapshot
+                = HistoryFileSnapshot.create(doc, length, lastModified);
+
+            this.historyServiceImpl.getDocumentCache().put(
+                id, filename, HistoryFileSnapshot.class, snapshot,
+                snapshot.getEstimatedSize(), false);
+
+            return snapshot;
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     protected Iterator<String> getFileList()
@@ -270,56 +604,362 @@ protected Iterator<String> getFileList()
         return this.historyDocuments.keySet().iterator();
     }
 
-    protected Document getDocumentForFile(String filename)
-            throws InvalidParameterException, RuntimeException {
-        Document retVal = null;
+    /**
+     * Returns the timestamp range index of the XML files of this history.
+     * @return the <tt>HistoryFileIndex</tt> of this history or <tt>null</tt>
+     * if the history is kept by the binary storage engine
+     */
+    HistoryFileIndex getFileIndex()
+    {
+        return fileIndex;
+    }
 
-        synchronized (this.historyDocuments)
+    /**
+     * Returns the files of this history which hold records with timestamp in
+     * the given period, ordered from oldest to newest. The timestamp range
+     * index is used to avoid opening the files outside the period; files
+     * missing from the index are parsed once and added to it.
+     *
+     * @param startDate the start of the period (inclusive) or <tt>null</tt>
+     * @param endDate the end of the period (exclusive) or <tt>null</tt>
+     * @return the names of the files overlapping the period
+     */
+    protected Vector<String> getFileList(Date startDate, Date endDate)
+    {
+        Vector<String> filelist = HistoryReaderImpl.filterFilesByDate(
+            getFileList(), null, null);
+
+        if (startDate == null && endDate == null)
+            return filelist;
+
+        Vector<String> result = new Vector<String>();
+        for (String filename : filelist)
         {
-            if (!this.historyDocuments.containsKey(filename))
+            HistoryFileIndex.Entry entry = fileIndex.get(filename);
+
+            if (entry == null)
+                entry = indexFile(filename);
+
+            if (entry.overlaps(startDate, endDate))
+                result.add(filename);
+        }
+        fileIndex.store();
+
+        return result;
+    }
+
+    /**
+     * Recomputes the timestamp range index entry of a file from its records.
+     *
+     * @param filename the name of the file
+     * @param doc the document of the file
+     * @return the new index entry of the file
+     */
+    HistoryFileIndex.Entry updateFileIndex(String filename, Document doc)
+    {
+        SimpleDateFormat sdf
+            = new SimpleDateFormat(HistoryService.DATE_FORMAT);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        int count = 0;
+
+        NodeList nodes = doc.getElementsByTagName("record");
+        for (int i = 0; i < nodes.getLength(); i++)
+        {
+            String ts = ((Element) nodes.item(i)).getAttribute("timestamp");
+            long timestamp;
+
+            try
             {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
+                timestamp = sdf.parse(ts).getTime();
             }
-
-            Object obj = this.historyDocuments.get(filename);
-            if (obj instanceof Document)
+            catch (ParseException e)
             {
-                // Document already loaded. Use it directly
-                retVal = (Document) obj;
-            } else if (obj instanceof File)
+                try
+                {
+                    timestamp = Long.parseLong(ts);
+                }
+                catch (NumberFormatException nfe)
+                {
+                    continue;
+                }
+            }
+
+            if (timestamp < min)
+                min = timestamp;
+            if (timestamp > max)
+                max = timestamp;
+            count++;
+        }
+
+        return fileIndex.put(filename, min, max, count);
+    }
+
+    /**
+     * Computes the timestamp range index entry of a file which is not
+     * indexed, reading only the timestamps of its records.
+     *
+     * @param filename the name of the file
+     * @return the new index entry of the file
+     */
+    HistoryFileIndex.Entry indexFile(String filename)
+    {
+        final long[] fileState = new long[2];
+        final long[] bounds = new long[2];
+        final int[] count = new int[1];
+
+        readRecords(
+            filename,
+            new HistoryFileStreamReader.RecordHandler()
             {
-                File file = (File) obj;
+                @Override
+                void start(long length, long lastModified)
+                {
+                    fileState[0] = length;
+                    fileState[1] = lastModified;
+                    bounds[0] = Long.MAX_VALUE;
+                    bounds[1] = Long.MIN_VALUE;
+                    count[0] = 0;
+                }
 
-                try {
-                    retVal = this.historyServiceImpl.parse(file);
-                } catch (Exception e)
+                @Override
+                boolean handleRecord(
+                        long timestamp, String[] names, String[] values)
                 {
-//                    throw new RuntimeException("Error occured while "
-//                            + "parsing XML document.", e);
-//                    log.error("Error occured while parsing XML document.", e);
-                    log.error("Error occured while parsing XML document.", e);
+                    if (timestamp != HistoryFileSnapshot.INVALID_TIMESTAMP)
+                    {
+                        bounds[0] = Math.min(bounds[0], timestamp);
+                        bounds[1] = Math.max(bounds[1], timestamp);
+                        count[0]++;
+                    }
+                    return true;
+                }
+            },
+            false);
 
-                    // will try to fix the xml file
-                    retVal = getFixedDocument(file);
+        // the entry describes the file as it was when it was read
+        return fileIndex.put(
+            filename, bounds[0], bounds[1], count[0],
+            fileState[0], fileState[1]);
+    }
+
+    /**
+     * Finds the records which may contain all the given keywords in the given
+     * field using the keyword index of the field.
+     *
+     * @param field the field to search in
+     * @param keywords the keywords to search for
+     * @return the ordinals of the candidate records by file name, or
+     * <tt>null</tt> if the index cannot be used for these keywords
+     */
+    Map<String, BitSet> findKeywordCandidates(String field, String[] keywords)
+    {
+        HistoryKeywordIndex index;
 
-                    // if is not fixed return
-                    if(retVal == null)
-                        return null;
+        synchronized (keywordIndexes)
+        {
+            index = keywordIndexes.get(field);
+            if (index == null)
+            {
+                index = new HistoryKeywordIndex(directory, field);
+                keywordIndexes.put(field, index);
+            }
+        }
+
+        List<String> filenames = new ArrayList<String>();
+        HistoryKeywordIndex.FieldValueLoader loader;
+
+        if (segmentStore != null)
+        {
+            for (HistorySegment segment : segmentStore.getSegments())
+                filenames.add(segment.getName());
+
+            loader = new HistoryKeywordIndex.FieldValueLoader()
+            {
+                public List<String> loadFieldValues(
+                        String filename, String field)
+                {
+                    return loadSegmentFieldValues(filename, field);
                 }
+            };
+        }
+        else
+        {
+            filenames.addAll(historyDocuments.keySet());
 
-                // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
-            } else {
-                // TODO: Assert: Assert.fail("Internal error - the data type " +
-                // "should be either Document or File.");
+            loader = new HistoryKeywordIndex.FieldValueLoader()
+            {
+                public List<String> loadFieldValues(
+                        String filename, String field)
+                {
+                    return loadDocumentFieldValues(filename, field);
+                }
+            };
+        }
+
+        index.update(filenames, loader);
+        Map<String, BitSet> candidates = index.find(keywords);
+        index.store();
+
+        return candidates;
+    }
+
+    /**
+     * Checks whether keyword indexes are in use for this history, in which
+     * case the writers have to report the records they append.
+     *
+     * @return <tt>true</tt> if at least one keyword index is loaded
+     */
+    boolean hasKeywordIndexes()
+    {
+        synchronized (keywordIndexes)
+        {
+            return !keywordIndexes.isEmpty();
+        }
+    }
+
+    /**
+     * Adds records appended to a history file to the loaded keyword
+     * indexes.
+     *
+     * @param filename the name of the file the records were appended to
+     * @param firstOrdinal the ordinal of the first record in the file
+     * @param propertyNames the property names of every record
+     * @param propertyValues the property values of every record
+     */
+    void keywordIndexRecordsAdded(String filename,
+                                  int firstOrdinal,
+                                  List<String[]> propertyNames,
+                                  List<String[]> propertyValues)
+    {
+        synchronized (keywordIndexes)
+        {
+            for (HistoryKeywordIndex index : keywordIndexes.values())
+            {
+                index.recordsAdded(
+                    filename, firstOrdinal, propertyNames, propertyValues);
             }
         }
+    }
+
+    /**
+     * Returns the values of a field for all records of an XML file.
+     *
+     * @param filename the name of the file
+     * @param field the field
+     * @return the values or <tt>null</tt> if the file could not be read
+     */
+    private List<String> loadDocumentFieldValues(String filename, String field)
+    {
+        HistoryFileSnapshot snapshot = getSnapshot(filename);
+
+        if (snapshot == null)
+            return null;
+
+        List<String> values
+            = new ArrayList<String>(snapshot.getRecordCount());
+        for (int i = 0; i < snapshot.getRecordCount(); i++)
+            values.add(snapshot.getValue(i, field));
+        return values;
+    }
+
+    /**
+     * Returns the values of a field for all records of a segment.
+     *
+     * @param filename the name of the segment
+     * @param field the field
+     * @return the values or <tt>null</tt> if the segment could not be read
+     */
+    private List<String> loadSegmentFieldValues(String filename, String field)
+    {
+        for (HistorySegment segment : segmentStore.getSegments())
+        {
+            if (!segment.getName().equals(filename))
+                continue;
+
+            try
+            {
+                List<HistoryRecord> records = segment.readAll();
+                List<String> values = new ArrayList<String>(records.size());
+
+                for (HistoryRecord record : records)
+                {
+                    String value = null;
+                    String[] names = record.getPropertyNames();
+
+                    for (int i = 0; i < names.length; i++)
+                    {
+                        if (names[i].equals(field))
+                        {
+                            value = record.getPropertyValues()[i];
+                            break;
+                        }
+                    }
+                    values.add(value);
+                }
+                return values;
+            }
+            catch (IOException e)
+            {
+                log.error("Failed to read history segment " + filename, e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    protected Document getDocumentForFile(String filename)
+            throws InvalidParameterException, RuntimeException {
+        File file = this.historyDocuments.get(filename);
+
+        if (file == null)
+        {
+            throw new InvalidParameterException("The requested "
+                    + "filename does not exist in the document list.");
+        }
+
+        HistoryDocumentCache cache = this.historyServiceImpl.getDocumentCache();
+        Document retVal = cache.get(id, filename, Document.class);
+
+        // Document already loaded. Use it directly
+        if (retVal != null)
+            return retVal;
+
+        try {
+            retVal = this.historyServiceImpl.parse(file);
+        } catch (Exception e)
+        {
+            log.error("Error occured while parsing XML document.", e);
+
+            // will try to fix the xml file
+            retVal = getFixedDocument(file);
+
+            // if is not fixed return
+            if(retVal == null)
+                return null;
+        }
+
+        // Cache the loaded document for reuse if configured
+        if(historyServiceImpl.isCacheEnabled())
+        {
+            cache.put(id, filename, Document.class, retVal,
+                estimateDocumentSize(file), false);
+        }
 
         return retVal;
     }
 
+    /**
+     * Estimates the memory used by the parsed document of a file.
+     *
+     * @param file the file
+     * @return the estimated size of the document of the file in bytes
+     */
+    private static long estimateDocumentSize(File file)
+    {
+        return 1024 + DOCUMENT_SIZE_FACTOR * file.length();
+    }
+
     /**
      * Methods trying to fix histry xml files if corrupted
      */
@@ -371,7 +1011,18 @@ public Document getFixedDocument(File file)
 
             // parsing is ok . lets overwrite with correct values
             log.trace("File fixed will write to disk!");
-            XMLUtils.writeXML(result, file);
+            Lock lock = fileLock.writeLock();
+            lock.lock();
+            try
+            {
+                XMLUtils.writeXML(result, file);
+                this.historyServiceImpl.getDocumentCache().remove(
+                    id, file.getName(), HistoryFileSnapshot.class);
+            }
+            finally
+            {
+                lock.unlock();
+            }
 
             return result;
         }
@@ -0,0 +1,696 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * An inverted index of the words found in one field of the records of a
+ * history. Every word, case folded, maps to the positions (file and ordinal
+ * of the record in the file) of the records containing it. Keyword searches
+ * use it to find the few records which may match instead of checking every
+ * record of every file.
+ * <p>
+ * A keyword matches the records having, for each word of the keyword, a word
+ * starting with it. The candidates are then checked against the keywords the
+ * same way a full scan would, so the index never adds false matches.
+ * <p>
+ * The index is persisted in the history directory. For every indexed file
+ * it remembers the length and the modification time the file had when it was
+ * indexed, and files which changed behind our back are indexed again before
+ * the index is used.
+ */
+class HistoryKeywordIndex
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryKeywordIndex.class);
+
+    /**
+     * The prefix of the names of the files the indexes are persisted to, the
+     * name of the indexed field follows it.
+     */
+    static final String INDEX_FILE_PREFIX = "keywords-";
+
+    /**
+     * The extension of the files the indexes are persisted to.
+     */
+    static final String INDEX_FILE_EXTENSION = ".idx";
+
+    /**
+     * Identifies the index file format.
+     */
+    private static final int MAGIC = 0x484b4958;
+
+    /**
+     * The version of the index file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The suffix used by record structures to mark CDATA properties.
+     */
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * Loads the values of the indexed field from a history file.
+     */
+    interface FieldValueLoader
+    {
+        /**
+         * Returns the values of a field for all records of a file, in the
+         * order the records are stored.
+         *
+         * @param filename the name of the history file
+         * @param field the field to load
+         * @return the values of the field (<tt>null</tt> for the records
+         * missing it) or <tt>null</tt> if the file could not be read
+         */
+        List<String> loadFieldValues(String filename, String field);
+    }
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The indexed field.
+     */
+    private final String field;
+
+    /**
+     * The file the index is persisted to.
+     */
+    private final File indexFile;
+
+    /**
+     * The names of the indexed files by their identifier used in postings.
+     */
+    private final List<String> fileNames = new ArrayList<String>();
+
+    /**
+     * The indexed files by name.
+     */
+    private final Map<String, FileState> files
+        = new HashMap<String, FileState>();
+
+    /**
+     * The postings of every word, sorted by word so that prefix lookups are
+     * range queries. A posting is the identifier of a file in the high 32
+     * bits and the ordinal of a record in the file in the low 32 bits.
+     */
+    private final TreeMap<String, Postings> words
+        = new TreeMap<String, Postings>();
+
+    /**
+     * Whether the index was changed since it was last persisted.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Creates the index of a field of the history kept in the given directory
+     * and loads it if it was previously persisted.
+     *
+     * @param directory the directory of the history
+     * @param field the indexed field
+     */
+    HistoryKeywordIndex(File directory, String field)
+    {
+        this.directory = directory;
+        this.field = field;
+        this.indexFile = new File(
+            directory, INDEX_FILE_PREFIX + field + INDEX_FILE_EXTENSION);
+
+        load();
+    }
+
+    /**
+     * Returns the indexed field.
+     *
+     * @return the indexed field
+     */
+    String getField()
+    {
+        return field;
+    }
+
+    /**
+     * Adds a record appended to a history file. The record is ignored if the
+     * file is not indexed yet, it will be indexed as a whole when needed.
+     *
+     * @param filename the name of the history file
+     * @param ordinal the ordinal of the record in the file
+     * @param propertyNames the property names of the record
+     * @param propertyValues the property values of the record
+     */
+    void recordAdded(String filename,
+                     int ordinal,
+                     String[] propertyNames,
+                     String[] propertyValues)
+    {
+        recordsAdded(filename, ordinal,
+            Collections.singletonList(propertyNames),
+            Collections.singletonList(propertyValues));
+    }
+
+    /**
+     * Adds records appended together to a history file. The records are
+     * ignored if the file is not indexed yet, it will be indexed as a whole
+     * when needed.
+     *
+     * @param filename the name of the history file
+     * @param firstOrdinal the ordinal of the first record in the file
+     * @param propertyNames the property names of every record
+     * @param propertyValues the property values of every record
+     */
+    synchronized void recordsAdded(String filename,
+                                   int firstOrdinal,
+                                   List<String[]> propertyNames,
+                                   List<String[]> propertyValues)
+    {
+        FileState state = files.get(filename);
+
+        // the file may also have been indexed after the records were written
+        if (state == null || state.matches(new File(directory, filename)))
+            return;
+
+        for (int r = 0; r < propertyNames.size(); r++)
+        {
+            String[] names = propertyNames.get(r);
+            String[] values = propertyValues.get(r);
+
+            for (int i = 0; i < names.length; i++)
+            {
+                String name = names[i];
+
+                if (name.endsWith(CDATA_SUFFIX))
+                {
+                    name = name.substring(
+                        0, name.length() - CDATA_SUFFIX.length());
+                }
+
+                if (field.equals(name) && values[i] != null)
+                {
+                    addWords(state.id, firstOrdinal + r, values[i]);
+                    break;
+                }
+            }
+        }
+
+        state.update(new File(directory, filename));
+        dirty = true;
+    }
+
+    /**
+     * Brings the index up to date with the given history files: files which
+     * are new or changed since they were indexed are indexed again and files
+     * which no longer exist are dropped.
+     *
+     * @param filenames the names of the files of the history
+     * @param loader loads the field values of the files to index
+     */
+    synchronized void update(Collection<String> filenames,
+                             FieldValueLoader loader)
+    {
+        Set<String> removed = new HashSet<String>(files.keySet());
+        removed.removeAll(filenames);
+        for (String filename : removed)
+            removeFile(filename);
+
+        for (String filename : filenames)
+        {
+            FileState state = files.get(filename);
+            File file = new File(directory, filename);
+
+            if (state != null && state.matches(file))
+                continue;
+
+            if (state != null)
+                removeFile(filename);
+
+            // if the file changes while it is loaded it will be indexed
+            // again next time
+            long length = file.length();
+            long lastModified = file.lastModified();
+            List<String> values = loader.loadFieldValues(filename, field);
+            if (values == null)
+                continue;
+
+            state = new FileState(fileNames.size());
+            fileNames.add(filename);
+            files.put(filename, state);
+
+            for (int ordinal = 0; ordinal < values.size(); ordinal++)
+            {
+                String value = values.get(ordinal);
+
+                if (value != null)
+                    addWords(state.id, ordinal, value);
+            }
+            state.length = length;
+            state.lastModified = lastModified;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Finds the records which may contain all the given keywords.
+     *
+     * @param keywords the keywords to search for
+     * @return the ordinals of the candidate records by file name, or
+     * <tt>null</tt> if the keywords cannot be looked up in the index (when a
+     * keyword has no word in it) and all records need to be checked
+     */
+    synchronized Map<String, BitSet> find(String[] keywords)
+    {
+        Set<Long> result = null;
+
+        for (String keyword : keywords)
+        {
+            List<String> keywordWords = tokenize(keyword);
+
+            if (keywordWords.isEmpty())
+                return null;
+
+            for (String prefix : keywordWords)
+            {
+                Set<Long> matches = new HashSet<Long>();
+
+                for (Postings postings
+                        : words.subMap(prefix, prefix + Character.MAX_VALUE)
+                            .values())
+                {
+                    for (int i = 0; i < postings.size; i++)
+                    {
+                        if (result == null
+                                || result.contains(postings.data[i]))
+                            matches.add(postings.data[i]);
+                    }
+                }
+
+                result = matches;
+                if (result.isEmpty())
+                    return new HashMap<String, BitSet>();
+            }
+        }
+
+        Map<String, BitSet> candidates = new HashMap<String, BitSet>();
+        if (result == null)
+            return candidates;
+
+        for (long posting : result)
+        {
+            String filename = fileNames.get((int) (posting >>> 32));
+            BitSet ordinals = candidates.get(filename);
+
+            if (ordinals == null)
+            {
+                ordinals = new BitSet();
+                candidates.put(filename, ordinals);
+            }
+            ordinals.set((int) posting);
+        }
+        return candidates;
+    }
+
+    /**
+     * Persists the index if it changed since it was loaded or last stored.
+     */
+    synchronized void store()
+    {
+        if (!dirty)
+            return;
+
+        compact();
+
+        File tmpFile = new File(directory, indexFile.getName() + ".tmp");
+        try
+        {
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+
+                out.writeInt(fileNames.size());
+                for (String filename : fileNames)
+                {
+                    FileState state = files.get(filename);
+
+                    out.writeUTF(filename);
+                    out.writeLong(state.length);
+                    out.writeLong(state.lastModified);
+                }
+
+                out.writeInt(words.size());
+                for (Map.Entry<String, Postings> e : words.entrySet())
+                {
+                    Postings postings = e.getValue();
+
+                    out.writeUTF(e.getKey());
+                    out.writeInt(postings.size);
+                    for (int i = 0; i < postings.size; i++)
+                        out.writeLong(postings.data[i]);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            indexFile.delete();
+            if (!tmpFile.renameTo(indexFile))
+                throw new IOException("Could not rename " + tmpFile);
+
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to store keyword index " + indexFile, e);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Splits a text in case folded words. Everything which is not a letter
+     * or a digit separates words.
+     *
+     * @param text the text to split
+     * @return the words of the text
+     */
+    static List<String> tokenize(String text)
+    {
+        List<String> result = new ArrayList<String>();
+        int length = text.length();
+        int start = -1;
+
+        for (int i = 0; i <= length; i++)
+        {
+            boolean wordChar
+                = (i < length) && Character.isLetterOrDigit(text.charAt(i));
+
+            if (wordChar)
+            {
+                if (start == -1)
+                    start = i;
+            }
+            else if (start != -1)
+            {
+                result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the words of a value to the index.
+     *
+     * @param fileId the identifier of the file of the record
+     * @param ordinal the ordinal of the record in the file
+     * @param value the value of the indexed field
+     */
+    private void addWords(int fileId, int ordinal, String value)
+    {
+        long posting = ((long) fileId << 32) | (ordinal & 0xffffffffL);
+
+        for (String word : new HashSet<String>(tokenize(value)))
+        {
+            Postings postings = words.get(word);
+
+            if (postings == null)
+            {
+                postings = new Postings();
+                words.put(word, postings);
+            }
+            postings.add(posting);
+        }
+    }
+
+    /**
+     * Drops a file and its postings from the index. The identifier of the
+     * file is not reused until the index is compacted.
+     *
+     * @param filename the name of the file
+     */
+    private void removeFile(String filename)
+    {
+        FileState state = files.remove(filename);
+
+        if (state == null)
+            return;
+
+        Iterator<Postings> iter = words.values().iterator();
+        while (iter.hasNext())
+        {
+            Postings postings = iter.next();
+
+            postings.removeFile(state.id);
+            if (postings.size == 0)
+                iter.remove();
+        }
+        fileNames.set(state.id, null);
+        dirty = true;
+    }
+
+    /**
+     * Renumbers the files when some were removed, so that the persisted
+     * index does not keep the identifiers of removed files.
+     */
+    private void compact()
+    {
+        if (!fileNames.contains(null))
+            return;
+
+        int[] newIds = new int[fileNames.size()];
+        List<String> newFileNames = new ArrayList<String>();
+
+        for (int id = 0; id < fileNames.size(); id++)
+        {
+            String filename = fileNames.get(id);
+
+            if (filename == null)
+            {
+                newIds[id] = -1;
+                continue;
+            }
+
+            newIds[id] = newFileNames.size();
+            files.get(filename).id = newIds[id];
+            newFileNames.add(filename);
+        }
+
+        for (Postings postings : words.values())
+        {
+            for (int i = 0; i < postings.size; i++)
+            {
+                long posting = postings.data[i];
+                long newId = newIds[(int) (posting >>> 32)];
+
+                postings.data[i]
+                    = (newId << 32) | (posting & 0xffffffffL);
+            }
+        }
+
+        fileNames.clear();
+        fileNames.addAll(newFileNames);
+    }
+
+    /**
+     * Loads the persisted index, if any.
+     */
+    private void load()
+    {
+        if (!indexFile.exists())
+            return;
+
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)));
+            try
+            {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                {
+                    dirty = true;
+                    return;
+                }
+
+                int fileCount = in.readInt();
+                for (int id = 0; id < fileCount; id++)
+                {
+                    String filename = in.readUTF();
+                    FileState state = new FileState(id);
+
+                    state.length = in.readLong();
+                    state.lastModified = in.readLong();
+                    fileNames.add(filename);
+                    files.put(filename, state);
+                }
+
+                int wordCount = in.readInt();
+                for (int i = 0; i < wordCount; i++)
+                {
+                    String word = in.readUTF();
+                    int size = in.readInt();
+                    Postings postings = new Postings(size);
+
+                    for (int j = 0; j < size; j++)
+                        postings.add(in.readLong());
+                    words.put(word, postings);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Failed to load keyword index " + indexFile, e);
+            fileNames.clear();
+            files.clear();
+            words.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * The state of an indexed file.
+     */
+    private static class FileState
+    {
+        /**
+         * The identifier of the file in postings.
+         */
+        int id;
+
+        /**
+         * The length of the file when it was last indexed.
+         */
+        long length;
+
+        /**
+         * The modification time of the file when it was last indexed.
+         */
+        long lastModified;
+
+        /**
+         * Creates the state of a file.
+         *
+         * @param id the identifier of the file in postings
+         */
+        FileState(int id)
+        {
+            this.id = id;
+        }
+
+        /**
+         * Checks whether the file is unchanged since it was indexed.
+         *
+         * @param file the file
+         * @return <tt>true</tt> if the file did not change
+         */
+        boolean matches(File file)
+        {
+            return length == file.length()
+                && lastModified == file.lastModified();
+        }
+
+        /**
+         * Remembers the current length and modification time of the file.
+         *
+         * @param file the file
+         */
+        void update(File file)
+        {
+            length = file.length();
+            lastModified = file.lastModified();
+        }
+    }
+
+    /**
+     * A growable list of postings.
+     */
+    private static class Postings
+    {
+        /**
+         * The postings.
+         */
+        long[] data;
+
+        /**
+         * The number of postings.
+         */
+        int size = 0;
+
+        /**
+         * Creates an empty list of postings.
+         */
+        Postings()
+        {
+            this(4);
+        }
+
+        /**
+         * Creates an empty list of postings with the given capacity.
+         *
+         * @param capacity the initial capacity
+         */
+        Postings(int capacity)
+        {
+            data = new long[Math.max(capacity, 1)];
+        }
+
+        /**
+         * Adds a posting.
+         *
+         * @param posting the posting to add
+         */
+        void add(long posting)
+        {
+            if (size == data.length)
+                data = Arrays.copyOf(data, size * 2);
+            data[size++] = posting;
+        }
+
+        /**
+         * Removes the postings of a file.
+         *
+         * @param fileId the identifier of the file
+         */
+        void removeFile(int fileId)
+        {
+            int newSize = 0;
+
+            for (int i = 0; i < size; i++)
+            {
+                if ((int) (data[i] >>> 32) != fileId)
+                    data[newSize++] = data[i];
+            }
+            size = newSize;
+        }
+    }
+}
@@ -17,10 +17,6 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
@@ -28,9 +24,6 @@
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.apache.commons.lang3.*;
-import org.w3c.dom.*;
-
 /**
  * @author Alexander Pelov
  * @author Damian Minkov
@@ -67,7 +60,7 @@ protected HistoryReaderImpl(HistoryImpl historyImpl)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByStartDate(
+    public QueryResultSet<HistoryRecord> findByStartDate(
                                                                 Date startDate)
             throws RuntimeException
     {
@@ -84,7 +77,7 @@ public synchronized QueryResultSet<HistoryRecord> findByStartDate(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
         throws RuntimeException
     {
         return find(null, endDate, null, null, false);
@@ -101,7 +94,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate, Date endDate)
             throws RuntimeException
     {
@@ -118,7 +111,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeyword(String keyword, String field)
             throws RuntimeException
     {
@@ -135,7 +128,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeywords(String[] keywords, String field)
             throws RuntimeException
     {
@@ -155,7 +148,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate,
                      Date endDate,
                      String[] keywords,
@@ -174,7 +167,7 @@ public synchronized QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
      * @return QueryResultSet
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(int count)
+    public QueryResultSet<HistoryRecord> findLast(int count)
         throws RuntimeException
     {
         return findLast(count, null, null, false);
@@ -191,78 +184,55 @@ public synchronized QueryResultSet<HistoryRecord> findLast(int count)
      * @return the found records
      * @throws RuntimeException
      */
-    public synchronized QueryResultSet<HistoryRecord> findLast(
+    public QueryResultSet<HistoryRecord> findLast(
         int count,
         String[] keywords,
         String field,
         boolean caseSensitive)
         throws RuntimeException
     {
+        // records waiting to be written are not in the files yet
+        this.historyImpl.flushWriter();
+
         // the files are supposed to be ordered from oldest to newest
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, null);
+        Vector<String> filelist = this.historyImpl.getFileList(null, null);
+        HistoryFileIndex fileIndex = this.historyImpl.getFileIndex();
 
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
+            // no need to parse files the index knows to be empty
+            HistoryFileIndex.Entry entry
+                = fileIndex.get(filelist.get(currentFile));
+            if(entry != null && entry.recordCount == 0)
             {
                 currentFile--;
                 continue;
             }
 
-            // will get nodes and construct a List of nodes
-            // so we can easily get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
-
-            List<Node> lNodes = null;
+            // only the last records of the file are kept while streaming it
+            LastRecordsHandler handler
+                = new LastRecordsHandler(leftCount, null, false);
+            this.historyImpl.readRecords(
+                filelist.get(currentFile), handler, true);
 
-            if (nodes.size() > leftCount)
-            {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
+            if (handler.count > leftCount)
                 leftCount = 0;
-            }
             else
-            {
-                lNodes = nodes;
-                leftCount -= nodes.size();
-            }
+                leftCount -= handler.count;
 
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
+            for (RawRecord raw : handler.records)
             {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                if(raw.timestamp == HistoryFileSnapshot.INVALID_TIMESTAMP)
+                    continue;
 
-                HistoryRecord record =
-                    filterByKeyword(propertyNodes, timestamp,
-                        keywords, field, caseSensitive);
+                HistoryRecord record = HistoryFileSnapshot.createRecord(
+                    raw.timestamp, raw.names, raw.values,
+                    true, keywords, field, caseSensitive);
 
                 if(record != null)
                 {
@@ -287,7 +257,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeyword(String keyword, String field, boolean caseSensitive)
             throws RuntimeException
     {
@@ -305,7 +275,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByKeywords(String[] keywords, String field, boolean caseSensitive)
             throws RuntimeException
     {
@@ -326,7 +296,7 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      *             Thrown if an exception occurs during the execution of the
      *             query, such as internal IO error.
      */
-    public synchronized QueryResultSet<HistoryRecord>
+    public QueryResultSet<HistoryRecord>
         findByPeriod(Date startDate,
                      Date endDate,
                      String[] keywords,
@@ -346,95 +316,55 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
      * @throws RuntimeException
      */
     public QueryResultSet<HistoryRecord>
-        findFirstRecordsAfter(Date date, int count)
+        findFirstRecordsAfter(final Date date, int count)
             throws RuntimeException
     {
+        // records waiting to be written are not in the files yet
+        this.historyImpl.flushWriter();
+
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), date, null);
+        Vector<String> filelist = this.historyImpl.getFileList(date, null);
 
         int leftCount = count;
         int currentFile = 0;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
-            {
-                currentFile++;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
-            {
-                node = nodes.item(i);
+            final int fileLeftCount = leftCount;
+            final List<HistoryRecord> records = new ArrayList<HistoryRecord>();
 
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+            // stop reading the file as soon as enough records are found
+            this.historyImpl.readRecords(
+                filelist.get(currentFile),
+                new HistoryFileStreamReader.RecordHandler()
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                    @Override
+                    void start(long length, long lastModified)
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
+                        records.clear();
+                    }
 
-                        if(nodeValue != null)
+                    @Override
+                    boolean handleRecord(
+                            long timestamp, String[] names, String[] values)
+                    {
+                        // if we found a broken record - just skip it
+                        if(isInPeriod(timestamp, date, null)
+                            && HistoryFileSnapshot.isComplete(values))
                         {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
+                            records.add(HistoryFileSnapshot.createRecord(
+                                timestamp, names, values,
+                                false, null, null, false));
                         }
-                        else
-                            isRecordOK = false;
+                        return records.size() < fileLeftCount;
                     }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
-            }
+                },
+                true);
 
+            result.addAll(records);
+            leftCount -= records.size();
             currentFile++;
         }
 
@@ -453,9 +383,11 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         findLastRecordsBefore(Date date, int count)
             throws RuntimeException
     {
+        // records waiting to be written are not in the files yet
+        this.historyImpl.flushWriter();
+
         // the files are supposed to be ordered from oldest to newest
-        Vector<String> filelist =
-            filterFilesByDate(this.historyImpl.getFileList(), null, date);
+        Vector<String> filelist = this.historyImpl.getFileList(null, date);
 
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
@@ -463,81 +395,21 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
 
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            // if we found a broken record - just skip it
+            LastRecordsHandler handler
+                = new LastRecordsHandler(leftCount, date, true);
+            this.historyImpl.readRecords(
+                filelist.get(currentFile), handler, true);
 
-            if(doc == null)
+            for (RawRecord raw : handler.records)
             {
-                currentFile--;
-                continue;
-            }
-
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
-            {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
+                result.add(HistoryFileSnapshot.createRecord(
+                    raw.timestamp, raw.names, raw.values,
+                    false, null, null, false));
             }
+            leftCount -= handler.records.size();
 
             currentFile--;
         }
@@ -549,12 +421,25 @@ private QueryResultSet<HistoryRecord> find(
         Date startDate, Date endDate,
         String[] keywords, String field, boolean caseSensitive)
     {
+        // records waiting to be written are not in the files yet
+        this.historyImpl.flushWriter();
+
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
         Vector<String> filelist
-            = filterFilesByDate(this.historyImpl.getFileList(),
-                                startDate, endDate);
+            = this.historyImpl.getFileList(startDate, endDate);
+
+        // when searching for keywords, only the records the keyword index
+        // points to need to be checked
+        Map<String, BitSet> candidates = null;
+        if(keywords != null && keywords.length > 0 && field != null)
+        {
+            candidates
+                = this.historyImpl.findKeywordCandidates(field, keywords);
+            if(candidates != null)
+                filelist.retainAll(candidates.keySet());
+        }
 
         double currentProgress
             = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
@@ -570,48 +455,36 @@ private QueryResultSet<HistoryRecord> find(
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         Iterator<String> fileIterator = filelist.iterator();
         while (fileIterator.hasNext())
         {
             String filename = fileIterator.next();
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
+            HistoryFileSnapshot snapshot
+                = this.historyImpl.getSnapshot(filename);
 
-            if(doc == null)
+            if(snapshot == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            BitSet ordinals
+                = (candidates == null) ? null : candidates.get(filename);
+            int nodeCount = (ordinals == null)
+                ? snapshot.getRecordCount()
+                : ordinals.cardinality();
 
             double nodesProgressStep = fileProgressStep;
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+            if(nodeCount != 0)
+                nodesProgressStep = fileProgressStep / nodeCount;
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+            for (int i = nextNode(ordinals, 0);
+                    i >= 0 && i < snapshot.getRecordCount();
+                    i = nextNode(ordinals, i + 1))
             {
-                node = nodes.item(i);
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(isInPeriod(timestamp, startDate, endDate))
+                if(isInPeriod(snapshot.getTimestamp(i), startDate, endDate))
                 {
-                    NodeList propertyNodes = node.getChildNodes();
-
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                    HistoryRecord record = snapshot.filterByKeyword(
+                        i, keywords, field, caseSensitive);
 
                     if(record != null)
                     {
@@ -637,6 +510,20 @@ private QueryResultSet<HistoryRecord> find(
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
+    /**
+     * Returns the ordinal of the next record to check in a file.
+     *
+     * @param ordinals the ordinals of the records to check or <tt>null</tt>
+     * to check all records
+     * @param from the ordinal to start from
+     * @return the ordinal of the next record to check or -1 if there are no
+     * more
+     */
+    private static int nextNode(BitSet ordinals, int from)
+    {
+        return (ordinals == null) ? from : ordinals.nextSetBit(from);
+    }
+
     /**
      * Evaluetes does <tt>timestamp</tt> is in the given time period.
      *
@@ -647,9 +534,25 @@ private QueryResultSet<HistoryRecord> find(
      */
     static boolean isInPeriod(Date timestamp, Date startDate, Date endDate)
     {
-        Long startLong;
-        Long endLong;
-        Long tsLong = timestamp.getTime();
+        return isInPeriod(timestamp.getTime(), startDate, endDate);
+    }
+
+    /**
+     * Evaluetes does <tt>timestamp</tt> is in the given time period. Records
+     * with invalid timestamp are never in any period.
+     *
+     * @param timestamp the timestamp in milliseconds
+     * @param startDate Date the start of the period
+     * @param endDate Date the end of the period
+     * @return boolean
+     */
+    static boolean isInPeriod(long timestamp, Date startDate, Date endDate)
+    {
+        if(timestamp == HistoryFileSnapshot.INVALID_TIMESTAMP)
+            return false;
+
+        long startLong;
+        long endLong;
 
         if(startDate == null)
             startLong = Long.MIN_VALUE;
@@ -661,80 +564,7 @@ static boolean isInPeriod(Date timestamp, Date startDate, Date endDate)
         else
             endLong = endDate.getTime();
 
-        return startLong <= tsLong && tsLong < endLong;
-    }
-
-    /**
-     * If there is keyword restriction and doesn't match the conditions
-     * return null. Otherwise return the HistoryRecord corresponding the
-     * given nodes.
-     *
-     * @param propertyNodes NodeList
-     * @param timestamp Date
-     * @param keywords String[]
-     * @param field String
-     * @param caseSensitive boolean
-     * @return HistoryRecord
-     */
-    static HistoryRecord filterByKeyword(   NodeList propertyNodes,
-                                            Date timestamp,
-                                            String[] keywords,
-                                            String field,
-                                            boolean caseSensitive)
-    {
-        ArrayList<String> nameVals = new ArrayList<String>();
-        int len = propertyNodes.getLength();
-        boolean targetNodeFound = false;
-        for (int j = 0; j < len; j++)
-        {
-            Node propertyNode = propertyNodes.item(j);
-            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-            {
-                String nodeName = propertyNode.getNodeName();
-
-                Node nestedNode = propertyNode.getFirstChild();
-
-                if(nestedNode == null)
-                    continue;
-
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
-
-                // unescape xml chars, we have escaped when writing values
-                nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
-
-                if(field != null && field.equals(nodeName))
-                {
-                    targetNodeFound = true;
-
-                    if(!matchKeyword(nodeValue, keywords, caseSensitive))
-                        return null; // doesn't match the given keyword(s)
-                                    // so return nothing
-                }
-
-                nameVals.add(nodeName);
-                // Get nested TEXT node's value
-                nameVals.add(nodeValue);
-
-            }
-        }
-
-        // if we need to find a particular record but the target node is not
-        // present skip this record
-        if(keywords != null && keywords.length > 0 && !targetNodeFound)
-        {
-            return null;
-        }
-
-        String[] propertyNames = new String[nameVals.size() / 2];
-        String[] propertyValues = new String[propertyNames.length];
-        for (int j = 0; j < propertyNames.length; j++)
-        {
-            propertyNames[j] = nameVals.get(j * 2);
-            propertyValues[j] = nameVals.get(j * 2 + 1);
-        }
-
-        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+        return startLong <= timestamp && timestamp < endLong;
     }
 
     /**
@@ -943,11 +773,13 @@ public void removeSearchProgressListener(HistorySearchProgressListener
     }
 
     /**
-     * Count the number of messages that a search will return
-     * Actually only the last file is parsed and its nodes are counted.
-     * We accept that the other files are full with max records,
-     * this way we escape parsing all files which will significantly
-     * slow the process and for one search will parse the files twice.
+     * Count the number of messages that a search will return.
+     * The record counts of the files known to the timestamp range index are
+     * used as they are. For the other files we accept that they are full
+     * with max records, except for the last one whose records are counted while
+     * streaming it. This way we escape parsing all files which will
+     * significantly slow the process and for one search will parse the files
+     * twice.
      *
      * @return the number of searched messages
      * @throws UnsupportedOperationException
@@ -957,35 +789,163 @@ public void removeSearchProgressListener(HistorySearchProgressListener
     public int countRecords()
         throws UnsupportedOperationException
     {
+        // records waiting to be written are not in the files yet
+        this.historyImpl.flushWriter();
+
+        HistoryFileIndex fileIndex = this.historyImpl.getFileIndex();
         int result = 0;
         String lastFile = null;
         Iterator<String> filelistIter = this.historyImpl.getFileList();
         while (filelistIter.hasNext())
         {
+            if (lastFile != null)
+                result += countRecords(fileIndex, lastFile);
             lastFile = filelistIter.next();
-            result += HistoryWriterImpl.MAX_RECORDS_PER_FILE;
         }
 
         if(lastFile == null)
             return result;
 
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
+        HistoryFileIndex.Entry entry = fileIndex.get(lastFile);
+        if (entry != null)
+            return result + entry.recordCount;
 
-        if(doc == null)
-            return result;
+        result += this.historyImpl.indexFile(lastFile).recordCount;
+        fileIndex.store();
 
-        NodeList nodes = doc.getElementsByTagName("record");
+        return result;
+    }
 
-        result += nodes.getLength();
+    /**
+     * Returns the number of records of a file as known by the timestamp range
+     * index, or the maximum number of records per file if it is not indexed.
+     *
+     * @param fileIndex the timestamp range index
+     * @param filename the name of the file
+     * @return the (estimated) number of records of the file
+     */
+    private static int countRecords(
+            HistoryFileIndex fileIndex, String filename)
+    {
+        HistoryFileIndex.Entry entry = fileIndex.get(filename);
 
-        return result;
+        return (entry != null)
+            ? entry.recordCount
+            : HistoryWriterImpl.MAX_RECORDS_PER_FILE;
+    }
+
+    /**
+     * A record as read from a history file.
+     */
+    private static class RawRecord
+    {
+        /**
+         * The timestamp of the record.
+         */
+        final long timestamp;
+
+        /**
+         * The property names of the record.
+         */
+        final String[] names;
+
+        /**
+         * The property values of the record as stored in the file.
+         */
+        final String[] values;
+
+        /**
+         * Creates a record.
+         *
+         * @param timestamp the timestamp of the record
+         * @param names the property names of the record
+         * @param values the property values of the record
+         */
+        RawRecord(long timestamp, String[] names, String[] values)
+        {
+            this.timestamp = timestamp;
+            this.names = names;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Keeps the last records of a file which match its criteria, so that a
+     * file can be streamed from its beginning while holding no more records
+     * than needed.
+     */
+    private static class LastRecordsHandler
+        extends HistoryFileStreamReader.RecordHandler
+    {
+        /**
+         * The maximum number of records to keep.
+         */
+        private final int maxCount;
+
+        /**
+         * The date before which the records must be or <tt>null</tt>.
+         */
+        private final Date endDate;
+
+        /**
+         * Whether records with empty properties are skipped.
+         */
+        private final boolean completeOnly;
+
+        /**
+         * The last matching records, oldest first.
+         */
+        final LinkedList<RawRecord> records = new LinkedList<RawRecord>();
+
+        /**
+         * The number of matching records in the file.
+         */
+        int count = 0;
+
+        /**
+         * Creates a handler.
+         *
+         * @param maxCount the maximum number of records to keep
+         * @param endDate the date before which the records must be or
+         * <tt>null</tt>
+         * @param completeOnly whether to skip the records with empty
+         * properties
+         */
+        LastRecordsHandler(int maxCount, Date endDate, boolean completeOnly)
+        {
+            this.maxCount = maxCount;
+            this.endDate = endDate;
+            this.completeOnly = completeOnly;
+        }
+
+        @Override
+        void start(long length, long lastModified)
+        {
+            records.clear();
+            count = 0;
+        }
+
+        @Override
+        boolean handleRecord(long timestamp, String[] names, String[] values)
+        {
+            if (endDate != null && !isInPeriod(timestamp, null, endDate))
+                return true;
+            if (completeOnly && !HistoryFileSnapshot.isComplete(values))
+                return true;
+
+            count++;
+            records.addLast(new RawRecord(timestamp, names, values));
+            if (records.size() > maxCount)
+                records.removeFirst();
+            return true;
+        }
     }
 
     /**
      * Used to compare HistoryRecords
      * ant to be ordered in TreeSet
      */
-    private static class HistoryRecordComparator
+    static class HistoryRecordComparator
         implements Comparator<HistoryRecord>
     {
         public int compare(HistoryRecord h1, HistoryRecord h2)
@@ -0,0 +1,934 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * A single segment of a history stored by the binary storage engine. Records
+ * are appended one after another to the segment data file, each of them
+ * prefixed by its length and a CRC32 checksum of its payload, so adding a
+ * record never rewrites what is already on disk.
+ * <p>
+ * Every {@link #INDEX_INTERVAL} records an entry is appended to a small side
+ * file holding the offset, the ordinal and the smallest and biggest timestamps
+ * of the records preceding that offset. The sparse index is used to skip the
+ * beginning of the segment when searching by date or when only the last few
+ * records are needed. As the biggest timestamp is a running maximum the index
+ * stays valid even when records are not written in chronological order.
+ *
+ * @see SegmentHistoryStore
+ */
+class HistorySegment
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistorySegment.class);
+
+    /**
+     * The extension of the segment data files.
+     */
+    static final String DATA_FILE_EXTENSION = ".seg";
+
+    /**
+     * The extension of the sparse index files accompanying the segments.
+     */
+    static final String INDEX_FILE_EXTENSION = ".sdx";
+
+    /**
+     * The number of records between two consecutive sparse index entries.
+     */
+    static final int INDEX_INTERVAL = 32;
+
+    /**
+     * The size in bytes of the header preceding every record payload: the
+     * payload length followed by its checksum.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * The size in bytes of a single sparse index entry.
+     */
+    private static final int INDEX_ENTRY_SIZE = 32;
+
+    /**
+     * The biggest record payload we accept while reading. Anything bigger is
+     * treated as corruption.
+     */
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The file holding the records.
+     */
+    private final File dataFile;
+
+    /**
+     * The file holding the sparse index.
+     */
+    private final File indexFile;
+
+    /**
+     * The offsets of the sparse index entries.
+     */
+    private long[] indexOffsets = new long[8];
+
+    /**
+     * The ordinals of the first records following each sparse index entry.
+     */
+    private int[] indexOrdinals = new int[8];
+
+    /**
+     * The biggest timestamps of the records preceding each index entry.
+     */
+    private long[] indexMaxTimestamps = new long[8];
+
+    /**
+     * The number of valid sparse index entries.
+     */
+    private int indexSize = 0;
+
+    /**
+     * The number of records in this segment.
+     */
+    private int recordCount = 0;
+
+    /**
+     * The smallest timestamp of all records in this segment.
+     */
+    private long minTimestamp = Long.MAX_VALUE;
+
+    /**
+     * The biggest timestamp of all records in this segment.
+     */
+    private long maxTimestamp = Long.MIN_VALUE;
+
+    /**
+     * The length of the valid part of the data file. Readers never go past
+     * it, so a record being appended is not visible until completely written.
+     */
+    private long length = 0;
+
+    /**
+     * The stream used to append records, opened when the first record is
+     * appended and closed by {@link #close()}.
+     */
+    private FileOutputStream out = null;
+
+    /**
+     * Whether the segment metadata was loaded from disk.
+     */
+    private boolean loaded = false;
+
+    /**
+     * Creates a segment backed by the given data file. The file is not read
+     * until the segment is accessed for the first time.
+     *
+     * @param dataFile the data file of the segment
+     */
+    HistorySegment(File dataFile)
+    {
+        this.dataFile = dataFile;
+
+        String name = dataFile.getName();
+        this.indexFile = new File(
+            dataFile.getParentFile(),
+            name.substring(0, name.length() - DATA_FILE_EXTENSION.length())
+                + INDEX_FILE_EXTENSION);
+    }
+
+    /**
+     * Returns the name of the data file of this segment.
+     * @return the name of the data file of this segment
+     */
+    String getName()
+    {
+        return dataFile.getName();
+    }
+
+    /**
+     * Returns the number of records in this segment.
+     * @return the number of records in this segment
+     */
+    synchronized int getRecordCount()
+    {
+        load();
+        return recordCount;
+    }
+
+    /**
+     * Returns the smallest timestamp in this segment or
+     * <tt>Long.MAX_VALUE</tt> if it is empty.
+     * @return the smallest timestamp in this segment
+     */
+    synchronized long getMinTimestamp()
+    {
+        load();
+        return minTimestamp;
+    }
+
+    /**
+     * Returns the biggest timestamp in this segment or
+     * <tt>Long.MIN_VALUE</tt> if it is empty.
+     * @return the biggest timestamp in this segment
+     */
+    synchronized long getMaxTimestamp()
+    {
+        load();
+        return maxTimestamp;
+    }
+
+    /**
+     * Returns the size in bytes of the records in this segment.
+     * @return the size in bytes of the records in this segment
+     */
+    synchronized long getSize()
+    {
+        load();
+        return length;
+    }
+
+    /**
+     * Checks whether this segment may hold records with timestamp in the
+     * given period. <tt>null</tt> dates stand for an open interval.
+     *
+     * @param startDate the start of the period (inclusive)
+     * @param endDate the end of the period (exclusive)
+     * @return <tt>true</tt> if the segment overlaps the period
+     */
+    synchronized boolean overlaps(Date startDate, Date endDate)
+    {
+        load();
+
+        if (recordCount == 0)
+            return false;
+        if (startDate != null && maxTimestamp < startDate.getTime())
+            return false;
+        if (endDate != null && minTimestamp >= endDate.getTime())
+            return false;
+        return true;
+    }
+
+    /**
+     * Appends a record at the end of this segment.
+     *
+     * @param record the record to append
+     * @throws IOException if writing fails
+     */
+    synchronized void append(HistoryRecord record)
+        throws IOException
+    {
+        ensureLoaded();
+
+        byte[] bytes = encode(record);
+
+        if (out == null)
+            out = new FileOutputStream(dataFile, true);
+
+        if (recordCount > 0 && recordCount % INDEX_INTERVAL == 0)
+            addIndexEntry(length, recordCount, maxTimestamp, true);
+
+        out.write(bytes);
+
+        length += bytes.length;
+        recordCount++;
+        updateTimestamps(record.getTimestamp().getTime());
+    }
+
+    /**
+     * Reads all records of this segment in the order they were stored.
+     *
+     * @return the records of this segment
+     * @throws IOException if reading fails
+     */
+    List<HistoryRecord> readAll()
+        throws IOException
+    {
+        return read(null, null);
+    }
+
+    /**
+     * Reads the records of this segment with timestamp in the given period,
+     * in the order they were stored. The sparse index is used to skip the
+     * records which are known to be older than <tt>startDate</tt>.
+     *
+     * @param startDate the start of the period (inclusive) or <tt>null</tt>
+     * @param endDate the end of the period (exclusive) or <tt>null</tt>
+     * @return the matching records
+     * @throws IOException if reading fails
+     */
+    List<HistoryRecord> read(Date startDate, Date endDate)
+        throws IOException
+    {
+        long from = 0;
+        long to;
+
+        synchronized (this)
+        {
+            ensureLoaded();
+
+            if (startDate != null)
+            {
+                long start = startDate.getTime();
+                for (int i = 0; i < indexSize; i++)
+                {
+                    if (indexMaxTimestamps[i] < start)
+                        from = indexOffsets[i];
+                    else
+                        break;
+                }
+            }
+            to = length;
+        }
+
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>();
+        for (HistoryRecord record : readRange(from, to))
+        {
+            if (HistoryReaderImpl.isInPeriod(
+                    record.getTimestamp(), startDate, endDate))
+                result.add(record);
+        }
+        return result;
+    }
+
+    /**
+     * Reads at least the last <tt>count</tt> records of this segment (or all
+     * of them if there are less). The sparse index is used to avoid reading
+     * the whole segment, so more records than requested may be returned.
+     *
+     * @param count the number of records needed from the end of the segment
+     * @return the last records of the segment in the order they were stored
+     * @throws IOException if reading fails
+     */
+    List<HistoryRecord> readTail(int count)
+        throws IOException
+    {
+        long from = 0;
+        long to;
+
+        synchronized (this)
+        {
+            ensureLoaded();
+
+            int firstNeeded = recordCount - count;
+            for (int i = 0; i < indexSize; i++)
+            {
+                if (indexOrdinals[i] <= firstNeeded)
+                    from = indexOffsets[i];
+                else
+                    break;
+            }
+            to = length;
+        }
+
+        return readRange(from, to);
+    }
+
+    /**
+     * Replaces the content of this segment with the given records. Used for
+     * the rare operations which modify already stored records.
+     *
+     * @param records the new content of the segment
+     * @throws IOException if writing fails
+     */
+    synchronized void rewrite(List<HistoryRecord> records)
+        throws IOException
+    {
+        close();
+
+        File tmpFile = new File(
+            dataFile.getParentFile(), dataFile.getName() + ".tmp");
+        OutputStream tmpOut
+            = new BufferedOutputStream(new FileOutputStream(tmpFile));
+        try
+        {
+            for (HistoryRecord record : records)
+                tmpOut.write(encode(record));
+        }
+        finally
+        {
+            tmpOut.close();
+        }
+
+        if (!dataFile.delete() || !tmpFile.renameTo(dataFile))
+        {
+            throw new IOException(
+                "Could not replace history segment " + dataFile);
+        }
+
+        indexFile.delete();
+        loaded = false;
+        ensureLoaded();
+    }
+
+    /**
+     * Deletes the files of this segment.
+     */
+    synchronized void delete()
+    {
+        close();
+        dataFile.delete();
+        indexFile.delete();
+    }
+
+    /**
+     * Closes the stream used to append records to this segment. It will be
+     * reopened if another record is appended.
+     */
+    synchronized void close()
+    {
+        if (out != null)
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to close history segment " + dataFile, e);
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Reads the records stored between the given offsets of the data file.
+     *
+     * @param from the offset of the first record to read
+     * @param to the offset where reading stops
+     * @return the read records
+     * @throws IOException if reading fails
+     */
+    private List<HistoryRecord> readRange(long from, long to)
+        throws IOException
+    {
+        List<HistoryRecord> result = new ArrayList<HistoryRecord>();
+
+        if (from >= to)
+            return result;
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(openDataFile(), 16384));
+        try
+        {
+            skipFully(in, from);
+
+            long offset = from;
+            CRC32 crc = new CRC32();
+            while (offset < to)
+            {
+                int size = in.readInt();
+                int checksum = in.readInt();
+                byte[] payload = new byte[size];
+                in.readFully(payload);
+
+                crc.reset();
+                crc.update(payload, 0, size);
+                if ((int) crc.getValue() == checksum)
+                    result.add(decode(payload));
+                else
+                {
+                    logger.warn(
+                        "Skipping corrupted record at " + offset + " in "
+                            + dataFile);
+                }
+                offset += RECORD_HEADER_SIZE + size;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * Loads the metadata of the segment like {@link #ensureLoaded()} but only
+     * logs a failure, in which case the segment looks empty until it is
+     * loaded successfully.
+     */
+    private void load()
+    {
+        try
+        {
+            ensureLoaded();
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to read history segment " + dataFile, e);
+        }
+    }
+
+    /**
+     * Loads the sparse index and scans the records following its last entry
+     * in order to find out the record count, the timestamp bounds and the
+     * valid length of the segment. A partially written last record, left by a
+     * crash for example, is truncated. Nothing is truncated if reading fails:
+     * the segment stays unloaded and loading is retried the next time it is
+     * accessed.
+     *
+     * @throws IOException if reading fails or if the segment is corrupted in a
+     * way which does not allow to find the records following the corruption
+     */
+    private void ensureLoaded()
+        throws IOException
+    {
+        if (loaded)
+            return;
+
+        indexSize = 0;
+        recordCount = 0;
+        minTimestamp = Long.MAX_VALUE;
+        maxTimestamp = Long.MIN_VALUE;
+        length = 0;
+
+        long fileLength = dataFile.length();
+
+        loadIndex(fileLength);
+
+        long offset = 0;
+        if (indexSize > 0)
+        {
+            offset = indexOffsets[indexSize - 1];
+            recordCount = indexOrdinals[indexSize - 1];
+            maxTimestamp = indexMaxTimestamps[indexSize - 1];
+        }
+
+        try
+        {
+            offset = scan(offset, fileLength);
+        }
+        catch (IOException e)
+        {
+            indexSize = 0;
+            recordCount = 0;
+            minTimestamp = Long.MAX_VALUE;
+            maxTimestamp = Long.MIN_VALUE;
+            throw e;
+        }
+
+        length = offset;
+        loaded = true;
+
+        if (length < fileLength)
+        {
+            logger.warn("Truncating history segment " + dataFile + " from "
+                + fileLength + " to " + length + " bytes");
+            truncate(length);
+        }
+    }
+
+    /**
+     * Scans the records of the data file starting at the given offset
+     * updating the metadata of the segment and adding the missing sparse
+     * index entries. A record failing its checksum is skipped, so are the
+     * records it would hide. Scanning stops at a record which does not fit in
+     * the data file, which can only be a partially written last record.
+     *
+     * @param offset the offset where scanning starts
+     * @param fileLength the length of the data file
+     * @return the offset right after the last complete record
+     * @throws IOException if reading fails or if a record header is corrupted
+     */
+    private long scan(long offset, long fileLength)
+        throws IOException
+    {
+        if (offset >= fileLength)
+            return offset;
+
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(openDataFile(), 16384));
+        try
+        {
+            skipFully(in, offset);
+
+            CRC32 crc = new CRC32();
+            while (offset + RECORD_HEADER_SIZE <= fileLength)
+            {
+                int size = in.readInt();
+                int checksum = in.readInt();
+
+                if (size >= 0
+                        && offset + RECORD_HEADER_SIZE + size > fileLength)
+                    break;
+                if (size < 0 || size > MAX_RECORD_SIZE)
+                {
+                    throw new IOException(
+                        "Corrupted record header at " + offset + " in "
+                            + dataFile);
+                }
+
+                byte[] payload = new byte[size];
+                in.readFully(payload);
+
+                crc.reset();
+                crc.update(payload, 0, size);
+                if ((int) crc.getValue() != checksum)
+                {
+                    logger.warn(
+                        "Skipping corrupted record at " + offset + " in "
+                            + dataFile);
+                    offset += RECORD_HEADER_SIZE + size;
+                    continue;
+                }
+
+                if (recordCount > 0
+                        && recordCount % INDEX_INTERVAL == 0
+                        && (indexSize == 0
+                            || indexOffsets[indexSize - 1] < offset))
+                    addIndexEntry(offset, recordCount, maxTimestamp, true);
+
+                recordCount++;
+                updateTimestamps(
+                    new DataInputStream(new ByteArrayInputStream(payload))
+                        .readLong());
+                offset += RECORD_HEADER_SIZE + size;
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        return offset;
+    }
+
+    /**
+     * Opens the data file for reading.
+     *
+     * @return a stream reading the data file from its beginning
+     * @throws IOException if the file cannot be opened
+     */
+    InputStream openDataFile()
+        throws IOException
+    {
+        return new FileInputStream(dataFile);
+    }
+
+    /**
+     * Loads the sparse index file dropping the entries pointing beyond the
+     * end of the data file.
+     *
+     * @param fileLength the length of the data file
+     */
+    private void loadIndex(long fileLength)
+    {
+        if (!indexFile.exists())
+            return;
+
+        long indexLength = indexFile.length();
+        boolean valid = (indexLength % INDEX_ENTRY_SIZE == 0);
+
+        if (valid)
+        {
+            try
+            {
+                DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(indexFile)));
+                try
+                {
+                    long entries = indexLength / INDEX_ENTRY_SIZE;
+                    for (long i = 0; i < entries; i++)
+                    {
+                        long offset = in.readLong();
+                        int ordinal = in.readInt();
+                        in.readInt(); // reserved
+                        long min = in.readLong();
+                        long max = in.readLong();
+
+                        if (offset >= fileLength)
+                        {
+                            valid = false;
+                            break;
+                        }
+
+                        addIndexEntry(offset, ordinal, max, false);
+                        if (min < minTimestamp)
+                            minTimestamp = min;
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            catch (IOException e)
+            {
+                logger.warn("Failed to read history index " + indexFile, e);
+                valid = false;
+            }
+        }
+
+        if (!valid)
+        {
+            // start over, the index will be rebuilt while scanning
+            indexSize = 0;
+            minTimestamp = Long.MAX_VALUE;
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Adds an entry to the sparse index.
+     *
+     * @param offset the offset of the first record following the entry
+     * @param ordinal the ordinal of the first record following the entry
+     * @param max the biggest timestamp of the records preceding the entry
+     * @param persist whether to also append the entry to the index file
+     */
+    private void addIndexEntry(
+            long offset, int ordinal, long max, boolean persist)
+    {
+        if (indexSize == indexOffsets.length)
+        {
+            int newSize = indexOffsets.length * 2;
+            indexOffsets = Arrays.copyOf(indexOffsets, newSize);
+            indexOrdinals = Arrays.copyOf(indexOrdinals, newSize);
+            indexMaxTimestamps = Arrays.copyOf(indexMaxTimestamps, newSize);
+        }
+
+        indexOffsets[indexSize] = offset;
+        indexOrdinals[indexSize] = ordinal;
+        indexMaxTimestamps[indexSize] = max;
+        indexSize++;
+
+        if (!persist)
+            return;
+
+        try
+        {
+            DataOutputStream indexOut = new DataOutputStream(
+                new FileOutputStream(indexFile, true));
+            try
+            {
+                ByteArrayOutputStream entry
+                    = new ByteArrayOutputStream(INDEX_ENTRY_SIZE);
+                DataOutputStream entryOut = new DataOutputStream(entry);
+                entryOut.writeLong(offset);
+                entryOut.writeInt(ordinal);
+                entryOut.writeInt(0);
+                entryOut.writeLong(minTimestamp);
+                entryOut.writeLong(max);
+                indexOut.write(entry.toByteArray());
+            }
+            finally
+            {
+                indexOut.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // the index is only an optimization, it will be rebuilt
+            logger.warn("Failed to update history index " + indexFile, e);
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Updates the timestamp bounds of the segment with a new timestamp.
+     *
+     * @param timestamp the timestamp of a record in the segment
+     */
+    private void updateTimestamps(long timestamp)
+    {
+        if (timestamp < minTimestamp)
+            minTimestamp = timestamp;
+        if (timestamp > maxTimestamp)
+            maxTimestamp = timestamp;
+    }
+
+    /**
+     * Truncates the data file to the given length.
+     *
+     * @param newLength the new length of the data file
+     */
+    private void truncate(long newLength)
+    {
+        try
+        {
+            RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+            try
+            {
+                raf.setLength(newLength);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Failed to truncate history segment " + dataFile, e);
+        }
+    }
+
+    /**
+     * Encodes a record together with its header.
+     *
+     * @param record the record to encode
+     * @return the bytes to be written to the data file
+     * @throws IOException if encoding fails
+     */
+    static byte[] encode(HistoryRecord record)
+        throws IOException
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        // placeholder for the header
+        out.writeLong(0);
+
+        out.writeLong(record.getTimestamp().getTime());
+
+        int count = 0;
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] != null)
+                count++;
+        }
+        out.writeInt(count);
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] == null)
+                continue;
+
+            writeString(out, names[i]);
+            writeString(out, values[i]);
+        }
+        out.flush();
+
+        byte[] result = bytes.toByteArray();
+        int size = result.length - RECORD_HEADER_SIZE;
+
+        CRC32 crc = new CRC32();
+        crc.update(result, RECORD_HEADER_SIZE, size);
+        int checksum = (int) crc.getValue();
+
+        writeInt(result, 0, size);
+        writeInt(result, 4, checksum);
+
+        return result;
+    }
+
+    /**
+     * Decodes the payload of a record.
+     *
+     * @param payload the payload of the record without its header
+     * @return the decoded record
+     * @throws IOException if the payload is malformed
+     */
+    static HistoryRecord decode(byte[] payload)
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(payload));
+
+        long timestamp = in.readLong();
+        int count = in.readInt();
+
+        String[] names = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            names[i] = readString(in);
+            values[i] = readString(in);
+        }
+
+        return new HistoryRecord(names, values, new Date(timestamp));
+    }
+
+    /**
+     * Writes a string as its UTF-8 length followed by its UTF-8 bytes. Unlike
+     * <tt>DataOutput.writeUTF</tt> there is no limit on the string length.
+     *
+     * @param out the stream to write to
+     * @param s the string to write
+     * @throws IOException if writing fails
+     */
+    private static void writeString(DataOutputStream out, String s)
+        throws IOException
+    {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutputStream,
+     * String)}.
+     *
+     * @param in the stream to read from
+     * @return the read string
+     * @throws IOException if reading fails
+     */
+    private static String readString(DataInputStream in)
+        throws IOException
+    {
+        int size = in.readInt();
+        if (size < 0 || size > MAX_RECORD_SIZE)
+            throw new IOException("Invalid string length " + size);
+
+        byte[] bytes = new byte[size];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes a big-endian int in the given array.
+     *
+     * @param dst the destination array
+     * @param off the offset in the array
+     * @param value the value to write
+     */
+    private static void writeInt(byte[] dst, int off, int value)
+    {
+        dst[off] = (byte) (value >>> 24);
+        dst[off + 1] = (byte) (value >>> 16);
+        dst[off + 2] = (byte) (value >>> 8);
+        dst[off + 3] = (byte) value;
+    }
+
+    /**
+     * Skips exactly <tt>n</tt> bytes of the given stream.
+     *
+     * @param in the stream
+     * @param n the number of bytes to skip
+     * @throws IOException if the end of the stream is reached
+     */
+    private static void skipFully(InputStream in, long n)
+        throws IOException
+    {
+        while (n > 0)
+        {
+            long skipped = in.skip(n);
+            if (skipped <= 0)
+                throw new EOFException();
+            n -= skipped;
+        }
+    }
+}
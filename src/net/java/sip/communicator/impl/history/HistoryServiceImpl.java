@@ -19,6 +19,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import javax.xml.parsers.*;
 
@@ -62,10 +63,100 @@
 
     private final FileAccessService fileAccessService;
 
-    private final DocumentBuilder builder;
+    /**
+     * The <tt>DocumentBuilder</tt>s of the threads using this service.
+     * <tt>DocumentBuilder</tt>s are not thread safe, giving each thread its
+     * own lets histories be parsed concurrently.
+     */
+    private final ThreadLocal<DocumentBuilder> builders;
 
     private final boolean cacheEnabled;
 
+    /**
+     * The default maximum memory used to cache parsed history files, in
+     * kilobytes.
+     */
+    private static final long DEFAULT_CACHE_SIZE = 8 * 1024;
+
+    /**
+     * The default memory the parsed files of a single history can use in the
+     * cache, in kilobytes.
+     */
+    private static final long DEFAULT_CACHE_SIZE_PER_HISTORY = 2 * 1024;
+
+    /**
+     * The cache of the parsed files of all histories.
+     */
+    private final HistoryDocumentCache documentCache;
+
+    /**
+     * Whether new histories are created with the binary storage engine.
+     */
+    private final boolean binaryStorageEnabled;
+
+    /**
+     * The default time records can wait before they are written, in
+     * milliseconds.
+     */
+    private static final long DEFAULT_WRITE_DELAY = 1000;
+
+    /**
+     * The default number of records of a history written right away.
+     */
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 50;
+
+    /**
+     * The default maximum number of records of all histories waiting to be
+     * written.
+     */
+    private static final int DEFAULT_MAX_PENDING_RECORDS = 1000;
+
+    /**
+     * The default time after which the records which could not be written
+     * are written again, in milliseconds.
+     */
+    private static final long DEFAULT_WRITE_RETRY_DELAY = 10000;
+
+    /**
+     * The time records added to a history can wait before they are written,
+     * in milliseconds. Records are written as soon as they are added if it is
+     * not positive.
+     */
+    private final long writeDelay;
+
+    /**
+     * The number of records added to a history which are written right away.
+     */
+    private final int writeBatchSize;
+
+    /**
+     * The maximum number of records of all histories waiting to be written.
+     */
+    private final int maxPendingRecords;
+
+    /**
+     * The time after which the records which could not be written are
+     * written again, in milliseconds.
+     */
+    private final long writeRetryDelay;
+
+    /**
+     * The number of records of all histories waiting to be written.
+     */
+    private final AtomicInteger pendingRecordCount = new AtomicInteger();
+
+    /**
+     * The timer writing the pending records of the histories, created when
+     * first needed.
+     */
+    private Timer writeTimer = null;
+
+    /**
+     * Whether this service was stopped, after which the records are written
+     * as soon as they are added.
+     */
+    private boolean stopped = false;
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -92,14 +183,77 @@
     public HistoryServiceImpl(BundleContext bundleContext)
         throws Exception
     {
-        this.builder =
-            DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        final DocumentBuilderFactory builderFactory
+            = DocumentBuilderFactory.newInstance();
+        final DocumentBuilder builder = builderFactory.newDocumentBuilder();
+
+        this.builders = new ThreadLocal<DocumentBuilder>()
+        {
+            @Override
+            protected DocumentBuilder initialValue()
+            {
+                try
+                {
+                    return builderFactory.newDocumentBuilder();
+                }
+                catch (ParserConfigurationException e)
+                {
+                    // the factory already created a builder in the
+                    // constructor, it cannot fail with the same configuration
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        this.builders.set(builder);
+        ConfigurationService configService
+            = getConfigurationService(bundleContext);
+
         this.cacheEnabled =
-            getConfigurationService(bundleContext).getBoolean(
-                CACHE_ENABLED_PROPERTY, false);
+            configService.getBoolean(CACHE_ENABLED_PROPERTY, false);
+        this.documentCache = new HistoryDocumentCache(
+            configService.getLong(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE)
+                * 1024,
+            configService.getLong(
+                    CACHE_SIZE_PER_HISTORY_PROPERTY,
+                    DEFAULT_CACHE_SIZE_PER_HISTORY)
+                * 1024);
+        this.binaryStorageEnabled =
+            STORAGE_ENGINE_BINARY.equalsIgnoreCase(
+                configService.getString(
+                    STORAGE_ENGINE_PROPERTY, STORAGE_ENGINE_XML));
+        this.writeDelay
+            = configService.getLong(WRITE_DELAY_PROPERTY, DEFAULT_WRITE_DELAY);
+        this.writeBatchSize = Math.max(1,
+            configService.getInt(
+                WRITE_BATCH_SIZE_PROPERTY, DEFAULT_WRITE_BATCH_SIZE));
+        this.maxPendingRecords
+            = configService.getInt(
+                MAX_PENDING_RECORDS_PROPERTY, DEFAULT_MAX_PENDING_RECORDS);
+        this.writeRetryDelay
+            = configService.getLong(
+                WRITE_RETRY_DELAY_PROPERTY, DEFAULT_WRITE_RETRY_DELAY);
         this.fileAccessService = getFileAccessService(bundleContext);
     }
 
+    /**
+     * Writes the pending records of all histories and stops the timer
+     * writing them. Records added afterwards are written right away.
+     */
+    void stop()
+    {
+        synchronized (this)
+        {
+            stopped = true;
+            if (writeTimer != null)
+            {
+                writeTimer.cancel();
+                writeTimer = null;
+            }
+        }
+
+        flushHistories();
+    }
+
     public Iterator<HistoryID> getExistingIDs()
     {
         List<File> vect = new Vector<File>();
@@ -209,40 +363,49 @@ protected FileAccessService getFileAccessService()
         return this.fileAccessService;
     }
 
+    /**
+     * Returns the <tt>DocumentBuilder</tt> of the current thread.
+     * @return the <tt>DocumentBuilder</tt> of the current thread
+     */
     protected DocumentBuilder getDocumentBuilder()
     {
-        return builder;
+        return builders.get();
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every thread parses with its own DocumentBuilder so
+     * documents can be parsed concurrently.
      * @param file File the file to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(File file)
+    protected Document parse(File file)
         throws SAXException, IOException
     {
         FileInputStream fis = new FileInputStream(file);
-        Document doc = builder.parse(fis);
-        fis.close();
-        return doc;
+        try
+        {
+            return getDocumentBuilder().parse(fis);
+        }
+        finally
+        {
+            fis.close();
+        }
     }
 
     /**
-     * Parse documents. Synchronized to avoid exception
-     * when concurrently parsing with same DocumentBuilder
+     * Parse documents. Every thread parses with its own DocumentBuilder so
+     * documents can be parsed concurrently.
      * @param in ByteArrayInputStream the stream to parse
      * @return Document the result document
      * @throws SAXException exception
      * @throws IOException exception
      */
-    protected synchronized Document parse(ByteArrayInputStream in)
+    protected Document parse(ByteArrayInputStream in)
         throws SAXException, IOException
     {
-        return builder.parse(in);
+        return getDocumentBuilder().parse(in);
     }
 
     private void findDatFiles(List<File> vect, File directory)
@@ -318,6 +481,139 @@ protected boolean isCacheEnabled()
         return cacheEnabled;
     }
 
+    /**
+     * Returns the cache of the parsed files of all histories.
+     * @return the cache of the parsed history files
+     */
+    HistoryDocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+
+    /**
+     * Returns the number of times a parsed history file was found in the
+     * cache since the service was started.
+     * @return the number of cache hits
+     */
+    public long getCacheHitCount()
+    {
+        return documentCache.getHitCount();
+    }
+
+    /**
+     * Returns the number of times a history file had to be read because it
+     * was not found in the cache since the service was started.
+     * @return the number of cache misses
+     */
+    public long getCacheMissCount()
+    {
+        return documentCache.getMissCount();
+    }
+
+    /**
+     * Returns the time records added to a history can wait before they are
+     * written.
+     * @return the write delay in milliseconds, records are written as soon
+     * as they are added if it is not positive
+     */
+    long getWriteDelay()
+    {
+        return writeDelay;
+    }
+
+    /**
+     * Returns the number of records added to a history which are written
+     * right away, without waiting for the write delay.
+     * @return the number of records written together
+     */
+    int getWriteBatchSize()
+    {
+        return writeBatchSize;
+    }
+
+    /**
+     * Accounts records added to or written by a history.
+     * @param delta the number of records added to the pending ones, negative
+     * for the written ones
+     * @return <tt>true</tt> if the records of all histories waiting to be
+     * written reached their maximum number
+     */
+    boolean addPendingRecords(int delta)
+    {
+        return pendingRecordCount.addAndGet(delta) >= maxPendingRecords;
+    }
+
+    /**
+     * Schedules the write of the pending records of a history after the
+     * write delay.
+     * @param task the task writing the records
+     * @return <tt>false</tt> if this service is stopped and the records have
+     * to be written right away
+     */
+    boolean scheduleWrite(TimerTask task)
+    {
+        return scheduleWrite(task, writeDelay);
+    }
+
+    /**
+     * Schedules another write of the pending records of a history which
+     * could not be written, after the write retry delay.
+     * @param task the task writing the records
+     * @return <tt>false</tt> if this service is stopped and the records have
+     * to be written right away
+     */
+    boolean scheduleWriteRetry(TimerTask task)
+    {
+        return scheduleWrite(task, writeRetryDelay);
+    }
+
+    /**
+     * Schedules the write of the pending records of a history.
+     * @param task the task writing the records
+     * @param delay the delay before the write in milliseconds
+     * @return <tt>false</tt> if this service is stopped and the records have
+     * to be written right away
+     */
+    private synchronized boolean scheduleWrite(TimerTask task, long delay)
+    {
+        if (stopped)
+            return false;
+
+        if (writeTimer == null)
+            writeTimer = new Timer("HistoryWriter", true);
+        writeTimer.schedule(task, delay);
+        return true;
+    }
+
+    /**
+     * Writes the pending records of all loaded histories.
+     */
+    private void flushHistories()
+    {
+        List<History> loaded;
+
+        synchronized (histories)
+        {
+            loaded = new ArrayList<History>(histories.values());
+        }
+
+        for (History history : loaded)
+        {
+            if (history instanceof HistoryImpl)
+                ((HistoryImpl) history).flushWriter();
+        }
+    }
+
+    /**
+     * Returns whether new histories are created with the binary storage
+     * engine instead of XML files.
+     * @return <tt>true</tt> if the binary storage engine is enabled
+     */
+    protected boolean isBinaryStorageEnabled()
+    {
+        return binaryStorageEnabled;
+    }
+
     /**
      * Permamently removes local stored History
      *
@@ -329,11 +625,26 @@ public void purgeLocallyStoredHistory(HistoryID id)
     {
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
+
+        // records waiting to be written would recreate the deleted files
+        synchronized (histories)
+        {
+            for (Map.Entry<HistoryID, History> entry : histories.entrySet())
+            {
+                if (isSubHistory(id.getID(), entry.getKey())
+                        && entry.getValue() instanceof HistoryImpl)
+                {
+                    ((HistoryImpl) entry.getValue()).discardPendingWrites();
+                }
+            }
+        }
+
         if (logger.isTraceEnabled())
             logger.trace("Removing history directory " + dir);
         deleteDirAndContent(dir);
 
         History history = histories.remove(id);
+        documentCache.removeHistory(id);
         if(history == null)
         {
             // well this can be global delete, so lets remove all matching
@@ -347,6 +658,7 @@ public void purgeLocallyStoredHistory(HistoryID id)
                 Map.Entry<HistoryID, History> entry = iter.next();
                 if(isSubHistory(ids, entry.getKey()))
                 {
+                    documentCache.removeHistory(entry.getKey());
                     iter.remove();
                 }
             }
@@ -358,7 +670,9 @@ public void purgeLocallyStoredHistory(HistoryID id)
      */
     public void purgeLocallyCachedHistories()
     {
+        flushHistories();
         histories.clear();
+        documentCache.clear();
     }
 
     /**
@@ -463,6 +777,10 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
         if(!isHistoryCreated(oldId))// || !isHistoryExisting(newId))
             return;
 
+        History history = histories.get(oldId);
+        if (history instanceof HistoryImpl)
+            ((HistoryImpl) history).flushWriter();
+
         File oldDir = this.createHistoryDirectories(oldId);
         File newDir = getDirForHistory(newId);
 
@@ -477,6 +795,7 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
         }
 
         histories.remove(oldId);
+        documentCache.removeHistory(oldId);
     }
 
     /**
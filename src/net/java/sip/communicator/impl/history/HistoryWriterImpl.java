@@ -27,6 +27,7 @@
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
 
 import org.jitsi.util.xml.XMLUtils;
 import org.w3c.dom.*;
@@ -34,11 +35,23 @@
 import com.google.common.xml.*;
 
 /**
+ * Records are added to the current document of the history right away but
+ * written to its file after the write delay of the history service, together
+ * with the records added meanwhile, unless enough of them are waiting to fill
+ * a batch. When the records of all histories waiting to be written reach
+ * their maximum number, the thread adding a record writes its history itself.
+ *
  * @author Alexander Pelov
  */
 public class HistoryWriterImpl
     implements HistoryWriter
 {
+    /**
+     * The <tt>Logger</tt> used by this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HistoryWriterImpl.class);
+
     /**
      * Maximum records per file.
      */
@@ -60,6 +73,25 @@
 
     private int currentDocElements = -1;
 
+    /**
+     * The records added to the current document which are not written to
+     * its file yet. Guarded by <tt>docWriteLock</tt>.
+     */
+    private final List<PendingRecord> pendingRecords
+        = new ArrayList<PendingRecord>();
+
+    /**
+     * Whether a record was removed from the current document since it was
+     * last written. Guarded by <tt>docWriteLock</tt>.
+     */
+    private boolean pendingRemoval = false;
+
+    /**
+     * The scheduled write of the pending records or <tt>null</tt>. Guarded by
+     * <tt>docWriteLock</tt>.
+     */
+    private TimerTask writeTask = null;
+
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -138,38 +170,208 @@ private void addRecord(String[] propertyNames,
             if (this.currentDoc == null
                     || this.currentDocElements > MAX_RECORDS_PER_FILE)
             {
+                // the pending records belong to the current file
+                if (this.currentDoc != null)
+                    flush();
+
                 this.createNewDoc(date, this.currentDoc == null);
             }
         }
 
-        synchronized (this.currentDoc)
+        HistoryServiceImpl historyService
+            = this.historyImpl.getHistoryServiceImpl();
+        boolean writeNow;
+
+        // the document is not changed while it is written
+        synchronized (this.docWriteLock)
         {
-            Node root = this.currentDoc.getFirstChild();
-            synchronized (root)
+            boolean recordRemoved = false;
+
+            synchronized (this.currentDoc)
             {
-                // if we have setting for max number of records,
-                // check the number and when exceed them, remove the first one
-                if( maxNumberOfRecords > -1
-                    && this.currentDocElements >= maxNumberOfRecords)
+                Node root = this.currentDoc.getFirstChild();
+                synchronized (root)
                 {
-                    // lets remove the first one
-                    removeFirstRecord(root);
-                }
+                    // if we have setting for max number of records,
+                    // check the number and when exceed them, remove the
+                    // first one
+                    if( maxNumberOfRecords > -1
+                        && this.currentDocElements >= maxNumberOfRecords)
+                    {
+                        // lets remove the first one
+                        removeFirstRecord(root);
+                        recordRemoved = true;
+                    }
 
-                Element elem = createRecord(
-                    this.currentDoc, propertyNames, propertyValues, date);
-                root.appendChild(elem);
-                this.currentDocElements++;
+                    Element elem = createRecord(
+                        this.currentDoc, propertyNames, propertyValues, date);
+                    root.appendChild(elem);
+                    this.currentDocElements++;
+                }
             }
+
+            this.pendingRecords.add(new PendingRecord(
+                date.getTime(), propertyNames, propertyValues));
+            this.pendingRemoval |= recordRemoved;
+
+            writeNow = historyService.addPendingRecords(1)
+                || historyService.getWriteDelay() <= 0
+                || this.pendingRecords.size()
+                    >= historyService.getWriteBatchSize();
+
+            if (!writeNow)
+                writeNow = !scheduleWriteTask(false);
         }
 
-        // write changes
+        if (writeNow)
+            flush();
+    }
+
+    /**
+     * Schedules the write of the pending records unless it is scheduled
+     * already. (It is assumed that <tt>docWriteLock</tt> is locked.)
+     *
+     * @param retry whether the records could not be written, in which case
+     * they are written after the write retry delay of the history service
+     * instead of its write delay
+     * @return <tt>false</tt> if the history service is stopped and the
+     * records have to be written right away
+     */
+    private boolean scheduleWriteTask(boolean retry)
+    {
+        if (this.writeTask != null)
+            return true;
+
+        HistoryServiceImpl historyService
+            = this.historyImpl.getHistoryServiceImpl();
+        TimerTask task = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    flush();
+                }
+                catch (IOException e)
+                {
+                    logger.error("Could not write history records", e);
+                }
+            }
+        };
+
+        if (retry
+                ? !historyService.scheduleWriteRetry(task)
+                : !historyService.scheduleWrite(task))
+            return false;
+
+        this.writeTask = task;
+        return true;
+    }
+
+    /**
+     * Writes the records added to the current document which are not
+     * written to its file yet, and updates the indexes of the history with
+     * them.
+     *
+     * @throws IOException if writing the file fails, the records are then
+     * written again after the write retry delay or with the next ones
+     */
+    public void flush()
+        throws IOException
+    {
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
+            if (this.writeTask != null)
+            {
+                this.writeTask.cancel();
+                this.writeTask = null;
+            }
+
+            if (this.pendingRecords.isEmpty() && !this.pendingRemoval)
+                return;
+
+            // the cached document may have been evicted, the current one is
+            // always the one to write
+            try
+            {
                 this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            }
+            catch (IOException e)
+            {
+                // try again later rather than waiting for the next record
+                scheduleWriteTask(true);
+                throw e;
+            }
+
+            // keep the timestamp range index up to date, removing a record
+            // may have changed the bounds so recompute them then
+            if(this.pendingRemoval)
+            {
+                this.historyImpl.updateFileIndex(
+                    this.currentFile, this.currentDoc);
+            }
+            else
+            {
+                long minTimestamp = Long.MAX_VALUE;
+                long maxTimestamp = Long.MIN_VALUE;
+
+                for (PendingRecord record : this.pendingRecords)
+                {
+                    minTimestamp = Math.min(minTimestamp, record.timestamp);
+                    maxTimestamp = Math.max(maxTimestamp, record.timestamp);
+                }
+                this.historyImpl.getFileIndex().recordsAdded(
+                    this.currentFile, minTimestamp, maxTimestamp,
+                    this.pendingRecords.size());
+            }
+
+            // files changed in any other way than appending records get
+            // indexed again by the keyword indexes when they are used next
+            if(!this.pendingRemoval && this.historyImpl.hasKeywordIndexes())
+            {
+                List<String[]> names = new ArrayList<String[]>();
+                List<String[]> values = new ArrayList<String[]>();
+
+                for (PendingRecord record : this.pendingRecords)
+                {
+                    names.add(record.propertyNames);
+                    values.add(record.propertyValues);
+                }
+
+                int firstOrdinal = this.currentDoc
+                    .getElementsByTagName("record").getLength()
+                        - this.pendingRecords.size();
+
+                this.historyImpl.keywordIndexRecordsAdded(
+                    this.currentFile, firstOrdinal, names, values);
+            }
+
+            this.historyImpl.getHistoryServiceImpl()
+                .addPendingRecords(-this.pendingRecords.size());
+            this.pendingRecords.clear();
+            this.pendingRemoval = false;
+        }
+    }
+
+    /**
+     * Drops the records which are not written yet, used when the files of
+     * the history are deleted.
+     */
+    void discardPendingRecords()
+    {
+        synchronized (this.docWriteLock)
+        {
+            if (this.writeTask != null)
+            {
+                this.writeTask.cancel();
+                this.writeTask = null;
+            }
+
+            this.historyImpl.getHistoryServiceImpl()
+                .addPendingRecords(-this.pendingRecords.size());
+            this.pendingRecords.clear();
+            this.pendingRemoval = false;
         }
     }
 
@@ -299,6 +501,9 @@ public void insertRecord(
             String[] propertyValues, Date timestamp, String timestampProperty)
         throws IOException
     {
+        // the document may be the current one, write it as it is first
+        flush();
+
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         Iterator<String> fileIterator
             = HistoryReaderImpl.filterFilesByDate(
@@ -363,6 +568,8 @@ public void insertRecord(
                 synchronized (this.docWriteLock)
                 {
                     this.historyImpl.writeFile(filename, doc);
+                    this.historyImpl.updateFileIndex(filename, doc);
+                    this.historyImpl.getFileIndex().store();
                 }
 
                 // this prevents that the current writer, which holds
@@ -425,8 +632,18 @@ private void createNewDoc(Date date, boolean loadLastFile)
         // TODO: Assert: Assert.assertNonNull(this.currentDoc,
         // "There should be a current document created.");
 
+        this.historyImpl.setTailFile(this.currentFile);
+
         this.currentDocElements = this.currentDoc.getFirstChild()
                 .getChildNodes().getLength();
+
+        // make sure the index knows the current file so that new records
+        // can be accounted incrementally, and persist what was collected
+        // for the previous files
+        HistoryFileIndex fileIndex = this.historyImpl.getFileIndex();
+        if (fileIndex.get(this.currentFile) == null)
+            this.historyImpl.updateFileIndex(this.currentFile, this.currentDoc);
+        fileIndex.store();
     }
 
     /**
@@ -442,6 +659,9 @@ public void updateRecord(String idProperty, String idValue,
             String property, String newValue)
         throws IOException
     {
+        // the document may be the current one, write it as it is first
+        flush();
+
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
         while (fileIterator.hasNext())
@@ -513,6 +733,8 @@ public void updateRecord(String idProperty, String idValue,
                 synchronized (this.docWriteLock)
                 {
                     this.historyImpl.writeFile(filename, doc);
+                    this.historyImpl.updateFileIndex(filename, doc);
+                    this.historyImpl.getFileIndex().store();
                 }
 
                 // this prevents that the current writer, which holds
@@ -536,6 +758,9 @@ public void updateRecord(String idProperty, String idValue,
      */
     public void updateRecord(HistoryRecordUpdater updater) throws IOException
     {
+        // the document may be the current one, write it as it is first
+        flush();
+
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
         while (fileIterator.hasNext())
@@ -587,6 +812,8 @@ public void updateRecord(HistoryRecordUpdater updater) throws IOException
                 synchronized (this.docWriteLock)
                 {
                     this.historyImpl.writeFile(filename, doc);
+                    this.historyImpl.updateFileIndex(filename, doc);
+                    this.historyImpl.getFileIndex().store();
                 }
 
                 // this prevents that the current writer, which holds
@@ -629,4 +856,42 @@ private HistoryRecord createHistoryRecordFromNode(Node node)
 
         return new HistoryRecord(structure, propertyValues);
     }
+
+    /**
+     * A record added to the current document which is not written to its
+     * file yet.
+     */
+    private static class PendingRecord
+    {
+        /**
+         * The timestamp of the record.
+         */
+        final long timestamp;
+
+        /**
+         * The property names of the record.
+         */
+        final String[] propertyNames;
+
+        /**
+         * The property values of the record.
+         */
+        final String[] propertyValues;
+
+        /**
+         * Creates a pending record.
+         *
+         * @param timestamp the timestamp of the record
+         * @param propertyNames the property names of the record
+         * @param propertyValues the property values of the record
+         */
+        PendingRecord(long timestamp,
+                      String[] propertyNames,
+                      String[] propertyValues)
+        {
+            this.timestamp = timestamp;
+            this.propertyNames = propertyNames;
+            this.propertyValues = propertyValues;
+        }
+    }
 }
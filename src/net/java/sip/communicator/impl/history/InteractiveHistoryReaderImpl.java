@@ -17,17 +17,13 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
+import java.io.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
-
-import org.w3c.dom.*;
+import net.java.sip.communicator.util.*;
 
 /**
  * The <tt>InteractiveHistoryReaderImpl</tt> is an implementation of the
@@ -40,6 +36,12 @@
 public class InteractiveHistoryReaderImpl
     implements InteractiveHistoryReader
 {
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(InteractiveHistoryReaderImpl.class);
+
     /**
      * The <tt>HistoryImpl</tt> where this reader is registered.
      */
@@ -150,47 +152,37 @@ private void find(  Date startDate,
                         int resultCount,
                         HistoryQueryImpl query)
     {
-        Vector<String> filelist
-            = HistoryReaderImpl.filterFilesByDate(  history.getFileList(),
-                                                    startDate, endDate, true);
+        if (history.getSegmentStore() != null)
+        {
+            findInSegments(startDate, endDate, keywords, field, caseSensitive,
+                resultCount, query);
+            return;
+        }
+
+        // records waiting to be written are not in the files yet
+        history.flushWriter();
+
+        Vector<String> filelist = history.getFileList(startDate, endDate);
+        Collections.reverse(filelist);
         Iterator<String> fileIterator = filelist.iterator();
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
-            Document doc = history.getDocumentForFile(filename);
+            HistoryFileSnapshot snapshot = history.getSnapshot(filename);
 
-            if(doc == null)
+            if(snapshot == null)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            for ( int i = nodes.getLength() - 1;
+            for ( int i = snapshot.getRecordCount() - 1;
                   i >= 0 && !query.isCanceled();
                   i--)
             {
-                Node node = nodes.item(i);
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
+                if(HistoryReaderImpl.isInPeriod(
+                        snapshot.getTimestamp(i), startDate, endDate))
                 {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
-
-                    HistoryRecord record =
-                        HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                    HistoryRecord record = snapshot.filterByKeyword(
+                        i, keywords, field, caseSensitive);
 
                     if(record != null)
                     {
@@ -206,4 +198,63 @@ private void find(  Date startDate,
         else
             query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
     }
+
+    /**
+     * Finds the history results corresponding to the given criteria in a
+     * history kept by the binary storage engine, newest records first.
+     * @param startDate the start date
+     * @param endDate the end date
+     * @param keywords an array of keywords to search for
+     * @param field the field, where to search the keywords
+     * @param caseSensitive indicates if the search should be case sensitive
+     * @param resultCount the desired number of results
+     * @param query the query tracking the results
+     */
+    private void findInSegments(Date startDate,
+                                Date endDate,
+                                String[] keywords,
+                                String field,
+                                boolean caseSensitive,
+                                int resultCount,
+                                HistoryQueryImpl query)
+    {
+        List<HistorySegment> segments
+            = history.getSegmentStore().getSegments(startDate, endDate);
+
+        for (int s = segments.size() - 1;
+                s >= 0 && resultCount > 0 && !query.isCanceled();
+                s--)
+        {
+            List<HistoryRecord> records;
+            try
+            {
+                records = segments.get(s).read(startDate, endDate);
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to read history segment "
+                    + segments.get(s).getName(), e);
+                continue;
+            }
+
+            for (int i = records.size() - 1;
+                    i >= 0 && resultCount > 0 && !query.isCanceled();
+                    i--)
+            {
+                HistoryRecord record = records.get(i);
+
+                if (SegmentHistoryReaderImpl.matches(
+                        record, keywords, field, caseSensitive))
+                {
+                    query.addHistoryRecord(record);
+                    resultCount--;
+                }
+            }
+        }
+
+        if (query.isCanceled())
+            query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
+        else
+            query.setStatus(HistoryQueryStatusEvent.QUERY_COMPLETED);
+    }
 }
@@ -0,0 +1,531 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+/**
+ * The <tt>HistoryReader</tt> of the binary storage engine. Segments are
+ * selected by their timestamp bounds and only the part of a segment following
+ * the matching sparse index entry is read.
+ */
+public class SegmentHistoryReaderImpl
+    implements HistoryReader
+{
+    /**
+     * The logger for this class.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SegmentHistoryReaderImpl.class);
+
+    /**
+     * The history we read from.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The store of the history we read from.
+     */
+    private final SegmentHistoryStore store;
+
+    /**
+     * The registered search progress listeners.
+     */
+    private final Vector<HistorySearchProgressListener> progressListeners
+        = new Vector<HistorySearchProgressListener>();
+
+    /**
+     * Creates a reader for the given history.
+     *
+     * @param historyImpl the history to read from
+     */
+    protected SegmentHistoryReaderImpl(HistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+        this.store = historyImpl.getSegmentStore();
+    }
+
+    /**
+     * Searches the history for all records with timestamp after
+     * <tt>startDate</tt>.
+     *
+     * @param startDate the date after all records will be returned
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findByStartDate(Date startDate)
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    /**
+     * Searches the history for all records with timestamp before
+     * <tt>endDate</tt>.
+     *
+     * @param endDate the date before which all records will be returned
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    /**
+     * Searches the history for all records with timestamp between
+     * <tt>startDate</tt> and <tt>endDate</tt>.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate)
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    /**
+     * Searches the history for all records containing the <tt>keyword</tt>.
+     *
+     * @param keyword the keyword to search for
+     * @param field the field where to look for the keyword
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field)
+    {
+        return findByKeyword(keyword, field, false);
+    }
+
+    /**
+     * Searches the history for all records containing the <tt>keyword</tt>.
+     *
+     * @param keyword the keyword to search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field,
+                                                       boolean caseSensitive)
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    /**
+     * Searches the history for all records containing all <tt>keywords</tt>.
+     *
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field)
+    {
+        return findByKeywords(keywords, field, false);
+    }
+
+    /**
+     * Searches the history for all records containing all <tt>keywords</tt>.
+     *
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    /**
+     * Searches for all history records containing all <tt>keywords</tt>,
+     * with timestamp between <tt>startDate</tt> and <tt>endDate</tt>.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field)
+    {
+        return findByPeriod(startDate, endDate, keywords, field, false);
+    }
+
+    /**
+     * Searches for all history records containing all <tt>keywords</tt>,
+     * with timestamp between <tt>startDate</tt> and <tt>endDate</tt>.
+     *
+     * @param startDate start of the interval in which we search
+     * @param endDate end of the interval in which we search
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field,
+                                                      boolean caseSensitive)
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    /**
+     * Returns the supplied number of recent records.
+     *
+     * @param count the number of records
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findLast(int count)
+    {
+        return findLast(count, null, null, false);
+    }
+
+    /**
+     * Returns the supplied number of recent records containing all
+     * <tt>keywords</tt>.
+     *
+     * @param count the number of records
+     * @param keywords array of keywords we search for
+     * @param field the field where to look for the keyword
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findLast(int count,
+                                                  String[] keywords,
+                                                  String field,
+                                                  boolean caseSensitive)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+        List<HistorySegment> segments = store.getSegments();
+        boolean filter = (keywords != null && keywords.length > 0);
+
+        for (int s = segments.size() - 1; s >= 0 && result.size() < count; s--)
+        {
+            HistorySegment segment = segments.get(s);
+            List<HistoryRecord> records;
+
+            try
+            {
+                records = filter
+                    ? segment.readAll()
+                    : segment.readTail(count - result.size());
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to read history segment "
+                    + segment.getName(), e);
+                continue;
+            }
+
+            for (int i = records.size() - 1;
+                    i >= 0 && result.size() < count;
+                    i--)
+            {
+                HistoryRecord record = records.get(i);
+
+                if (matches(record, keywords, field, caseSensitive))
+                    result.add(record);
+            }
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Returns the supplied number of records after the given date.
+     *
+     * @param date records after date
+     * @param count records count
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findFirstRecordsAfter(Date date,
+                                                               int count)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+
+        for (HistorySegment segment : store.getSegments(date, null))
+        {
+            if (result.size() >= count)
+                break;
+
+            try
+            {
+                for (HistoryRecord record : segment.read(date, null))
+                {
+                    if (result.size() >= count)
+                        break;
+                    result.add(record);
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to read history segment "
+                    + segment.getName(), e);
+            }
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Returns the supplied number of records before the given date.
+     *
+     * @param date records before date
+     * @param count records count
+     * @return the found records
+     */
+    public QueryResultSet<HistoryRecord> findLastRecordsBefore(Date date,
+                                                               int count)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+        List<HistorySegment> segments = store.getSegments(null, date);
+
+        for (int s = segments.size() - 1; s >= 0 && result.size() < count; s--)
+        {
+            HistorySegment segment = segments.get(s);
+
+            try
+            {
+                List<HistoryRecord> records = segment.read(null, date);
+
+                for (int i = records.size() - 1;
+                        i >= 0 && result.size() < count;
+                        i--)
+                    result.add(records.get(i));
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to read history segment "
+                    + segment.getName(), e);
+            }
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Adds progress listener for monitoring progress of search process.
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void addSearchProgressListener(
+            HistorySearchProgressListener listener)
+    {
+        synchronized (progressListeners)
+        {
+            progressListeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes progress listener.
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void removeSearchProgressListener(
+            HistorySearchProgressListener listener)
+    {
+        synchronized (progressListeners)
+        {
+            progressListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Returns the exact number of records in the history, which the segments
+     * keep track of without reading their records.
+     *
+     * @return the number of records in the history
+     */
+    public int countRecords()
+    {
+        return store.getRecordCount();
+    }
+
+    /**
+     * Finds the records in the given period matching the given keywords.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> find(
+            Date startDate, Date endDate,
+            String[] keywords, String field, boolean caseSensitive)
+    {
+        TreeSet<HistoryRecord> result
+            = new TreeSet<HistoryRecord>(
+                    new HistoryReaderImpl.HistoryRecordComparator());
+        List<HistorySegment> segments = store.getSegments(startDate, endDate);
+
+        // when searching for keywords, only the records the keyword index
+        // points to need to be checked
+        Map<String, BitSet> candidates = null;
+        if (keywords != null && keywords.length > 0 && field != null)
+        {
+            candidates = historyImpl.findKeywordCandidates(field, keywords);
+            if (candidates != null)
+            {
+                Iterator<HistorySegment> iter = segments.iterator();
+                while (iter.hasNext())
+                {
+                    if (!candidates.containsKey(iter.next().getName()))
+                        iter.remove();
+                }
+            }
+        }
+
+        double currentProgress
+            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+        double segmentProgressStep
+            = HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
+
+        if (segments.size() != 0)
+            segmentProgressStep /= segments.size();
+
+        fireProgressStateChanged(startDate, endDate, keywords,
+            HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        for (HistorySegment segment : segments)
+        {
+            try
+            {
+                if (candidates == null)
+                {
+                    for (HistoryRecord record
+                            : segment.read(startDate, endDate))
+                    {
+                        if (matches(record, keywords, field, caseSensitive))
+                            result.add(record);
+                    }
+                }
+                else
+                {
+                    List<HistoryRecord> records = segment.readAll();
+                    BitSet ordinals = candidates.get(segment.getName());
+
+                    for (int i = ordinals.nextSetBit(0);
+                            i >= 0 && i < records.size();
+                            i = ordinals.nextSetBit(i + 1))
+                    {
+                        HistoryRecord record = records.get(i);
+
+                        if (HistoryReaderImpl.isInPeriod(
+                                    record.getTimestamp(), startDate, endDate)
+                                && matches(
+                                    record, keywords, field, caseSensitive))
+                            result.add(record);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Failed to read history segment "
+                    + segment.getName(), e);
+            }
+
+            currentProgress += segmentProgressStep;
+            fireProgressStateChanged(
+                startDate, endDate, keywords, (int) currentProgress);
+        }
+
+        if ((int) currentProgress
+                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Checks whether the given record matches the keyword restriction. As
+     * with the XML engine, when keywords are given the record must contain
+     * the field and its value must contain all keywords.
+     *
+     * @param record the record to check
+     * @param keywords the keywords or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return <tt>true</tt> if the record matches
+     */
+    static boolean matches(HistoryRecord record,
+                           String[] keywords,
+                           String field,
+                           boolean caseSensitive)
+    {
+        if (keywords == null || keywords.length == 0)
+            return true;
+
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(field))
+            {
+                return HistoryReaderImpl.matchKeyword(
+                    record.getPropertyValues()[i], keywords, caseSensitive);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notifies the progress listeners of a search progress change.
+     *
+     * @param startDate the start date of the search
+     * @param endDate the end date of the search
+     * @param keywords the keywords of the search
+     * @param progress the current progress
+     */
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                                          String[] keywords, int progress)
+    {
+        ProgressEvent event =
+            new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized (progressListeners)
+        {
+            for (HistorySearchProgressListener listener : progressListeners)
+                listener.progressChanged(event);
+        }
+    }
+}
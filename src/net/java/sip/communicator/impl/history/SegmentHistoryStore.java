@@ -0,0 +1,250 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The binary storage engine of a single history. The records of the history
+ * are kept in a list of append-only {@link HistorySegment}s named after the
+ * timestamp of their first record. New records always go to the last segment,
+ * and a new segment is started once the last one grows over
+ * {@link #MAX_SEGMENT_SIZE} bytes.
+ */
+class SegmentHistoryStore
+{
+    /**
+     * The size in bytes after which a new segment is started.
+     */
+    static final long MAX_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * The directory of the history.
+     */
+    private final File directory;
+
+    /**
+     * The segments of the history sorted from oldest to newest.
+     */
+    private final List<HistorySegment> segments
+        = new ArrayList<HistorySegment>();
+
+    /**
+     * Creates the store of the history kept in the given directory and loads
+     * the list of its segments.
+     *
+     * @param directory the directory of the history
+     */
+    SegmentHistoryStore(File directory)
+    {
+        this.directory = directory;
+
+        reloadSegmentList();
+    }
+
+    /**
+     * Checks whether the given history directory contains segments of the
+     * binary storage engine.
+     *
+     * @param directory the history directory
+     * @return <tt>true</tt> if the directory holds history segments
+     */
+    static boolean containsSegments(File directory)
+    {
+        String[] names = directory.list();
+
+        if (names != null)
+        {
+            for (String name : names)
+            {
+                if (name.endsWith(HistorySegment.DATA_FILE_EXTENSION))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reloads the list of segments from the history directory.
+     */
+    synchronized void reloadSegmentList()
+    {
+        for (HistorySegment segment : segments)
+            segment.close();
+        segments.clear();
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        List<File> dataFiles = new ArrayList<File>();
+        for (File file : files)
+        {
+            if (file.isFile()
+                && file.getName().endsWith(HistorySegment.DATA_FILE_EXTENSION))
+            {
+                dataFiles.add(file);
+            }
+        }
+
+        Collections.sort(dataFiles, new Comparator<File>()
+        {
+            public int compare(File f1, File f2)
+            {
+                long t1 = getSegmentTimestamp(f1.getName());
+                long t2 = getSegmentTimestamp(f2.getName());
+
+                return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+            }
+        });
+
+        for (File file : dataFiles)
+            segments.add(new HistorySegment(file));
+    }
+
+    /**
+     * Returns a copy of the list of segments sorted from oldest to newest.
+     *
+     * @return the segments of the history
+     */
+    synchronized List<HistorySegment> getSegments()
+    {
+        return new ArrayList<HistorySegment>(segments);
+    }
+
+    /**
+     * Returns the segments which may hold records with timestamp in the given
+     * period, sorted from oldest to newest.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @return the segments overlapping the period
+     */
+    List<HistorySegment> getSegments(Date startDate, Date endDate)
+    {
+        List<HistorySegment> result = new ArrayList<HistorySegment>();
+
+        for (HistorySegment segment : getSegments())
+        {
+            if (segment.overlaps(startDate, endDate))
+                result.add(segment);
+        }
+        return result;
+    }
+
+    /**
+     * Appends a record to the history, starting a new segment when the last
+     * one is full.
+     *
+     * @param record the record to append
+     * @return the segment the record was appended to
+     * @throws IOException if writing fails
+     */
+    synchronized HistorySegment append(HistoryRecord record)
+        throws IOException
+    {
+        HistorySegment tail = getTailSegment(record.getTimestamp());
+
+        tail.append(record);
+        return tail;
+    }
+
+    /**
+     * Returns the last segment of the history creating a new one if there is
+     * none yet or if the last one is full.
+     *
+     * @param date the timestamp of the record about to be written used to name
+     * a new segment
+     * @return the segment new records go to
+     */
+    synchronized HistorySegment getTailSegment(Date date)
+    {
+        HistorySegment tail
+            = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+        if (tail == null || tail.getSize() >= MAX_SEGMENT_SIZE)
+        {
+            if (tail != null)
+                tail.close();
+
+            long timestamp = date.getTime();
+            File file;
+            do
+            {
+                file = new File(
+                    directory,
+                    Long.toString(timestamp++)
+                        + HistorySegment.DATA_FILE_EXTENSION);
+            }
+            while (file.exists());
+
+            tail = new HistorySegment(file);
+            segments.add(tail);
+        }
+        return tail;
+    }
+
+    /**
+     * Returns the total number of records in the history.
+     *
+     * @return the number of records in the history
+     */
+    int getRecordCount()
+    {
+        int count = 0;
+
+        for (HistorySegment segment : getSegments())
+            count += segment.getRecordCount();
+        return count;
+    }
+
+    /**
+     * Closes the open segment streams.
+     */
+    synchronized void close()
+    {
+        for (HistorySegment segment : segments)
+            segment.close();
+    }
+
+    /**
+     * Parses the timestamp a segment is named after.
+     *
+     * @param name the name of the segment data file
+     * @return the timestamp of the segment or <tt>Long.MAX_VALUE</tt> if
+     * the name could not be parsed
+     */
+    static long getSegmentTimestamp(String name)
+    {
+        try
+        {
+            return Long.parseLong(
+                name.substring(
+                    0,
+                    name.length()
+                        - HistorySegment.DATA_FILE_EXTENSION.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryWriter</tt> of the binary storage engine. Adding a record
+ * only appends it to the last segment of the history, while inserting and
+ * updating records rewrite the single segment they affect.
+ */
+public class SegmentHistoryWriterImpl
+    implements HistoryWriter
+{
+    /**
+     * The suffix used by the record structure to mark properties stored as
+     * CDATA by the XML storage engine.
+     */
+    private static final String CDATA_SUFFIX = "_CDATA";
+
+    /**
+     * The history we write to.
+     */
+    private final HistoryImpl historyImpl;
+
+    /**
+     * The store of the history.
+     */
+    private final SegmentHistoryStore store;
+
+    /**
+     * Creates a writer for the given history.
+     *
+     * @param historyImpl the history to write to
+     */
+    protected SegmentHistoryWriterImpl(HistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+        this.store = historyImpl.getSegmentStore();
+    }
+
+    /**
+     * Stores the passed record.
+     *
+     * @param record the record to store
+     * @throws IOException if writing fails
+     */
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        addRecord(
+            record.getPropertyNames(),
+            record.getPropertyValues(),
+            record.getTimestamp(),
+            -1);
+    }
+
+    /**
+     * Stores the passed property values complying with the record structure
+     * of the history.
+     *
+     * @param propertyValues the values of the record
+     * @throws IOException if writing fails
+     */
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        addRecord(getStructPropertyNames(), propertyValues, new Date(), -1);
+    }
+
+    /**
+     * Stores the passed property values complying with the record structure
+     * of the history.
+     *
+     * @param propertyValues the values of the record
+     * @param timestamp the timestamp of the record
+     * @throws IOException if writing fails
+     */
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        addRecord(getStructPropertyNames(), propertyValues, timestamp, -1);
+    }
+
+    /**
+     * Stores the passed property values complying with the record structure
+     * of the history.
+     *
+     * @param propertyValues the values of the record
+     * @param maxNumberOfRecords the maximum number of records to keep or
+     * value of -1 to ignore this param.
+     * @throws IOException if writing fails
+     */
+    public void addRecord(String[] propertyValues, int maxNumberOfRecords)
+        throws IOException
+    {
+        addRecord(
+            getStructPropertyNames(),
+            propertyValues,
+            new Date(),
+            maxNumberOfRecords);
+    }
+
+    /**
+     * Appends a new record to the history. When a maximum number of records
+     * is given and the last segment already holds that many, its oldest
+     * record is dropped, the same way the XML engine does with its current
+     * document.
+     *
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @param date the timestamp of the record
+     * @param maxNumberOfRecords the maximum number of records to keep or
+     * value of -1 to ignore this param.
+     * @throws IOException if writing fails
+     */
+    private void addRecord(String[] propertyNames,
+                           String[] propertyValues,
+                           Date date,
+                           int maxNumberOfRecords)
+        throws IOException
+    {
+        HistoryRecord record
+            = createRecord(propertyNames, propertyValues, date);
+
+        synchronized (store)
+        {
+            if (maxNumberOfRecords > -1)
+            {
+                HistorySegment tail = store.getTailSegment(date);
+
+                if (tail.getRecordCount() >= maxNumberOfRecords)
+                {
+                    List<HistoryRecord> records = tail.readAll();
+
+                    removeOldestRecord(records);
+                    records.add(record);
+                    tail.rewrite(records);
+                    return;
+                }
+            }
+
+            HistorySegment segment = store.append(record);
+
+            if (historyImpl.hasKeywordIndexes())
+            {
+                historyImpl.keywordIndexRecordsAdded(
+                    segment.getName(),
+                    segment.getRecordCount() - 1,
+                    Collections.singletonList(record.getPropertyNames()),
+                    Collections.singletonList(record.getPropertyValues()));
+            }
+        }
+    }
+
+    /**
+     * Inserts a record at its chronological position, which is found by
+     * comparing the value of <tt>timestampProperty</tt> of the stored records.
+     *
+     * @param propertyValues the values of the record
+     * @param timestamp the timestamp of the record
+     * @param timestampProperty the property name for the timestamp of the
+     * record
+     * @throws IOException if writing fails
+     */
+    public void insertRecord(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+
+        synchronized (store)
+        {
+            for (HistorySegment segment : store.getSegments())
+            {
+                if (segment.getRecordCount() == 0
+                        || segment.getMaxTimestamp() < timestamp.getTime())
+                    continue;
+
+                List<HistoryRecord> records = segment.readAll();
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    String value
+                        = getValue(records.get(i), timestampProperty);
+                    if (value == null)
+                        continue;
+
+                    Date recordTimestamp;
+                    try
+                    {
+                        recordTimestamp = sdf.parse(value);
+                    }
+                    catch (ParseException e)
+                    {
+                        recordTimestamp = new Date(Long.parseLong(value));
+                    }
+
+                    if (recordTimestamp.before(timestamp))
+                        continue;
+
+                    records.add(
+                        i,
+                        createRecord(
+                            getStructPropertyNames(),
+                            propertyValues,
+                            timestamp));
+                    segment.rewrite(records);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the first record which has <tt>idProperty</tt> equal to
+     * <tt>idValue</tt> setting <tt>property</tt> to <tt>newValue</tt>.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property
+     * @throws IOException if writing fails
+     */
+    public void updateRecord(String idProperty, String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        synchronized (store)
+        {
+            for (HistorySegment segment : store.getSegments())
+            {
+                List<HistoryRecord> records = segment.readAll();
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    HistoryRecord record = records.get(i);
+
+                    if (!idValue.equals(getValue(record, idProperty)))
+                        continue;
+
+                    Map<String, String> changes
+                        = Collections.singletonMap(property, newValue);
+                    records.set(i, applyChanges(record, changes, true));
+                    segment.rewrite(records);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the records matched by the given <tt>HistoryRecordUpdater</tt>
+     * in the first segment holding such records.
+     *
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     * @throws IOException if writing fails
+     */
+    public void updateRecord(HistoryRecordUpdater updater)
+        throws IOException
+    {
+        synchronized (store)
+        {
+            for (HistorySegment segment : store.getSegments())
+            {
+                List<HistoryRecord> records = segment.readAll();
+                boolean changed = false;
+
+                for (int i = 0; i < records.size(); i++)
+                {
+                    HistoryRecord record = records.get(i);
+
+                    updater.setHistoryRecord(toStructRecord(record));
+                    if (!updater.isMatching())
+                        continue;
+
+                    records.set(
+                        i,
+                        applyChanges(
+                            record, updater.getUpdateChanges(), false));
+                    changed = true;
+                }
+
+                if (changed)
+                {
+                    segment.rewrite(records);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Does nothing, records are appended to their segment as soon as they
+     * are added.
+     */
+    public void flush()
+    {
+    }
+
+    /**
+     * Returns the property names of the record structure of the history.
+     *
+     * @return the property names of the record structure
+     */
+    private String[] getStructPropertyNames()
+    {
+        return historyImpl.getHistoryRecordsStructure().getPropertyNames();
+    }
+
+    /**
+     * Creates the record to be stored. The <tt>_CDATA</tt> suffix the XML
+     * engine uses is stripped from the property names, so records read back
+     * look the same with both engines.
+     *
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @param date the timestamp of the record
+     * @return the record to store
+     */
+    private static HistoryRecord createRecord(String[] propertyNames,
+                                              String[] propertyValues,
+                                              Date date)
+    {
+        String[] names = new String[propertyNames.length];
+
+        for (int i = 0; i < names.length; i++)
+        {
+            String name = propertyNames[i];
+
+            if (name.endsWith(CDATA_SUFFIX))
+            {
+                name = name.substring(
+                    0, name.length() - CDATA_SUFFIX.length());
+            }
+            names[i] = name;
+        }
+
+        return new HistoryRecord(names, propertyValues.clone(), date);
+    }
+
+    /**
+     * Removes the record with the oldest timestamp from the given list.
+     *
+     * @param records the list of records
+     */
+    private static void removeOldestRecord(List<HistoryRecord> records)
+    {
+        int oldest = -1;
+
+        for (int i = 0; i < records.size(); i++)
+        {
+            if (oldest == -1
+                || records.get(i).getTimestamp().before(
+                        records.get(oldest).getTimestamp()))
+                oldest = i;
+        }
+
+        if (oldest != -1)
+            records.remove(oldest);
+    }
+
+    /**
+     * Returns the value of a property of a record.
+     *
+     * @param record the record
+     * @param property the property name
+     * @return the value of the property or <tt>null</tt> if it is missing
+     */
+    private static String getValue(HistoryRecord record, String property)
+    {
+        String[] names = record.getPropertyNames();
+
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(property))
+                return record.getPropertyValues()[i];
+        }
+        return null;
+    }
+
+    /**
+     * Creates a copy of the record with the given property changes applied.
+     * The timestamp of the new record is set to now to reflect the change.
+     *
+     * @param record the record to change
+     * @param changes the new property values
+     * @param addMissing whether properties missing in the record are added
+     * @return the updated record
+     */
+    private static HistoryRecord applyChanges(HistoryRecord record,
+                                              Map<String, String> changes,
+                                              boolean addMissing)
+    {
+        List<String> names
+            = new ArrayList<String>(Arrays.asList(record.getPropertyNames()));
+        List<String> values
+            = new ArrayList<String>(Arrays.asList(record.getPropertyValues()));
+
+        for (Map.Entry<String, String> change : changes.entrySet())
+        {
+            int index = names.indexOf(change.getKey());
+
+            if (index != -1)
+            {
+                values.set(index, change.getValue());
+            }
+            else if (addMissing)
+            {
+                names.add(change.getKey());
+                values.add(change.getValue());
+            }
+        }
+
+        return new HistoryRecord(
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            new Date());
+    }
+
+    /**
+     * Converts a stored record to a record following the structure of the
+     * history, which is what <tt>HistoryRecordUpdater</tt>s expect.
+     *
+     * @param record the stored record
+     * @return the record following the history structure
+     */
+    private HistoryRecord toStructRecord(HistoryRecord record)
+    {
+        HistoryRecordStructure structure
+            = historyImpl.getHistoryRecordsStructure();
+        String[] structNames = structure.getPropertyNames();
+        String[] values = new String[structNames.length];
+
+        for (int i = 0; i < structNames.length; i++)
+        {
+            String name = structNames[i];
+
+            if (name.endsWith(CDATA_SUFFIX))
+            {
+                name = name.substring(
+                    0, name.length() - CDATA_SUFFIX.length());
+            }
+            values[i] = getValue(record, name);
+        }
+
+        return new HistoryRecord(structure, values);
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.configuration.*;
+
+/**
+ * Decides which packets of a protocol are captured and how much of them,
+ * before they are copied to the queue of packets to save.
+ * <p>
+ * A packet is captured if its source or destination address is one of the
+ * configured addresses and its source or destination port is in one of the
+ * configured port ranges. Of the matching packets only one in every
+ * <tt>sampling</tt> is captured, and no more than <tt>maxRate</tt> per
+ * second. At most <tt>snaplen</tt> bytes of the content of a captured packet
+ * are saved, e.g. 12 to only keep the fixed header of RTP packets.
+ * <p>
+ * The filter can be used concurrently by the threads logging packets
+ * without locking.
+ */
+final class PacketCaptureFilter
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>PacketCaptureFilter</tt> class
+     * and its instances.
+     */
+    private static final Logger logger
+        = Logger.getLogger(PacketCaptureFilter.class);
+
+    /**
+     * The name of the property, after the prefix of the protocol, listing
+     * the addresses of the captured packets separated by commas.
+     */
+    static final String ADDRESSES_PROPERTY_NAME = "ADDRESSES";
+
+    /**
+     * The name of the property, after the prefix of the protocol, listing
+     * the ports or port ranges, e.g. <tt>5060,10000-20000</tt>, of the
+     * captured packets.
+     */
+    static final String PORTS_PROPERTY_NAME = "PORTS";
+
+    /**
+     * The name of the property, after the prefix of the protocol, setting
+     * the maximum number of content bytes saved per packet.
+     */
+    static final String SNAPLEN_PROPERTY_NAME = "SNAPLEN";
+
+    /**
+     * The name of the property, after the prefix of the protocol, setting
+     * the <tt>N</tt> for capturing only one in every <tt>N</tt> packets.
+     */
+    static final String SAMPLING_PROPERTY_NAME = "SAMPLING";
+
+    /**
+     * The name of the property, after the prefix of the protocol, setting
+     * the maximum number of packets captured per second.
+     */
+    static final String MAX_RATE_PROPERTY_NAME = "MAX_PACKETS_PER_SECOND";
+
+    /**
+     * The addresses of the captured packets or <tt>null</tt> for any.
+     */
+    private final byte[][] addresses;
+
+    /**
+     * The port ranges of the captured packets as pairs of the first and
+     * last port of a range, or <tt>null</tt> for any.
+     */
+    private final int[] portRanges;
+
+    /**
+     * The maximum number of content bytes saved per packet or 0 to save
+     * the whole content.
+     */
+    private final int snaplen;
+
+    /**
+     * One in every <tt>sampling</tt> matching packets is captured.
+     */
+    private final int sampling;
+
+    /**
+     * The maximum number of packets captured per second or 0 for no limit.
+     */
+    private final int maxRate;
+
+    /**
+     * The number of packets which passed the address and port predicates.
+     */
+    private final AtomicLong matchCount = new AtomicLong();
+
+    /**
+     * The second, since the epoch, {@link #rateCount} is counting packets
+     * for.
+     */
+    private final AtomicLong rateSecond = new AtomicLong();
+
+    /**
+     * The number of packets captured during {@link #rateSecond}.
+     */
+    private final AtomicInteger rateCount = new AtomicInteger();
+
+    /**
+     * Creates a filter.
+     *
+     * @param addresses the comma separated addresses of the captured
+     * packets or <tt>null</tt> for any
+     * @param ports the comma separated ports or port ranges of the captured
+     * packets or <tt>null</tt> for any
+     * @param snaplen the maximum number of content bytes saved per packet
+     * or 0 to save the whole content
+     * @param sampling capture one in every <tt>sampling</tt> packets
+     * @param maxRate the maximum number of packets captured per second or 0
+     * for no limit
+     */
+    PacketCaptureFilter(
+            String addresses,
+            String ports,
+            int snaplen,
+            int sampling,
+            int maxRate)
+    {
+        this.addresses = parseAddresses(addresses);
+        this.portRanges = parsePorts(ports);
+        this.snaplen = Math.max(snaplen, 0);
+        this.sampling = Math.max(sampling, 1);
+        this.maxRate = Math.max(maxRate, 0);
+    }
+
+    /**
+     * Loads the filter of a protocol from the configuration.
+     *
+     * @param configService the configuration service
+     * @param prefix the prefix of the names of the properties of the
+     * protocol, ending with a dot
+     * @return the filter or <tt>null</tt> if no filtering is configured
+     * for the protocol
+     */
+    static PacketCaptureFilter load(
+            ConfigurationService configService,
+            String prefix)
+    {
+        String addresses
+            = configService.getString(prefix + ADDRESSES_PROPERTY_NAME);
+        String ports = configService.getString(prefix + PORTS_PROPERTY_NAME);
+        int snaplen = configService.getInt(prefix + SNAPLEN_PROPERTY_NAME, 0);
+        int sampling
+            = configService.getInt(prefix + SAMPLING_PROPERTY_NAME, 1);
+        int maxRate = configService.getInt(prefix + MAX_RATE_PROPERTY_NAME, 0);
+
+        if (isBlank(addresses)
+                && isBlank(ports)
+                && snaplen <= 0
+                && sampling <= 1
+                && maxRate <= 0)
+        {
+            return null;
+        }
+        return new PacketCaptureFilter(
+            addresses, ports, snaplen, sampling, maxRate);
+    }
+
+    /**
+     * Determines whether a packet is captured and how many bytes of its
+     * content are saved.
+     *
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port of the packet.
+     * @param destinationAddress the destination address.
+     * @param destinationPort the destination port.
+     * @param packetLength the packet content length.
+     * @return the number of content bytes to save or -1 if the packet is not
+     * captured
+     */
+    int getCaptureLength(
+            byte[] sourceAddress,
+            int sourcePort,
+            byte[] destinationAddress,
+            int destinationPort,
+            int packetLength)
+    {
+        if (addresses != null
+                && !matchesAddress(sourceAddress)
+                && !matchesAddress(destinationAddress))
+        {
+            return -1;
+        }
+        if (portRanges != null
+                && !matchesPort(sourcePort)
+                && !matchesPort(destinationPort))
+        {
+            return -1;
+        }
+
+        if (sampling > 1 && matchCount.getAndIncrement() % sampling != 0)
+            return -1;
+
+        if (maxRate > 0)
+        {
+            long second = System.currentTimeMillis() / 1000;
+            long countedSecond = rateSecond.get();
+
+            if (countedSecond != second
+                    && rateSecond.compareAndSet(countedSecond, second))
+            {
+                rateCount.set(0);
+            }
+            if (rateCount.incrementAndGet() > maxRate)
+                return -1;
+        }
+
+        return (snaplen > 0 && snaplen < packetLength) ? snaplen : packetLength;
+    }
+
+    /**
+     * Checks whether an address is one of the addresses of the captured
+     * packets.
+     *
+     * @param address the address of a packet
+     * @return <tt>true</tt> if <tt>address</tt> matches
+     */
+    private boolean matchesAddress(byte[] address)
+    {
+        for (byte[] a : addresses)
+        {
+            if (Arrays.equals(a, address))
+                return true;
+
+            // IPv4 addresses may be logged as IPv4-mapped IPv6 ones
+            if (a.length == 4 && address.length == 16 && isMappedIPv4(address)
+                    && address[12] == a[0] && address[13] == a[1]
+                    && address[14] == a[2] && address[15] == a[3])
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether an IPv6 address is an IPv4-mapped one.
+     *
+     * @param address the IPv6 address
+     * @return <tt>true</tt> if <tt>address</tt> is an IPv4-mapped address
+     */
+    private static boolean isMappedIPv4(byte[] address)
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            if (address[i] != 0)
+                return false;
+        }
+        return address[10] == (byte) 0xff && address[11] == (byte) 0xff;
+    }
+
+    /**
+     * Checks whether a port is in one of the port ranges of the captured
+     * packets.
+     *
+     * @param port the port of a packet
+     * @return <tt>true</tt> if <tt>port</tt> matches
+     */
+    private boolean matchesPort(int port)
+    {
+        for (int i = 0; i < portRanges.length; i += 2)
+        {
+            if (port >= portRanges[i] && port <= portRanges[i + 1])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a property value is <tt>null</tt> or only whitespace.
+     *
+     * @param value the property value
+     * @return <tt>true</tt> if <tt>value</tt> is blank
+     */
+    private static boolean isBlank(String value)
+    {
+        return value == null || value.trim().length() == 0;
+    }
+
+    /**
+     * Parses a comma separated list of IPv4 and IPv6 addresses. Invalid
+     * addresses are logged and ignored.
+     *
+     * @param value the list of addresses
+     * @return the addresses or <tt>null</tt> if there are none
+     */
+    private static byte[][] parseAddresses(String value)
+    {
+        if (isBlank(value))
+            return null;
+
+        List<byte[]> result = new ArrayList<byte[]>();
+
+        for (String token : value.split(","))
+        {
+            token = token.trim();
+            if (token.length() == 0)
+                continue;
+
+            byte[] address = NetworkUtils.isIPv4Address(token)
+                ? NetworkUtils.strToIPv4(token)
+                : NetworkUtils.strToIPv6(token);
+
+            if (address == null)
+                logger.warn("Ignoring invalid address in filter: " + token);
+            else
+                result.add(address);
+        }
+        return result.isEmpty() ? null : result.toArray(new byte[0][]);
+    }
+
+    /**
+     * Parses a comma separated list of ports and port ranges. Invalid ports
+     * are logged and ignored.
+     *
+     * @param value the list of ports
+     * @return the port ranges as pairs of first and last port or
+     * <tt>null</tt> if there are none
+     */
+    private static int[] parsePorts(String value)
+    {
+        if (isBlank(value))
+            return null;
+
+        List<Integer> result = new ArrayList<Integer>();
+
+        for (String token : value.split(","))
+        {
+            token = token.trim();
+            if (token.length() == 0)
+                continue;
+
+            int dash = token.indexOf('-');
+
+            try
+            {
+                int first;
+                int last;
+
+                if (dash == -1)
+                {
+                    first = last = Integer.parseInt(token);
+                }
+                else
+                {
+                    first = Integer.parseInt(token.substring(0, dash).trim());
+                    last = Integer.parseInt(token.substring(dash + 1).trim());
+                }
+                result.add(first);
+                result.add(last);
+            }
+            catch (NumberFormatException e)
+            {
+                logger.warn("Ignoring invalid port in filter: " + token);
+            }
+        }
+
+        if (result.isEmpty())
+            return null;
+
+        int[] ranges = new int[result.size()];
+
+        for (int i = 0; i < ranges.length; i++)
+            ranges[i] = result.get(i);
+        return ranges;
+    }
+}
@@ -29,6 +29,22 @@
 public class PacketLoggingConfigurationImpl
     extends PacketLoggingConfiguration
 {
+    /**
+     * The prefix of the names of the properties configuring the capture
+     * filter of a protocol. It is followed by the name of the protocol, e.g.
+     * <tt>RTP</tt>, a dot and the name of the filter property, e.g.
+     * <tt>net.java.sip.communicator.packetlogging.FILTER.RTP.SNAPLEN</tt>.
+     */
+    public static final String PACKET_LOGGING_FILTER_PROPERTY_PREFIX
+        = "net.java.sip.communicator.packetlogging.FILTER.";
+
+    /**
+     * The capture filters of the protocols indexed by the ordinal of their
+     * <tt>ProtocolName</tt>, <tt>null</tt> for the protocols capturing all
+     * packets.
+     */
+    private final PacketCaptureFilter[] captureFilters;
+
     /**
      * Creates new PacketLoggingConfiguration and load values from
      * configuration service and if missing uses already defined
@@ -72,6 +88,32 @@
             configService.getInt(
                 PACKET_LOGGING_FILE_COUNT_PROPERTY_NAME,
                 getLogfileCount()));
+
+        PacketLoggingService.ProtocolName[] protocols
+            = PacketLoggingService.ProtocolName.values();
+
+        captureFilters = new PacketCaptureFilter[protocols.length];
+        for (PacketLoggingService.ProtocolName protocol : protocols)
+        {
+            captureFilters[protocol.ordinal()]
+                = PacketCaptureFilter.load(
+                    configService,
+                    PACKET_LOGGING_FILTER_PROPERTY_PREFIX
+                        + protocol.name() + ".");
+        }
+    }
+
+    /**
+     * Returns the capture filter of a protocol.
+     *
+     * @param protocol the protocol
+     * @return the capture filter of <tt>protocol</tt> or <tt>null</tt> if all
+     * its packets are captured
+     */
+    PacketCaptureFilter getCaptureFilter(
+            PacketLoggingService.ProtocolName protocol)
+    {
+        return captureFilters[protocol.ordinal()];
     }
 
     /**
@@ -18,9 +18,8 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
-import java.util.*;
+import java.util.concurrent.locks.*;
 
-import com.google.common.collect.*;
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.fileaccess.*;
@@ -42,12 +41,57 @@
             = Logger.getLogger(PacketLoggingServiceImpl.class);
 
     /**
-     * The max size of the <tt>EvictingQueue</tt> that the saver thread
-     * is using.
+     * The number of packets that can wait to be saved. Packets logged while
+     * that many are waiting are dropped.
      *
      * TODO this needs to be configurable eventually.
      */
-    private static final int EVICTING_QUEUE_MAX_SIZE = 1000;
+    private static final int QUEUE_CAPACITY = 1024;
+
+    /**
+     * The initial size of the buffer the saver thread collects pcap records
+     * in before writing them to the file with a single call.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The minimum time, in milliseconds, between two warnings about dropped
+     * packets.
+     */
+    private static final long DROPPED_WARNING_INTERVAL = 10000;
+
+    /**
+     * The maximum time, in nanoseconds, the saver thread sleeps without
+     * checking for packets to save.
+     */
+    private static final long MAX_IDLE_NANOS = 100 * 1000 * 1000;
+
+    /**
+     * The length of a pcap record header.
+     */
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    /**
+     * The pcap file global header.
+     */
+    private static final byte[] globalHeader
+        = new byte[]
+        {
+            /* magic number(swapped) */
+            (byte)0xd4, (byte)0xc3, (byte)0xb2, (byte)0xa1,
+            /* major version number */
+            (byte)0x02, (byte)0x00,
+            /* minor version number */
+            (byte)0x04, (byte)0x00,
+            /* GMT to local correction */
+            (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+            /* accuracy of timestamps */
+            (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+            /* max length of captured packets, in octets */
+            (byte)0xff, (byte)0xff, (byte)0x00, (byte)0x00,
+            /* data link type(ethernet) */
+            (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x00
+        };
 
     /**
      * The OutputStream we are currently writing to.
@@ -55,14 +99,25 @@
     private FileOutputStream outputStream = null;
 
     /**
-     * The thread that queues packets and saves them to file.
+     * The packets waiting to be saved.
+     */
+    private final PacketRingBuffer packetsToSave
+        = new PacketRingBuffer(QUEUE_CAPACITY);
+
+    /**
+     * The thread that saves the queued packets to file.
      */
     private SaverThread saverThread = new SaverThread();
 
+    /**
+     * The buffer the saver thread collects pcap records in.
+     */
+    private byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+
     /**
      * The current configuration.
      */
-    private PacketLoggingConfiguration packetLoggingConfiguration = null;
+    private PacketLoggingConfigurationImpl packetLoggingConfiguration = null;
 
     /**
      * The fake ethernet header we use as template.
@@ -146,18 +201,13 @@
             };
 
     /**
-     * Using this object to lock and protectd the two counters
-     * used for tcp seq and ack numbers.
-     */
-    private Object tcpCounterLock = new Object();
-
-    /**
-     * The seq that the sender will send.
+     * The seq that the sender will send. Only accessed by the saver thread.
      */
     private long srcCount = 1;
 
     /**
-     * This is the ack number send from the sender.
+     * This is the ack number send from the sender. Only accessed by the saver
+     * thread.
      */
     private long dstCount = 1;
 
@@ -236,7 +286,7 @@ private void rotateFiles()
     /**
      * Stops the packet logging.
      */
-    public void stop()
+    public synchronized void stop()
     {
         saverThread.stopRunning();
 
@@ -265,43 +315,7 @@ public void stop()
     private void createGlobalHeader()
             throws IOException
     {
-        /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
-
-        /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
-
-        /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
-
-        /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
-        /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        outputStream.write(globalHeader);
     }
 
     /**
@@ -403,17 +417,39 @@ public void logPacket(
             int packetOffset,
             int packetLength)
     {
-        saverThread.queuePacket(
-            new Packet(protocol,
-                       sourceAddress,
-                       sourcePort,
-                       destinationAddress,
-                       destinationPort,
-                       transport,
-                       sender,
-                       packetContent,
-                       packetOffset,
-                       packetLength));
+        PacketCaptureFilter filter
+            = getConfiguration().getCaptureFilter(protocol);
+        int captureLength = packetLength;
+
+        if (filter != null)
+        {
+            captureLength
+                = filter.getCaptureLength(
+                    sourceAddress, sourcePort,
+                    destinationAddress, destinationPort,
+                    packetLength);
+            if (captureLength < 0)
+                return;
+        }
+
+        PacketRingBuffer.Slot slot = packetsToSave.claim();
+
+        // the queue is full, the packet is counted as dropped
+        if (slot == null)
+            return;
+
+        slot.set(sourceAddress,
+                 sourcePort,
+                 destinationAddress,
+                 destinationPort,
+                 transport,
+                 sender,
+                 packetContent,
+                 packetOffset,
+                 captureLength,
+                 packetLength);
+        packetsToSave.publish(slot);
+        saverThread.packetQueued();
     }
 
     /**
@@ -421,7 +457,7 @@ public void logPacket(
      *
      * @return the Packet Logging Configuration.
      */
-    public PacketLoggingConfiguration getConfiguration()
+    public PacketLoggingConfigurationImpl getConfiguration()
     {
         if(packetLoggingConfiguration == null)
             packetLoggingConfiguration = new PacketLoggingConfigurationImpl();
@@ -430,195 +466,262 @@ public PacketLoggingConfiguration getConfiguration()
     }
 
     /**
-     * Dump the packet to the output file stream.
+     * Writes the queued packets to the output file stream, collecting as
+     * many pcap records as fit in the write buffer before writing them with
+     * a single call.
      *
-     * @param packet the packet ot save.
+     * @return <tt>true</tt> if packets were saved, <tt>false</tt> if there
+     * were none waiting
      * @throws Exception when error occurs saving to file stream or when
      *  rotating files.
      */
-    private void savePacket(Packet packet)
+    private synchronized boolean savePackets()
         throws Exception
+    {
+        // don't reopen the files once stopped
+        if (saverThread.stopped)
+            return false;
+
+        PacketRingBuffer.Slot slot = packetsToSave.poll();
+
+        if (slot == null)
+            return false;
+
+        // open files only if needed
+        if(outputStream == null)
+        {
+            getFileNames();
+            rotateFiles();// this one opens the file for write
+        }
+
+        long limit = getConfiguration().getLimit();
+        int length = 0;
+
+        do
+        {
+            int recordLength = getRecordLength(slot);
+
+            if (length + recordLength > writeBuffer.length)
+            {
+                if (length > 0)
+                {
+                    outputStream.write(writeBuffer, 0, length);
+                    length = 0;
+                }
+                if (recordLength > writeBuffer.length)
+                    writeBuffer = new byte[recordLength];
+            }
+
+            if((limit > 0) && (written > limit))
+            {
+                if (length > 0)
+                {
+                    outputStream.write(writeBuffer, 0, length);
+                    length = 0;
+                }
+                rotateFiles();
+            }
+
+            length += writeRecord(slot, writeBuffer, length);
+            written += recordLength;
+
+            packetsToSave.release(slot);
+        }
+        while ((slot = packetsToSave.poll()) != null);
+
+        outputStream.write(writeBuffer, 0, length);
+        outputStream.flush();
+        return true;
+    }
+
+    /**
+     * Returns the length of the pcap record of a packet, including its
+     * headers.
+     *
+     * @param packet the packet
+     * @return the length of the pcap record of <tt>packet</tt>
+     */
+    private static int getRecordLength(PacketRingBuffer.Slot packet)
+    {
+        boolean isIPv4 = isIPv4(packet);
+
+        return RECORD_HEADER_LENGTH
+            + fakeEthernetHeader.length
+            + (isIPv4 ? ipv4EtherType : ipv6EtherType).length
+            + (isIPv4 ? ipHeaderTemplate : ip6HeaderTemplate).length
+            + ((packet.transport == TransportName.UDP)
+                ? udpHeaderTemplate
+                : tcpHeaderTemplate).length
+            + packet.contentLength;
+    }
+
+    /**
+     * Checks whether a packet is saved as an IPv4 one.
+     *
+     * @param packet the packet
+     * @return <tt>true</tt> for IPv4, <tt>false</tt> for IPv6
+     */
+    private static boolean isIPv4(PacketRingBuffer.Slot packet)
     {
         // if one of the addresses is ipv4 we are using ipv4,
         // local udp addresses come as 0.0.0.0.0....0.0.0 when
         // ipv6 is enabled in the underlying os
-        boolean isIPv4 = packet.sourceAddress.length == 4
-                || packet.destinationAddress.length == 4;
+        return packet.sourceAddressLength == 4
+                || packet.destinationAddressLength == 4;
+    }
 
-        byte[] ipHeader;
+    /**
+     * Writes the pcap record of a packet, with its fake ethernet, ip and
+     * transport headers, to a buffer.
+     *
+     * @param packet the packet to write.
+     * @param buffer the buffer to write the record to.
+     * @param offset the offset in <tt>buffer</tt> to write the record at.
+     * @return the length of the written record.
+     */
+    private int writeRecord(
+            PacketRingBuffer.Slot packet,
+            byte[] buffer,
+            int offset)
+    {
+        boolean isIPv4 = isIPv4(packet);
+        int ethernetOffset = offset + RECORD_HEADER_LENGTH;
+
+        System.arraycopy(fakeEthernetHeader, 0, buffer, ethernetOffset,
+                fakeEthernetHeader.length);
+
+        byte[] etherType = isIPv4 ? ipv4EtherType : ipv6EtherType;
+        System.arraycopy(etherType, 0, buffer,
+                ethernetOffset + fakeEthernetHeader.length, etherType.length);
+
+        int ipOffset
+            = ethernetOffset + fakeEthernetHeader.length + etherType.length;
+        int ipHeaderLength;
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
+            ipHeaderLength = ipHeaderTemplate.length;
             System.arraycopy(
-                    ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
-                    0,
-                    ipHeader,
-                    12,
-                    4);
-            System.arraycopy(packet.destinationAddress,
-                    0,
-                    ipHeader,
-                    16,
-                    4);
+                    ipHeaderTemplate, 0, buffer, ipOffset, ipHeaderLength);
+            System.arraycopy(packet.sourceAddress, 0,
+                    buffer, ipOffset + 12, 4);
+            System.arraycopy(packet.destinationAddress, 0,
+                    buffer, ipOffset + 16, 4);
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
+            ipHeaderLength = ip6HeaderTemplate.length;
             System.arraycopy(
-                    ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
-                    0,
-                    ipHeader,
-                    8,
-                    16);
-
-            System.arraycopy(packet.destinationAddress,
-                    0,
-                    ipHeader,
-                    24,
-                    16);
+                    ip6HeaderTemplate, 0, buffer, ipOffset, ipHeaderLength);
+            System.arraycopy(packet.sourceAddress, 0,
+                    buffer, ipOffset + 8, 16);
+            System.arraycopy(packet.destinationAddress, 0,
+                    buffer, ipOffset + 24, 16);
         }
 
-        byte[] transportHeader;
+        int transportOffset = ipOffset + ipHeaderLength;
+        int transportHeaderLength;
         short len;
+
         if(packet.transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
-            transportHeader = udpHeader;
+            transportHeaderLength = udpHeaderTemplate.length;
             System.arraycopy(udpHeaderTemplate, 0,
-                    udpHeader, 0, udpHeader.length);
+                    buffer, transportOffset, transportHeaderLength);
 
-            writeShort(packet.sourcePort, udpHeader, 0);
-            writeShort(packet.destinationPort, udpHeader, 2);
-            len = (short)(packet.packetLength + udpHeader.length);
-            writeShort(len, udpHeader, 4);
+            writeShort(packet.sourcePort, buffer, transportOffset);
+            writeShort(packet.destinationPort, buffer, transportOffset + 2);
+            len = (short)(packet.originalLength + transportHeaderLength);
+            writeShort(len, buffer, transportOffset + 4);
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
-            System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
-                   0, transportHeader.length);
+            transportHeaderLength = tcpHeaderTemplate.length;
+            System.arraycopy(tcpHeaderTemplate, 0,
+                    buffer, transportOffset, transportHeaderLength);
 
-            writeShort(packet.sourcePort, transportHeader, 0);
-            writeShort(packet.destinationPort, transportHeader, 2);
+            writeShort(packet.sourcePort, buffer, transportOffset);
+            writeShort(packet.destinationPort, buffer, transportOffset + 2);
 
-            len = (short)(packet.packetLength + transportHeader.length);
+            len = (short)(packet.originalLength + transportHeaderLength);
+
+            long seqnum;
+            long acknum;
 
             if(packet.sender)
             {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
-                {
-                    seqnum = srcCount;
-                    srcCount += packet.packetLength;
-                    acknum = dstCount;
-                }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
+                seqnum = srcCount;
+                srcCount += packet.originalLength;
+                acknum = dstCount;
             }
             else
             {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
-                {
-                    seqnum = dstCount;
-                    dstCount += packet.packetLength;
-                    acknum = srcCount;
-                }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
+                seqnum = dstCount;
+                dstCount += packet.originalLength;
+                acknum = srcCount;
             }
+
+            intToBytes((int)(seqnum & 0xffffffff),
+                   buffer, transportOffset + 4);
+            intToBytes((int)(acknum & 0xffffffff),
+                   buffer, transportOffset + 8);
         }
 
         // now set ip header total length
         if(isIPv4)
         {
-            short ipTotalLen = (short)(len + ipHeader.length);
-            writeShort(ipTotalLen, ipHeader, 2);
+            short ipTotalLen = (short)(len + ipHeaderLength);
+            writeShort(ipTotalLen, buffer, ipOffset + 2);
 
             if(packet.transport == TransportName.UDP)
-                ipHeader[9] = (byte)0x11;
+                buffer[ipOffset + 9] = (byte)0x11;
             else
-                ipHeader[9] = (byte)0x06;
+                buffer[ipOffset + 9] = (byte)0x06;
 
-           int chk2 = computeChecksum(ipHeader);
-           ipHeader[10] = (byte) (chk2 >> 8);
-           ipHeader[11] = (byte) (chk2 & 0xff);
+           int chk2 = computeChecksum(buffer, ipOffset, ipHeaderLength);
+           buffer[ipOffset + 10] = (byte) (chk2 >> 8);
+           buffer[ipOffset + 11] = (byte) (chk2 & 0xff);
         }
         else
         {
-            writeShort(len, ipHeader, 4);
+            writeShort(len, buffer, ipOffset + 4);
 
             if(packet.transport == TransportName.UDP)
-                ipHeader[6] = (byte)0x11;
+                buffer[ipOffset + 6] = (byte)0x11;
             else
-                ipHeader[6] = (byte)0x06;
+                buffer[ipOffset + 6] = (byte)0x06;
         }
 
-        long current = System.currentTimeMillis();
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
-        int feakHeaderLen = fakeEthernetHeader.length +
-                (isIPv4 ? ipv4EtherType : ipv6EtherType).length +
-                ipHeader.length + transportHeader.length;
-        int inclLen = packet.packetLength + feakHeaderLen;
-        int origLen = inclLen;
-
-        synchronized(this)
-        {
-            // open files only if needed
-            if(outputStream == null)
-            {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
-            }
+        int contentOffset = transportOffset + transportHeaderLength;
 
-            long limit = getConfiguration().getLimit();
+        System.arraycopy(packet.content, 0,
+                buffer, contentOffset, packet.contentLength);
 
-            if((limit > 0) && (written > limit))
-                rotateFiles();
+        int recordLength = contentOffset + packet.contentLength - offset;
+        int inclLen = recordLength - RECORD_HEADER_LENGTH;
+        // the content may have been truncated by the capture filter
+        int origLen = inclLen + packet.originalLength - packet.contentLength;
 
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
-
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(isIPv4 ? ipv4EtherType : ipv6EtherType);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
+        addInt((int)(packet.timestamp/1000), buffer, offset);
+        addInt((int)((packet.timestamp%1000) * 1000), buffer, offset + 4);
+        addInt(inclLen, buffer, offset + 8);
+        addInt(origLen, buffer, offset + 12);
 
-            written += inclLen + 16;
-        }
+        return recordLength;
     }
 
     /**
-     * Writes int to the file. Used for packet headers.
+     * Writes a little-endian int to a buffer. Used for packet headers.
      * @param d the value to write.
-     * @throws IOException
+     * @param data destination data
+     * @param offset offset in the data
      */
-    private void addInt(int d)
-        throws IOException
+    private static void addInt(int d, byte[] data, int offset)
     {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        data[offset] = (byte) (d & 0xff);
+        data[offset + 1] = (byte) ((d & 0xff00) >> 8);
+        data[offset + 2] = (byte) ((d & 0xff0000) >> 16);
+        data[offset + 3] = (byte) ((d & 0xff000000) >> 24);
     }
 
     /**
@@ -653,18 +756,19 @@ private static void writeShort(int value, byte[] data, int offset)
     /**
      * Calculates checksums assuming the checksum is a 16-bit header field.
      */
-    private int computeChecksum(byte[] data)
+    private static int computeChecksum(byte[] data, int offset, int length)
     {
         int total = 0;
-        int i = 0;
+        int i = offset;
+        int end = offset + length;
 
         // Don't Skip existing checksum cause its set to 0000
-        int imax = data.length - (data.length % 2);
+        int imax = end - (length % 2);
 
         while(i < imax)
             total+=(((data[i++] & 0xff) << 8) | (data[i++] & 0xff));
 
-        if(i < data.length)
+        if(i < end)
             total+=((data[i] & 0xff) << 8);
 
         // Fold to 16 bits
@@ -677,116 +781,31 @@ private int computeChecksum(byte[] data)
     }
 
     /**
-     * The data we receive and that we will dump in a file.
+     * Dumps packet in separate thread so we don't block
+     * our calling thread.
      */
-    private static class Packet
+    private class SaverThread
+        extends Thread
     {
         /**
-         * The protocol logging this packet.
-         */
-        ProtocolName protocol;
-
-        /**
-         * The source address of the packet.
-         */
-        byte[] sourceAddress;
-
-        /**
-         * The source port of the packet.
-         */
-        int sourcePort;
-
-        /**
-         * The destination address of the packet.
-         */
-        byte[] destinationAddress;
-
-        /**
-         * The destination port of the packet.
-         */
-        int destinationPort;
-
-        /**
-         * Is the packet a udp one.
-         */
-        TransportName transport;
-
-        /**
-         * Are we sending the packet, or false if we are receiving.
-         */
-        boolean sender;
-
-        /**
-         * Array containing packet content.
-         */
-        byte[] packetContent;
-
-        /**
-         * The offset in the packetContent where packet content is.
-         */
-        int packetOffset;
-
-        /**
-         * The length of the packet content.
+         * start/stop indicator.
          */
-        int packetLength;
+        private volatile boolean stopped = true;
 
         /**
-         * Creates a packet with the needed data.
-         * @param protocol the source protocol that logs this packet.
-         * @param sourceAddress The source address of the packet.
-         * @param sourcePort The source port of the packet.
-         * @param destinationAddress The destination address of the packet.
-         * @param destinationPort The destination port of the packet.
-         * @param transport the transport this packet uses.
-         * @param sender Are we sending the packet,
-         *  or false if we are receiving.
-         * @param packetContent Array containing packet content.
-         * @param packetOffset The offset in the packetContent
-         *  where packet content is.
-         * @param packetLength The length of the packet content.
+         * Whether this thread is sleeping until a packet is queued.
          */
-        private Packet(ProtocolName protocol,
-                       byte[] sourceAddress,
-                       int sourcePort,
-                       byte[] destinationAddress,
-                       int destinationPort,
-                       TransportName transport,
-                       boolean sender,
-                       byte[] packetContent,
-                       int packetOffset,
-                       int packetLength)
-        {
-            this.protocol = protocol;
-            this.sourceAddress = sourceAddress;
-            this.sourcePort = sourcePort;
-            this.destinationAddress = destinationAddress;
-            this.destinationPort = destinationPort;
-            this.transport = transport;
-            this.sender = sender;
-            this.packetContent = packetContent;
-            this.packetOffset = packetOffset;
-            this.packetLength = packetLength;
-        }
-    }
+        private volatile boolean idle = false;
 
-    /**
-     * Dumps packet in separate thread so we don't block
-     * our calling thread.
-     */
-    private class SaverThread
-        extends Thread
-    {
         /**
-         * start/stop indicator.
+         * The number of dropped packets when we last warned about them.
          */
-        private boolean stopped = true;
+        private long reportedDropped = 0;
 
         /**
-         * List of packets queued to be written in the file.
+         * The time we last warned about dropped packets.
          */
-        private final EvictingQueue<Packet> pktsToSave
-            = EvictingQueue.create(EVICTING_QUEUE_MAX_SIZE);
+        private long lastDroppedWarning = 0;
 
         /**
          * Initializes a new <tt>SaverThread</tt>.
@@ -797,7 +816,7 @@ private Packet(ProtocolName protocol,
         }
 
         /**
-         * Sends instant messages in separate thread so we don't block
+         * Saves the queued packets in separate thread so we don't block
          * our calling thread.
          */
         @Override
@@ -806,68 +825,75 @@ public void run()
             stopped = false;
             while(!stopped)
             {
-                Packet pktToSave;
+                boolean saved = false;
 
-                synchronized(this)
+                try
+                {
+                    saved = savePackets();
+                }
+                catch(Throwable t)
                 {
-                    if(pktsToSave.isEmpty())
-                    {
-                        try
-                        {
-                            wait();
-                        }
-                        catch (InterruptedException iex)
-                        {
-                        }
-                        continue;
-                    }
-
-                    pktToSave = pktsToSave.poll();
+                    /*
+                     * XXX ThreadDeath must be rethrown; otherwise, the
+                     * related Thread will not die.
+                     */
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    else
+                        logger.error("Error writing packet to file", t);
                 }
 
-                if(pktToSave != null)
+                warnDropped();
+
+                if (!saved)
                 {
-                    try
-                    {
-                        savePacket(pktToSave);
-                    }
-                    catch(Throwable t)
-                    {
-                        /*
-                         * XXX ThreadDeath must be rethrown; otherwise, the
-                         * related Thread will not die.
-                         */
-                        if (t instanceof ThreadDeath)
-                            throw (ThreadDeath) t;
-                        else
-                            logger.error("Error writing packet to file", t);
-                    }
+                    idle = true;
+                    // a packet may have been queued before we became idle
+                    if (packetsToSave.isEmpty() && !stopped)
+                        LockSupport.parkNanos(this, MAX_IDLE_NANOS);
+                    idle = false;
                 }
             }
         }
 
         /**
-         * Interrupts this sender so that it would no longer send messages.
+         * Warns about the packets dropped because the queue was full, at most
+         * once every {@link #DROPPED_WARNING_INTERVAL}.
          */
-        public synchronized void stopRunning()
+        private void warnDropped()
         {
-            stopped = true;
-            notifyAll();
+            long dropped = packetsToSave.getDroppedCount();
+
+            if (dropped == reportedDropped)
+                return;
+
+            long now = System.currentTimeMillis();
+
+            if (now - lastDroppedWarning >= DROPPED_WARNING_INTERVAL)
+            {
+                logger.warn("Queue is full, " + (dropped - reportedDropped)
+                    + " packets were dropped.");
+                reportedDropped = dropped;
+                lastDroppedWarning = now;
+            }
         }
 
         /**
-         * Schedule new packet for save.
-         * @param packet new packet to save.
+         * Interrupts this saver so that it would no longer save packets.
          */
-        public synchronized void queuePacket(Packet packet)
+        public void stopRunning()
         {
-            if (EVICTING_QUEUE_MAX_SIZE - pktsToSave.size() == 0)
-            {
-                logger.warn("Queue is full, packets are being evicted.");
-            }
+            stopped = true;
+            LockSupport.unpark(this);
+        }
 
-            pktsToSave.add(packet);
-            notifyAll();
+        /**
+         * Wakes this thread up if it is waiting for packets to save.
+         */
+        void packetQueued()
+        {
+            if (idle)
+                LockSupport.unpark(this);
         }
     }
 }
@@ -0,0 +1,319 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import java.util.concurrent.atomic.*;
+
+import org.jitsi.service.packetlogging.*;
+
+/**
+ * A bounded queue of packets waiting to be saved, with many threads logging
+ * packets and a single thread saving them.
+ * <p>
+ * The queue is a ring of preallocated slots which are reused, so logging a
+ * packet neither allocates nor locks: a logging thread claims the next free
+ * slot with a compare-and-set, copies the packet into it and publishes it.
+ * Every slot carries a sequence number telling whether it is free, being
+ * filled or ready to be saved. When all slots are in use the packet is
+ * dropped and counted instead of waiting for the saving thread.
+ */
+final class PacketRingBuffer
+{
+    /**
+     * The initial size of the content buffer of a slot, enough for most
+     * packets. It grows when a larger packet is copied to the slot.
+     */
+    private static final int INITIAL_CONTENT_SIZE = 2048;
+
+    /**
+     * The slots of the ring.
+     */
+    private final Slot[] slots;
+
+    /**
+     * The mask giving the index of a slot from a position in the ring.
+     */
+    private final int mask;
+
+    /**
+     * The position of the next slot to be claimed by a logging thread.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The position of the next slot to be saved. Only accessed by the saving
+     * thread.
+     */
+    private long head = 0;
+
+    /**
+     * The number of packets dropped because all slots were in use.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a ring of at least <tt>capacity</tt> slots.
+     *
+     * @param capacity the minimum number of packets the ring can hold,
+     * rounded up to a power of two
+     */
+    PacketRingBuffer(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot(i);
+        mask = size - 1;
+    }
+
+    /**
+     * Claims a free slot for a packet. The slot must be filled and passed to
+     * {@link #publish(Slot)}.
+     *
+     * @return the claimed slot or <tt>null</tt> if all slots are in use, in
+     * which case the packet is counted as dropped
+     */
+    Slot claim()
+    {
+        while (true)
+        {
+            long position = tail.get();
+            Slot slot = slots[(int) (position & mask)];
+            long sequence = slot.sequence;
+
+            if (sequence == position)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    slot.position = position;
+                    return slot;
+                }
+            }
+            else if (sequence < position)
+            {
+                // the slot was not saved since the previous round
+                dropped.incrementAndGet();
+                return null;
+            }
+            // else another thread claimed this position first, try the next
+        }
+    }
+
+    /**
+     * Makes a filled slot available to the saving thread.
+     *
+     * @param slot the slot returned by {@link #claim()}
+     */
+    void publish(Slot slot)
+    {
+        slot.sequence = slot.position + 1;
+    }
+
+    /**
+     * Returns the next slot ready to be saved. Must only be called by the
+     * saving thread, which passes the slot to {@link #release(Slot)} once it
+     * is done with it.
+     *
+     * @return the next slot to save or <tt>null</tt> if there is none yet
+     */
+    Slot poll()
+    {
+        Slot slot = slots[(int) (head & mask)];
+
+        return (slot.sequence == head + 1) ? slot : null;
+    }
+
+    /**
+     * Frees a slot returned by {@link #poll()} to be reused.
+     *
+     * @param slot the saved slot
+     */
+    void release(Slot slot)
+    {
+        slot.sequence = head + slots.length;
+        head++;
+    }
+
+    /**
+     * Determines whether there is no slot ready to be saved.
+     *
+     * @return <tt>true</tt> if no packet is waiting to be saved
+     */
+    boolean isEmpty()
+    {
+        return poll() == null;
+    }
+
+    /**
+     * Returns the number of packets dropped because all slots were in use
+     * since the ring was created.
+     *
+     * @return the number of dropped packets
+     */
+    long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    /**
+     * A reusable copy of a logged packet.
+     */
+    static final class Slot
+    {
+        /**
+         * The position in the ring the slot is free for, or that position
+         * plus one once the packet was published.
+         */
+        private volatile long sequence;
+
+        /**
+         * The position in the ring the slot was claimed for.
+         */
+        private long position;
+
+        /**
+         * The time the packet was logged, in milliseconds.
+         */
+        long timestamp;
+
+        /**
+         * The source address of the packet.
+         */
+        final byte[] sourceAddress = new byte[16];
+
+        /**
+         * The number of bytes of <tt>sourceAddress</tt> used, 4 or 16.
+         */
+        int sourceAddressLength;
+
+        /**
+         * The source port of the packet.
+         */
+        int sourcePort;
+
+        /**
+         * The destination address of the packet.
+         */
+        final byte[] destinationAddress = new byte[16];
+
+        /**
+         * The number of bytes of <tt>destinationAddress</tt> used, 4 or 16.
+         */
+        int destinationAddressLength;
+
+        /**
+         * The destination port of the packet.
+         */
+        int destinationPort;
+
+        /**
+         * The transport of the packet.
+         */
+        PacketLoggingService.TransportName transport;
+
+        /**
+         * Are we sending the packet, or false if we are receiving.
+         */
+        boolean sender;
+
+        /**
+         * The packet content, starting at offset 0.
+         */
+        byte[] content = new byte[INITIAL_CONTENT_SIZE];
+
+        /**
+         * The length of the saved packet content.
+         */
+        int contentLength;
+
+        /**
+         * The length of the packet content before it was truncated to
+         * <tt>contentLength</tt>.
+         */
+        int originalLength;
+
+        /**
+         * Creates a slot free for the given position.
+         *
+         * @param position the position of the slot in the first round
+         */
+        private Slot(long position)
+        {
+            this.sequence = position;
+        }
+
+        /**
+         * Copies a packet to this slot.
+         *
+         * @param sourceAddress the source address of the packet.
+         * @param sourcePort the source port of the packet.
+         * @param destinationAddress the destination address.
+         * @param destinationPort the destination port.
+         * @param transport the transport this packet uses.
+         * @param sender are we the sender of the packet or not.
+         * @param packetContent the packet content.
+         * @param packetOffset the packet content offset.
+         * @param captureLength the number of content bytes to copy.
+         * @param packetLength the packet content length.
+         */
+        void set(byte[] sourceAddress,
+                 int sourcePort,
+                 byte[] destinationAddress,
+                 int destinationPort,
+                 PacketLoggingService.TransportName transport,
+                 boolean sender,
+                 byte[] packetContent,
+                 int packetOffset,
+                 int captureLength,
+                 int packetLength)
+        {
+            this.timestamp = System.currentTimeMillis();
+            this.sourceAddressLength
+                = copyAddress(sourceAddress, this.sourceAddress);
+            this.sourcePort = sourcePort;
+            this.destinationAddressLength
+                = copyAddress(destinationAddress, this.destinationAddress);
+            this.destinationPort = destinationPort;
+            this.transport = transport;
+            this.sender = sender;
+
+            if (content.length < captureLength)
+                content = new byte[captureLength];
+            System.arraycopy(
+                packetContent, packetOffset, content, 0, captureLength);
+            this.contentLength = captureLength;
+            this.originalLength = packetLength;
+        }
+
+        /**
+         * Copies an IPv4 or IPv6 address.
+         *
+         * @param address the address to copy
+         * @param target the array to copy the address to
+         * @return the length of the copied address
+         */
+        private static int copyAddress(byte[] address, byte[] target)
+        {
+            int length = Math.min(address.length, target.length);
+
+            System.arraycopy(address, 0, target, 0, length);
+            return length;
+        }
+    }
+}
@@ -19,6 +19,7 @@
 
 import java.beans.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -118,14 +119,22 @@
     /**
      * The list of members of this chat room.
      */
-    private final Hashtable<String, ChatRoomMemberJabberImpl> members
-        = new Hashtable<String, ChatRoomMemberJabberImpl>();
+    private final Map<String, ChatRoomMemberJabberImpl> members
+        = new ConcurrentHashMap<String, ChatRoomMemberJabberImpl>();
+
+    /**
+     * The members of {@link #members} in the order they joined, which
+     * {@link #getMembers()} returns without copying them, for the listeners
+     * called for every occupant presence while joining a crowded room.
+     * Changed under the lock of {@link #members}.
+     */
+    private final ChatRoomMemberList memberList = new ChatRoomMemberList();
 
     /**
      * The list of banned members of this chat room.
      */
-    private final Hashtable<String, ChatRoomMember> banList
-        = new Hashtable<String, ChatRoomMember>();
+    private final Map<String, ChatRoomMember> banList
+        = new ConcurrentHashMap<String, ChatRoomMember>();
 
     /**
      * The nickname of this chat room local user participant.
@@ -429,14 +438,51 @@ public Message createMessage(String messageText)
      * Returns a <tt>List</tt> of <tt>Member</tt>s corresponding to all
      * members currently participating in this room.
      *
-     * @return a <tt>List</tt> of <tt>Member</tt> corresponding to all room
-     *   members.
+     * @return a read-only <tt>List</tt> of <tt>Member</tt> corresponding to
+     *   all room members.
      */
     public List<ChatRoomMember> getMembers()
+    {
+        return memberList.getMembers();
+    }
+
+    /**
+     * Adds a member to {@link #members}.
+     *
+     * @param participantName the nickname of the member in the room.
+     * @param member the member.
+     */
+    private void addMember(
+            String participantName,
+            ChatRoomMemberJabberImpl member)
     {
         synchronized (members)
         {
-            return new LinkedList<ChatRoomMember>(members.values());
+            ChatRoomMemberJabberImpl oldMember
+                = members.put(participantName, member);
+
+            if (oldMember != null)
+                memberList.remove(oldMember);
+            memberList.add(member);
+        }
+    }
+
+    /**
+     * Removes a member from {@link #members}.
+     *
+     * @param participantName the nickname of the member in the room.
+     * @return the member which was removed or <tt>null</tt> if there was no
+     * member with the specified nickname.
+     */
+    private ChatRoomMemberJabberImpl removeMember(String participantName)
+    {
+        synchronized (members)
+        {
+            ChatRoomMemberJabberImpl member = members.remove(participantName);
+
+            if (member != null)
+                memberList.remove(member);
+            return member;
         }
     }
 
@@ -623,10 +669,7 @@ public void joinAs(String nickname, byte[] password)
                                                 nickname,
                                                 provider.getAccountID()
                                                     .getAccountAddress());
-            synchronized (members)
-            {
-                members.put(nickname, member);
-            }
+            addMember(nickname, member);
 
             // We don't specify a reason.
             opSetMuc.fireLocalUserPresenceEvent(this,
@@ -779,20 +822,20 @@ else if (smackRole.equalsIgnoreCase("participant"))
     public ChatRoomMemberJabberImpl smackParticipantToScMember(String participant)
     {
         String participantName = StringUtils.parseResource(participant);
-        synchronized (members)
-        {
-            Iterator<ChatRoomMemberJabberImpl> chatRoomMembers =
-                this.members.values().iterator();
 
-            while(chatRoomMembers.hasNext())
-            {
-                ChatRoomMemberJabberImpl member = chatRoomMembers.next();
+        // The members are kept by nickname, so that the events of the
+        // occupants of a crowded room do not each go through all the members.
+        ChatRoomMemberJabberImpl member = members.get(participantName);
 
-                if(participantName.equals(member.getName())
-                    || participant.equals(member.getContactAddress())
-                    || participantName.equals(member.getContactAddress()))
-                    return member;
-            }
+        if(member != null && participantName.equals(member.getName()))
+            return member;
+
+        for (ChatRoomMemberJabberImpl m : members.values())
+        {
+            if(participantName.equals(m.getName())
+                || participant.equals(m.getContactAddress())
+                || participantName.equals(m.getContactAddress()))
+                return m;
         }
         return null;
     }
@@ -883,17 +926,17 @@ private void leave(String reason, String alternateAddress)
         }
 
         // FIXME Do we have to do the following when we leave the room?
-        Hashtable<String, ChatRoomMemberJabberImpl> membersCopy;
+        List<ChatRoomMember> membersCopy;
         synchronized (members)
         {
-            membersCopy
-                = new Hashtable<String, ChatRoomMemberJabberImpl>(members);
+            membersCopy = getMembers();
 
             // Delete the list of members
             members.clear();
+            memberList.clear();
         }
 
-        for (ChatRoomMember member : membersCopy.values())
+        for (ChatRoomMember member : membersCopy)
             fireMemberPresenceEvent(
                 member,
                 ChatRoomMemberPresenceChangeEvent.MEMBER_LEFT,
@@ -1065,10 +1108,7 @@ public void banned(String participant, String actor, String reason)
 
             String participantName = StringUtils.parseResource(participant);
 
-            synchronized (members)
-            {
-                members.remove(participantName);
-            }
+            removeMember(participantName);
 
             banList.put(participant, member);
 
@@ -1137,14 +1177,11 @@ public void joined(String participant)
             // We try to get the nickname of the participantName in case it's
             // in the form john@servicename.com, because the nickname we keep
             // in the nickname property is just the user name like "john".
-            if (nickname.equals(participantName)
-                || members.containsKey(participantName))
-                return;
-
             // when somebody changes its nickname we first receive
             // event for its nickname changed and after that that has joined
             // we check is this already joined and if so we skip it
-            if(members.contains(participantName))
+            if (nickname.equals(participantName)
+                || members.containsKey(participantName))
                 return;
 
             Occupant occupant = multiUserChat.getOccupant(participant);
@@ -1155,7 +1192,7 @@ public void joined(String participant)
                   StringEscapeUtils.unescapeXml(occupant.getNick()),
                   occupant.getJid());
 
-            members.put(participantName, member);
+            addMember(participantName, member);
 
             //we don't specify a reason
             fireMemberPresenceEvent(member,
@@ -1182,10 +1219,7 @@ public void left(String participant)
                 return;
 
             String participantName = StringUtils.parseResource(participant);
-            synchronized (members)
-            {
-                members.remove(participantName);
-            }
+            removeMember(participantName);
 
             fireMemberPresenceEvent(member,
                 ChatRoomMemberPresenceChangeEvent.MEMBER_LEFT, null);
@@ -1218,7 +1252,14 @@ public void nicknameChanged(String participant, String newNickname)
             {
                 // chnage the member key
                 ChatRoomMemberJabberImpl mem = members.remove(participantName);
-                members.put(newNickname, mem);
+                if (mem != null)
+                {
+                    ChatRoomMemberJabberImpl oldMember
+                        = members.put(newNickname, mem);
+
+                    if (oldMember != null && oldMember != mem)
+                        memberList.remove(oldMember);
+                }
             }
 
             ChatRoomMemberPropertyChangeEvent evt
@@ -1276,10 +1317,7 @@ public void kicked(String participant, String actor, String reason)
                 return;
 
             String participantName = StringUtils.parseResource(participant);
-            synchronized (members)
-            {
-                members.remove(participantName);
-            }
+            removeMember(participantName);
 
             fireMemberPresenceEvent(member, actorMember,
                 ChatRoomMemberPresenceChangeEvent.MEMBER_KICKED, reason);
@@ -2532,10 +2570,7 @@ public boolean isPersistent()
      */
     public ChatRoomMemberJabberImpl findMemberForNickName(String jabberID)
     {
-        synchronized (members)
-        {
-            return members.get(jabberID);
-        }
+        return members.get(jabberID);
     }
 
    /**
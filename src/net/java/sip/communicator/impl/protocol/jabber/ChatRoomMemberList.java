@@ -0,0 +1,210 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * The members of a chat room in the order they joined, which hands out
+ * read-only views of itself without copying the members.
+ * <p>
+ * The members are kept at the beginning of an array. A view is the array
+ * with the number of members it had when the view was taken. Adding a member
+ * writes after the members the views see, so it does not copy the array and
+ * taking a view after each member joins a room costs nothing. Only removing a
+ * member while there are views of the array, or growing the array, copies it.
+ * </p>
+ */
+class ChatRoomMemberList
+{
+    /**
+     * The initial length of {@link #members}.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The members, followed by unused slots.
+     */
+    private ChatRoomMember[] members = new ChatRoomMember[INITIAL_CAPACITY];
+
+    /**
+     * The number of members at the beginning of {@link #members}.
+     */
+    private int size = 0;
+
+    /**
+     * Whether views of {@link #members} have been handed out, in which case
+     * the slots before {@link #size} must not be changed.
+     */
+    private boolean shared = false;
+
+    /**
+     * The view of the current members returned by {@link #getMembers()} or
+     * <tt>null</tt> if the members have changed since it was taken.
+     */
+    private volatile List<ChatRoomMember> view;
+
+    /**
+     * Adds a member at the end of this list.
+     *
+     * @param member the member to add.
+     */
+    synchronized void add(ChatRoomMember member)
+    {
+        if (size == members.length)
+        {
+            // The views keep the old array.
+            members = Arrays.copyOf(members, size * 2);
+            shared = false;
+        }
+        members[size++] = member;
+        view = null;
+    }
+
+    /**
+     * Removes a member from this list.
+     *
+     * @param member the member to remove.
+     * @return <tt>true</tt> if the member was in this list; otherwise,
+     * <tt>false</tt>.
+     */
+    synchronized boolean remove(ChatRoomMember member)
+    {
+        int index = -1;
+
+        for (int i = size - 1; i >= 0; i--)
+        {
+            if (members[i] == member)
+            {
+                index = i;
+                break;
+            }
+        }
+        if (index == -1)
+            return false;
+
+        if (shared)
+        {
+            ChatRoomMember[] newMembers = new ChatRoomMember[members.length];
+
+            System.arraycopy(members, 0, newMembers, 0, index);
+            System.arraycopy(
+                    members, index + 1,
+                    newMembers, index,
+                    size - index - 1);
+            members = newMembers;
+            shared = false;
+        }
+        else
+        {
+            System.arraycopy(
+                    members, index + 1,
+                    members, index,
+                    size - index - 1);
+        }
+        members[--size] = null;
+        view = null;
+        return true;
+    }
+
+    /**
+     * Removes all the members of this list.
+     */
+    synchronized void clear()
+    {
+        members = new ChatRoomMember[INITIAL_CAPACITY];
+        size = 0;
+        shared = false;
+        view = null;
+    }
+
+    /**
+     * Gets a read-only view of the members of this list at the time of the
+     * call, which the later changes of this list do not affect.
+     *
+     * @return the members of this list.
+     */
+    List<ChatRoomMember> getMembers()
+    {
+        List<ChatRoomMember> view = this.view;
+
+        if (view == null)
+        {
+            synchronized (this)
+            {
+                view = this.view;
+                if (view == null)
+                {
+                    view = new View(members, size);
+                    shared = true;
+                    this.view = view;
+                }
+            }
+        }
+        return view;
+    }
+
+    /**
+     * A read-only view of the first members of an array.
+     */
+    private static class View
+        extends AbstractList<ChatRoomMember>
+        implements RandomAccess
+    {
+        /**
+         * The array of the members.
+         */
+        private final ChatRoomMember[] members;
+
+        /**
+         * The number of members of this view.
+         */
+        private final int size;
+
+        /**
+         * Initializes a new <tt>View</tt>.
+         *
+         * @param members the array of the members.
+         * @param size the number of members of the view.
+         */
+        View(ChatRoomMember[] members, int size)
+        {
+            this.members = members;
+            this.size = size;
+        }
+
+        @Override
+        public ChatRoomMember get(int index)
+        {
+            if (index < 0 || index >= size)
+            {
+                throw new IndexOutOfBoundsException(
+                        "Index: " + index + ", Size: " + size);
+            }
+            return members[index];
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.service.customavatar.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.ServerStoredDetails.*;
+import net.java.sip.communicator.service.protocol.event.*;
+import net.java.sip.communicator.util.*;
+
+import org.osgi.framework.*;
+
+/**
+ * Retrieves the avatars of the contacts of an account.
+ * <p>
+ * The vCards are loaded by a pool of threads shared by all the accounts, with
+ * up to {@link #MAX_REQUESTS_PER_ACCOUNT} of them in flight for an account,
+ * so that the avatars of a large roster do not arrive one vCard round trip
+ * after the other. The contacts which are online are served first because the
+ * contact list shows them. An avatar is looked up by the SHA-1 hash that the
+ * contact advertises (XEP-0153), among the avatars which were retrieved
+ * recently and in the avatar cache, before its vCard is requested.
+ * </p>
+ */
+class ContactAvatarRetriever
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ContactAvatarRetriever</tt> class
+     * and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ContactAvatarRetriever.class);
+
+    /**
+     * The number of threads which retrieve the avatars of all the accounts.
+     */
+    private static final int POOL_SIZE = 8;
+
+    /**
+     * The maximum number of avatars which are retrieved at the same time for
+     * an account.
+     */
+    private static final int MAX_REQUESTS_PER_ACCOUNT = 4;
+
+    /**
+     * The maximum number of avatars in {@link #avatarsByHash}.
+     */
+    private static final int MAX_AVATARS_BY_HASH = 128;
+
+    /**
+     * The threads which retrieve the avatars of all the accounts.
+     */
+    private static final ThreadPoolExecutor executor;
+
+    static
+    {
+        executor
+            = new ThreadPoolExecutor(
+                    POOL_SIZE, POOL_SIZE,
+                    60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory()
+                    {
+                        private final AtomicInteger count
+                            = new AtomicInteger();
+
+                        public Thread newThread(Runnable r)
+                        {
+                            Thread t
+                                = new Thread(
+                                        r,
+                                        ContactAvatarRetriever.class
+                                                .getSimpleName()
+                                            + "-" + count.incrementAndGet());
+
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The avatars which were retrieved recently by the SHA-1 hash of their
+     * bytes, so that the contacts sharing an avatar do not retrieve it again.
+     */
+    private static final Map<String, byte[]> avatarsByHash
+        = new LinkedHashMap<String, byte[]>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, byte[]> eldest)
+            {
+                return size() > MAX_AVATARS_BY_HASH;
+            }
+        };
+
+    /**
+     * The operation set which fires the changes of the avatars.
+     */
+    private final OperationSetPersistentPresenceJabberImpl parentOperationSet;
+
+    /**
+     * The retriever of the vCards of the contacts.
+     */
+    private final InfoRetreiver infoRetreiver;
+
+    /**
+     * The requests waiting for a thread, the most urgent first.
+     */
+    private final PriorityQueue<Request> requests
+        = new PriorityQueue<Request>();
+
+    /**
+     * The requests waiting for a thread by contact.
+     */
+    private final Map<ContactJabberImpl, Request> requestsByContact
+        = new HashMap<ContactJabberImpl, Request>();
+
+    /**
+     * The number of requests of this retriever being executed.
+     */
+    private int requestsInFlight = 0;
+
+    /**
+     * The number of requests queued so far, which orders the requests of the
+     * same priority.
+     */
+    private long requestCount = 0;
+
+    /**
+     * Whether this retriever has been stopped.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Creates a retriever of the avatars of the contacts of an account.
+     *
+     * @param parentOperationSet the operation set which fires the changes of
+     * the avatars.
+     * @param infoRetreiver the retriever of the vCards of the contacts.
+     */
+    ContactAvatarRetriever(
+            OperationSetPersistentPresenceJabberImpl parentOperationSet,
+            InfoRetreiver infoRetreiver)
+    {
+        this.parentOperationSet = parentOperationSet;
+        this.infoRetreiver = infoRetreiver;
+    }
+
+    /**
+     * Schedules the retrieval of the avatar of a contact.
+     *
+     * @param contact the contact.
+     * @param photoHash the SHA-1 hash of the avatar that the contact
+     * advertises, empty if it has none, or <tt>null</tt> if it is unknown.
+     */
+    synchronized void addContact(ContactJabberImpl contact, String photoHash)
+    {
+        if (stopped)
+            return;
+
+        PresenceStatus status = contact.getPresenceStatus();
+        boolean online = (status != null) && status.isOnline();
+        Request request = requestsByContact.remove(contact);
+
+        if (request != null)
+        {
+            requests.remove(request);
+            if (photoHash == null)
+                photoHash = request.photoHash;
+            // keep the place of the contact in the queue
+            request
+                = new Request(
+                        contact, photoHash,
+                        online || request.online,
+                        request.sequence);
+        }
+        else
+        {
+            request = new Request(contact, photoHash, online, requestCount++);
+        }
+        requests.add(request);
+        requestsByContact.put(contact, request);
+
+        executeRequests();
+    }
+
+    /**
+     * Stops retrieving avatars.
+     */
+    synchronized void stop()
+    {
+        stopped = true;
+        requests.clear();
+        requestsByContact.clear();
+    }
+
+    /**
+     * Has the pool execute the waiting requests while less than
+     * {@link #MAX_REQUESTS_PER_ACCOUNT} of them are being executed.
+     */
+    private void executeRequests()
+    {
+        while (!requests.isEmpty()
+                && (requestsInFlight < MAX_REQUESTS_PER_ACCOUNT))
+        {
+            final Request request = requests.poll();
+
+            requestsByContact.remove(request.contact);
+            requestsInFlight++;
+            executor.execute(
+                    new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                retrieve(request);
+                            }
+                            catch (Throwable t)
+                            {
+                                logger.error(
+                                        "Failed to retrieve the avatar of "
+                                            + request.contact,
+                                        t);
+                            }
+                            finally
+                            {
+                                synchronized (ContactAvatarRetriever.this)
+                                {
+                                    requestsInFlight--;
+                                    if (!stopped)
+                                        executeRequests();
+                                }
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Retrieves the avatar of a contact and sets it.
+     *
+     * @param request the request for the avatar of the contact.
+     */
+    private void retrieve(Request request)
+    {
+        ContactJabberImpl contact = request.contact;
+        byte[] oldImage = contact.getImage(false);
+        String photoHash = request.photoHash;
+        byte[] image;
+
+        if (photoHash == null)
+        {
+            image = AvatarCacheUtils.getCachedAvatar(contact);
+            if (image == null)
+            {
+                image = getAvatar(contact, false);
+                // set an empty image data so it won't be queried again
+                if (image == null)
+                    image = new byte[0];
+            }
+        }
+        else if (photoHash.length() == 0)
+        {
+            // the contact has removed its avatar from the server
+            if ((oldImage != null) && (oldImage.length == 0))
+                return;
+            image = new byte[0];
+        }
+        else
+        {
+            if (photoHash.equalsIgnoreCase(
+                    VCardTempXUpdatePresenceExtension.getImageSha1(oldImage)))
+                return;
+
+            synchronized (avatarsByHash)
+            {
+                image = avatarsByHash.get(photoHash.toLowerCase());
+            }
+            if (image == null)
+            {
+                byte[] cachedImage = AvatarCacheUtils.getCachedAvatar(contact);
+
+                if ((cachedImage != null)
+                        && photoHash.equalsIgnoreCase(
+                                VCardTempXUpdatePresenceExtension
+                                    .getImageSha1(cachedImage)))
+                    image = cachedImage;
+                else
+                    image = getAvatar(contact, true);
+            }
+            // keep the current avatar if the new one cannot be retrieved
+            if (image == null)
+                return;
+        }
+
+        if (image.length != 0)
+        {
+            String hash = VCardTempXUpdatePresenceExtension.getImageSha1(image);
+
+            if (hash != null)
+            {
+                synchronized (avatarsByHash)
+                {
+                    avatarsByHash.put(hash.toLowerCase(), image);
+                }
+            }
+        }
+
+        synchronized (this)
+        {
+            if (stopped)
+                return;
+        }
+
+        contact.setImage(image);
+        if ((image.length != 0) || (photoHash != null))
+        {
+            parentOperationSet.fireContactPropertyChangeEvent(
+                    ContactPropertyChangeEvent.PROPERTY_IMAGE,
+                    contact, oldImage, image);
+        }
+    }
+
+    /**
+     * Retrieves the avatar of a contact from its vCard or from the custom
+     * avatar services.
+     *
+     * @param contact the contact.
+     * @param reload <tt>true</tt> to request the vCard of the contact even if
+     * it has already been retrieved.
+     * @return the avatar of the contact or <tt>null</tt> if none was found.
+     */
+    private byte[] getAvatar(ContactJabberImpl contact, boolean reload)
+    {
+        String address = contact.getAddress();
+        byte[] result = null;
+
+        try
+        {
+            List<GenericDetail> details
+                = reload
+                    ? infoRetreiver.retrieveDetails(address)
+                    : infoRetreiver.getContactDetails(address);
+
+            if (details != null)
+            {
+                for (GenericDetail detail : details)
+                {
+                    if (detail.getClass().equals(ImageDetail.class))
+                    {
+                        result = ((ImageDetail) detail).getBytes();
+                        break;
+                    }
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            if (logger.isDebugEnabled())
+            {
+                logger.debug(
+                        "Cannot load image for contact "
+                            + contact
+                            + ": "
+                            + ex.getMessage(),
+                        ex);
+            }
+        }
+
+        if (result == null)
+            result = searchForCustomAvatar(address);
+        return result;
+    }
+
+    /**
+     * Query custom avatar services and returns the first found avtar.
+     * @return the found avatar if any.
+     */
+    private static byte[] searchForCustomAvatar(String address)
+    {
+        try
+        {
+            ServiceReference[] refs =  JabberActivator.bundleContext
+                .getServiceReferences(CustomAvatarService.class.getName(), null);
+
+            if(refs == null)
+                return null;
+
+            for(ServiceReference r : refs)
+            {
+                CustomAvatarService avatarService =
+                    (CustomAvatarService)JabberActivator
+                        .bundleContext.getService(r);
+
+                byte[] res = avatarService.getAvatar(address);
+
+                if(res != null)
+                    return res;
+            }
+        }
+        catch(Throwable t)
+        {
+            // if something is wrong just return empty image
+        }
+
+        return null;
+    }
+
+    /**
+     * A request for the avatar of a contact.
+     */
+    private static class Request
+        implements Comparable<Request>
+    {
+        /**
+         * The contact.
+         */
+        final ContactJabberImpl contact;
+
+        /**
+         * The SHA-1 hash of the avatar that the contact advertises or
+         * <tt>null</tt> if it is unknown.
+         */
+        final String photoHash;
+
+        /**
+         * Whether the contact is online, in which case it is shown in the
+         * contact list and its request is served first.
+         */
+        final boolean online;
+
+        /**
+         * The order of the request among the requests of the same priority.
+         */
+        final long sequence;
+
+        /**
+         * Creates a request.
+         *
+         * @param contact the contact.
+         * @param photoHash the SHA-1 hash of the avatar that the contact
+         * advertises or <tt>null</tt>.
+         * @param online whether the contact is online.
+         * @param sequence the order of the request.
+         */
+        Request(
+                ContactJabberImpl contact,
+                String photoHash,
+                boolean online,
+                long sequence)
+        {
+            this.contact = contact;
+            this.photoHash = photoHash;
+            this.online = online;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Request other)
+        {
+            if (online != other.online)
+                return online ? -1 : 1;
+            return
+                (sequence < other.sequence)
+                    ? -1
+                    : ((sequence == other.sequence) ? 0 : 1);
+        }
+    }
+}
@@ -50,6 +50,22 @@
     private static final Logger logger =
         Logger.getLogger(OperationSetPersistentPresenceJabberImpl.class);
 
+    /**
+     * Property to specify the time in milliseconds during which the presences
+     * received from the roster are gathered before they are processed, so
+     * that only the latest presence of each resource is processed. Zero
+     * processes every presence as soon as it is received.
+     */
+    public static final String PRESENCE_COALESCING_WINDOW_PROP =
+        "net.java.sip.communicator.impl.protocol.jabber"
+            + ".PRESENCE_COALESCING_WINDOW";
+
+    /**
+     * The default time in milliseconds during which the presences received
+     * from the roster are gathered before they are processed.
+     */
+    private static final long DEFAULT_PRESENCE_COALESCING_WINDOW = 100;
+
     /**
      * Contains our current status message. Note that this field would only
      * be changed once the server has confirmed the new status message and
@@ -1124,6 +1140,12 @@ else if(evt.getNewState() == RegistrationState.UNREGISTERED
                     parentProvider.getJabberStatusEnum().getStatus(
                         JabberStatusEnum.OFFLINE);
                 currentStatus = offlineStatus;
+
+                // drop the presences waiting to be processed, or they will
+                // bring back the contacts we are about to set offline
+                if(contactChangesListener != null)
+                    contactChangesListener.stop();
+
                 clearLocalContactResources();
 
                 fireProviderStatusChangeEvent(oldStatus, currentStatus);
@@ -1397,6 +1419,49 @@ private void updateContactStatus(
         private final Map<String, TreeSet<Presence>> statuses =
             new Hashtable<String, TreeSet<Presence>>();
 
+        /**
+         * The time in milliseconds during which the presences received from
+         * the roster are gathered before they are processed.
+         */
+        private final long coalescingWindow;
+
+        /**
+         * The presences received from the roster and not processed yet, by
+         * bare address then by full address, only the latest presence of each
+         * full address being kept. Both are in the order the addresses were
+         * first received.
+         */
+        private final Map<String, Map<String, Presence>> pendingPresences
+            = new LinkedHashMap<String, Map<String, Presence>>();
+
+        /**
+         * The timer which processes {@link #pendingPresences}.
+         */
+        private Timer dispatcher = null;
+
+        /**
+         * Whether the processing of {@link #pendingPresences} is scheduled.
+         */
+        private boolean dispatchScheduled = false;
+
+        /**
+         * Whether this listener has been stopped and is to drop the presences
+         * it receives.
+         */
+        private volatile boolean stopped = false;
+
+        /**
+         * Creates the listener, reading the time during which presences are
+         * gathered from the configuration.
+         */
+        ContactChangesListener()
+        {
+            coalescingWindow
+                = JabberActivator.getConfigurationService().getLong(
+                        PRESENCE_COALESCING_WINDOW_PROP,
+                        DEFAULT_PRESENCE_COALESCING_WINDOW);
+        }
+
         /**
          * Not used here.
          * @param addresses list of addresses added
@@ -1430,7 +1495,106 @@ public void rosterError(XMPPError error, Packet packet)
          */
         public void presenceChanged(Presence presence)
         {
-            firePresenceStatusChanged(presence);
+            if(coalescingWindow <= 0)
+            {
+                firePresenceStatusChanged(presence);
+                return;
+            }
+
+            // A contact may change its resources several times in a row,
+            // while logging in for example. We process only the latest
+            // presence of each resource, and all the resources of a contact
+            // at once.
+            synchronized(pendingPresences)
+            {
+                if(stopped)
+                    return;
+
+                addPresence(pendingPresences, presence);
+
+                if(dispatchScheduled)
+                    return;
+
+                if(dispatcher == null)
+                    dispatcher = new Timer("Jabber presence dispatcher", true);
+                dispatcher.schedule(new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        dispatchPendingPresences();
+                    }
+                }, coalescingWindow);
+                dispatchScheduled = true;
+            }
+        }
+
+        /**
+         * Processes the presences gathered by
+         * {@link #presenceChanged(Presence)}.
+         */
+        private void dispatchPendingPresences()
+        {
+            List<Map<String, Presence>> presences;
+
+            synchronized(pendingPresences)
+            {
+                dispatchScheduled = false;
+                presences = new ArrayList<Map<String, Presence>>(
+                        pendingPresences.values());
+                pendingPresences.clear();
+            }
+
+            for(Map<String, Presence> contactPresences : presences)
+            {
+                if(stopped)
+                    return;
+
+                firePresenceStatusChanged(contactPresences.values());
+            }
+        }
+
+        /**
+         * Adds a presence to presences grouped by bare address then by full
+         * address, replacing the previous presence of its full address.
+         *
+         * @param presences the presences by bare address then by full address
+         * @param presence the presence to add
+         */
+        private void addPresence(
+                Map<String, Map<String, Presence>> presences,
+                Presence presence)
+        {
+            String from = presence.getFrom();
+            String bareAddress = StringUtils.parseBareAddress(from);
+            Map<String, Presence> contactPresences = presences.get(bareAddress);
+
+            if(contactPresences == null)
+            {
+                contactPresences = new LinkedHashMap<String, Presence>();
+                presences.put(bareAddress, contactPresences);
+            }
+            contactPresences.put(from, presence);
+        }
+
+        /**
+         * Drops the presences which have not been processed yet and stops
+         * processing those which are received.
+         */
+        void stop()
+        {
+            synchronized(pendingPresences)
+            {
+                stopped = true;
+                pendingPresences.clear();
+
+                if(dispatcher != null)
+                {
+                    dispatcher.cancel();
+                    dispatcher = null;
+                }
+                dispatchScheduled = false;
+            }
         }
 
         /**
@@ -1466,9 +1630,18 @@ void storeEvents()
         void processStoredEvents()
         {
             storeEvents = false;
+
+            // only the latest presence of each resource matters
+            Map<String, Map<String, Presence>> latestPresences
+                = new LinkedHashMap<String, Map<String, Presence>>();
             for(Presence p : storedPresences)
             {
-                firePresenceStatusChanged(p);
+                addPresence(latestPresences, p);
+            }
+            for(Map<String, Presence> contactPresences
+                    : latestPresences.values())
+            {
+                firePresenceStatusChanged(contactPresences.values());
             }
             storedPresences.clear();
             storedPresences = null;
@@ -1480,13 +1653,49 @@ void processStoredEvents()
          * @param presence the presence changed.
          */
         void firePresenceStatusChanged(Presence presence)
+        {
+            firePresenceStatusChanged(Collections.singletonList(presence));
+        }
+
+        /**
+         * Updates the statuses of the resources with presences received
+         * together, then fires the status change of each of their contacts
+         * once, respecting resource priorities.
+         *
+         * @param presences the presences changed.
+         */
+        void firePresenceStatusChanged(Collection<Presence> presences)
         {
             if(storeEvents && storedPresences != null)
             {
-                storedPresences.add(presence);
+                storedPresences.addAll(presences);
                 return;
             }
 
+            // the last presence of each contact
+            Map<String, Presence> lastPresences
+                = new LinkedHashMap<String, Presence>();
+
+            for(Presence presence : presences)
+            {
+                String userID = updateResourceStatus(presence);
+
+                if(userID != null)
+                    lastPresences.put(userID, presence);
+            }
+            for(Map.Entry<String, Presence> e : lastPresences.entrySet())
+                fireContactStatusChanged(e.getKey(), e.getValue());
+        }
+
+        /**
+         * Updates the status of the resource which sent a presence.
+         *
+         * @param presence the presence changed.
+         * @return the ID of the contact of the resource or <tt>null</tt> if
+         * the presence could not be processed.
+         */
+        private String updateResourceStatus(Presence presence)
+        {
             try
             {
                 String userID
@@ -1582,8 +1791,34 @@ public int compare(Presence o1, Presence o2)
                     userStats.add(presence);
                 }
 
+                return userID;
+            }
+            catch (IllegalStateException ex)
+            {
+                logger.error("Failed changing status", ex);
+            }
+            catch (IllegalArgumentException ex)
+            {
+                logger.error("Failed changing status", ex);
+            }
+            return null;
+        }
+
+        /**
+         * Fires the status change of a contact once the statuses of its
+         * resources are up to date, respecting resource priorities.
+         *
+         * @param userID the ID of the contact.
+         * @param presence the last presence changed of the contact.
+         */
+        private void fireContactStatusChanged(String userID, Presence presence)
+        {
+            try
+            {
+                TreeSet<Presence> userStats = statuses.get(userID);
+
                 Presence currentPresence;
-                if (userStats.size() == 0)
+                if (userStats == null || userStats.size() == 0)
                 {
                     currentPresence = presence;
 
@@ -2009,52 +2244,21 @@ public void parseContactPhotoPresence(Packet packet)
                     VCardTempXUpdatePresenceExtension.NAMESPACE);
         if(defaultPacketExtension != null)
         {
-            try
+            String packetPhotoSHA1 = defaultPacketExtension.getValue("photo");
+            // If this presence packet has a photo tag with a SHA-1 hash
+            // which differs from the current avatar SHA-1 hash, then Jitsi
+            // retrieves the new avatar image and updates this contact image
+            // in the contact list. The avatar is retrieved in the background
+            // in order to not block the processing of the incoming packets.
+            if(packetPhotoSHA1 != null
+                    && !packetPhotoSHA1.equals(
+                        VCardTempXUpdatePresenceExtension.getImageSha1(
+                            currentAvatar))
+              )
             {
-                String packetPhotoSHA1 =
-                    defaultPacketExtension.getValue("photo");
-                // If this presence packet has a photo tag with a SHA-1 hash
-                // which differs from the current avatar SHA-1 hash, then Jitsi
-                // retrieves the new avatar image and updates this contact image
-                // in the contact list.
-                if(packetPhotoSHA1 != null
-                        && !packetPhotoSHA1.equals(
-                            VCardTempXUpdatePresenceExtension.getImageSha1(
-                                currentAvatar))
-                  )
-                {
-                    byte[] newAvatar = null;
-
-                    // If there is an avatar image, retrieves it.
-                    if(packetPhotoSHA1.length() != 0)
-                    {
-                        // Retrieves the new contact avatar image.
-                        VCard vCard = new VCard();
-                        vCard.load(parentProvider.getConnection(), userID);
-                        newAvatar = vCard.getAvatar();
-                    }
-                    // Else removes the current avatar image, since the contact
-                    // has removed it from the server.
-                    else
-                    {
-                        newAvatar = new byte[0];
-                    }
-
-                    // Sets the new avatar image to the Jitsi contact.
-                    sourceContact.setImage(newAvatar);
-                    // Fires a property change event to update the contact list.
-                    this.fireContactPropertyChangeEvent(
-                        ContactPropertyChangeEvent.PROPERTY_IMAGE,
+                ssContactList.addContactForImageUpdate(
                         sourceContact,
-                        currentAvatar,
-                        newAvatar);
-                }
-            }
-            catch(XMPPException ex)
-            {
-                logger.info("Cannot retrieve vCard from: " + packet.getFrom());
-                if(logger.isTraceEnabled())
-                    logger.trace("vCard retrieval exception was: ", ex);
+                        packetPhotoSHA1);
             }
         }
     }
@@ -759,6 +759,25 @@ private void requestDiscoveryInfo(final String entityID,
         {
             try
             {
+                /*
+                 * Another entity with the same caps may have been processed
+                 * since this one was scheduled, there is no need to query
+                 * again for capabilities which we already know.
+                 */
+                if ((caps != null)
+                        && (EntityCapsManager.getDiscoverInfoByCaps(caps)
+                                != null))
+                {
+                    if (capabilitiesOpSet != null)
+                    {
+                        capabilitiesOpSet.fireContactCapabilitiesChanged(
+                            entityID,
+                            capsManager.getFullJidsByBareJid(
+                                StringUtils.parseBareAddress(entityID)));
+                    }
+                    return;
+                }
+
                 DiscoverInfo discoverInfo = discoverInfo(
                             entityID,
                             (caps == null ) ? null : caps.getNodeVer());
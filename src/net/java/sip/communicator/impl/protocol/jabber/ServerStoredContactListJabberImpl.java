@@ -19,7 +19,6 @@
 
 import java.util.*;
 
-import net.java.sip.communicator.service.customavatar.*;
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 import net.java.sip.communicator.util.*;
@@ -29,7 +28,6 @@
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.util.*;
 import org.jivesoftware.smackx.packet.*;
-import org.osgi.framework.*;
 
 /**
  * This class encapsulates the Roster class. Once created, it will
@@ -80,9 +78,14 @@
         = new Vector<ServerStoredGroupListener>();
 
     /**
-     *  Thread retreiving images for contacts
+     * Retrieves the images of the contacts.
      */
-    private ImageRetriever imageRetriever = null;
+    private ContactAvatarRetriever avatarRetriever = null;
+
+    /**
+     * The lock which protects {@link #avatarRetriever}.
+     */
+    private final Object avatarRetrieverLock = new Object();
 
     /**
      * Listens for roster changes.
@@ -948,10 +951,13 @@ void sendInitialStatus()
      */
     void cleanup()
     {
-        if(imageRetriever != null)
+        synchronized (avatarRetrieverLock)
         {
-            imageRetriever.quit();
-            imageRetriever = null;
+            if(avatarRetriever != null)
+            {
+                avatarRetriever.stop();
+                avatarRetriever = null;
+            }
         }
 
         if(this.roster != null)
@@ -1250,18 +1256,38 @@ void fireContactResolved( ContactGroup parentGroup,
      * @param contact ContactJabberImpl
      */
     protected void addContactForImageUpdate(ContactJabberImpl contact)
+    {
+        addContactForImageUpdate(contact, null);
+    }
+
+    /**
+     * Adds a contact for image update because it advertises an avatar which
+     * differs from its current image.
+     *
+     * @param contact ContactJabberImpl
+     * @param photoHash the SHA-1 hash of the avatar that the contact
+     * advertises, empty if it has none, or <tt>null</tt> if it is unknown.
+     */
+    void addContactForImageUpdate(
+            ContactJabberImpl contact,
+            String photoHash)
     {
         if(contact instanceof VolatileContactJabberImpl
             && ((VolatileContactJabberImpl)contact).isPrivateMessagingContact())
             return;
 
-        if(imageRetriever == null)
+        synchronized (avatarRetrieverLock)
         {
-            imageRetriever = new ImageRetriever();
-            imageRetriever.start();
-        }
+            if(avatarRetriever == null)
+            {
+                avatarRetriever
+                    = new ContactAvatarRetriever(
+                            parentOperationSet,
+                            infoRetreiver);
+            }
 
-        imageRetriever.addContact(contact);
+            avatarRetriever.addContact(contact, photoHash);
+        }
     }
 
     /**
@@ -1703,199 +1729,6 @@ public void presenceChanged(Presence presence)
         {}
     }
 
-    /**
-     * Thread retrieving images.
-     */
-    private class ImageRetriever
-        extends Thread
-    {
-        /**
-         * list with the accounts with missing image
-         */
-        private final List<ContactJabberImpl> contactsForUpdate
-            = new Vector<ContactJabberImpl>();
-
-        /**
-         * Should we stop.
-         */
-        private boolean running = false;
-
-        /**
-         * Creates image retrieving.
-         */
-        ImageRetriever()
-        {
-            setDaemon(true);
-        }
-
-        /**
-         * Thread entry point.
-         */
-        @Override
-        public void run()
-        {
-            try
-            {
-                Collection<ContactJabberImpl> copyContactsForUpdate = null;
-                running = true;
-                while (running)
-                {
-                    synchronized(contactsForUpdate)
-                    {
-                        if(contactsForUpdate.isEmpty())
-                            contactsForUpdate.wait();
-
-                        if(!running)
-                            return;
-
-                        copyContactsForUpdate
-                            = new Vector<ContactJabberImpl>(contactsForUpdate);
-                        contactsForUpdate.clear();
-                    }
-
-                    Iterator<ContactJabberImpl> iter
-                        = copyContactsForUpdate.iterator();
-                    while (iter.hasNext())
-                    {
-                        ContactJabberImpl contact = iter.next();
-
-                        byte[] imgBytes = getAvatar(contact);
-
-                        if(imgBytes != null)
-                        {
-                            byte[] oldImage = contact.getImage(false);
-
-                            contact.setImage(imgBytes);
-                            parentOperationSet.fireContactPropertyChangeEvent(
-                                ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                                contact, oldImage, imgBytes);
-                        }
-                        else
-                            // set an empty image data so it won't be queried again
-                            contact.setImage(new byte[0]);
-                    }
-                }
-            }
-            catch (InterruptedException ex)
-            {
-                logger.error("ImageRetriever error waiting will stop now!", ex);
-            }
-        }
-
-        /**
-         * Add contact for retrieving
-         * if the provider is register notify the retriever to get the nicks
-         * if we are not registered add a listener to wait for registering
-         *
-         * @param contact ContactJabberImpl
-         */
-        void addContact(ContactJabberImpl contact)
-        {
-            synchronized(contactsForUpdate)
-            {
-                if (!contactsForUpdate.contains(contact))
-                {
-                    contactsForUpdate.add(contact);
-                    contactsForUpdate.notifyAll();
-                }
-            }
-        }
-
-        /**
-         * Stops this thread.
-         */
-        void quit()
-        {
-            synchronized(contactsForUpdate)
-            {
-                running = false;
-                contactsForUpdate.notifyAll();
-            }
-        }
-
-        /**
-         * Retrieves the avatar.
-         * @param contact the contact.
-         * @return the contact avatar.
-         */
-        private byte[] getAvatar(ContactJabberImpl contact)
-        {
-            byte[] result = null;
-            try
-            {
-                Iterator<ServerStoredDetails.GenericDetail> iter =
-                    infoRetreiver.getDetails(contact.getAddress(),
-                    ServerStoredDetails.ImageDetail.class);
-
-                if(iter.hasNext())
-                {
-                    ServerStoredDetails.ImageDetail imgDetail =
-                        (ServerStoredDetails.ImageDetail)iter.next();
-                    result = imgDetail.getBytes();
-                }
-
-                if(result == null)
-                {
-                    result = searchForCustomAvatar(contact.getAddress());
-                }
-
-                return result;
-            }
-            catch (Exception ex)
-            {
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug(
-                            "Cannot load image for contact "
-                                + contact
-                                + ": "
-                                + ex.getMessage(),
-                            ex);
-                }
-
-                result = searchForCustomAvatar(contact.getAddress());
-                if(result == null)
-                    result = new byte[0];
-            }
-
-            return result;
-        }
-    }
-
-    /**
-     * Query custom avatar services and returns the first found avtar.
-     * @return the found avatar if any.
-     */
-    private byte[] searchForCustomAvatar(String address)
-    {
-        try
-        {
-            ServiceReference[] refs =  JabberActivator.bundleContext
-                .getServiceReferences(CustomAvatarService.class.getName(), null);
-
-            if(refs == null)
-                return null;
-
-            for(ServiceReference r : refs)
-            {
-                CustomAvatarService avatarService =
-                    (CustomAvatarService)JabberActivator
-                        .bundleContext.getService(r);
-
-                byte[] res = avatarService.getAvatar(address);
-
-                if(res != null)
-                    return res;
-            }
-        }
-        catch(Throwable t)
-        {
-            // if something is wrong just return empty image
-        }
-
-        return null;
-    }
-
     /**
      * Handles moving of contact from one group to another.
      *
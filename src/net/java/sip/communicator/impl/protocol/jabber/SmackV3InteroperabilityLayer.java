@@ -17,6 +17,7 @@
  */
 package net.java.sip.communicator.impl.protocol.jabber;
 
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 import net.java.sip.communicator.service.protocol.jabber.*;
 import org.jivesoftware.smack.provider.*;
 
@@ -53,6 +54,14 @@ public void addExtensionProvider(
             String elementName, String namespace, Object provider) 
     {
         providerManager.addExtensionProvider(elementName, namespace, provider);
+        // Smack also accepts the class of a bean, which is then looked up in
+        // the ProviderManager when it is needed.
+        ExtensionProviderRegistry.addExtensionProvider(
+                elementName,
+                namespace,
+                (provider instanceof PacketExtensionProvider)
+                    ? (PacketExtensionProvider) provider
+                    : null);
     }
 
     /**
@@ -19,6 +19,7 @@
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jivesoftware.smack.packet.*;
 
@@ -70,6 +71,14 @@
     private final List<PacketExtension> childExtensions
                                 = new ArrayList<PacketExtension>();
 
+    /**
+     * Whether the classes of the <tt>AbstractPacketExtension</tt>s serialized
+     * so far have to be serialized with {@link #toXML()} rather than
+     * {@link #toXML(StringBuilder)}.
+     */
+    private static final Map<Class<?>, Boolean> toXMLOverrides
+        = new ConcurrentHashMap<Class<?>, Boolean>();
+
     /**
      * Creates an {@link AbstractPacketExtension} instance for the specified
      * <tt>namespace</tt> and <tt>elementName</tt>.
@@ -124,18 +133,37 @@ public String toXML()
     {
         StringBuilder bldr = new StringBuilder();
 
-        bldr.append("<").append(getElementName()).append(" ");
+        toXML(bldr);
+        return bldr.toString();
+    }
+
+    /**
+     * Appends an XML representation of this extension to a specific
+     * <tt>StringBuilder</tt>. The child extensions which are
+     * <tt>AbstractPacketExtension</tt>s append themselves to the same
+     * <tt>StringBuilder</tt> so that a tree of extensions is serialized in a
+     * single pass.
+     * <p>
+     * Extensions which print something more elaborate than their attributes,
+     * child extensions and text should override this method rather than
+     * {@link #toXML()}.
+     *
+     * @param bldr the <tt>StringBuilder</tt> to append to.
+     */
+    public void toXML(StringBuilder bldr)
+    {
+        bldr.append("<").append(getElementName());
 
         String namespace = getNamespace();
 
         if(namespace != null)
-            bldr.append("xmlns='").append(namespace).append("'");
+            bldr.append(" xmlns='").append(namespace).append("'");
 
         //add the rest of the attributes if any
-        for(Map.Entry<String, Object> entry : attributes.entrySet())
+        synchronized(attributes)
         {
-            bldr.append(" ").append(entry.getKey()).append("='")
-                    .append(entry.getValue()).append("'");
+            for(Map.Entry<String, Object> entry : attributes.entrySet())
+                appendAttribute(bldr, entry.getKey(), entry.getValue());
         }
 
         //add child elements if any
@@ -148,7 +176,7 @@ public String toXML()
             if ((text == null) || (text.length() == 0))
             {
                 bldr.append("/>");
-                return bldr.toString();
+                return;
             }
             else
                 bldr.append('>');
@@ -161,13 +189,13 @@ public String toXML()
                         && ((text == null) || (text.length() == 0)))
                 {
                     bldr.append("/>");
-                    return bldr.toString();
+                    return;
                 }
                 else
                 {
                     bldr.append(">");
                     for(PacketExtension packExt : childElements)
-                        bldr.append(packExt.toXML());
+                        appendXML(bldr, packExt);
                     for(Packet packet : packets)
                         bldr.append(packet.toXML());
                 }
@@ -176,12 +204,133 @@ public String toXML()
 
         //text content if any
         if((text != null) && (text.trim().length() > 0))
-            bldr.append(text);
+            appendEscaped(bldr, text, false);
 
-        
         bldr.append("</").append(getElementName()).append(">");
+    }
 
-        return bldr.toString();
+    /**
+     * Appends an attribute to a specific <tt>StringBuilder</tt>, preceded by
+     * a space and with its value escaped.
+     *
+     * @param bldr the <tt>StringBuilder</tt> to append to.
+     * @param name the name of the attribute.
+     * @param value an {@link Object} whose <tt>toString()</tt> method returns
+     * the value of the attribute.
+     */
+    public static void appendAttribute(
+            StringBuilder bldr,
+            String name,
+            Object value)
+    {
+        bldr.append(" ").append(name).append("='");
+        appendEscaped(bldr, String.valueOf(value), true);
+        bldr.append("'");
+    }
+
+    /**
+     * Appends a string to a specific <tt>StringBuilder</tt>, escaping the
+     * characters which cannot appear as such in XML text or, if
+     * <tt>attribute</tt> is <tt>true</tt>, in an attribute value.
+     *
+     * @param bldr the <tt>StringBuilder</tt> to append to.
+     * @param str the string to escape.
+     * @param attribute <tt>true</tt> if <tt>str</tt> is an attribute value.
+     */
+    public static void appendEscaped(
+            StringBuilder bldr,
+            String str,
+            boolean attribute)
+    {
+        int length = str.length();
+        int start = 0;
+
+        for (int i = 0; i < length; i++)
+        {
+            String entity;
+
+            switch (str.charAt(i))
+            {
+            case '<':
+                entity = "&lt;";
+                break;
+            case '>':
+                entity = "&gt;";
+                break;
+            case '&':
+                entity = "&amp;";
+                break;
+            case '\'':
+                entity = attribute ? "&apos;" : null;
+                break;
+            case '"':
+                entity = attribute ? "&quot;" : null;
+                break;
+            default:
+                entity = null;
+                break;
+            }
+            if (entity != null)
+            {
+                bldr.append(str, start, i).append(entity);
+                start = i + 1;
+            }
+        }
+        bldr.append(str, start, length);
+    }
+
+    /**
+     * Appends the XML representation of a specific <tt>PacketExtension</tt>
+     * to a specific <tt>StringBuilder</tt>. <tt>AbstractPacketExtension</tt>s
+     * append themselves to <tt>bldr</tt> unless they only override
+     * {@link #toXML()}.
+     *
+     * @param bldr the <tt>StringBuilder</tt> to append to.
+     * @param extension the <tt>PacketExtension</tt> to append.
+     */
+    public static void appendXML(StringBuilder bldr, PacketExtension extension)
+    {
+        if ((extension instanceof AbstractPacketExtension)
+                && !overridesToXML(extension.getClass()))
+            ((AbstractPacketExtension) extension).toXML(bldr);
+        else
+            bldr.append(extension.toXML());
+    }
+
+    /**
+     * Determines whether a specific class overrides {@link #toXML()} more
+     * recently than {@link #toXML(StringBuilder)}, in which case its
+     * instances have to be serialized with the former.
+     *
+     * @param clazz the class of an <tt>AbstractPacketExtension</tt>.
+     * @return <tt>true</tt> if the instances of <tt>clazz</tt> have to be
+     * serialized with {@link #toXML()}.
+     */
+    private static boolean overridesToXML(Class<?> clazz)
+    {
+        Boolean overrides = toXMLOverrides.get(clazz);
+
+        if (overrides == null)
+        {
+            try
+            {
+                Class<?> stringDeclarer
+                    = clazz.getMethod("toXML").getDeclaringClass();
+                Class<?> builderDeclarer
+                    = clazz.getMethod("toXML", StringBuilder.class)
+                            .getDeclaringClass();
+
+                overrides
+                    = (stringDeclarer != builderDeclarer)
+                        && builderDeclarer.isAssignableFrom(stringDeclarer);
+            }
+            catch (NoSuchMethodException nsme)
+            {
+                overrides = Boolean.TRUE;
+            }
+            toXMLOverrides.put(clazz, overrides);
+        }
+        return overrides;
     }
 
     /**
@@ -17,9 +17,10 @@
  */
 package net.java.sip.communicator.impl.protocol.jabber.extensions;
 
+import java.lang.reflect.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
-import net.java.sip.communicator.service.protocol.jabber.*;
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.provider.*;
 import org.xmlpull.v1.*;
@@ -42,17 +43,30 @@
                     .getLogger(DefaultPacketExtensionProvider.class.getName());
 
     /**
-     * The <tt>AbstractSmackInteroperabilityLayer</tt> instance implementing
-     * necessary methods
+     * The maximum number of attribute names that a provider keeps in
+     * {@link #attributeNames}. The names of the attributes of an element are
+     * few but they are chosen by the sender.
      */
-    private AbstractSmackInteroperabilityLayer smackInteroperabilityLayer = 
-            AbstractSmackInteroperabilityLayer.getInstance();
-    
+    private static final int MAX_ATTRIBUTE_NAMES = 32;
+
     /**
      * The {@link Class} that the packets we will be parsing here belong to.
      */
     private final Class<C> packetClass;
 
+    /**
+     * The no-argument constructor of {@link #packetClass}, looked up once
+     * rather than for every parsed element.
+     */
+    private final Constructor<C> packetConstructor;
+
+    /**
+     * The attribute names that we have parsed so far, so that the attributes
+     * of all the extensions that we create share the same name instances.
+     */
+    private final ConcurrentMap<String, String> attributeNames
+        = new ConcurrentHashMap<String, String>();
+
     /**
      * Creates a new packet provider for the specified packet extensions.
      *
@@ -61,6 +75,68 @@
     public DefaultPacketExtensionProvider(Class<C> c)
     {
         this.packetClass = c;
+
+        Constructor<C> constructor;
+
+        try
+        {
+            constructor = c.getConstructor();
+        }
+        catch (NoSuchMethodException e)
+        {
+            // Class.newInstance() will report it when we try to parse.
+            constructor = null;
+        }
+        this.packetConstructor = constructor;
+    }
+
+    /**
+     * Creates a new instance of {@link #packetClass}.
+     *
+     * @return a new instance of {@link #packetClass}.
+     * @throws Exception if the instance cannot be created.
+     */
+    private C newPacketExtension()
+        throws Exception
+    {
+        if (packetConstructor == null)
+            return packetClass.newInstance();
+
+        try
+        {
+            return packetConstructor.newInstance();
+        }
+        catch (InvocationTargetException e)
+        {
+            Throwable cause = e.getCause();
+
+            throw (cause instanceof Exception) ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Returns a name equal to a specific attribute name, which is the same
+     * instance for all the attributes with this name that we parse.
+     *
+     * @param name the name of an attribute as returned by the parser.
+     * @return the name that the attribute is to be set with.
+     */
+    private String internAttributeName(String name)
+    {
+        String interned = attributeNames.get(name);
+
+        if (interned == null)
+        {
+            interned = name;
+            if (attributeNames.size() < MAX_ATTRIBUTE_NAMES)
+            {
+                String existing = attributeNames.putIfAbsent(name, name);
+
+                if (existing != null)
+                    interned = existing;
+            }
+        }
+        return interned;
     }
 
     /**
@@ -77,7 +153,7 @@ public DefaultPacketExtensionProvider(Class<C> c)
      */
     public C parseExtension(XmlPullParser parser) throws Exception
     {
-        C packetExtension = packetClass.newInstance();
+        C packetExtension = newPacketExtension();
 
         //first, set all attributes
         int attrCount = parser.getAttributeCount();
@@ -85,7 +161,7 @@ public C parseExtension(XmlPullParser parser) throws Exception
         for (int i = 0; i < attrCount; i++)
         {
             packetExtension.setAttribute(
-                            parser.getAttributeName(i),
+                            internAttributeName(parser.getAttributeName(i)),
                             parser.getAttributeValue(i));
         }
 
@@ -108,14 +184,16 @@ public C parseExtension(XmlPullParser parser) throws Exception
 
             if (eventType == XmlPullParser.START_TAG)
             {
-                PacketExtensionProvider provider = smackInteroperabilityLayer
-                        .getExtensionProvider( elementName, namespace );
+                PacketExtensionProvider provider
+                    = ExtensionProviderRegistry.getExtensionProvider(
+                            elementName, namespace);
 
                 if(provider == null)
                 {
                     //we don't know how to handle this kind of extensions.
-                    logger.fine("Could not add a provider for element "
-                        + elementName + " from namespace " + namespace);
+                    if (logger.isLoggable(Level.FINE))
+                        logger.fine("Could not add a provider for element "
+                            + elementName + " from namespace " + namespace);
                 }
                 else
                 {
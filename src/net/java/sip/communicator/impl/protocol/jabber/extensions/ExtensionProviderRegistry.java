@@ -0,0 +1,149 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions;
+
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.protocol.jabber.*;
+import org.jivesoftware.smack.provider.*;
+
+/**
+ * A table of the <tt>PacketExtensionProvider</tt>s by namespace and element
+ * name which the providers parsing nested elements (e.g.
+ * {@link DefaultPacketExtensionProvider}) use to find the provider of each
+ * child element.
+ * <p>
+ * Smack's <tt>ProviderManager</tt> builds a new key string for every lookup.
+ * The providers registered through the
+ * {@link AbstractSmackInteroperabilityLayer} are put here when they are
+ * registered and the others are copied here the first time they are looked
+ * up, so that looking up the provider of an element only hashes its namespace
+ * and its name.
+ */
+public class ExtensionProviderRegistry
+{
+    /**
+     * The providers by namespace and by element name.
+     */
+    private static final ConcurrentMap<String,
+                                       ConcurrentMap<String,
+                                                     PacketExtensionProvider>>
+        providers
+            = new ConcurrentHashMap<String,
+                                    ConcurrentMap<String,
+                                                  PacketExtensionProvider>>();
+
+    /**
+     * Adds the provider of an element to the table, replacing the one which
+     * was there.
+     *
+     * @param elementName the name of the element.
+     * @param namespace the namespace of the element.
+     * @param provider the provider to be used for the element or
+     * <tt>null</tt> to have it looked up again in the
+     * <tt>ProviderManager</tt> the next time it is needed.
+     */
+    public static void addExtensionProvider(
+            String elementName,
+            String namespace,
+            PacketExtensionProvider provider)
+    {
+        if (elementName == null)
+            return;
+
+        ConcurrentMap<String, PacketExtensionProvider> elements
+            = getElements(namespace);
+
+        if (provider == null)
+            elements.remove(elementName);
+        else
+            elements.put(elementName, provider);
+    }
+
+    /**
+     * Gets the provider of an element.
+     *
+     * @param elementName the name of the element.
+     * @param namespace the namespace of the element.
+     * @return the provider of the element or <tt>null</tt> if none is
+     * registered.
+     */
+    public static PacketExtensionProvider getExtensionProvider(
+            String elementName,
+            String namespace)
+    {
+        if (elementName == null)
+            return null;
+
+        ConcurrentMap<String, PacketExtensionProvider> elements
+            = providers.get((namespace == null) ? "" : namespace);
+        PacketExtensionProvider provider
+            = (elements == null) ? null : elements.get(elementName);
+
+        if (provider == null)
+        {
+            // Not registered through the interoperability layer or not looked
+            // up yet. The misses are not remembered because the provider may
+            // be registered later.
+            provider
+                = AbstractSmackInteroperabilityLayer.getInstance()
+                    .getExtensionProvider(elementName, namespace);
+            if (provider != null)
+            {
+                if (elements == null)
+                    elements = getElements(namespace);
+                PacketExtensionProvider existing
+                    = elements.putIfAbsent(elementName, provider);
+
+                if (existing != null)
+                    provider = existing;
+            }
+        }
+        return provider;
+    }
+
+    /**
+     * Gets the providers of the elements of a namespace, creating the table
+     * if it does not exist yet.
+     *
+     * @param namespace the namespace.
+     * @return the providers by element name of <tt>namespace</tt>.
+     */
+    private static ConcurrentMap<String, PacketExtensionProvider> getElements(
+            String namespace)
+    {
+        if (namespace == null)
+            namespace = "";
+
+        ConcurrentMap<String, PacketExtensionProvider> elements
+            = providers.get(namespace);
+
+        if (elements == null)
+        {
+            elements
+                = new ConcurrentHashMap<String, PacketExtensionProvider>();
+
+            ConcurrentMap<String, PacketExtensionProvider> existing
+                = providers.putIfAbsent(namespace, elements);
+
+            if (existing != null)
+                elements = existing;
+        }
+        return elements;
+    }
+}
@@ -27,6 +27,7 @@
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.util.OSUtils;
 import org.jivesoftware.smack.*;
 import org.jivesoftware.smack.filter.*;
@@ -68,13 +69,24 @@
     private static ConfigurationService configService;
 
     /**
-     * The prefix of the <tt>ConfigurationService</tt> properties which persist
-     * {@link #caps2discoverInfo}.
+     * The prefix of the <tt>ConfigurationService</tt> properties which
+     * persisted the entity capabilities before {@link #capsStore}. They are
+     * imported in the store when it is created.
      */
     private static final String CAPS_PROPERTY_NAME_PREFIX
         = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
             + "EntityCapsManager.CAPS.";
 
+    /**
+     * The name of the file, in the cache directory, of {@link #capsStore}.
+     */
+    private static final String CAPS_STORE_FILE_NAME = "entitycaps.bin";
+
+    /**
+     * The maximum number of entity capabilities in {@link #capsStore}.
+     */
+    private static final int CAPS_STORE_CAPACITY = 1000;
+
     /**
      * An empty array of <tt>UserCapsNodeListener</tt> elements explicitly
      * defined in order to reduce unnecessary allocations.
@@ -89,17 +101,15 @@
         = OSUtils.IS_ANDROID ? "http://android.jitsi.org" : "http://jitsi.org";
 
     /**
-     * The <tt>Map</tt> of <tt>Caps</tt> to <tt>DiscoverInfo</tt> which
-     * associates a node#ver with the entity capabilities so that they don't
-     * have to be retrieved every time their necessary. Because ver is
-     * constructed from the entity capabilities using a specific hash method,
-     * the hash method is also associated with the entity capabilities along
-     * with the node and the ver in order to disambiguate cases of equal ver
-     * values for different entity capabilities constructed using different hash
-     * methods.
+     * The store which associates a node#ver with the entity capabilities so
+     * that they don't have to be retrieved every time their necessary. Because
+     * ver is constructed from the entity capabilities using a specific hash
+     * method, the hash method is also associated with the entity capabilities
+     * along with the node and the ver in order to disambiguate cases of equal
+     * ver values for different entity capabilities constructed using different
+     * hash methods.
      */
-    private static final Map<Caps, DiscoverInfo> caps2discoverInfo
-        = new ConcurrentHashMap<Caps, DiscoverInfo>();
+    private static volatile EntityCapsStore capsStore;
 
     /**
      * Map of Full JID -&gt; DiscoverInfo/null. In case of c2s connection the
@@ -158,42 +168,112 @@ public static void addDiscoverInfoByCaps(Caps caps, DiscoverInfo info)
          */
         info.setNode(caps.getNodeVer());
 
-        synchronized (caps2discoverInfo)
+        /*
+         * Remember the specified info across application instances in order
+         * to not query for it over the network. The store only writes its file
+         * if the info is a new association for the specified node.
+         */
+        String xml = info.getChildElementXML();
+
+        if ((xml != null) && (xml.length() != 0))
+            getCapsStore().put(caps.getKey(), xml, info);
+    }
+
+    /**
+     * Returns the store of the entity capabilities, creating it if it does
+     * not exist yet. The entity capabilities persisted in the
+     * <tt>ConfigurationService</tt> by previous versions are imported in the
+     * store if it has no file yet.
+     *
+     * @return the store of the entity capabilities
+     */
+    private static EntityCapsStore getCapsStore()
+    {
+        EntityCapsStore store = capsStore;
+
+        if (store != null)
+            return store;
+
+        synchronized (EntityCapsManager.class)
         {
-            DiscoverInfo oldInfo = caps2discoverInfo.put(caps, info);
-
-            /*
-             * If the specified info is a new association for the specified
-             * node, remember it across application instances in order to not
-             * query for it over the network.
-             */
-            if ((oldInfo == null) || !oldInfo.equals(info))
-            {
-                String xml = info.getChildElementXML();
+            if (capsStore != null)
+                return capsStore;
+
+            File file = null;
+            FileAccessService fileAccessService
+                = (bundleContext == null)
+                    ? null
+                    : ServiceUtils.getService(
+                            bundleContext, FileAccessService.class);
 
-                if ((xml != null) && (xml.length() != 0))
+            if (fileAccessService != null)
+            {
+                try
+                {
+                    file
+                        = fileAccessService.getPrivatePersistentFile(
+                                CAPS_STORE_FILE_NAME,
+                                FileCategory.CACHE);
+                }
+                catch (Exception e)
                 {
-                    getConfigService()
-                        .setProperty(getCapsPropertyName(caps), xml);
+                    logger.error("Failed to get the entity caps file", e);
                 }
             }
+
+            store = new EntityCapsStore(file, CAPS_STORE_CAPACITY);
+            if ((bundleContext != null) && !store.exists())
+                importCapsProperties(store);
+            capsStore = store;
+            return store;
         }
     }
 
     /**
-     * Gets the name of the property in the <tt>ConfigurationService</tt> which
-     * is or is to be associated with a specific <tt>Caps</tt> value.
+     * Moves the entity capabilities persisted in the
+     * <tt>ConfigurationService</tt> by previous versions to a specific store.
+     * The properties are removed once the store has been written to its file,
+     * so that they do not bloat the configuration anymore.
      *
-     * @param caps the <tt>Caps</tt> value for which the associated
-     * <tt>ConfigurationService</tt> property name is to be returned
-     * @return the name of the property in the <tt>ConfigurationService</tt>
-     * which is or is to be associated with a specific <tt>Caps</tt> value
+     * @param store the store to move the entity capabilities to
      */
-    private static String getCapsPropertyName(Caps caps)
+    private static void importCapsProperties(EntityCapsStore store)
     {
-        return
-            CAPS_PROPERTY_NAME_PREFIX
-                + caps.node + '#' + caps.hash + '#' + caps.ver;
+        ConfigurationService configurationService = getConfigService();
+
+        if (configurationService == null)
+            return;
+
+        List<String> propertyNames
+            = configurationService.getPropertyNamesByPrefix(
+                    CAPS_PROPERTY_NAME_PREFIX,
+                    false);
+
+        if ((propertyNames == null) || propertyNames.isEmpty())
+            return;
+
+        for (String propertyName : propertyNames)
+        {
+            String xml = configurationService.getString(propertyName);
+
+            if ((xml != null) && (xml.length() != 0))
+            {
+                store.put(
+                        propertyName.substring(
+                                CAPS_PROPERTY_NAME_PREFIX.length()),
+                        xml,
+                        null);
+            }
+        }
+
+        // Keep the properties if the store could not be written, or the
+        // entity capabilities will be lost.
+        store.save();
+        if (store.exists())
+        {
+            for (String propertyName : propertyNames)
+                configurationService.removeProperty(propertyName);
+        }
     }
 
     /**
@@ -219,6 +299,15 @@ public static void setBundleContext(BundleContext bundleContext)
         if (bundleContext == null)
         {
             configService = null;
+
+            synchronized (EntityCapsManager.class)
+            {
+                if (capsStore != null)
+                {
+                    capsStore.save();
+                    capsStore = null;
+                }
+            }
         }
         EntityCapsManager.bundleContext = bundleContext;
     }
@@ -486,90 +575,78 @@ public void setNode(String node)
      */
     public static DiscoverInfo getDiscoverInfoByCaps(Caps caps)
     {
-        synchronized (caps2discoverInfo)
-        {
-            DiscoverInfo discoverInfo = caps2discoverInfo.get(caps);
+        EntityCapsStore store = getCapsStore();
+        String key = caps.getKey();
+        EntityCapsStore.Entry entry = store.get(key);
 
-            /*
-             * If we don't have the discoverInfo in the runtime cache yet, we
-             * may have it remembered in a previous application instance.
-             */
-            if (discoverInfo == null)
-            {
-                ConfigurationService configurationService
-                    = getConfigService();
-                String capsPropertyName = getCapsPropertyName(caps);
-                String xml = configurationService.getString(capsPropertyName);
+        if (entry == null)
+            return null;
 
-                if ((xml != null) && (xml.length() != 0))
+        DiscoverInfo discoverInfo = entry.discoverInfo;
+
+        /*
+         * If we haven't parsed the discoverInfo yet, we have it remembered in a
+         * previous application instance.
+         */
+        if (discoverInfo == null)
+        {
+            discoverInfo = parseDiscoverInfo(entry.xml);
+            if (discoverInfo != null)
+            {
+                if (caps.isValid(discoverInfo))
+                    entry.discoverInfo = discoverInfo;
+                else
                 {
-                    IQProvider discoverInfoProvider
-                        = (IQProvider)
-                            ProviderManager.getInstance().getIQProvider(
-                                    "query",
-                                    "http://jabber.org/protocol/disco#info");
+                    logger.error(
+                            "Invalid DiscoverInfo for "
+                                + caps.getNodeVer()
+                                + ": "
+                                + discoverInfo);
+                    /*
+                     * The discoverInfo doesn't seem valid according to the
+                     * caps which means that we must have stored invalid
+                     * information. Delete the invalid information in order to
+                     * not try to validate it again.
+                     */
+                    store.remove(key);
+                    discoverInfo = null;
+                }
+            }
+        }
+        return discoverInfo;
+    }
 
-                    if (discoverInfoProvider != null)
-                    {
-                        XmlPullParser parser = new MXParser();
+    /**
+     * Parses the XML of a <tt>DiscoverInfo</tt>.
+     *
+     * @param xml the XML of the <tt>DiscoverInfo</tt>
+     * @return the <tt>DiscoverInfo</tt> parsed from <tt>xml</tt> or
+     * <tt>null</tt> if it cannot be parsed
+     */
+    private static DiscoverInfo parseDiscoverInfo(String xml)
+    {
+        IQProvider discoverInfoProvider
+            = (IQProvider)
+                ProviderManager.getInstance().getIQProvider(
+                        "query",
+                        "http://jabber.org/protocol/disco#info");
 
-                        try
-                        {
-                            parser.setFeature(
-                                    XmlPullParser.FEATURE_PROCESS_NAMESPACES,
-                                    true);
-                            parser.setInput(new StringReader(xml));
-                            // Start the parser.
-                            parser.next();
-                        }
-                        catch (XmlPullParserException xppex)
-                        {
-                            parser = null;
-                        }
-                        catch (IOException ioex)
-                        {
-                            parser = null;
-                        }
+        if (discoverInfoProvider == null)
+            return null;
 
-                        if (parser != null)
-                        {
-                            try
-                            {
-                                discoverInfo
-                                    = (DiscoverInfo)
-                                        discoverInfoProvider.parseIQ(parser);
-                            }
-                            catch (Exception ex)
-                            {
-                            }
+        XmlPullParser parser = new MXParser();
 
-                            if (discoverInfo != null)
-                            {
-                                if (caps.isValid(discoverInfo))
-                                    caps2discoverInfo.put(caps, discoverInfo);
-                                else
-                                {
-                                    logger.error(
-                                            "Invalid DiscoverInfo for "
-                                                + caps.getNodeVer()
-                                                + ": "
-                                                + discoverInfo);
-                                    /*
-                                     * The discoverInfo doesn't seem valid
-                                     * according to the caps which means that we
-                                     * must have stored invalid information.
-                                     * Delete the invalid information in order
-                                     * to not try to validate it again.
-                                     */
-                                    configurationService.removeProperty(
-                                            capsPropertyName);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            return discoverInfo;
+        try
+        {
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(new StringReader(xml));
+            // Start the parser.
+            parser.next();
+            return (DiscoverInfo) discoverInfoProvider.parseIQ(parser);
+        }
+        catch (Exception ex)
+        {
+            return null;
         }
     }
 
@@ -1006,6 +1083,14 @@ else if (!online)
          */
         private final String nodeVer;
 
+        /**
+         * The String which is the concatenation of {@link #node},
+         * {@link #hash} and {@link #ver} separated by the character '#', which
+         * identifies this <tt>Caps</tt> value in the store of the entity
+         * capabilities. Cached for the sake of efficiency.
+         */
+        private final String key;
+
         /** The ver of this <tt>Caps</tt> value. */
         public final String ver;
 
@@ -1034,6 +1119,21 @@ public Caps(String node, String hash, String ver, String ext)
             this.ext = ext;
 
             this.nodeVer = this.node + '#' + this.ver;
+            this.key = this.node + '#' + this.hash + '#' + this.ver;
+        }
+
+        /**
+         * Gets a <tt>String</tt> which identifies this <tt>Caps</tt> value in
+         * the store of the entity capabilities i.e. the concatenation of the
+         * <tt>node</tt>, the <tt>hash</tt> and the <tt>ver</tt> properties of
+         * this instance separated by the character '#'.
+         *
+         * @return a <tt>String</tt> which identifies this <tt>Caps</tt> value
+         * in the store of the entity capabilities
+         */
+        final String getKey()
+        {
+            return key;
         }
 
         /**
@@ -0,0 +1,420 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions.caps;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jivesoftware.smackx.packet.*;
+
+/**
+ * The database of the entity capabilities which {@link EntityCapsManager}
+ * knows. It associates the node, the hash and the ver of entity capabilities
+ * with the XML of their <tt>DiscoverInfo</tt> and keeps the
+ * <tt>DiscoverInfo</tt> once it has been parsed.
+ * <p>
+ * The entries are looked up without locking and the least recently used ones
+ * are evicted when there are more than the capacity of the store. The store
+ * is read from its file the first time it is used and written to it a few
+ * seconds after it has been changed, so that the many entity capabilities
+ * discovered at login are written at once.
+ * </p>
+ */
+class EntityCapsStore
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>EntityCapsStore</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(EntityCapsStore.class);
+
+    /**
+     * The value which starts the file of a store, followed by its version.
+     */
+    private static final int FILE_MAGIC = 0x43415053;
+
+    /**
+     * The version of the format of the file of a store.
+     */
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * The time in milliseconds between a change of a store and its writing to
+     * its file.
+     */
+    private static final long SAVE_DELAY = 5000;
+
+    /**
+     * The entries of this store by key.
+     */
+    private final ConcurrentMap<String, Entry> entries
+        = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * The maximum number of entries of this store.
+     */
+    private final int capacity;
+
+    /**
+     * The file this store is saved in or <tt>null</tt> if it only lives in
+     * memory.
+     */
+    private final File file;
+
+    /**
+     * Whether {@link #file} has been read.
+     */
+    private volatile boolean loaded;
+
+    /**
+     * The <tt>Timer</tt> which writes this store to {@link #file}.
+     */
+    private Timer saveTimer;
+
+    /**
+     * Whether this store has been changed since it was last written to
+     * {@link #file}.
+     */
+    private boolean dirty;
+
+    /**
+     * Initializes a new <tt>EntityCapsStore</tt>.
+     *
+     * @param file the file the store is to be saved in or <tt>null</tt> if it
+     * is to only live in memory.
+     * @param capacity the maximum number of entries of the store.
+     */
+    EntityCapsStore(File file, int capacity)
+    {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the entry with a specific key.
+     *
+     * @param key the key of the entry.
+     * @return the entry with the specified key or <tt>null</tt> if there is
+     * none.
+     */
+    Entry get(String key)
+    {
+        if (!loaded)
+            load();
+
+        Entry entry = entries.get(key);
+
+        if (entry != null)
+            entry.lastUsed = System.currentTimeMillis();
+        return entry;
+    }
+
+    /**
+     * Associates a key with the XML of a <tt>DiscoverInfo</tt>.
+     *
+     * @param key the key of the entry.
+     * @param xml the XML of the <tt>DiscoverInfo</tt>.
+     * @param discoverInfo the <tt>DiscoverInfo</tt> or <tt>null</tt> if
+     * <tt>xml</tt> is yet to be parsed.
+     */
+    void put(String key, String xml, DiscoverInfo discoverInfo)
+    {
+        if (!loaded)
+            load();
+
+        synchronized (this)
+        {
+            Entry entry = entries.get(key);
+
+            if ((entry != null) && entry.xml.equals(xml))
+            {
+                if (discoverInfo != null)
+                    entry.discoverInfo = discoverInfo;
+                entry.lastUsed = System.currentTimeMillis();
+                return;
+            }
+
+            entry = new Entry(xml, System.currentTimeMillis());
+            entry.discoverInfo = discoverInfo;
+            entries.put(key, entry);
+            evict();
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Removes the entry with a specific key.
+     *
+     * @param key the key of the entry.
+     */
+    synchronized void remove(String key)
+    {
+        if (entries.remove(key) != null)
+            scheduleSave();
+    }
+
+    /**
+     * Gets whether the file of this store exists.
+     *
+     * @return <tt>true</tt> if the file of this store exists; otherwise,
+     * <tt>false</tt>.
+     */
+    boolean exists()
+    {
+        return (file != null) && file.exists();
+    }
+
+    /**
+     * Writes this store to its file now if it has been changed and stops
+     * waiting to write it.
+     */
+    synchronized void save()
+    {
+        if (saveTimer != null)
+        {
+            saveTimer.cancel();
+            saveTimer = null;
+        }
+        if (!dirty || (file == null))
+            return;
+        dirty = false;
+
+        List<Map.Entry<String, Entry>> sorted
+            = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+
+        // The least recently used entries first, so that the order survives.
+        Collections.sort(
+                sorted,
+                new Comparator<Map.Entry<String, Entry>>()
+                {
+                    public int compare(
+                            Map.Entry<String, Entry> e1,
+                            Map.Entry<String, Entry> e2)
+                    {
+                        long l1 = e1.getValue().lastUsed;
+                        long l2 = e2.getValue().lastUsed;
+
+                        return (l1 < l2) ? -1 : ((l1 == l2) ? 0 : 1);
+                    }
+                });
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+
+        try
+        {
+            File dir = file.getParentFile();
+
+            if ((dir != null) && !dir.exists() && !dir.mkdirs())
+            {
+                throw new IOException(
+                        "Failed to create directory: "
+                            + dir.getAbsolutePath());
+            }
+
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new GZIPOutputStream(
+                                        new FileOutputStream(tmpFile))));
+
+            try
+            {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(sorted.size());
+                for (Map.Entry<String, Entry> e : sorted)
+                {
+                    byte[] xml = e.getValue().xml.getBytes("UTF-8");
+
+                    out.writeUTF(e.getKey());
+                    out.writeInt(xml.length);
+                    out.write(xml);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+
+            if (file.exists() && !file.delete())
+                throw new IOException("Failed to delete " + file);
+            if (!tmpFile.renameTo(file))
+                throw new IOException("Failed to rename " + tmpFile);
+        }
+        catch (IOException ioe)
+        {
+            logger.warn("Failed to save entity capabilities to " + file, ioe);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Reads the entries of this store from its file unless it has been read
+     * already.
+     */
+    private synchronized void load()
+    {
+        if (loaded)
+            return;
+        try
+        {
+            if (exists())
+                read();
+        }
+        catch (IOException ioe)
+        {
+            logger.warn(
+                    "Failed to load entity capabilities from " + file,
+                    ioe);
+        }
+        finally
+        {
+            loaded = true;
+        }
+    }
+
+    /**
+     * Reads the entries of this store from its file.
+     *
+     * @throws IOException if the file cannot be read.
+     */
+    private void read()
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(
+                    new BufferedInputStream(
+                            new GZIPInputStream(new FileInputStream(file))));
+
+        try
+        {
+            if ((in.readInt() != FILE_MAGIC)
+                    || (in.readInt() != FILE_VERSION))
+                return;
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++)
+            {
+                String key = in.readUTF();
+                byte[] xml = new byte[in.readInt()];
+
+                in.readFully(xml);
+                // Older than any use from now on, in the saved order.
+                entries.putIfAbsent(
+                        key,
+                        new Entry(new String(xml, "UTF-8"), i));
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        evict();
+    }
+
+    /**
+     * Removes the least recently used entries of this store while it has more
+     * entries than its capacity.
+     */
+    private void evict()
+    {
+        while (entries.size() > capacity)
+        {
+            String eldestKey = null;
+            long eldestLastUsed = Long.MAX_VALUE;
+
+            for (Map.Entry<String, Entry> e : entries.entrySet())
+            {
+                long lastUsed = e.getValue().lastUsed;
+
+                if (lastUsed < eldestLastUsed)
+                {
+                    eldestKey = e.getKey();
+                    eldestLastUsed = lastUsed;
+                }
+            }
+            if (eldestKey == null)
+                break;
+            entries.remove(eldestKey);
+        }
+    }
+
+    /**
+     * Marks this store as changed and schedules its writing to its file.
+     */
+    private void scheduleSave()
+    {
+        dirty = true;
+        if ((file == null) || (saveTimer != null))
+            return;
+
+        saveTimer = new Timer(EntityCapsStore.class.getSimpleName(), true);
+        saveTimer.schedule(
+                new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        save();
+                    }
+                },
+                SAVE_DELAY);
+    }
+
+    /**
+     * The XML of a <tt>DiscoverInfo</tt> and the <tt>DiscoverInfo</tt> once it
+     * has been parsed.
+     */
+    static class Entry
+    {
+        /**
+         * The XML of the <tt>DiscoverInfo</tt>.
+         */
+        final String xml;
+
+        /**
+         * The <tt>DiscoverInfo</tt> parsed from {@link #xml} or <tt>null</tt>
+         * if it has not been parsed yet.
+         */
+        volatile DiscoverInfo discoverInfo;
+
+        /**
+         * The time this entry was last used, which orders the entries for
+         * eviction.
+         */
+        volatile long lastUsed;
+
+        /**
+         * Initializes a new <tt>Entry</tt>.
+         *
+         * @param xml the XML of the <tt>DiscoverInfo</tt>.
+         * @param lastUsed the time the entry was last used.
+         */
+        Entry(String xml, long lastUsed)
+        {
+            this.xml = xml;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
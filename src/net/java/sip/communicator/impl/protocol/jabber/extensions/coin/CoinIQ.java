@@ -17,6 +17,8 @@
  */
 package net.java.sip.communicator.impl.protocol.jabber.extensions.coin;
 
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
+
 import org.jivesoftware.smack.packet.*;
 
 /**
@@ -106,7 +108,7 @@ public String getChildElementXML()
         {
             bldr.append(">");
             for(PacketExtension pe : getExtensions())
-                bldr.append(pe.toXML());
+                AbstractPacketExtension.appendXML(bldr, pe);
             bldr.append("</").append(ELEMENT_NAME).append(">");
         }
 
@@ -148,53 +148,53 @@ public String getStatus()
     }
 
     /**
-     * Get an XML string representation.
+     * Appends an XML string representation to a specific
+     * <tt>StringBuilder</tt>.
      *
-     * @return XML string representation
+     * @param bldr the <tt>StringBuilder</tt> to append to
      */
     @Override
-    public String toXML()
+    public void toXML(StringBuilder bldr)
     {
-        StringBuilder bldr = new StringBuilder();
-
-        bldr.append("<").append(getElementName()).append(" ");
+        bldr.append("<").append(getElementName());
 
         if(getNamespace() != null)
-            bldr.append("xmlns='").append(getNamespace()).append("'");
+            bldr.append(" xmlns='").append(getNamespace()).append("'");
 
         //add the rest of the attributes if any
         for(Map.Entry<String, Object> entry : attributes.entrySet())
         {
-            bldr.append(" ")
-                    .append(entry.getKey())
-                        .append("='")
-                            .append(entry.getValue())
-                                .append("'");
+            appendAttribute(bldr, entry.getKey(), entry.getValue());
         }
 
         bldr.append(">");
 
         if(displayText != null)
-            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">").append(
-                    displayText).append("</").append(
-                            ELEMENT_DISPLAY_TEXT).append(">");
+        {
+            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">");
+            appendEscaped(bldr, displayText, false);
+            bldr.append("</").append(ELEMENT_DISPLAY_TEXT).append(">");
+        }
 
         if(type != null)
-            bldr.append("<").append(ELEMENT_TYPE).append(">").append(
-                    type).append("</").append(
-                            ELEMENT_TYPE).append(">");
+        {
+            bldr.append("<").append(ELEMENT_TYPE).append(">");
+            appendEscaped(bldr, type, false);
+            bldr.append("</").append(ELEMENT_TYPE).append(">");
+        }
 
         if(status != null)
-            bldr.append("<").append(ELEMENT_STATUS).append(">").append(
-                    status).append("</").append(
-                            ELEMENT_STATUS).append(">");
+        {
+            bldr.append("<").append(ELEMENT_STATUS).append(">");
+            appendEscaped(bldr, status, false);
+            bldr.append("</").append(ELEMENT_STATUS).append(">");
+        }
 
         for(PacketExtension ext : getChildExtensions())
         {
-            bldr.append(ext.toXML());
+            appendXML(bldr, ext);
         }
 
         bldr.append("</").append(getElementName()).append(">");
-        return bldr.toString();
     }
 }
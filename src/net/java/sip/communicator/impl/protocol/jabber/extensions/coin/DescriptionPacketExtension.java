@@ -151,45 +151,47 @@ public String getFreeText()
     }
 
     /**
-     * Get an XML string representation.
+     * Appends an XML string representation to a specific
+     * <tt>StringBuilder</tt>.
      *
-     * @return XML string representation
+     * @param bldr the <tt>StringBuilder</tt> to append to
      */
     @Override
-    public String toXML()
+    public void toXML(StringBuilder bldr)
     {
-        StringBuilder bldr = new StringBuilder();
-
-        bldr.append("<").append(getElementName()).append(" ");
+        bldr.append("<").append(getElementName());
 
         if(getNamespace() != null)
-            bldr.append("xmlns='").append(getNamespace()).append("'");
+            bldr.append(" xmlns='").append(getNamespace()).append("'");
 
         //add the rest of the attributes if any
         for(Map.Entry<String, Object> entry : attributes.entrySet())
         {
-            bldr.append(" ")
-                    .append(entry.getKey())
-                        .append("='")
-                            .append(entry.getValue())
-                                .append("'");
+            appendAttribute(bldr, entry.getKey(), entry.getValue());
         }
 
         bldr.append(">");
 
         if(subject != null)
-            bldr.append("<").append(ELEMENT_SUBJECT).append(">").append(
-                    subject).append("</").append(ELEMENT_SUBJECT).append(">");
+        {
+            bldr.append("<").append(ELEMENT_SUBJECT).append(">");
+            appendEscaped(bldr, subject, false);
+            bldr.append("</").append(ELEMENT_SUBJECT).append(">");
+        }
 
         if(displayText != null)
-            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">").append(
-                    displayText).append("</").append(
-                            ELEMENT_DISPLAY_TEXT).append(">");
+        {
+            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">");
+            appendEscaped(bldr, displayText, false);
+            bldr.append("</").append(ELEMENT_DISPLAY_TEXT).append(">");
+        }
 
         if(freeText != null)
-            bldr.append("<").append(ELEMENT_FREE_TEXT).append(">").append(
-                    freeText).append("</").append(
-                            ELEMENT_FREE_TEXT).append(">");
+        {
+            bldr.append("<").append(ELEMENT_FREE_TEXT).append(">");
+            appendEscaped(bldr, freeText, false);
+            bldr.append("</").append(ELEMENT_FREE_TEXT).append(">");
+        }
 
         if(maximumUserCount != 0)
             bldr.append("<").append(ELEMENT_MAX_USER_COUNT).append(">").append(
@@ -198,10 +200,9 @@ public String toXML()
 
         for(PacketExtension ext : getChildExtensions())
         {
-            bldr.append(ext.toXML());
+            appendXML(bldr, ext);
         }
 
         bldr.append("</").append(getElementName()).append(">");
-        return bldr.toString();
     }
 }
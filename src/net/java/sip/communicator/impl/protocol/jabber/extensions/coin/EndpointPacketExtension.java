@@ -183,36 +183,33 @@ public JoiningType getJoiningType()
     }
 
     /**
-     * Returns an XML representation of this extension.
+     * Appends an XML representation of this extension to a specific
+     * <tt>StringBuilder</tt>.
      *
-     * @return an XML representation of this extension.
+     * @param bldr the <tt>StringBuilder</tt> to append to.
      */
     @Override
-    public String toXML()
+    public void toXML(StringBuilder bldr)
     {
-        StringBuilder bldr = new StringBuilder();
-
-        bldr.append("<").append(getElementName()).append(" ");
+        bldr.append("<").append(getElementName());
 
         if(getNamespace() != null)
-            bldr.append("xmlns='").append(getNamespace()).append("'");
+            bldr.append(" xmlns='").append(getNamespace()).append("'");
 
         //add the rest of the attributes if any
         for(Map.Entry<String, Object> entry : attributes.entrySet())
         {
-            bldr.append(" ")
-                    .append(entry.getKey())
-                        .append("='")
-                            .append(entry.getValue())
-                                .append("'");
+            appendAttribute(bldr, entry.getKey(), entry.getValue());
         }
 
         bldr.append(">");
 
         if(displayText != null)
-            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">").append(
-                    displayText).append("</").append(
-                            ELEMENT_DISPLAY_TEXT).append(">");
+        {
+            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">");
+            appendEscaped(bldr, displayText, false);
+            bldr.append("</").append(ELEMENT_DISPLAY_TEXT).append(">");
+        }
         if(status != null)
             bldr.append("<").append(ELEMENT_STATUS).append(">").append(
                     status).append("</").append(
@@ -230,10 +227,9 @@ public String toXML()
 
         for(PacketExtension ext : getChildExtensions())
         {
-            bldr.append(ext.toXML());
+            appendXML(bldr, ext);
         }
 
         bldr.append("</").append(ELEMENT_NAME).append(">");
-        return bldr.toString();
     }
 }
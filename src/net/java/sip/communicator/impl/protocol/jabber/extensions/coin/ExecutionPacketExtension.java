@@ -158,54 +158,54 @@ public ExecutionPacketExtension(String elementName)
     }
 
     /**
-     * Get an XML string representation.
+     * Appends an XML string representation to a specific
+     * <tt>StringBuilder</tt>.
      *
-     * @return XML string representation
+     * @param bldr the <tt>StringBuilder</tt> to append to
      */
     @Override
-    public String toXML()
+    public void toXML(StringBuilder bldr)
     {
-        StringBuilder bldr = new StringBuilder();
-
-        bldr.append("<").append(getElementName()).append(" ");
+        bldr.append("<").append(getElementName());
 
         if(getNamespace() != null)
-            bldr.append("xmlns='").append(getNamespace()).append("'");
+            bldr.append(" xmlns='").append(getNamespace()).append("'");
 
         //add the rest of the attributes if any
         for(Map.Entry<String, Object> entry : attributes.entrySet())
         {
-            bldr.append(" ")
-                    .append(entry.getKey())
-                        .append("='")
-                            .append(entry.getValue())
-                                .append("'");
+            appendAttribute(bldr, entry.getKey(), entry.getValue());
         }
 
         bldr.append(">");
 
         if(by != null)
-            bldr.append("<").append(ELEMENT_BY).append(">").append(
-                    by).append("</").append(
-                            ELEMENT_BY).append(">");
+        {
+            bldr.append("<").append(ELEMENT_BY).append(">");
+            appendEscaped(bldr, by, false);
+            bldr.append("</").append(ELEMENT_BY).append(">");
+        }
 
         if(when != null)
-            bldr.append("<").append(ELEMENT_WHEN).append(">").append(
-                    when).append("</").append(
-                            ELEMENT_WHEN).append(">");
+        {
+            bldr.append("<").append(ELEMENT_WHEN).append(">");
+            appendEscaped(bldr, when, false);
+            bldr.append("</").append(ELEMENT_WHEN).append(">");
+        }
 
         if(reason != null)
-            bldr.append("<").append(ELEMENT_REASON).append(">").append(
-                    reason).append("</").append(
-                            ELEMENT_REASON).append(">");
+        {
+            bldr.append("<").append(ELEMENT_REASON).append(">");
+            appendEscaped(bldr, reason, false);
+            bldr.append("</").append(ELEMENT_REASON).append(">");
+        }
 
 
         for(PacketExtension ext : getChildExtensions())
         {
-            bldr.append(ext.toXML());
+            appendXML(bldr, ext);
         }
 
         bldr.append("</").append(getElementName()).append(">");
-        return bldr.toString();
     }
 }
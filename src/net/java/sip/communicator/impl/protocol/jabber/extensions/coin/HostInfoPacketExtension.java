@@ -108,49 +108,46 @@ public String getWebPage()
     }
 
     /**
-     * Get an XML string representation.
+     * Appends an XML string representation to a specific
+     * <tt>StringBuilder</tt>.
      *
-     * @return XML string representation
+     * @param bldr the <tt>StringBuilder</tt> to append to
      */
     @Override
-    public String toXML()
+    public void toXML(StringBuilder bldr)
     {
-        StringBuilder bldr = new StringBuilder();
-
-        bldr.append("<").append(getElementName()).append(" ");
+        bldr.append("<").append(getElementName());
 
         if(getNamespace() != null)
-            bldr.append("xmlns='").append(getNamespace()).append("'");
+            bldr.append(" xmlns='").append(getNamespace()).append("'");
 
         //add the rest of the attributes if any
         for(Map.Entry<String, Object> entry : attributes.entrySet())
         {
-            bldr.append(" ")
-                    .append(entry.getKey())
-                        .append("='")
-                            .append(entry.getValue())
-                                .append("'");
+            appendAttribute(bldr, entry.getKey(), entry.getValue());
         }
 
         bldr.append(">");
 
         if(displayText != null)
-            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">").append(
-                    displayText).append("</").append(
-                            ELEMENT_DISPLAY_TEXT).append(">");
+        {
+            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">");
+            appendEscaped(bldr, displayText, false);
+            bldr.append("</").append(ELEMENT_DISPLAY_TEXT).append(">");
+        }
 
         if(webPage != null)
-            bldr.append("<").append(ELEMENT_WEB_PAGE).append(">").append(
-                    webPage).append("</").append(
-                            ELEMENT_WEB_PAGE).append(">");
+        {
+            bldr.append("<").append(ELEMENT_WEB_PAGE).append(">");
+            appendEscaped(bldr, webPage, false);
+            bldr.append("</").append(ELEMENT_WEB_PAGE).append(">");
+        }
 
         for(PacketExtension ext : getChildExtensions())
         {
-            bldr.append(ext.toXML());
+            appendXML(bldr, ext);
         }
 
         bldr.append("</").append(ELEMENT_NAME).append(">");
-
-        return bldr.toString();
     }
 }
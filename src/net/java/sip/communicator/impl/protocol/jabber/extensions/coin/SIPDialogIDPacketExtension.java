@@ -90,59 +90,60 @@ public SIPDialogIDPacketExtension()
     }
 
     /**
-     * Returns an XML representation of this extension.
+     * Appends an XML representation of this extension to a specific
+     * <tt>StringBuilder</tt>.
      *
-     * @return an XML representation of this extension.
+     * @param bldr the <tt>StringBuilder</tt> to append to.
      */
     @Override
-    public String toXML()
+    public void toXML(StringBuilder bldr)
     {
-        StringBuilder bldr = new StringBuilder();
-
-        bldr.append("<").append(getElementName()).append(" ");
+        bldr.append("<").append(getElementName());
 
         if(getNamespace() != null)
-            bldr.append("xmlns='").append(getNamespace()).append("'");
+            bldr.append(" xmlns='").append(getNamespace()).append("'");
 
         //add the rest of the attributes if any
         for(Map.Entry<String, Object> entry : attributes.entrySet())
         {
-            bldr.append(" ")
-                    .append(entry.getKey())
-                        .append("='")
-                            .append(entry.getValue())
-                                .append("'");
+            appendAttribute(bldr, entry.getKey(), entry.getValue());
         }
 
         bldr.append(">");
 
         if(displayText != null)
-            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">").append(
-                    displayText).append("</").append(
-                            ELEMENT_DISPLAY_TEXT).append(">");
+        {
+            bldr.append("<").append(ELEMENT_DISPLAY_TEXT).append(">");
+            appendEscaped(bldr, displayText, false);
+            bldr.append("</").append(ELEMENT_DISPLAY_TEXT).append(">");
+        }
 
         if(callID != null)
-            bldr.append("<").append(ELEMENT_CALLID).append(">").append(
-                    callID).append("</").append(
-                            ELEMENT_CALLID).append(">");
+        {
+            bldr.append("<").append(ELEMENT_CALLID).append(">");
+            appendEscaped(bldr, callID, false);
+            bldr.append("</").append(ELEMENT_CALLID).append(">");
+        }
 
         if(fromTag != null)
-            bldr.append("<").append(ELEMENT_FROMTAG).append(">").append(
-                    fromTag).append("</").append(
-                            ELEMENT_FROMTAG).append(">");
+        {
+            bldr.append("<").append(ELEMENT_FROMTAG).append(">");
+            appendEscaped(bldr, fromTag, false);
+            bldr.append("</").append(ELEMENT_FROMTAG).append(">");
+        }
 
         if(toTag != null)
-            bldr.append("<").append(ELEMENT_TOTAG).append(">").append(
-                    toTag).append("</").append(
-                            ELEMENT_TOTAG).append(">");
+        {
+            bldr.append("<").append(ELEMENT_TOTAG).append(">");
+            appendEscaped(bldr, toTag, false);
+            bldr.append("</").append(ELEMENT_TOTAG).append(">");
+        }
 
         for(PacketExtension ext : getChildExtensions())
         {
-            bldr.append(ext.toXML());
+            appendXML(bldr, ext);
         }
 
         bldr.append("</").append(getElementName()).append(">");
-
-        return bldr.toString();
     }
 }
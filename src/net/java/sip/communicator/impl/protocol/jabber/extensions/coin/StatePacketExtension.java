@@ -140,28 +140,23 @@ public int getLocked()
     }
 
     /**
-     * Get an XML string representation.
+     * Appends an XML string representation to a specific
+     * <tt>StringBuilder</tt>.
      *
-     * @return XML string representation
+     * @param bldr the <tt>StringBuilder</tt> to append to
      */
     @Override
-    public String toXML()
+    public void toXML(StringBuilder bldr)
     {
-       StringBuilder bldr = new StringBuilder();
-
-       bldr.append("<").append(getElementName()).append(" ");
+       bldr.append("<").append(getElementName());
 
        if(getNamespace() != null)
-           bldr.append("xmlns='").append(getNamespace()).append("'");
+           bldr.append(" xmlns='").append(getNamespace()).append("'");
 
        //add the rest of the attributes if any
        for(Map.Entry<String, Object> entry : attributes.entrySet())
        {
-           bldr.append(" ")
-                   .append(entry.getKey())
-                       .append("='")
-                           .append(entry.getValue())
-                               .append("'");
+           appendAttribute(bldr, entry.getKey(), entry.getValue());
        }
 
        bldr.append(">");
@@ -183,10 +178,9 @@ public String toXML()
 
        for(PacketExtension ext : getChildExtensions())
        {
-           bldr.append(ext.toXML());
+           appendXML(bldr, ext);
        }
 
        bldr.append("</").append(getElementName()).append(">");
-       return bldr.toString();
     }
 }
@@ -80,45 +80,39 @@ public List<String> getRoles()
     }
 
     /**
-     * Returns an XML representation of this extension.
+     * Appends an XML representation of this extension to a specific
+     * <tt>StringBuilder</tt>.
      *
-     * @return an XML representation of this extension.
+     * @param bldr the <tt>StringBuilder</tt> to append to.
      */
     @Override
-    public String toXML()
+    public void toXML(StringBuilder bldr)
     {
-        StringBuilder bldr = new StringBuilder();
-
-        bldr.append("<").append(getElementName()).append(" ");
+        bldr.append("<").append(getElementName());
 
         if(getNamespace() != null)
-            bldr.append("xmlns='").append(getNamespace()).append("'");
+            bldr.append(" xmlns='").append(getNamespace()).append("'");
 
         //add the rest of the attributes if any
         for(Map.Entry<String, Object> entry : attributes.entrySet())
         {
-            bldr.append(" ")
-                    .append(entry.getKey())
-                        .append("='")
-                            .append(entry.getValue())
-                                .append("'");
+            appendAttribute(bldr, entry.getKey(), entry.getValue());
         }
 
         bldr.append(">");
 
         for(String role : roles)
         {
-            bldr.append("<").append(ELEMENT_ROLE).append(">").append(
-                    role).append("</").append(ELEMENT_ROLE).append(">");
+            bldr.append("<").append(ELEMENT_ROLE).append(">");
+            appendEscaped(bldr, role, false);
+            bldr.append("</").append(ELEMENT_ROLE).append(">");
         }
 
         for(PacketExtension ext : getChildExtensions())
         {
-            bldr.append(ext.toXML());
+            appendXML(bldr, ext);
         }
 
         bldr.append("</").append(getElementName()).append(">");
-
-        return bldr.toString();
     }
 }
@@ -261,12 +261,10 @@ public String getChildElementXML()
         String id = getID();
 
         if (id != null)
-            xml.append(' ').append(ID_ATTR_NAME).append("='").append(id)
-                    .append('\'');
+            AbstractPacketExtension.appendAttribute(xml, ID_ATTR_NAME, id);
 
         if (name != null)
-            xml.append(' ').append(NAME_ATTR_NAME).append("='").append(name)
-                    .append('\'');
+            AbstractPacketExtension.appendAttribute(xml, NAME_ATTR_NAME, name);
 
         List<Content> contents = getContents();
         List<ChannelBundle> channelBundles = getChannelBundles();
@@ -294,7 +292,7 @@ public String getChildElementXML()
             if (rtcpTerminationStrategy != null)
                 rtcpTerminationStrategy.toXML(xml);
             if (gracefulShutdown)
-                xml.append(new GracefulShutdown().toXML());
+                AbstractPacketExtension.appendXML(xml, new GracefulShutdown());
 
             xml.append("</").append(ELEMENT_NAME).append('>');
         }
@@ -1030,8 +1028,8 @@ protected void printAttributes(StringBuilder xml)
 
             if ((direction != null) && (direction != MediaDirection.SENDRECV))
             {
-                xml.append(' ').append(DIRECTION_ATTR_NAME).append("='")
-                        .append(direction.toString()).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, DIRECTION_ATTR_NAME, direction.toString());
             }
 
             // host
@@ -1039,8 +1037,8 @@ protected void printAttributes(StringBuilder xml)
 
             if (host != null)
             {
-                xml.append(' ').append(HOST_ATTR_NAME).append("='").append(host)
-                        .append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, HOST_ATTR_NAME, host);
             }
 
             // lastN
@@ -1048,16 +1046,16 @@ protected void printAttributes(StringBuilder xml)
 
             if (lastN != null)
             {
-                xml.append(' ').append(LAST_N_ATTR_NAME).append("='")
-                        .append(lastN).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, LAST_N_ATTR_NAME, lastN);
             }
 
             // packet-delay
             Integer packetDelay = getPacketDelay();
             if (packetDelay != null)
             {
-                xml.append(' ').append(PACKET_DELAY_ATTR_NAME).append("='")
-                    .append(packetDelay).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, PACKET_DELAY_ATTR_NAME, packetDelay);
             }
 
             // simulcastMode
@@ -1065,8 +1063,8 @@ protected void printAttributes(StringBuilder xml)
 
             if (simulcastMode != null)
             {
-                xml.append(' ').append(SIMULCAST_MODE_ATTR_NAME).append("='")
-                        .append(simulcastMode).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, SIMULCAST_MODE_ATTR_NAME, simulcastMode);
             }
 
             // rtcpPort
@@ -1074,8 +1072,8 @@ protected void printAttributes(StringBuilder xml)
 
             if (rtcpPort > 0)
             {
-                xml.append(' ').append(RTCP_PORT_ATTR_NAME).append("='")
-                        .append(rtcpPort).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, RTCP_PORT_ATTR_NAME, rtcpPort);
             }
 
             // rtpLevelRelayType
@@ -1083,8 +1081,8 @@ protected void printAttributes(StringBuilder xml)
 
             if (rtpLevelRelayType != null)
             {
-                xml.append(' ').append(RTP_LEVEL_RELAY_TYPE_ATTR_NAME)
-                        .append("='").append(rtpLevelRelayType).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, RTP_LEVEL_RELAY_TYPE_ATTR_NAME, rtpLevelRelayType);
             }
 
             // rtpPort
@@ -1092,8 +1090,8 @@ protected void printAttributes(StringBuilder xml)
 
             if (rtpPort > 0)
             {
-                xml.append(' ').append(RTP_PORT_ATTR_NAME).append("='")
-                        .append(rtpPort).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, RTP_PORT_ATTR_NAME, rtpPort);
             }
         }
 
@@ -1108,17 +1106,17 @@ protected void printContent(StringBuilder xml)
             int[] ssrcs = getSSRCs();
 
             for (PayloadTypePacketExtension payloadType : payloadTypes)
-                xml.append(payloadType.toXML());
+                AbstractPacketExtension.appendXML(xml, payloadType);
 
             for (RTPHdrExtPacketExtension ext : rtpHdrExtPacketExtensions)
-                xml.append(ext.toXML());
+                AbstractPacketExtension.appendXML(xml, ext);
 
             for (SourcePacketExtension source : sources)
-                xml.append(source.toXML());
+                AbstractPacketExtension.appendXML(xml, source);
 
             if (sourceGroups != null && sourceGroups.size() != 0)
                 for (SourceGroupPacketExtension sourceGroup : sourceGroups)
-                    xml.append(sourceGroup.toXML());
+                    AbstractPacketExtension.appendXML(xml, sourceGroup);
 
             for (int i = 0; i < ssrcs.length; i++)
             {
@@ -1463,13 +1461,13 @@ public void setTransport(IceUdpTransportPacketExtension transport)
          */
         public void toXML(StringBuilder xml)
         {
-            xml.append('<').append(ELEMENT_NAME).append(' ')
-                    .append(ID_ATTR_NAME).append("='").append(id).append('\'');
+            xml.append('<').append(ELEMENT_NAME);
+            AbstractPacketExtension.appendAttribute(xml, ID_ATTR_NAME, id);
 
             if (transport != null)
             {
                 xml.append('>');
-                xml.append(transport.toXML());
+                AbstractPacketExtension.appendXML(xml, transport);
                 xml.append("</").append(ELEMENT_NAME).append('>');
             }
             else
@@ -1761,8 +1759,8 @@ public void toXML(StringBuilder xml)
 
             if (endpoint != null)
             {
-                xml.append(' ').append(ENDPOINT_ATTR_NAME).append("='")
-                    .append(endpoint).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, ENDPOINT_ATTR_NAME, endpoint);
             }
 
             // expire
@@ -1770,8 +1768,8 @@ public void toXML(StringBuilder xml)
 
             if (expire >= 0)
             {
-                xml.append(' ').append(EXPIRE_ATTR_NAME).append("='")
-                    .append(expire).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, EXPIRE_ATTR_NAME, expire);
             }
 
             // id
@@ -1779,8 +1777,7 @@ public void toXML(StringBuilder xml)
 
             if (id != null)
             {
-                xml.append(' ').append(ID_ATTR_NAME).append("='")
-                    .append(id).append('\'');
+                AbstractPacketExtension.appendAttribute(xml, ID_ATTR_NAME, id);
             }
 
             // initiator
@@ -1788,15 +1785,15 @@ public void toXML(StringBuilder xml)
 
             if (initiator != null)
             {
-                xml.append(' ').append(INITIATOR_ATTR_NAME).append("='")
-                    .append(initiator).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, INITIATOR_ATTR_NAME, initiator);
             }
 
             String channelBundleId = getChannelBundleId();
             if (channelBundleId != null)
             {
-                xml.append(' ').append(CHANNEL_BUNDLE_ID_ATTR_NAME)
-                    .append("='").append(channelBundleId).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, CHANNEL_BUNDLE_ID_ATTR_NAME, channelBundleId);
             }
 
             // Print derived class attributes
@@ -1810,7 +1807,7 @@ public void toXML(StringBuilder xml)
                 if(hasContent())
                     printContent(xml);
                 if (hasTransport)
-                    xml.append(transport.toXML());
+                    AbstractPacketExtension.appendXML(xml, transport);
                 xml.append("</").append(elementName).append('>');
             }
             else
@@ -2074,8 +2071,8 @@ public void setName(String name)
         public void toXML(StringBuilder xml)
         {
             xml.append('<').append(ELEMENT_NAME);
-            xml.append(' ').append(NAME_ATTR_NAME).append("='")
-                    .append(getName()).append('\'');
+            AbstractPacketExtension.appendAttribute(
+                    xml, NAME_ATTR_NAME, getName());
 
             List<Channel> channels = getChannels();
             List<SctpConnection> connections = getSctpConnections();
@@ -2293,17 +2290,17 @@ public void setDirectory(String directory)
         public void toXML(StringBuilder xml)
         {
             xml.append('<').append(ELEMENT_NAME);
-            xml.append(' ').append(STATE_ATTR_NAME).append("='")
-                    .append(state).append('\'');
+            AbstractPacketExtension.appendAttribute(
+                    xml, STATE_ATTR_NAME, state);
             if (token != null)
             {
-                xml.append(' ').append(TOKEN_ATTR_NAME).append("='")
-                        .append(token).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, TOKEN_ATTR_NAME, token);
             }
             if (directory != null)
             {
-                xml.append(' ').append(DIRECTORY_ATTR_NAME).append("='")
-                        .append(directory).append('\'');
+                AbstractPacketExtension.appendAttribute(
+                        xml, DIRECTORY_ATTR_NAME, directory);
             }
             xml.append("/>");
         }
@@ -2403,8 +2400,7 @@ public void setName(String name)
         public void toXML(StringBuilder xml)
         {
             xml.append('<').append(ELEMENT_NAME);
-            xml.append(' ').append(NAME_ATTR_NAME).append("='")
-                    .append(name).append('\'');
+            AbstractPacketExtension.appendAttribute(xml, NAME_ATTR_NAME, name);
             xml.append("/>");
         }
     }
@@ -2475,8 +2471,8 @@ protected boolean hasContent()
         @Override
         protected void printAttributes(StringBuilder xml)
         {
-            xml.append(' ').append(PORT_ATTR_NAME).append("='")
-                .append(getPort()).append('\'');
+            AbstractPacketExtension.appendAttribute(
+                    xml, PORT_ATTR_NAME, getPort());
         }
 
         @Override
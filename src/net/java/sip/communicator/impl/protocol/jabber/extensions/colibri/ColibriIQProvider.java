@@ -212,9 +212,7 @@ private PacketExtension parseExtension(
         throws Exception
     {
         PacketExtensionProvider extensionProvider
-            = smackInteroperabilityLayer.getExtensionProvider(
-                        name,
-                        namespace);
+            = ExtensionProviderRegistry.getExtensionProvider(name, namespace);
         PacketExtension extension;
 
         if (extensionProvider == null)
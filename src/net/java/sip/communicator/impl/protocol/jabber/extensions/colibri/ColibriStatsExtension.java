@@ -22,7 +22,6 @@
 import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 
 import org.jivesoftware.smack.packet.*;
-import org.jivesoftware.smack.util.*;
 
 /**
  * Implements the Jitsi Videobridge <tt>stats</tt> extension within COnferencing
@@ -153,22 +152,17 @@ public void setValue(Object value)
         }
 
         @Override
-        public String toXML()
+        public void toXML(StringBuilder xml)
         {
             String name = getName();
             Object value = getValue();
 
-            if ((name == null) || (value == null))
+            if ((name != null) && (value != null))
             {
-                return "";
-            }
-            else
-            {
-                return
-                    "<" + ELEMENT_NAME + " " + NAME_ATTR_NAME + "='"
-                        + StringUtils.escapeForXML(name) + "' "
-                        + VALUE_ATTR_NAME + "='"
-                        + StringUtils.escapeForXML(value.toString()) + "' />";
+                xml.append('<').append(ELEMENT_NAME);
+                appendAttribute(xml, NAME_ATTR_NAME, name);
+                appendAttribute(xml, VALUE_ATTR_NAME, value);
+                xml.append(" />");
             }
         }
     }
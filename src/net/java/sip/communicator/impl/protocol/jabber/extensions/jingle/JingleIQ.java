@@ -21,6 +21,7 @@
 import java.security.*;
 import java.util.*;
 
+import net.java.sip.communicator.impl.protocol.jabber.extensions.*;
 import net.java.sip.communicator.service.protocol.jabber.*;
 import org.jivesoftware.smack.packet.*;
 
@@ -122,18 +123,18 @@ public String getChildElementXML()
 
         bldr.append(" xmlns='" + NAMESPACE + "'");
 
-        bldr.append(" " + ACTION_ATTR_NAME + "='" + getAction() + "'");
+        AbstractPacketExtension.appendAttribute(
+                bldr, ACTION_ATTR_NAME, getAction());
 
         if( initiator != null)
-            bldr.append(" " + INITIATOR_ATTR_NAME
-                    + "='" + getInitiator() + "'");
+            AbstractPacketExtension.appendAttribute(
+                    bldr, INITIATOR_ATTR_NAME, getInitiator());
 
         if( responder != null)
-            bldr.append(" " + RESPONDER_ATTR_NAME
-                    + "='" + getResponder() + "'");
+            AbstractPacketExtension.appendAttribute(
+                    bldr, RESPONDER_ATTR_NAME, getResponder());
 
-        bldr.append(" " + SID_ATTR_NAME
-                + "='" + getSID() + "'");
+        AbstractPacketExtension.appendAttribute(bldr, SID_ATTR_NAME, getSID());
 
         CharSequence extensionsXMLSeq = getExtensionsXML();
         String extensionsXML = extensionsXMLSeq.toString();
@@ -152,7 +153,7 @@ public String getChildElementXML()
             //content
             for(ContentPacketExtension cpe : contentList)
             {
-                bldr.append(cpe.toXML());
+                AbstractPacketExtension.appendXML(bldr, cpe);
             }
 
             //reason
@@ -163,7 +164,7 @@ public String getChildElementXML()
             //XXX: this is RTP specific so we should probably handle it in a
             //subclass
             if (sessionInfo != null)
-                bldr.append(sessionInfo.toXML());
+                AbstractPacketExtension.appendXML(bldr, sessionInfo);
 
             // extensions
             if ((extensionsXML != null) && (extensionsXML.length() != 0))
@@ -32,6 +32,43 @@
  */
 public class JingleIQProvider implements IQProvider
 {
+    /**
+     * The provider of the <tt>content</tt> elements of the Jingle IQs.
+     */
+    private final DefaultPacketExtensionProvider<ContentPacketExtension>
+        contentProvider
+            = new DefaultPacketExtensionProvider<ContentPacketExtension>(
+                    ContentPacketExtension.class);
+
+    /**
+     * The provider of the <tt>reason</tt> elements of the Jingle IQs.
+     */
+    private final ReasonProvider reasonProvider = new ReasonProvider();
+
+    /**
+     * The provider of the <tt>transfer</tt> elements of the Jingle IQs.
+     */
+    private final DefaultPacketExtensionProvider<TransferPacketExtension>
+        transferProvider
+            = new DefaultPacketExtensionProvider<TransferPacketExtension>(
+                    TransferPacketExtension.class);
+
+    /**
+     * The provider of the <tt>conference-info</tt> elements of the Jingle IQs.
+     */
+    private final DefaultPacketExtensionProvider<CoinPacketExtension>
+        coinProvider
+            = new DefaultPacketExtensionProvider<CoinPacketExtension>(
+                    CoinPacketExtension.class);
+
+    /**
+     * The provider of the <tt>callid</tt> elements of the Jingle IQs.
+     */
+    private final DefaultPacketExtensionProvider<CallIdPacketExtension>
+        callidProvider
+            = new DefaultPacketExtensionProvider<CallIdPacketExtension>(
+                    CallIdPacketExtension.class);
+
     /**
      * Creates a new instance of the <tt>JingleIQProvider</tt> and register all
      * jingle related extension providers. It is the responsibility of the
@@ -264,21 +301,6 @@ public JingleIQ parseIQ(XmlPullParser parser)
 
         boolean done = false;
 
-        // Sub-elements providers
-        DefaultPacketExtensionProvider<ContentPacketExtension> contentProvider
-            = new DefaultPacketExtensionProvider<ContentPacketExtension>(
-                    ContentPacketExtension.class);
-        ReasonProvider reasonProvider = new ReasonProvider();
-        DefaultPacketExtensionProvider<TransferPacketExtension> transferProvider
-            = new DefaultPacketExtensionProvider<TransferPacketExtension>(
-                    TransferPacketExtension.class);
-        DefaultPacketExtensionProvider<CoinPacketExtension> coinProvider
-            = new DefaultPacketExtensionProvider<CoinPacketExtension>(
-                    CoinPacketExtension.class);
-        DefaultPacketExtensionProvider<CallIdPacketExtension> callidProvider
-            = new DefaultPacketExtensionProvider<CallIdPacketExtension>(
-                    CallIdPacketExtension.class);
-
         // Now go on and parse the jingle element's content.
         int eventType;
         String elementName;
@@ -73,30 +73,27 @@ public String getToken()
     }
 
     /**
-     * Get an XML string representation.
+     * Appends an XML string representation to a specific
+     * <tt>StringBuilder</tt>.
      *
-     * @return XML string representation
+     * @param bld the <tt>StringBuilder</tt> to append to
      */
     @Override
-    public String toXML()
+    public void toXML(StringBuilder bld)
     {
-        StringBuilder bld = new StringBuilder();
-
         bld.append("<").append(ELEMENT_NAME).append(">");
 
         if(token != null)
         {
             bld.append("<").append("token").append(">");
-            bld.append(token);
+            appendEscaped(bld, token, false);
             bld.append("</").append("token").append(">");
         }
 
         for(PacketExtension pe : getChildExtensions())
         {
-            bld.append(pe.toXML());
+            appendXML(bld, pe);
         }
         bld.append("</").append(ELEMENT_NAME).append(">");
-
-        return bld.toString();
     }
 }
@@ -584,7 +584,7 @@ public CallPeerSipImpl processInvite(SipProvider       jainSipProvider,
                 if(serverTran instanceof SIPTransaction
                     && !((SIPTransaction)serverTran).isReliable())
                 {
-                    final Timer timer = new Timer();
+                    final TimerScheduler timer = new TimerScheduler();
                     int interval = retransmitsRingingInterval;
                     int delay = 0;
                     for(int i = 0; i < MAX_RETRANSMISSIONS; i++)
@@ -738,7 +738,7 @@ private static Map<String, String> extractRequestHeaders(Request req)
      * Task that will retransmit ringing response
      */
     private class RingingResponseTask
-        extends TimerTask
+        extends TimerScheduler.Task
     {
         /**
          * The response that will be sent
@@ -758,7 +758,7 @@ private static Map<String, String> extractRequestHeaders(Request req)
         /**
          * The timer that starts the task.
          */
-        private final Timer timer;
+        private final TimerScheduler timer;
 
         /**
          * Create ringing response task.
@@ -768,7 +768,7 @@ private static Map<String, String> extractRequestHeaders(Request req)
          * @param timer the timer.
          */
         RingingResponseTask(Response response, ServerTransaction serverTran,
-            CallPeerSipImpl peer, Timer timer)
+            CallPeerSipImpl peer, TimerScheduler timer)
         {
             this.response = response;
             this.serverTran = serverTran;
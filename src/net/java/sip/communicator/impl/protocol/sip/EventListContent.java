@@ -0,0 +1,394 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.util.xml.XMLUtils;
+import org.w3c.dom.*;
+
+/**
+ * The body of a NOTIFY received for a resource list subscription (rfc4662):
+ * a multipart/related document made of a RLMI document, describing the state
+ * of the subscription to each resource of the list, and of the documents of
+ * the event package (PIDF documents for presence) of these resources. Lists
+ * which are members of the list are carried as nested multipart/related
+ * parts and are flattened here.
+ */
+class EventListContent
+{
+    /**
+     * Our class logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(EventListContent.class);
+
+    /**
+     * The content type of a resource list notification.
+     */
+    static final String MULTIPART_TYPE = "multipart";
+
+    /**
+     * The content sub-type of a resource list notification.
+     */
+    static final String RELATED_SUBTYPE = "related";
+
+    /**
+     * The content type of the RLMI documents.
+     */
+    static final String APPLICATION_TYPE = "application";
+
+    /**
+     * The content sub-type of the RLMI documents.
+     */
+    static final String RLMI_SUBTYPE = "rlmi+xml";
+
+    /**
+     * The option tag of the resource list extension, used in the Supported
+     * and Require headers.
+     */
+    static final String EVENTLIST_OPTION_TAG = "eventlist";
+
+    private static final String RLMI_NS_VALUE = "urn:ietf:params:xml:ns:rlmi";
+    private static final String RESOURCE_ELEMENT = "resource";
+    private static final String INSTANCE_ELEMENT = "instance";
+    private static final String URI_ATTRIBUTE = "uri";
+    private static final String STATE_ATTRIBUTE = "state";
+    private static final String REASON_ATTRIBUTE = "reason";
+    private static final String CID_ATTRIBUTE = "cid";
+
+    private static final String CONTENT_TYPE_HEADER = "content-type";
+    private static final String BOUNDARY_PARAM = "boundary";
+
+    /**
+     * The event package documents carried in the notification.
+     */
+    private final List<String> documents = new ArrayList<String>();
+
+    /**
+     * The resources described by the RLMI documents of the notification.
+     */
+    private final List<Resource> resources = new ArrayList<Resource>();
+
+    /**
+     * Parses the body of a resource list notification.
+     *
+     * @param body the multipart/related body of the NOTIFY
+     * @param boundary the boundary parameter of its Content-Type header
+     * @param documentSubType the content sub-type of the documents of the
+     * event package, e.g. "pidf+xml"
+     */
+    EventListContent(String body, String boundary, String documentSubType)
+    {
+        parseMultipart(body, boundary, documentSubType);
+    }
+
+    /**
+     * Gets the event package documents carried in this notification, in the
+     * order they appear.
+     *
+     * @return the event package documents carried in this notification
+     */
+    List<String> getDocuments()
+    {
+        return documents;
+    }
+
+    /**
+     * Gets the resources described by the RLMI documents of this
+     * notification, including the ones of the nested lists.
+     *
+     * @return the resources described in this notification
+     */
+    List<Resource> getResources()
+    {
+        return resources;
+    }
+
+    /**
+     * Gets the value of a parameter of a Content-Type header value, without
+     * the quotes which may enclose it.
+     *
+     * @param contentType a Content-Type header value
+     * @param name the name of the parameter
+     * @return the value of the parameter or <tt>null</tt> if there is none
+     */
+    static String getParameter(String contentType, String name)
+    {
+        String[] params = contentType.split(";");
+
+        for (int i = 1; i < params.length; i++)
+        {
+            String param = params[i];
+            int eq = param.indexOf('=');
+
+            if ((eq == -1)
+                    || !param.substring(0, eq).trim().equalsIgnoreCase(name))
+                continue;
+
+            return unquote(param.substring(eq + 1));
+        }
+        return null;
+    }
+
+    /**
+     * Removes the spaces and the quotes surrounding a parameter value.
+     *
+     * @param value the parameter value
+     * @return <tt>value</tt> without its surrounding quotes
+     */
+    static String unquote(String value)
+    {
+        value = value.trim();
+        if ((value.length() > 1)
+                && value.startsWith("\"")
+                && value.endsWith("\""))
+            value = value.substring(1, value.length() - 1);
+        return value;
+    }
+
+    /**
+     * Splits a multipart body and processes each of its parts.
+     *
+     * @param body the multipart body
+     * @param boundary the boundary delimiting its parts
+     * @param documentSubType the content sub-type of the event package
+     * documents
+     */
+    private void parseMultipart(
+            String body,
+            String boundary,
+            String documentSubType)
+    {
+        String delimiter = "--" + boundary;
+        int pos = body.indexOf(delimiter);
+
+        while (pos != -1)
+        {
+            int start = pos + delimiter.length();
+
+            // the close delimiter
+            if (body.startsWith("--", start))
+                break;
+
+            int end = body.indexOf(delimiter, start);
+
+            if (end == -1)
+            {
+                logger.warn("Multipart body without close delimiter");
+                break;
+            }
+            parsePart(body.substring(start, end), documentSubType);
+            pos = end;
+        }
+    }
+
+    /**
+     * Processes a part of a multipart body according to its content type.
+     *
+     * @param part the part, from the end of its delimiter to the start of the
+     * next one
+     * @param documentSubType the content sub-type of the event package
+     * documents
+     */
+    private void parsePart(String part, String documentSubType)
+    {
+        // skip the transport padding and the line break ending the delimiter
+        int lineEnd = part.indexOf('\n');
+
+        if (lineEnd == -1)
+            return;
+        part = part.substring(lineEnd + 1);
+
+        // the line break preceding the next delimiter belongs to it
+        if (part.endsWith("\r\n"))
+            part = part.substring(0, part.length() - 2);
+        else if (part.endsWith("\n"))
+            part = part.substring(0, part.length() - 1);
+
+        String contentType = null;
+        int bodyStart;
+
+        // headers (if any) and content are separated by an empty line
+        for (int lineStart = 0;; lineStart = bodyStart)
+        {
+            lineEnd = part.indexOf('\n', lineStart);
+            if (lineEnd == -1)
+            {
+                bodyStart = part.length();
+                break;
+            }
+            bodyStart = lineEnd + 1;
+
+            String line = part.substring(lineStart, lineEnd).trim();
+
+            if (line.length() == 0)
+                break;
+
+            int colon = line.indexOf(':');
+
+            if ((colon != -1)
+                    && line.substring(0, colon).trim()
+                            .equalsIgnoreCase(CONTENT_TYPE_HEADER))
+                contentType = line.substring(colon + 1).trim();
+        }
+
+        if (contentType == null)
+            return;
+
+        String content = part.substring(bodyStart);
+        String mimeType = contentType;
+        int paramStart = mimeType.indexOf(';');
+
+        if (paramStart != -1)
+            mimeType = mimeType.substring(0, paramStart);
+        mimeType = mimeType.trim();
+
+        if (mimeType.equalsIgnoreCase(MULTIPART_TYPE + "/" + RELATED_SUBTYPE))
+        {
+            String boundary = getParameter(contentType, BOUNDARY_PARAM);
+
+            if (boundary != null)
+                parseMultipart(content, boundary, documentSubType);
+        }
+        else if (mimeType.equalsIgnoreCase(
+                    APPLICATION_TYPE + "/" + RLMI_SUBTYPE))
+        {
+            parseRlmi(content);
+        }
+        else if (mimeType.equalsIgnoreCase(
+                    APPLICATION_TYPE + "/" + documentSubType))
+        {
+            documents.add(content);
+        }
+        else if (logger.isDebugEnabled())
+        {
+            logger.debug("Ignoring part of type " + mimeType);
+        }
+    }
+
+    /**
+     * Collects the resources described by a RLMI document.
+     *
+     * @param rlmi the RLMI document
+     */
+    private void parseRlmi(String rlmi)
+    {
+        Document doc;
+
+        try
+        {
+            doc = XMLUtils.createDocument(rlmi);
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to parse RLMI document", e);
+            return;
+        }
+
+        NodeList resourceList
+            = doc.getElementsByTagNameNS(RLMI_NS_VALUE, RESOURCE_ELEMENT);
+
+        for (int i = 0; i < resourceList.getLength(); i++)
+        {
+            Element resource = (Element) resourceList.item(i);
+            String uri = resource.getAttribute(URI_ATTRIBUTE);
+
+            if (uri.length() == 0)
+                continue;
+
+            NodeList instances = resource.getElementsByTagNameNS(
+                    RLMI_NS_VALUE, INSTANCE_ELEMENT);
+
+            // a resource without instance has no subscription yet
+            if (instances.getLength() == 0)
+            {
+                resources.add(new Resource(uri, null, null, null));
+                continue;
+            }
+
+            Element instance = (Element) instances.item(0);
+
+            resources.add(new Resource(
+                    uri,
+                    instance.getAttribute(STATE_ATTRIBUTE),
+                    emptyToNull(instance.getAttribute(REASON_ATTRIBUTE)),
+                    emptyToNull(instance.getAttribute(CID_ATTRIBUTE))));
+        }
+    }
+
+    /**
+     * Returns <tt>null</tt> for a missing (empty) attribute value.
+     *
+     * @param value an attribute value
+     * @return <tt>value</tt> or <tt>null</tt> if it is empty
+     */
+    private static String emptyToNull(String value)
+    {
+        return ((value == null) || (value.length() == 0)) ? null : value;
+    }
+
+    /**
+     * The state of the subscription to a member of a resource list, as
+     * described in a RLMI document.
+     */
+    static class Resource
+    {
+        /**
+         * The URI of the resource.
+         */
+        final String uri;
+
+        /**
+         * The state of the subscription to the resource, one of the states of
+         * the Subscription-State header, or <tt>null</tt> if the resource has
+         * no instance.
+         */
+        final String state;
+
+        /**
+         * The reason of the termination of the subscription if its state is
+         * terminated.
+         */
+        final String reason;
+
+        /**
+         * The Content-ID of the part carrying the state of the resource if
+         * there is one.
+         */
+        final String cid;
+
+        /**
+         * Initializes a new <tt>Resource</tt>.
+         *
+         * @param uri the URI of the resource
+         * @param state the state of the subscription to the resource
+         * @param reason the reason of the termination of the subscription
+         * @param cid the Content-ID of the part carrying the resource state
+         */
+        Resource(String uri, String state, String reason, String cid)
+        {
+            this.uri = uri;
+            this.state = state;
+            this.reason = reason;
+            this.cid = cid;
+        }
+    }
+}
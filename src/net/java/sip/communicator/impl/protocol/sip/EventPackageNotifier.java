@@ -993,7 +993,7 @@ protected abstract byte[] createNotifyContent(
      * <tt>Subscription</tt> when its subscription duration expires.
      */
     private class SubscriptionTimeoutTask
-        extends TimerTask
+        extends TimerScheduler.Task
     {
 
         /**
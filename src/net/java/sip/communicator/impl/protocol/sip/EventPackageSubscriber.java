@@ -471,6 +471,21 @@ protected void populateSubscribeRequest(
                     e);
         }
         req.setHeader(expHeader);
+
+        // Subscription specific headers
+        try
+        {
+            subscription.populateSubscribeRequest(req, headerFactory);
+        }
+        catch (ParseException e)
+        {
+            logger.error("Failed to populate the subscription request", e);
+            throw new OperationFailedException(
+                    "An unexpected error occurred while"
+                    + "populating the subscription request",
+                    OperationFailedException.INTERNAL_ERROR,
+                    e);
+        }
     }
 
     /**
@@ -577,7 +592,9 @@ public boolean processRequest(RequestEvent requestEvent)
         ContentTypeHeader ctheader
             = (ContentTypeHeader) request.getHeader(ContentTypeHeader.NAME);
         if ((ctheader != null)
-                && !ctheader.getContentSubType().equalsIgnoreCase(contentSubType))
+                && !ctheader.getContentSubType().equalsIgnoreCase(contentSubType)
+                && ((subscription == null)
+                        || !subscription.isContentTypeSupported(ctheader)))
         {
             // send a 415 response (rfc3261)
             Response response;
@@ -1259,6 +1276,42 @@ protected abstract void processSuccessResponse(
         protected abstract void processTerminatedRequest(
             RequestEvent requestEvent,
             String reasonCode);
+
+        /**
+         * Lets this <tt>Subscription</tt> add headers of its own to a
+         * SUBSCRIBE <tt>Request</tt> which has already been populated with
+         * the headers of the event package. Does nothing by default.
+         *
+         * @param req
+         *            the SUBSCRIBE <tt>Request</tt> to be populated
+         * @param headerFactory
+         *            the <tt>HeaderFactory</tt> to create the headers with
+         * @throws ParseException if one of the headers cannot be created
+         */
+        protected void populateSubscribeRequest(
+            Request req,
+            HeaderFactory headerFactory)
+            throws ParseException
+        {
+        }
+
+        /**
+         * Determines whether this <tt>Subscription</tt> processes NOTIFY
+         * bodies of a content type other than the one of its event package.
+         * Returns <tt>false</tt> by default.
+         *
+         * @param contentTypeHeader
+         *            the Content-Type header of the received NOTIFY
+         * @return <tt>true</tt> if the content described by
+         *         <tt>contentTypeHeader</tt> is to be delivered to
+         *         {@link #processActiveRequest(RequestEvent, byte[])}
+         *         rather than rejected with a 415 response
+         */
+        protected boolean isContentTypeSupported(
+            ContentTypeHeader contentTypeHeader)
+        {
+            return false;
+        }
     }
 
     /**
@@ -1266,7 +1319,7 @@ protected abstract void processTerminatedRequest(
      * <tt>Subscription</tt>.
      */
     private class SubscriptionRefreshTask
-        extends TimerTask
+        extends TimerScheduler.Task
     {
 
         /**
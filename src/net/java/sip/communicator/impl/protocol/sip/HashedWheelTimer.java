@@ -0,0 +1,588 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A timer running all its tasks on a single thread, with constant time
+ * scheduling and cancellation whatever the number of pending tasks.
+ * <p>
+ * The time is divided in ticks of {@link #TICK_DURATION} milliseconds and
+ * the pending tasks are kept in a wheel of buckets, one per tick, the task
+ * expiring in <tt>n</tt> ticks being in the <tt>n</tt>th bucket after the
+ * current one, or in the same bucket with a count of remaining rounds if
+ * <tt>n</tt> exceeds the size of the wheel. Scheduling and canceling only
+ * add the task to a lock-free queue which the thread of the timer processes
+ * at the next tick. Tasks run at most one tick late, which is more than
+ * precise enough for the SIP refreshes and timeouts.
+ * <p>
+ * The thread is created the first time a task is scheduled and waits
+ * without ticking while there are no pending tasks.
+ */
+final class HashedWheelTimer
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>HashedWheelTimer</tt> class and
+     * its instances.
+     */
+    private static final Logger logger
+        = Logger.getLogger(HashedWheelTimer.class);
+
+    /**
+     * The duration of a tick in milliseconds.
+     */
+    static final long TICK_DURATION = 100;
+
+    /**
+     * The duration of a tick in nanoseconds.
+     */
+    private static final long TICK_DURATION_NANOS
+        = TimeUnit.MILLISECONDS.toNanos(TICK_DURATION);
+
+    /**
+     * The number of buckets of the wheel. A round of the wheel takes a bit
+     * less than a minute.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * The timer shared by all SIP accounts.
+     */
+    private static HashedWheelTimer sharedInstance;
+
+    /**
+     * The buckets of the wheel.
+     */
+    private final Bucket[] wheel;
+
+    /**
+     * The timeouts scheduled since the last tick.
+     */
+    private final Queue<Timeout> newTimeouts
+        = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * The timeouts canceled since the last tick.
+     */
+    private final Queue<Timeout> cancelledTimeouts
+        = new ConcurrentLinkedQueue<Timeout>();
+
+    /**
+     * The number of scheduled tasks which did not expire and were not
+     * canceled.
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    /**
+     * The number of task executions since the timer was created.
+     */
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * The name of the thread of the timer.
+     */
+    private final String name;
+
+    /**
+     * The thread of the timer or <tt>null</tt> if no task was scheduled yet.
+     */
+    private volatile Thread worker = null;
+
+    /**
+     * Whether the thread of the timer is waiting for a task to be scheduled.
+     */
+    private volatile boolean idle = false;
+
+    /**
+     * The time, in nanoseconds, the ticks are counted from. Only accessed by
+     * the thread of the timer.
+     */
+    private long startTime;
+
+    /**
+     * The number of ticks since {@link #startTime}. Only accessed by the
+     * thread of the timer.
+     */
+    private long tick = 0;
+
+    /**
+     * Returns the timer shared by all SIP accounts.
+     *
+     * @return the shared timer
+     */
+    static synchronized HashedWheelTimer getSharedInstance()
+    {
+        if (sharedInstance == null)
+            sharedInstance = new HashedWheelTimer("SIP timer");
+        return sharedInstance;
+    }
+
+    /**
+     * Creates a timer.
+     *
+     * @param name the name of the thread of the timer
+     */
+    HashedWheelTimer(String name)
+    {
+        this.name = name;
+
+        wheel = new Bucket[WHEEL_SIZE];
+        for (int i = 0; i < wheel.length; i++)
+            wheel[i] = new Bucket();
+    }
+
+    /**
+     * Schedules a task for execution after a delay, and then repeatedly with
+     * a fixed delay between the end of an execution and the next one if
+     * <tt>period</tt> is positive.
+     *
+     * @param task the task to execute
+     * @param delay the delay in milliseconds before the first execution
+     * @param period the delay in milliseconds between the executions or 0
+     * to execute the task once
+     * @return the handle to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, long period)
+    {
+        if (delay < 0)
+            throw new IllegalArgumentException("Negative delay.");
+        if (period < 0)
+            throw new IllegalArgumentException("Negative period.");
+
+        Timeout timeout
+            = new Timeout(
+                task,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay),
+                TimeUnit.MILLISECONDS.toNanos(period));
+
+        pendingCount.incrementAndGet();
+        newTimeouts.add(timeout);
+        start();
+        return timeout;
+    }
+
+    /**
+     * Returns the number of scheduled tasks which did not expire and were not
+     * canceled.
+     *
+     * @return the number of pending tasks
+     */
+    int getPendingCount()
+    {
+        return pendingCount.get();
+    }
+
+    /**
+     * Returns the number of task executions since the timer was created.
+     *
+     * @return the number of task executions
+     */
+    long getExpiredCount()
+    {
+        return expiredCount.get();
+    }
+
+    /**
+     * Starts the thread of the timer if it is not running yet, or wakes it
+     * up if it is waiting for a task to be scheduled.
+     */
+    private void start()
+    {
+        if (worker != null && !idle)
+            return;
+
+        synchronized (this)
+        {
+            if (worker == null)
+            {
+                startTime = System.nanoTime();
+                worker = new Thread(name)
+                {
+                    @Override
+                    public void run()
+                    {
+                        runWorker();
+                    }
+                };
+                worker.setDaemon(true);
+                worker.start();
+            }
+            else
+                notifyAll();
+        }
+    }
+
+    /**
+     * Runs the ticks of the timer on its thread.
+     */
+    private void runWorker()
+    {
+        while (true)
+        {
+            if (pendingCount.get() == 0)
+                waitForTimeouts();
+
+            long deadline = waitForNextTick();
+
+            removeCancelledTimeouts();
+            transferNewTimeouts();
+            expireTimeouts(wheel[(int) (tick % WHEEL_SIZE)], deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Waits for a task to be scheduled when there are no pending tasks, and
+     * skips the ticks elapsed meanwhile.
+     */
+    private void waitForTimeouts()
+    {
+        // the canceled timeouts may still be in their buckets
+        removeCancelledTimeouts();
+
+        synchronized (this)
+        {
+            idle = true;
+            try
+            {
+                while (pendingCount.get() == 0)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException ie)
+                    {
+                    }
+                }
+            }
+            finally
+            {
+                idle = false;
+            }
+        }
+
+        // the wheel is empty so it can start again at the current time
+        tick = (System.nanoTime() - startTime) / TICK_DURATION_NANOS;
+    }
+
+    /**
+     * Sleeps until the end of the current tick.
+     *
+     * @return the time in nanoseconds of the end of the current tick
+     */
+    private long waitForNextTick()
+    {
+        long deadline = startTime + (tick + 1) * TICK_DURATION_NANOS;
+
+        while (true)
+        {
+            long sleepTime = deadline - System.nanoTime();
+
+            if (sleepTime <= 0)
+                return deadline;
+
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(sleepTime);
+            }
+            catch (InterruptedException ie)
+            {
+            }
+        }
+    }
+
+    /**
+     * Removes the timeouts canceled since the last tick from their buckets.
+     */
+    private void removeCancelledTimeouts()
+    {
+        Timeout timeout;
+
+        while ((timeout = cancelledTimeouts.poll()) != null)
+        {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * Adds the timeouts scheduled since the last tick to their buckets.
+     */
+    private void transferNewTimeouts()
+    {
+        Timeout timeout;
+
+        while ((timeout = newTimeouts.poll()) != null)
+        {
+            if (timeout.isCancelled())
+                continue;
+
+            long ticks = (timeout.deadline - startTime) / TICK_DURATION_NANOS;
+
+            // the deadline may already be in the past
+            ticks = Math.max(ticks, tick);
+            timeout.remainingRounds = (ticks - tick) / WHEEL_SIZE;
+            wheel[(int) (ticks % WHEEL_SIZE)].add(timeout);
+        }
+    }
+
+    /**
+     * Runs the tasks of a bucket expiring in the current round and counts
+     * down the rounds of the other ones.
+     *
+     * @param bucket the bucket of the current tick
+     * @param deadline the time in nanoseconds of the end of the current tick
+     */
+    private void expireTimeouts(Bucket bucket, long deadline)
+    {
+        Timeout timeout = bucket.head;
+
+        while (timeout != null)
+        {
+            Timeout next = timeout.next;
+
+            if (timeout.remainingRounds <= 0)
+            {
+                bucket.remove(timeout);
+                if (timeout.deadline <= deadline)
+                    expire(timeout);
+                else
+                {
+                    // the timeout was added for a previous round of the wheel
+                    newTimeouts.add(timeout);
+                }
+            }
+            else
+                timeout.remainingRounds--;
+
+            timeout = next;
+        }
+    }
+
+    /**
+     * Runs the task of an expired timeout and schedules its next execution
+     * if it is periodic.
+     *
+     * @param timeout the expired timeout
+     */
+    private void expire(Timeout timeout)
+    {
+        if (timeout.period == 0)
+        {
+            if (!timeout.state.compareAndSet(
+                    Timeout.ST_INIT,
+                    Timeout.ST_EXPIRED))
+            {
+                return;
+            }
+            pendingCount.decrementAndGet();
+        }
+        else if (timeout.isCancelled())
+            return;
+
+        expiredCount.incrementAndGet();
+        try
+        {
+            timeout.task.run();
+        }
+        catch (Throwable t)
+        {
+            /*
+             * XXX ThreadDeath must be rethrown; otherwise, the related Thread
+             * will not die.
+             */
+            if (t instanceof ThreadDeath)
+                throw (ThreadDeath) t;
+            else
+                logger.error("Error running timer task " + timeout.task, t);
+        }
+
+        if (timeout.period != 0 && !timeout.isCancelled())
+        {
+            timeout.deadline = System.nanoTime() + timeout.period;
+            newTimeouts.add(timeout);
+        }
+    }
+
+    /**
+     * A task scheduled with the timer.
+     */
+    final class Timeout
+    {
+        /**
+         * The state of a timeout which is pending.
+         */
+        private static final int ST_INIT = 0;
+
+        /**
+         * The state of a timeout which was canceled.
+         */
+        private static final int ST_CANCELLED = 1;
+
+        /**
+         * The state of a non periodic timeout which expired.
+         */
+        private static final int ST_EXPIRED = 2;
+
+        /**
+         * The task to execute.
+         */
+        private final Runnable task;
+
+        /**
+         * The delay in nanoseconds between the executions of the task or 0 if
+         * it is executed once.
+         */
+        private final long period;
+
+        /**
+         * The state of the timeout.
+         */
+        private final AtomicInteger state = new AtomicInteger(ST_INIT);
+
+        /**
+         * The time in nanoseconds of the next execution of the task. Only
+         * accessed by the thread of the timer once scheduled.
+         */
+        private long deadline;
+
+        /**
+         * The number of rounds of the wheel before the timeout expires.
+         */
+        private long remainingRounds;
+
+        /**
+         * The bucket containing the timeout or <tt>null</tt> if it is not in
+         * the wheel.
+         */
+        private Bucket bucket;
+
+        /**
+         * The previous timeout in the bucket.
+         */
+        private Timeout prev;
+
+        /**
+         * The next timeout in the bucket.
+         */
+        private Timeout next;
+
+        /**
+         * Creates a timeout.
+         *
+         * @param task the task to execute
+         * @param deadline the time in nanoseconds of the first execution
+         * @param period the delay in nanoseconds between the executions or 0
+         */
+        private Timeout(Runnable task, long deadline, long period)
+        {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        /**
+         * Cancels the task. It is not executed anymore, unless it is being
+         * executed right now.
+         *
+         * @return <tt>true</tt> if this prevented an execution of the task,
+         * <tt>false</tt> if it already expired or was canceled
+         */
+        boolean cancel()
+        {
+            if (!state.compareAndSet(ST_INIT, ST_CANCELLED))
+                return false;
+
+            pendingCount.decrementAndGet();
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        /**
+         * Returns the delay in nanoseconds between the executions of the task.
+         *
+         * @return the period of the task or 0 if it is executed once
+         */
+        long getPeriod()
+        {
+            return period;
+        }
+
+        /**
+         * Determines whether the task was canceled.
+         *
+         * @return <tt>true</tt> if the task was canceled
+         */
+        boolean isCancelled()
+        {
+            return state.get() == ST_CANCELLED;
+        }
+    }
+
+    /**
+     * The doubly linked list of the timeouts of a tick of the wheel. Only
+     * accessed by the thread of the timer.
+     */
+    private static final class Bucket
+    {
+        /**
+         * The first timeout of the bucket.
+         */
+        private Timeout head;
+
+        /**
+         * Adds a timeout to the bucket.
+         *
+         * @param timeout the timeout to add
+         */
+        void add(Timeout timeout)
+        {
+            timeout.bucket = this;
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null)
+                head.prev = timeout;
+            head = timeout;
+        }
+
+        /**
+         * Removes a timeout from the bucket.
+         *
+         * @param timeout the timeout to remove
+         */
+        void remove(Timeout timeout)
+        {
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            else
+                head = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+}
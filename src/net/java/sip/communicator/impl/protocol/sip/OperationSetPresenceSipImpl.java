@@ -25,6 +25,7 @@
 import javax.sip.address.*;
 import javax.sip.header.*;
 import javax.sip.message.*;
+import javax.xml.stream.*;
 
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
@@ -153,53 +154,34 @@
      */
     private static final String WATCHERINFO_XML = "watcherinfo+xml";
 
-    // pidf elements and attributes
-    private static final String PRESENCE_ELEMENT= "presence";
-    private static final String NS_ELEMENT      = "xmlns";
-    private static final String PIDF_NS_VALUE   = "urn:ietf:params:xml:ns:pidf";
-    private static final String ENTITY_ATTRIBUTE= "entity";
-    private static final String TUPLE_ELEMENT   = "tuple";
-    private static final String ID_ATTRIBUTE    = "id";
-    private static final String STATUS_ELEMENT  = "status";
+    // pidf basic status values
     private static final String ONLINE_STATUS   = "open";
     private static final String OFFLINE_STATUS  = "closed";
-    private static final String BASIC_ELEMENT   = "basic";
-    private static final String CONTACT_ELEMENT = "contact";
-    private static final String NOTE_ELEMENT    = "note";
-    private static final String PRIORITY_ATTRIBUTE  = "priority";
-
-    // rpid elements and attributes
-    private static final String RPID_NS_ELEMENT = "xmlns:rpid";
-    private static final String RPID_NS_VALUE   =
-                                            "urn:ietf:params:xml:ns:pidf:rpid";
-    private static final String DM_NS_ELEMENT   = "xmlns:dm";
-    private static final String DM_NS_VALUE     =
-                                    "urn:ietf:params:xml:ns:pidf:data-model";
-    private static final String PERSON_ELEMENT  = "person";
-    private static final String NS_PERSON_ELT   = "dm:person";
-    private static final String ACTIVITY_ELEMENT= "activities";
-    private static final String NS_ACTIVITY_ELT = "rpid:activities";
-    private static final String AWAY_ELEMENT    = "away";
-    private static final String NS_AWAY_ELT     = "rpid:away";
-    private static final String BUSY_ELEMENT    = "busy";
-    private static final String NS_BUSY_ELT     = "rpid:busy";
-    private static final String OTP_ELEMENT     = "on-the-phone";
-    private static final String NS_OTP_ELT      = "rpid:on-the-phone";
-    private static final String STATUS_ICON_ELEMENT = "status-icon";
-    private static final String NS_STATUS_ICON_ELT  = "rpid:status-icon";
-
-    // namespace wildcard
-    private static final String ANY_NS          = "*";
-
-    private static final String WATCHERINFO_NS_VALUE
-            = "urn:ietf:params:xml:ns:watcherinfo";
-    private static final String WATCHERINFO_ELEMENT= "watcherinfo";
-    private static final String STATE_ATTRIBUTE = "state";
-    private static final String VERSION_ATTRIBUTE = "version";
-    private static final String WATCHERLIST_ELEMENT= "watcher-list";
-    private static final String RESOURCE_ATTRIBUTE = "resource";
-    private static final String PACKAGE_ATTRIBUTE = "package";
-    private static final String WATCHER_ELEMENT= "watcher";
+
+    /**
+     * The maximum number of PIDF documents of our own status kept in
+     * {@link #pidfDocuments}, one per address we publish or notify from.
+     */
+    private static final int PIDF_DOCUMENT_CACHE_SIZE = 8;
+
+    /**
+     * The last PIDF document generated for each of our addresses, by
+     * contact URI, ordered by access so that the least recently used one is
+     * dropped first.
+     */
+    private final Map<String, PidfDocument> pidfDocuments
+        = new LinkedHashMap<String, PidfDocument>(
+                PIDF_DOCUMENT_CACHE_SIZE, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, PidfDocument> eldest)
+            {
+                return size() > PIDF_DOCUMENT_CACHE_SIZE;
+            }
+        };
 
     /**
      * The <code>EventPackageNotifier</code> which provides the ability of this
@@ -219,6 +201,14 @@
      */
     private final EventPackageSubscriber watcherInfoSubscriber;
 
+    /**
+     * The subscription to our resource list service (rfc4662) through which
+     * we receive the presence of all our contacts in a single dialog,
+     * <tt>null</tt> when we subscribe to each contact separately.
+     */
+    private volatile ResourceListSubscriberSubscription
+        resourceListSubscription = null;
+
     /**
      * The authorization handler, asking client for authentication.
      */
@@ -1090,7 +1080,9 @@ void subscribe(ContactGroup parentGroup, String contactIdentifier,
         }
         contact = ssContactList.createContact((ContactGroupSipImpl) parentGroup,
                 contactIdentifier, true, contactType);
-        if (this.presenceEnabled)
+        // the resource list service notifies us about the new contact as
+        // soon as it is added to the server stored list
+        if (this.presenceEnabled && (resourceListSubscription == null))
         {
             subscriber.subscribe(new PresenceSubscriberSubscription(contact));
         }
@@ -1978,6 +1970,11 @@ Document convertDocument(String document)
     /**
      * Converts the <tt>PresenceStatus</tt> of <tt>contact</tt> into a PIDF
      * document.
+     * <p>
+     * The document is sent in every PUBLISH and NOTIFY while our status
+     * rarely changes, so the last document generated for each of our
+     * addresses is kept and reused as long as the status and the status icon
+     * it describes are the current ones.
      *
      * @param contact The contact which interest us
      *
@@ -1986,100 +1983,66 @@ Document convertDocument(String document)
      */
      public byte[] getPidfPresenceStatus(ContactSipImpl contact)
      {
-         Document doc = this.createDocument();
-
-         if (doc == null)
-             return null;
-
          String contactUri = contact.getSipAddress().getURI().toString();
-
-         // <presence>
-         Element presence = doc.createElement(PRESENCE_ELEMENT);
-         presence.setAttribute(NS_ELEMENT, PIDF_NS_VALUE);
-         presence.setAttribute(RPID_NS_ELEMENT, RPID_NS_VALUE);
-         presence.setAttribute(DM_NS_ELEMENT, DM_NS_VALUE);
-         presence.setAttribute(ENTITY_ATTRIBUTE, contactUri);
-         doc.appendChild(presence);
-
-         // <person>
-         Element person = doc.createElement(NS_PERSON_ELT);
-         person.setAttribute(ID_ATTRIBUTE, PERSON_ID);
-         presence.appendChild(person);
-
-         // <activities>
-         Element activities = doc.createElement(NS_ACTIVITY_ELT);
-         person.appendChild(activities);
-
-         // <status-icon>
+         PresenceStatus status = contact.getPresenceStatus();
          URI imageUri = ssContactList.getImageUri();
-         if(imageUri != null)
+
+         synchronized (pidfDocuments)
          {
-             Element statusIcon = doc.createElement(NS_STATUS_ICON_ELT);
-             statusIcon.setTextContent(imageUri.toString());
-             person.appendChild(statusIcon);
+             PidfDocument cached = pidfDocuments.get(contactUri);
+
+             if ((cached != null)
+                     && cached.status.equals(status)
+                     && isEquals(cached.imageUri, imageUri))
+                 return cached.content;
          }
 
          // the correct activity
-         if (contact.getPresenceStatus()
-                         .equals(sipStatusEnum.getStatus(SipStatusEnum.AWAY)))
-         {
-             Element away = doc.createElement(NS_AWAY_ELT);
-             activities.appendChild(away);
-         }
-         else if (contact.getPresenceStatus()
-                         .equals(sipStatusEnum.getStatus(SipStatusEnum.BUSY)))
+         String activity = null;
+
+         if (status.equals(sipStatusEnum.getStatus(SipStatusEnum.AWAY)))
+             activity = PresenceDocumentCodec.AWAY_ELEMENT;
+         else if (status.equals(sipStatusEnum.getStatus(SipStatusEnum.BUSY)))
+             activity = PresenceDocumentCodec.BUSY_ELEMENT;
+         else if (status.equals(
+                 sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE)))
+             activity = PresenceDocumentCodec.OTP_ELEMENT;
+
+         String basic
+             = status.equals(sipStatusEnum.getStatus(SipStatusEnum.OFFLINE))
+                 ? OFFLINE_STATUS
+                 : ONLINE_STATUS;
+
+         byte[] content;
+
+         try
          {
-             Element busy = doc.createElement(NS_BUSY_ELT);
-             activities.appendChild(busy);
+             // <note> we write our real status here, this status SHOULD not
+             // be used for automatic parsing but some (bad) IM clients do
+             // this... we don't use xml:lang here because it's not really
+             // relevant
+             content
+                 = PresenceDocumentCodec.writePidf(
+                         contactUri,
+                         PERSON_ID,
+                         TUPLE_ID,
+                         activity,
+                         (imageUri == null) ? null : imageUri.toString(),
+                         basic,
+                         status.getStatusName());
          }
-         else if (contact.getPresenceStatus()
-                 .equals(sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE)))
+         catch (XMLStreamException e)
          {
-             Element otp = doc.createElement(NS_OTP_ELT);
-             activities.appendChild(otp);
+             logger.error("Can't convert the xml document into a string", e);
+             return null;
          }
 
-         // <tuple>
-         Element tuple = doc.createElement(TUPLE_ELEMENT);
-         tuple.setAttribute(ID_ATTRIBUTE, TUPLE_ID);
-         presence.appendChild(tuple);
-
-         // <status>
-         Element status = doc.createElement(STATUS_ELEMENT);
-         tuple.appendChild(status);
-
-         // <basic>
-         Element basic = doc.createElement(BASIC_ELEMENT);
-         if (contact.getPresenceStatus()
-                     .equals(sipStatusEnum.getStatus(SipStatusEnum.OFFLINE)))
+         synchronized (pidfDocuments)
          {
-             basic.appendChild(doc.createTextNode(OFFLINE_STATUS));
+             pidfDocuments.put(
+                     contactUri, new PidfDocument(status, imageUri, content));
          }
-         else
-         {
-             basic.appendChild(doc.createTextNode(ONLINE_STATUS));
-         }
-         status.appendChild(basic);
-
-         // <contact>
-         Element contactUriEl = doc.createElement(CONTACT_ELEMENT);
-         Node cValue = doc.createTextNode(contactUri);
-         contactUriEl.appendChild(cValue);
-         tuple.appendChild(contactUriEl);
-
-         // <note> we write our real status here, this status SHOULD not be
-         // used for automatic parsing but some (bad) IM clients do this...
-         // we don't use xml:lang here because it's not really relevant
-         Element noteNodeEl = doc.createElement(NOTE_ELEMENT);
-         noteNodeEl.appendChild(doc.createTextNode(contact.getPresenceStatus()
-                 .getStatusName()));
-         tuple.appendChild(noteNodeEl);
-
-         String res = convertDocument(doc);
-         if (res == null)
-             return null;
-
-         return res.getBytes();
+         return content;
      }
 
      /**
@@ -2095,39 +2058,27 @@ else if (contact.getPresenceStatus()
       */
      public void setPidfPresenceStatus(String presenceDoc)
      {
-         Document doc = convertDocument(presenceDoc);
-
-         if (doc == null)
-             return;
-
          if (logger.isDebugEnabled())
              logger.debug("parsing:\n" + presenceDoc);
 
-         // <presence>
-         NodeList presList = doc.getElementsByTagNameNS(PIDF_NS_VALUE,
-                 PRESENCE_ELEMENT);
+         PresenceDocumentCodec.Presence presence;
 
-         if (presList.getLength() == 0)
+         try
          {
-             presList = doc.getElementsByTagNameNS(ANY_NS, PRESENCE_ELEMENT);
-
-             if (presList.getLength() == 0)
-             {
-                 logger.error("no presence element in this document");
-                 return;
-             }
+             presence = PresenceDocumentCodec.readPidf(presenceDoc);
          }
-         if (presList.getLength() > 1)
+         catch (XMLStreamException e)
          {
-             logger.warn("more than one presence element in this document");
+             logger.error("Can't convert the string into a xml document", e);
+             return;
          }
-         Node presNode = presList.item(0);
-         if (presNode.getNodeType() != Node.ELEMENT_NODE)
+
+         // <presence>
+         if (presence == null)
          {
-             logger.error("the presence node is not an element");
+             logger.error("no presence element in this document");
              return;
          }
-         Element presence = (Element) presNode;
 
          // RPID area
 
@@ -2137,100 +2088,37 @@ public void setPidfPresenceStatus(String presenceDoc)
 
          PresenceStatus personStatus = null;
          URI personStatusIcon = null;
-         NodeList personList = presence.getElementsByTagNameNS(ANY_NS,
-                 PERSON_ELEMENT);
 
-         //if (personList.getLength() > 1) {
-         //    logger.error("more than one person in this document");
-         //    return;
-         //}
+         if (PresenceDocumentCodec.AWAY_ELEMENT.equals(presence.activity))
+         {
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.AWAY);
+         }
+         else if (PresenceDocumentCodec.BUSY_ELEMENT.equals(presence.activity))
+         {
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.BUSY);
+         }
+         else if (PresenceDocumentCodec.OTP_ELEMENT.equals(presence.activity))
+         {
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE);
+         }
 
-         if (personList.getLength() > 0)
+         String content = presence.statusIcon;
+         if (content != null && content.trim().length() != 0)
          {
-             Node personNode = personList.item(0);
-             if (personNode.getNodeType() != Node.ELEMENT_NODE)
+             try
              {
-                 logger.error("the person node is not an element");
-                 return;
+                 personStatusIcon = URI.create(content);
              }
-             Element person = (Element) personNode;
-
-             NodeList activityList =
-                 person.getElementsByTagNameNS(ANY_NS, ACTIVITY_ELEMENT);
-             if (activityList.getLength() > 0)
+             catch (IllegalArgumentException ex)
              {
-                 Element activity = null;
-                 // find the first correct activity
-                 for (int i = 0; i < activityList.getLength(); i++)
-                 {
-                     Node activityNode = activityList.item(i);
-
-                     if (activityNode.getNodeType() != Node.ELEMENT_NODE)
-                         continue;
-
-                     activity = (Element) activityNode;
-
-                     NodeList statusList = activity.getChildNodes();
-                     for (int j = 0; j < statusList.getLength(); j++)
-                     {
-                         Node statusNode = statusList.item(j);
-                         if (statusNode.getNodeType() == Node.ELEMENT_NODE)
-                         {
-                             String statusname = statusNode.getLocalName();
-                             if (statusname.equals(AWAY_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.AWAY);
-                                 break;
-                             }
-                             else if (statusname.equals(BUSY_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.BUSY);
-                                 break;
-                             }
-                             else if (statusname.equals(OTP_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.ON_THE_PHONE);
-                                 break;
-                             }
-                         }
-                     }
-                     if (personStatus != null)
-                         break;
-                 }
-             }
-             NodeList statusIconList = person.getElementsByTagNameNS(ANY_NS,
-                     STATUS_ICON_ELEMENT);
-             if (statusIconList.getLength() > 0)
-             {
-                 Element statusIcon;
-                 Node statusIconNode = statusIconList.item(0);
-                 if (statusIconNode.getNodeType() == Node.ELEMENT_NODE)
-                 {
-                     statusIcon = (Element) statusIconNode;
-                     String content = getTextContent(statusIcon);
-                     if (content != null && content.trim().length() != 0)
-                     {
-                         try
-                         {
-                             personStatusIcon = URI.create(content);
-                         }
-                         catch (IllegalArgumentException ex)
-                         {
-                             logger.error("Person's status icon uri: " +
-                                     content + " is invalid");
-                         }
-                     }
-                 }
+                 logger.error("Person's status icon uri: " +
+                         content + " is invalid");
              }
          }
 
           if(personStatusIcon != null)
           {
-              String contactID =
-                  XMLUtils.getAttribute(presNode, ENTITY_ATTRIBUTE);
+              String contactID = presence.entity;
 
               if (contactID.startsWith("pres:"))
               {
@@ -2243,34 +2131,26 @@ else if (statusname.equals(OTP_ELEMENT))
         // search for a <note> that can define a more precise
         // status this is not recommended by RFC3863 but some im
         // clients use this.
-        NodeList presNoteList = getPidfChilds(presence, NOTE_ELEMENT);
-        if (presNoteList.getLength() >= 1)
+        String presNote = presence.notes.getLast();
+        if (presNote != null)
         {
-            Node noteNode = presNoteList.item(presNoteList.getLength() - 1);
-            if (noteNode.getNodeType() == Node.ELEMENT_NODE)
+            switch (presNote.toLowerCase())
             {
-                String state = getTextContent((Element)noteNode);
-                if (state != null)
-                {
-                    switch (state.toLowerCase())
-                    {
-                        case "ready":
-                        case "available":
-                            personStatus = sipStatusEnum
-                                .getStatus(SipStatusEnum.ONLINE);
-                            break;
-                        case "ringing":
-                        case "on the phone":
-                        case "on hold":
-                            personStatus = sipStatusEnum
-                                .getStatus(SipStatusEnum.ON_THE_PHONE);
-                            break;
-                        case "unavailable":
-                            personStatus = sipStatusEnum
-                                .getStatus(SipStatusEnum.OFFLINE);
-                            break;
-                    }
-                }
+                case "ready":
+                case "available":
+                    personStatus = sipStatusEnum
+                        .getStatus(SipStatusEnum.ONLINE);
+                    break;
+                case "ringing":
+                case "on the phone":
+                case "on hold":
+                    personStatus = sipStatusEnum
+                        .getStatus(SipStatusEnum.ON_THE_PHONE);
+                    break;
+                case "unavailable":
+                    personStatus = sipStatusEnum
+                        .getStatus(SipStatusEnum.OFFLINE);
+                    break;
             }
         }
 
@@ -2280,29 +2160,21 @@ else if (statusname.equals(OTP_ELEMENT))
          List<Object[]> newPresenceStates = new Vector<Object[]>(3, 2);
 
          // <tuple>
-         NodeList tupleList = getPidfChilds(presence, TUPLE_ELEMENT);
-         for (int i = 0; i < tupleList.getLength(); i++)
+         for (PresenceDocumentCodec.Tuple tuple : presence.tuples.get())
          {
-             Node tupleNode = tupleList.item(i);
-
-             if (tupleNode.getNodeType() != Node.ELEMENT_NODE)
-                 continue;
-
-             Element tuple = (Element) tupleNode;
-
              // <contact>
-             NodeList contactList = getPidfChilds(tuple, CONTACT_ELEMENT);
+             List<PresenceDocumentCodec.TupleContact> contactList
+                 = tuple.contacts.get();
 
              // we use a vector here and not an unique contact to handle an
              // error case where many contacts are associated with a status
              // Vector<ContactSipImpl>
              List<Object[]> sipcontact = new Vector<Object[]>(1, 3);
              String contactID = null;
-             if (contactList.getLength() == 0)
+             if (contactList.isEmpty())
              {
                  // use the entity attribute of the presence node
-                 contactID = XMLUtils.getAttribute(
-                         presNode, ENTITY_ATTRIBUTE);
+                 contactID = presence.entity;
                  // also accept entity URIs starting with pres: instead of sip:
                  if (contactID.startsWith("pres:"))
                  {
@@ -2318,16 +2190,9 @@ else if (statusname.equals(OTP_ELEMENT))
              else
              {
                  // this is normally not permitted by RFC3863
-                 for (int j = 0; j < contactList.getLength(); j++)
+                 for (PresenceDocumentCodec.TupleContact contact : contactList)
                  {
-                     Node contactNode = contactList.item(j);
-
-                     if (contactNode.getNodeType() != Node.ELEMENT_NODE)
-                         continue;
-
-                     Element contact = (Element) contactNode;
-
-                     contactID = getTextContent(contact);
+                     contactID = contact.uri;
                      // also accept entity URIs starting with pres: instead
                      // of sip:
                      if (contactID.startsWith("pres:"))
@@ -2343,7 +2208,7 @@ else if (statusname.equals(OTP_ELEMENT))
                      Object tab[] = new Object[2];
 
                      // search if the contact has a priority
-                     String prioStr = contact.getAttribute(PRIORITY_ATTRIBUTE);
+                     String prioStr = contact.priority;
                      Float prio = null;
                      try
                      {
@@ -2415,81 +2280,39 @@ else if (statusname.equals(OTP_ELEMENT))
              }
 
              // <status>
-             NodeList statusList = getPidfChilds(tuple, STATUS_ELEMENT);
-
              // in case of many status, just consider the last one
              // this is normally not permitted by RFC3863
-             int index = statusList.getLength() - 1;
-             Node statusNode = null;
-             do
-             {
-                 Node temp = statusList.item(index);
-                 if (temp.getNodeType() == Node.ELEMENT_NODE)
-                 {
-                     statusNode = temp;
-                     break;
-                 }
-                 index--;
-             }
-             while (index >= 0);
+             PresenceDocumentCodec.Status status = tuple.statuses.getLast();
 
-             Element basic = null;
+             String basic = null;
 
-             if (statusNode == null)
+             if (status == null)
              {
                  if (logger.isDebugEnabled())
                      logger.debug("no valid status in this tuple");
              }
              else
              {
-                 Element status = (Element) statusNode;
-
                  // <basic>
-                 NodeList basicList = getPidfChilds(status, BASIC_ELEMENT);
-
                  // in case of many basic, just consider the last one
                  // this is normally not permitted by RFC3863
-                 index = basicList.getLength() - 1;
-                 Node basicNode = null;
-                 do
-                 {
-                     Node temp = basicList.item(index);
-                     if (temp.getNodeType() == Node.ELEMENT_NODE)
-                     {
-                         basicNode = temp;
-                         break;
-                     }
-                     index--;
-                 }
-                 while (index >= 0);
+                 basic = status.basics.getLast();
 
-                 if (basicNode == null)
+                 if (basic == null)
                  {
                      if (logger.isDebugEnabled())
                          logger.debug("no valid <basic> in this status");
                  }
-                 else
-                 {
-                     basic = (Element) basicNode;
-                 }
              }
 
              // search for a <note> that can define a more precise
              // status this is not recommended by RFC3863 but some im
              // clients use this.
-             NodeList noteList = getPidfChilds(tuple, NOTE_ELEMENT);
-
              boolean changed = false;
-             for (int k = 0; k < noteList.getLength() && !changed; k++)
+             for (Iterator<String> notes = tuple.notes.get().iterator();
+                     notes.hasNext() && !changed;)
              {
-                 Node noteNode = noteList.item(k);
-
-                 if (noteNode.getNodeType() != Node.ELEMENT_NODE)
-                     continue;
-
-                 Element note = (Element) noteNode;
-
-                 String state = getTextContent(note);
+                 String state = notes.next();
 
                  Iterator<PresenceStatus> states
                      = sipStatusEnum.getSupportedStatusSet();
@@ -2510,7 +2333,7 @@ else if (statusname.equals(OTP_ELEMENT))
 
              if (changed == false && basic != null)
              {
-                 if (getTextContent(basic).equalsIgnoreCase(ONLINE_STATUS))
+                 if (basic.equalsIgnoreCase(ONLINE_STATUS))
                  {
                      // if its online(open) we use the person status
                      // if any, otherwise just mark as online
@@ -2529,8 +2352,7 @@ else if (statusname.equals(OTP_ELEMENT))
                                  newPresenceStates);
                      }
                  }
-                 else if (getTextContent(basic).equalsIgnoreCase(
-                         OFFLINE_STATUS))
+                 else if (basic.equalsIgnoreCase(OFFLINE_STATUS))
                  {
                      // if its offline we ignore person status
                      newPresenceStates = setStatusForContacts(
@@ -2576,51 +2398,36 @@ public void setWatcherInfoStatus(
             return;
         }
 
-        Document doc = convertDocument(watcherInfoDoc);
-
-         if (doc == null)
-             return;
-
          if (logger.isDebugEnabled())
              logger.debug("parsing:\n" + watcherInfoDoc);
 
-        // <watcherinfo>
-        NodeList watchList = doc.getElementsByTagNameNS(
-                WATCHERINFO_NS_VALUE, WATCHERINFO_ELEMENT);
-        if (watchList.getLength() == 0)
-        {
-            watchList = doc.getElementsByTagNameNS(
-                     ANY_NS, WATCHERINFO_ELEMENT);
+        PresenceDocumentCodec.WatcherInfo watcherInfo;
 
-            if (watchList.getLength() == 0)
-            {
-                logger.error("no watcherinfo element in this document");
-                return;
-            }
-        }
-        if (watchList.getLength() > 1)
+        try
         {
-            logger.warn("more than one watcherinfo element in this document");
+            watcherInfo = PresenceDocumentCodec.readWatcherInfo(watcherInfoDoc);
         }
-        Node watcherInfoNode = watchList.item(0);
-        if (watcherInfoNode.getNodeType() != Node.ELEMENT_NODE)
+        catch (XMLStreamException e)
         {
-            logger.error("the watcherinfo node is not an element");
+            logger.error("Can't convert the string into a xml document", e);
             return;
         }
 
-        Element watcherInfo = (Element)watcherInfoNode;
+        // <watcherinfo>
+        if (watcherInfo == null)
+        {
+            logger.error("no watcherinfo element in this document");
+            return;
+        }
 
         // we don't take in account whether the state is full or partial.
         if(logger.isDebugEnabled())
-            logger.debug("Watcherinfo is with state: "
-                    + watcherInfo.getAttribute(STATE_ATTRIBUTE));
+            logger.debug("Watcherinfo is with state: " + watcherInfo.state);
 
         int currentVersion = -1;
         try
         {
-            currentVersion =
-                Integer.parseInt(watcherInfo.getAttribute(VERSION_ATTRIBUTE));
+            currentVersion = Integer.parseInt(watcherInfo.version);
         }
         catch(Throwable t)
         {
@@ -2636,38 +2443,26 @@ public void setWatcherInfoStatus(
             subscriber.version = currentVersion;
 
         // we need watcher list only for our resource
-        Element wlist = XMLUtils.locateElement(
-                watcherInfo, WATCHERLIST_ELEMENT, RESOURCE_ATTRIBUTE,
-                parentProvider.getRegistrarConnection()
-                    .getAddressOfRecord().getURI().toString());
+        PresenceDocumentCodec.WatcherList wlist
+            = watcherInfo.getWatcherList(
+                    parentProvider.getRegistrarConnection()
+                        .getAddressOfRecord().getURI().toString());
 
-        if(wlist == null ||
-            !wlist.getAttribute(PACKAGE_ATTRIBUTE).equals(PRESENCE_ELEMENT))
+        if(wlist == null || !wlist.eventPackage.equals("presence"))
         {
             logger.error("Watcher list for us is missing in this document!");
             return;
         }
 
-        NodeList watcherList = wlist.getElementsByTagNameNS(ANY_NS,
-                 WATCHER_ELEMENT);
-        for(int i = 0; i < watcherList.getLength(); i++)
+        for (PresenceDocumentCodec.Watcher watcher : wlist.watchers)
         {
-            Node watcherNode = watcherList.item(i);
-            if (watcherNode.getNodeType() != Node.ELEMENT_NODE)
-            {
-                logger.error("the watcher node is not an element");
-                return;
-            }
-
-            Element watcher = (Element)watcherNode;
-
-            String status = watcher.getAttribute(STATUS_ELEMENT);
-            String contactID = getTextContent(watcher);
+            String status = watcher.status;
+            String contactID = watcher.uri;
 
             //String event - subscribe, approved, deactivated, probation,
             //rejected, timeout, giveup, noresource
 
-            if(status == null || contactID == null)
+            if(status.length() == 0 || contactID.length() == 0)
             {
                 logger.warn("Status or contactID missing for watcher!");
                 continue;
@@ -2751,52 +2546,6 @@ private void updateContactIcon(ContactSipImpl contact, URI imageUri)
                 newImage);
     }
 
-     /**
-      * Secured call to XMLUtils.getText (no null returned but an empty string)
-      *
-      * @param node the node with which call <tt>XMLUtils.getText()</tt>
-      *
-      * @return the string contained in the node or an empty string if there is
-      * no text information in the node.
-      */
-     private String getTextContent(Element node)
-     {
-         String res = XMLUtils.getText(node);
-
-         if (res == null)
-         {
-             logger.warn("no text for element '" + node.getNodeName() + "'");
-             return "";
-         }
-
-         return res;
-     }
-
-     /**
-      * Gets the list of the descendant of an element in the pidf namespace.
-      * If the list is empty, we try to get this list in any namespace.
-      * This method is useful for being able to read pidf document without any
-      * namespace or with a wrong namespace.
-      *
-      * @param element the base element concerned.
-      * @param childName the name of the descendants to match on.
-      *
-      * @return The list of all the descendant node.
-      */
-     private NodeList getPidfChilds(Element element, String childName)
-     {
-         NodeList res;
-
-         res = element.getElementsByTagNameNS(PIDF_NS_VALUE, childName);
-
-         if (res.getLength() == 0)
-         {
-             res = element.getElementsByTagNameNS(ANY_NS, childName);
-         }
-
-         return res;
-     }
-
      /**
       * Associate the provided presence state to the contacts considering the
       * current presence states and priorities.
@@ -2896,7 +2645,8 @@ public void forcePollContact(ContactSipImpl contact)
      {
          if (this.presenceEnabled == false
              || !contact.isResolvable()
-             || !contact.isPersistent())
+             || !contact.isPersistent()
+             || (resourceListSubscription != null))
              return;
 
          // Attempt to subscribe.
@@ -2940,6 +2690,23 @@ public void unsubscribeToAllContact()
      */
     private void unsubscribeToAllEventSubscribers()
     {
+        ResourceListSubscriberSubscription resourceListSubscription
+            = this.resourceListSubscription;
+
+        if (resourceListSubscription != null)
+        {
+            this.resourceListSubscription = null;
+            try
+            {
+                subscriber.unsubscribe(
+                    resourceListSubscription.getAddress(), false);
+            }
+            catch (Throwable ex)
+            {
+                logger.error("Failed to send the unsubscription " +
+                        "for the resource list.", ex);
+            }
+        }
         if(this.watcherInfoSubscriber != null)
         {
             try
@@ -3011,7 +2778,7 @@ private void cancelTimer()
      /**
       * A <tt>TimerTask</tt> handling refresh of PUBLISH requests.
       */
-     private class RePublishTask extends TimerTask
+     private class RePublishTask extends TimerScheduler.Task
      {
          /**
           * Send a new PUBLISH request to refresh the publication
@@ -3066,7 +2833,7 @@ public void run()
      /**
       * A task handling polling of offline contacts.
       */
-     private class PollOfflineContactsTask extends TimerTask
+     private class PollOfflineContactsTask extends TimerScheduler.Task
      {
          /**
           * Check if we can't subscribe to this contact now
@@ -3196,11 +2963,15 @@ else if (evt.getNewState().equals(RegistrationState.REGISTERED))
                 return;
             }
 
-            // Subcribe to each contact in the list
-            for (ContactSipImpl contact : ssContactList
-                    .getAllContacts(ssContactList.getRootGroup()))
+            // Subscribe to all the contacts at once if the server provides
+            // a resource list service, to each contact in the list otherwise
+            if (!subscribeToResourceList())
             {
-                forcePollContact(contact);
+                for (ContactSipImpl contact : ssContactList
+                        .getAllContacts(ssContactList.getRootGroup()))
+                {
+                    forcePollContact(contact);
+                }
             }
 
             // create the new polling task
@@ -3235,6 +3006,22 @@ else if (evt.getNewState().equals(RegistrationState.CONNECTION_FAILED)
             }
             // Destroy XCAP contacts
             ssContactList.destroy();
+            ResourceListSubscriberSubscription resourceListSubscription
+                = this.resourceListSubscription;
+            if (resourceListSubscription != null)
+            {
+                this.resourceListSubscription = null;
+                try
+                {
+                    subscriber.removeSubscription(
+                        resourceListSubscription.getAddress());
+                }
+                catch (Throwable ex)
+                {
+                    logger.error("Failed to remove subscription " +
+                            "for the resource list.", ex);
+                }
+            }
             // if connection failed we have lost network connectivity
             // we must fire that all contacts has gone offline
             for (ContactSipImpl contact : ssContactList
@@ -3300,6 +3087,129 @@ else if (evt.getNewState().equals(RegistrationState.CONNECTION_FAILED)
         }
     }
 
+    /**
+     * Subscribes to the presence of all our contacts through the resource
+     * list service of the server stored contact list, if it provides one.
+     *
+     * @return <tt>true</tt> if the resource list subscription was sent and
+     * the contacts must not be subscribed to separately, <tt>false</tt>
+     * otherwise.
+     */
+    private boolean subscribeToResourceList()
+    {
+        String rlsServiceUri = ssContactList.getRlsServiceUri();
+
+        if (rlsServiceUri == null)
+            return false;
+
+        try
+        {
+            ResourceListSubscriberSubscription subscription
+                = new ResourceListSubscriberSubscription(
+                        parentProvider.parseAddressString(rlsServiceUri));
+
+            resourceListSubscription = subscription;
+            subscriber.subscribe(subscription);
+            return true;
+        }
+        catch (ParseException ex)
+        {
+            logger.error("Invalid resource list service URI "
+                    + rlsServiceUri, ex);
+        }
+        catch (OperationFailedException ex)
+        {
+            logger.error("Failed to create and send the subscription " +
+                    "for the resource list.", ex);
+        }
+        resourceListSubscription = null;
+        return false;
+    }
+
+    /**
+     * Gives up the resource list subscription and subscribes to each contact
+     * separately, for servers which turn out to have no resource list service
+     * or which terminated it.
+     *
+     * @param subscription the resource list subscription which failed
+     */
+    private void fallBackToContactSubscriptions(
+            ResourceListSubscriberSubscription subscription)
+    {
+        // we may have registered again in between
+        if (resourceListSubscription != subscription)
+            return;
+
+        resourceListSubscription = null;
+
+        if (logger.isInfoEnabled())
+            logger.info("No resource list service at "
+                    + subscription.getAddress()
+                    + ", subscribing to each contact");
+
+        for (ContactSipImpl contact : ssContactList
+                .getAllContacts(ssContactList.getRootGroup()))
+        {
+            forcePollContact(contact);
+        }
+    }
+
+    /**
+     * Updates the subscription state of a contact and notifies the
+     * authorization handler when it accepts or rejects our subscription.
+     *
+     * @param contact the contact whose subscription state changed
+     * @param state the new state, as found in a Subscription-State header
+     * @param reasonCode the reason of the termination if <tt>state</tt> is
+     * terminated
+     */
+    private void setContactSubscriptionState(
+            ContactSipImpl contact,
+            String state,
+            String reasonCode)
+    {
+        if(SubscriptionStateHeader.PENDING.equals(state))
+        {
+            contact.setSubscriptionState(SubscriptionStateHeader.PENDING);
+        }
+        else if(SubscriptionStateHeader.ACTIVE.equals(state))
+        {
+            // if contact was in pending state
+            // our authorization request was accepted
+            if(SubscriptionStateHeader.PENDING
+                    .equals(contact.getSubscriptionState())
+               && authorizationHandler != null)
+            {
+                authorizationHandler.processAuthorizationResponse(
+                        new AuthorizationResponse(
+                                AuthorizationResponse.ACCEPT, ""),
+                        contact);
+            }
+            contact.setSubscriptionState(SubscriptionStateHeader.ACTIVE);
+        }
+        else if(SubscriptionStateHeader.TERMINATED.equals(state))
+        {
+            if(SubscriptionStateHeader.REJECTED.equals(reasonCode))
+            {
+                if(SubscriptionStateHeader.PENDING
+                    .equals(contact.getSubscriptionState())
+                   && authorizationHandler != null)
+                {
+                    authorizationHandler.processAuthorizationResponse(
+                        new AuthorizationResponse(
+                            AuthorizationResponse.REJECT, ""),
+                            contact);
+                }
+
+                // as this contact is rejected we mark it as not resolvable
+                // so we won't subscribe again (in offline poll task)
+                contact.setResolvable(false);
+            }
+
+            contact.setSubscriptionState(SubscriptionStateHeader.TERMINATED);
+        }
+    }
+
     /**
      * Gets the identifying address of a specific <code>ContactSipImpl</code> in
      * the form of a <code>Address</code> value.
@@ -3506,31 +3416,12 @@ protected void processActiveRequest(
                 (SubscriptionStateHeader)requestEvent.getRequest()
                         .getHeader(SubscriptionStateHeader.NAME);
 
-            if(stateHeader != null)
-            {
-                if(SubscriptionStateHeader.PENDING
-                        .equals(stateHeader.getState()))
-                {
-                    contact.setSubscriptionState(
-                            SubscriptionStateHeader.PENDING);
-                }
-                else if(SubscriptionStateHeader.ACTIVE
+            if(stateHeader != null
+                && !SubscriptionStateHeader.TERMINATED
                         .equals(stateHeader.getState()))
-                {
-                    // if contact was in pending state
-                    // our authorization request was accepted
-                    if(SubscriptionStateHeader.PENDING
-                            .equals(contact.getSubscriptionState())
-                       && authorizationHandler != null)
-                    {
-                        authorizationHandler.processAuthorizationResponse(
-                                new AuthorizationResponse(
-                                        AuthorizationResponse.ACCEPT, ""),
-                                contact);
-                    }
-                    contact.setSubscriptionState(
-                            SubscriptionStateHeader.ACTIVE);
-                }
+            {
+                setContactSubscriptionState(
+                        contact, stateHeader.getState(), null);
             }
         }
 
@@ -3642,26 +3533,200 @@ protected void processTerminatedRequest(
                 && SubscriptionStateHeader.TERMINATED
                     .equals(stateHeader.getState()))
             {
-                if(SubscriptionStateHeader.REJECTED
-                        .equals(stateHeader.getReasonCode()))
-                {
-                    if(SubscriptionStateHeader.PENDING
-                        .equals(contact.getSubscriptionState()))
-                    {
-                        authorizationHandler.processAuthorizationResponse(
-                            new AuthorizationResponse(
-                                AuthorizationResponse.REJECT, ""),
-                                contact);
-                    }
+                setContactSubscriptionState(
+                        contact,
+                        SubscriptionStateHeader.TERMINATED,
+                        stateHeader.getReasonCode());
+            }
+        }
+    }
 
-                    // as this contact is rejected we mark it as not resolvable
-                    // so we won't subscribe again (in offline poll task)
-                    contact.setResolvable(false);
-                }
+    /**
+     * Represents a subscription to the presence event package of our
+     * resource list service (rfc4662), delivering the presence of all our
+     * contacts in multipart/related NOTIFY bodies.
+     */
+    private class ResourceListSubscriberSubscription
+        extends EventPackageSubscriber.Subscription
+    {
+        /**
+         * Initializes a new <tt>ResourceListSubscriberSubscription</tt> to
+         * the resource list service with a specific URI.
+         *
+         * @param toAddress the URI of the resource list service
+         */
+        public ResourceListSubscriberSubscription(Address toAddress)
+        {
+            super(toAddress);
+        }
+
+        /**
+         * Announces that we support resource list subscriptions and accept
+         * their multipart/related RLMI notifications besides PIDF.
+         *
+         * @param req the SUBSCRIBE request to populate
+         * @param headerFactory the factory to create the headers with
+         * @throws ParseException if one of the headers cannot be created
+         */
+        @Override
+        protected void populateSubscribeRequest(
+                Request req,
+                HeaderFactory headerFactory)
+            throws ParseException
+        {
+            req.setHeader(headerFactory.createSupportedHeader(
+                    EventListContent.EVENTLIST_OPTION_TAG));
+            req.addHeader(headerFactory.createAcceptHeader(
+                    EventListContent.APPLICATION_TYPE,
+                    EventListContent.RLMI_SUBTYPE));
+            req.addHeader(headerFactory.createAcceptHeader(
+                    EventListContent.MULTIPART_TYPE,
+                    EventListContent.RELATED_SUBTYPE));
+        }
+
+        /**
+         * Accepts the multipart/related bodies of resource list
+         * notifications.
+         *
+         * @param contentTypeHeader the Content-Type header of the NOTIFY
+         * @return <tt>true</tt> for multipart/related content
+         */
+        @Override
+        protected boolean isContentTypeSupported(
+                ContentTypeHeader contentTypeHeader)
+        {
+            return EventListContent.MULTIPART_TYPE.equalsIgnoreCase(
+                        contentTypeHeader.getContentType())
+                && EventListContent.RELATED_SUBTYPE.equalsIgnoreCase(
+                        contentTypeHeader.getContentSubType());
+        }
+
+        /**
+         * Updates the subscription state of the contacts listed in the RLMI
+         * document of the notification and their presence status from the
+         * PIDF documents it carries.
+         *
+         * @param requestEvent the event carrying the NOTIFY
+         * @param rawContent the body of the NOTIFY
+         */
+        @Override
+        protected void processActiveRequest(
+                RequestEvent requestEvent,
+                byte[] rawContent)
+        {
+            if (rawContent == null)
+                return;
+
+            ContentTypeHeader ctheader
+                = (ContentTypeHeader) requestEvent.getRequest()
+                        .getHeader(ContentTypeHeader.NAME);
+
+            if ((ctheader == null) || !isContentTypeSupported(ctheader))
+            {
+                // a notification about a single resource
+                setPidfPresenceStatus(new String(rawContent));
+                return;
+            }
+
+            String boundary = ctheader.getParameter("boundary");
+
+            if (boundary == null)
+            {
+                logger.error("resource list notification without boundary");
+                return;
+            }
+
+            EventListContent content
+                = new EventListContent(
+                        new String(rawContent),
+                        EventListContent.unquote(boundary),
+                        PIDF_XML);
+
+            for (EventListContent.Resource resource : content.getResources())
+            {
+                ContactSipImpl contact = resolveContactID(resource.uri);
+
+                if ((contact == null) || (resource.state == null))
+                    continue;
+
+                if (SubscriptionStateHeader.TERMINATED.equals(resource.state))
+                    terminateSubscription(contact);
+                else if (!contact.isResolved())
+                    finalizeSubscription(contact);
+
+                setContactSubscriptionState(
+                        contact, resource.state, resource.reason);
+            }
+
+            for (String presenceDoc : content.getDocuments())
+                setPidfPresenceStatus(presenceDoc);
+        }
+
+        /**
+         * Falls back to subscribing to each contact when the server has no
+         * resource list service.
+         *
+         * @param responseEvent the event carrying the failure response
+         * @param statusCode the status code of the response
+         */
+        @Override
+        protected void processFailureResponse(
+                ResponseEvent responseEvent,
+                int statusCode)
+        {
+            fallBackToContactSubscriptions(this);
+        }
+
+        /**
+         * Makes sure the server handles our subscription as a resource list
+         * subscription, which it indicates with a Require: eventlist header,
+         * and falls back to subscribing to each contact otherwise.
+         *
+         * @param responseEvent the event carrying the success response
+         * @param statusCode the status code of the response
+         */
+        @Override
+        protected void processSuccessResponse(
+                ResponseEvent responseEvent,
+                int statusCode)
+        {
+            ListIterator<?> requireHeaders
+                = responseEvent.getResponse().getHeaders(RequireHeader.NAME);
 
-                contact.setSubscriptionState(
-                        SubscriptionStateHeader.TERMINATED);
+            while ((requireHeaders != null) && requireHeaders.hasNext())
+            {
+                RequireHeader requireHeader
+                    = (RequireHeader) requireHeaders.next();
+
+                if (EventListContent.EVENTLIST_OPTION_TAG.equalsIgnoreCase(
+                        requireHeader.getOptionTag()))
+                    return;
             }
+
+            try
+            {
+                subscriber.unsubscribe(getAddress(), false);
+            }
+            catch (OperationFailedException ex)
+            {
+                logger.error("Failed to unsubscribe from " + getAddress(), ex);
+            }
+            fallBackToContactSubscriptions(this);
+        }
+
+        /**
+         * Falls back to subscribing to each contact when the server
+         * terminates the resource list subscription.
+         *
+         * @param requestEvent the event carrying the terminating NOTIFY
+         * @param reasonCode the reason of the termination
+         */
+        @Override
+        protected void processTerminatedRequest(
+                RequestEvent requestEvent,
+                String reasonCode)
+        {
+            fallBackToContactSubscriptions(this);
         }
     }
 
@@ -3773,4 +3838,40 @@ protected void processTerminatedRequest(
             logger.error("Subscription to presence watcher info terminated!");
         }
     }
+
+    /**
+     * A PIDF document generated for one of our addresses along with the
+     * status and the status icon it describes.
+     */
+    private static class PidfDocument
+    {
+        /**
+         * The status described in {@link #content}.
+         */
+        private final PresenceStatus status;
+
+        /**
+         * The status icon described in {@link #content}.
+         */
+        private final URI imageUri;
+
+        /**
+         * The PIDF document.
+         */
+        private final byte[] content;
+
+        /**
+         * Initializes a new <tt>PidfDocument</tt>.
+         *
+         * @param status the status described in the document
+         * @param imageUri the status icon described in the document
+         * @param content the document
+         */
+        PidfDocument(PresenceStatus status, URI imageUri, byte[] content)
+        {
+            this.status = status;
+            this.imageUri = imageUri;
+            this.content = content;
+        }
+    }
 }
@@ -118,7 +118,7 @@
     /**
      * The global timer managing the tasks.
      */
-    private Timer timer = new Timer();
+    private final TimerScheduler timer = new TimerScheduler();
 
     /**
      * The timer tasks for received events, it timer time is reached this
@@ -576,13 +576,14 @@ void shutdown()
     {
         parentProvider.removeRegistrationStateChangeListener(
             registrationListener);
+        timer.cancel();
     }
 
     /**
      * Task that will fire typing stopped when refresh time expires.
      */
     private class TypingTask
-        extends TimerTask
+        extends TimerScheduler.Task
     {
         /**
          * The contact that is typing in case of receiving the event and
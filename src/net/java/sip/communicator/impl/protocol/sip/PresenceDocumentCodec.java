@@ -0,0 +1,731 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+/**
+ * Reads and writes the PIDF (rfc3863, with the RPID extensions of rfc4480)
+ * and watcherinfo (rfc3858) documents of the presence event package with a
+ * streaming (StAX) parser, without building a DOM document.
+ * <p>
+ * The reading is as tolerant as the former DOM based one: elements are
+ * searched at any depth and, as the namespaces used by servers and clients
+ * are often wrong, they are matched by their local name, the elements in the
+ * PIDF namespace being preferred when there are some.
+ * <p>
+ * The stream factories are costly to create and not guaranteed to be thread
+ * safe, so every thread gets its own.
+ */
+final class PresenceDocumentCodec
+{
+    static final String PIDF_NS_VALUE   = "urn:ietf:params:xml:ns:pidf";
+    static final String RPID_NS_VALUE   = "urn:ietf:params:xml:ns:pidf:rpid";
+    static final String DM_NS_VALUE     =
+                                    "urn:ietf:params:xml:ns:pidf:data-model";
+
+    // pidf elements and attributes
+    private static final String PRESENCE_ELEMENT= "presence";
+    private static final String ENTITY_ATTRIBUTE= "entity";
+    private static final String TUPLE_ELEMENT   = "tuple";
+    private static final String ID_ATTRIBUTE    = "id";
+    private static final String STATUS_ELEMENT  = "status";
+    private static final String BASIC_ELEMENT   = "basic";
+    private static final String CONTACT_ELEMENT = "contact";
+    private static final String NOTE_ELEMENT    = "note";
+    private static final String PRIORITY_ATTRIBUTE  = "priority";
+
+    // rpid elements and attributes
+    private static final String RPID_PREFIX     = "rpid";
+    private static final String DM_PREFIX       = "dm";
+    private static final String PERSON_ELEMENT  = "person";
+    private static final String ACTIVITY_ELEMENT= "activities";
+    static final String AWAY_ELEMENT            = "away";
+    static final String BUSY_ELEMENT            = "busy";
+    static final String OTP_ELEMENT             = "on-the-phone";
+    private static final String STATUS_ICON_ELEMENT = "status-icon";
+
+    // watcherinfo elements and attributes
+    private static final String WATCHERINFO_ELEMENT= "watcherinfo";
+    private static final String STATE_ATTRIBUTE = "state";
+    private static final String VERSION_ATTRIBUTE = "version";
+    private static final String WATCHERLIST_ELEMENT= "watcher-list";
+    private static final String RESOURCE_ATTRIBUTE = "resource";
+    private static final String PACKAGE_ATTRIBUTE = "package";
+    private static final String WATCHER_ELEMENT= "watcher";
+
+    /**
+     * The factory of stream readers of the current thread. External entities
+     * and DTDs are not supported since the documents come from the network.
+     */
+    private static final ThreadLocal<XMLInputFactory> inputFactories
+        = new ThreadLocal<XMLInputFactory>()
+        {
+            @Override
+            protected XMLInputFactory initialValue()
+            {
+                XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+
+                inputFactory.setProperty(
+                    XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+                inputFactory.setProperty(
+                    XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+                inputFactory.setProperty(
+                    XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+                inputFactory.setProperty(
+                    XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                    Boolean.FALSE);
+                return inputFactory;
+            }
+        };
+
+    /**
+     * The factory of stream writers of the current thread.
+     */
+    private static final ThreadLocal<XMLOutputFactory> outputFactories
+        = new ThreadLocal<XMLOutputFactory>()
+        {
+            @Override
+            protected XMLOutputFactory initialValue()
+            {
+                return XMLOutputFactory.newInstance();
+            }
+        };
+
+    private PresenceDocumentCodec()
+    {
+    }
+
+    /**
+     * Reads a PIDF document.
+     *
+     * @param document the PIDF document
+     * @return the content of the first presence element of
+     * <tt>document</tt> or <tt>null</tt> if it has none
+     * @throws XMLStreamException if <tt>document</tt> is not well-formed
+     */
+    static Presence readPidf(String document)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader
+            = inputFactories.get().createXMLStreamReader(
+                    new StringReader(document));
+
+        try
+        {
+            while (reader.hasNext())
+            {
+                if ((reader.next() == XMLStreamConstants.START_ELEMENT)
+                        && PRESENCE_ELEMENT.equals(reader.getLocalName()))
+                {
+                    Presence presence
+                        = new Presence(getAttribute(reader, ENTITY_ATTRIBUTE));
+
+                    readPresence(reader, presence);
+                    return presence;
+                }
+            }
+            return null;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the content of a presence element.
+     *
+     * @param reader the reader positioned on the start of the presence
+     * element, left on its end
+     * @param presence the presence to fill
+     * @throws XMLStreamException if the document is not well-formed
+     */
+    private static void readPresence(XMLStreamReader reader, Presence presence)
+        throws XMLStreamException
+    {
+        // the depths of the elements we are in, 0 when we are not in one
+        int depth = 1;
+        int tupleDepth = 0;
+        int statusDepth = 0;
+        int personDepth = 0;
+        int activitiesDepth = 0;
+        boolean personRead = false;
+        boolean statusIconRead = false;
+        Tuple tuple = null;
+        Status status = null;
+
+        while ((depth > 0) && reader.hasNext())
+        {
+            int event = reader.next();
+
+            if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                if (depth == statusDepth)
+                {
+                    tuple.statuses.add(status, status.pidf);
+                    status = null;
+                    statusDepth = 0;
+                }
+                else if (depth == tupleDepth)
+                {
+                    presence.tuples.add(tuple, tuple.pidf);
+                    tuple = null;
+                    tupleDepth = 0;
+                }
+                else if (depth == activitiesDepth)
+                {
+                    activitiesDepth = 0;
+                }
+                else if (depth == personDepth)
+                {
+                    personDepth = 0;
+                    personRead = true;
+                }
+                depth--;
+                continue;
+            }
+            if (event != XMLStreamConstants.START_ELEMENT)
+                continue;
+
+            depth++;
+
+            String name = reader.getLocalName();
+            boolean pidf = PIDF_NS_VALUE.equals(reader.getNamespaceURI());
+
+            if ((activitiesDepth != 0)
+                    && (depth == activitiesDepth + 1)
+                    && (presence.activity == null)
+                    && (AWAY_ELEMENT.equals(name)
+                            || BUSY_ELEMENT.equals(name)
+                            || OTP_ELEMENT.equals(name)))
+            {
+                presence.activity = name;
+            }
+            else if (NOTE_ELEMENT.equals(name))
+            {
+                String note = readText(reader);
+
+                depth--;
+                presence.notes.add(note, pidf);
+                if (tuple != null)
+                    tuple.notes.add(note, pidf);
+            }
+            else if (tuple != null)
+            {
+                if (CONTACT_ELEMENT.equals(name))
+                {
+                    String priority = getAttribute(reader, PRIORITY_ATTRIBUTE);
+                    String contact = readText(reader);
+
+                    depth--;
+                    tuple.contacts.add(
+                            new TupleContact(contact, priority), pidf);
+                }
+                else if (STATUS_ELEMENT.equals(name) && (status == null))
+                {
+                    status = new Status(pidf);
+                    statusDepth = depth;
+                }
+                else if (BASIC_ELEMENT.equals(name) && (status != null))
+                {
+                    status.basics.add(readText(reader), pidf);
+                    depth--;
+                }
+            }
+            else if (TUPLE_ELEMENT.equals(name))
+            {
+                tuple = new Tuple(pidf);
+                tupleDepth = depth;
+            }
+            else if (personDepth != 0)
+            {
+                if (ACTIVITY_ELEMENT.equals(name) && (activitiesDepth == 0))
+                {
+                    activitiesDepth = depth;
+                }
+                else if (STATUS_ICON_ELEMENT.equals(name) && !statusIconRead)
+                {
+                    statusIconRead = true;
+                    presence.statusIcon = readText(reader);
+                    depth--;
+                }
+            }
+            else if (PERSON_ELEMENT.equals(name) && !personRead)
+            {
+                personDepth = depth;
+            }
+        }
+    }
+
+    /**
+     * Reads a watcherinfo document.
+     *
+     * @param document the watcherinfo document
+     * @return the content of the first watcherinfo element of
+     * <tt>document</tt> or <tt>null</tt> if it has none
+     * @throws XMLStreamException if <tt>document</tt> is not well-formed
+     */
+    static WatcherInfo readWatcherInfo(String document)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader
+            = inputFactories.get().createXMLStreamReader(
+                    new StringReader(document));
+
+        try
+        {
+            WatcherInfo watcherInfo = null;
+            WatcherList watcherList = null;
+            int depth = 0;
+            int watcherInfoDepth = 0;
+            int watcherListDepth = 0;
+
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    if (depth == watcherListDepth)
+                    {
+                        watcherInfo.watcherLists.add(watcherList);
+                        watcherList = null;
+                        watcherListDepth = 0;
+                    }
+                    else if (depth == watcherInfoDepth)
+                    {
+                        break;
+                    }
+                    depth--;
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT)
+                    continue;
+
+                depth++;
+
+                String name = reader.getLocalName();
+
+                if (watcherInfo == null)
+                {
+                    if (WATCHERINFO_ELEMENT.equals(name))
+                    {
+                        watcherInfo
+                            = new WatcherInfo(
+                                    getAttribute(reader, STATE_ATTRIBUTE),
+                                    getAttribute(reader, VERSION_ATTRIBUTE));
+                        watcherInfoDepth = depth;
+                    }
+                }
+                else if (watcherList != null)
+                {
+                    if (WATCHER_ELEMENT.equals(name))
+                    {
+                        String status = getAttribute(reader, STATUS_ELEMENT);
+
+                        watcherList.watchers.add(
+                                new Watcher(status, readText(reader)));
+                        depth--;
+                    }
+                }
+                else if (WATCHERLIST_ELEMENT.equals(name))
+                {
+                    watcherList
+                        = new WatcherList(
+                                getAttribute(reader, RESOURCE_ATTRIBUTE),
+                                getAttribute(reader, PACKAGE_ATTRIBUTE));
+                    watcherListDepth = depth;
+                }
+            }
+            return watcherInfo;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a PIDF document with the person and the tuple of a presentity.
+     *
+     * @param entity the URI of the presentity
+     * @param personId the id of the person element
+     * @param tupleId the id of the tuple element
+     * @param activity the RPID activity of the person, one of
+     * {@link #AWAY_ELEMENT}, {@link #BUSY_ELEMENT} and {@link #OTP_ELEMENT},
+     * or <tt>null</tt> for none
+     * @param statusIcon the URI of the status icon of the person or
+     * <tt>null</tt> if there is none
+     * @param basic the basic status of the tuple, open or closed
+     * @param note the note of the tuple
+     * @return the PIDF document encoded in UTF-8
+     * @throws XMLStreamException if the document cannot be written
+     */
+    static byte[] writePidf(String entity,
+                            String personId,
+                            String tupleId,
+                            String activity,
+                            String statusIcon,
+                            String basic,
+                            String note)
+        throws XMLStreamException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        XMLStreamWriter writer
+            = outputFactories.get().createXMLStreamWriter(out, "UTF-8");
+
+        try
+        {
+            writer.writeStartDocument("UTF-8", "1.0");
+
+            // <presence>
+            writer.writeStartElement(PRESENCE_ELEMENT);
+            writer.writeDefaultNamespace(PIDF_NS_VALUE);
+            writer.writeNamespace(RPID_PREFIX, RPID_NS_VALUE);
+            writer.writeNamespace(DM_PREFIX, DM_NS_VALUE);
+            writer.writeAttribute(ENTITY_ATTRIBUTE, entity);
+
+            // <person>
+            writer.writeStartElement(DM_PREFIX, PERSON_ELEMENT, DM_NS_VALUE);
+            writer.writeAttribute(ID_ATTRIBUTE, personId);
+
+            // <activities>
+            writer.writeStartElement(
+                    RPID_PREFIX, ACTIVITY_ELEMENT, RPID_NS_VALUE);
+            if (activity != null)
+                writer.writeEmptyElement(RPID_PREFIX, activity, RPID_NS_VALUE);
+            writer.writeEndElement();
+
+            // <status-icon>
+            if (statusIcon != null)
+            {
+                writer.writeStartElement(
+                        RPID_PREFIX, STATUS_ICON_ELEMENT, RPID_NS_VALUE);
+                writer.writeCharacters(statusIcon);
+                writer.writeEndElement();
+            }
+            writer.writeEndElement();
+
+            // <tuple>
+            writer.writeStartElement(TUPLE_ELEMENT);
+            writer.writeAttribute(ID_ATTRIBUTE, tupleId);
+
+            // <status><basic>
+            writer.writeStartElement(STATUS_ELEMENT);
+            writer.writeStartElement(BASIC_ELEMENT);
+            writer.writeCharacters(basic);
+            writer.writeEndElement();
+            writer.writeEndElement();
+
+            // <contact>
+            writer.writeStartElement(CONTACT_ELEMENT);
+            writer.writeCharacters(entity);
+            writer.writeEndElement();
+
+            // <note>
+            writer.writeStartElement(NOTE_ELEMENT);
+            writer.writeCharacters(note);
+            writer.writeEndElement();
+
+            writer.writeEndElement();
+            writer.writeEndElement();
+            writer.writeEndDocument();
+            writer.flush();
+        }
+        finally
+        {
+            writer.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Gets the value of an attribute of the current element, ignoring its
+     * namespace.
+     *
+     * @param reader the reader positioned on the start of an element
+     * @param name the local name of the attribute
+     * @return the value of the attribute or an empty string if the element
+     * does not have it, like a DOM element would
+     */
+    private static String getAttribute(XMLStreamReader reader, String name)
+    {
+        String value = reader.getAttributeValue(null, name);
+
+        return (value == null) ? "" : value;
+    }
+
+    /**
+     * Reads the text directly contained in the current element, skipping the
+     * elements it contains.
+     *
+     * @param reader the reader positioned on the start of an element, left on
+     * its end
+     * @return the text of the element, an empty string if it has none
+     * @throws XMLStreamException if the document is not well-formed
+     */
+    private static String readText(XMLStreamReader reader)
+        throws XMLStreamException
+    {
+        StringBuilder text = null;
+        int depth = 1;
+
+        while (depth > 0)
+        {
+            switch (reader.next())
+            {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.CDATA:
+            case XMLStreamConstants.SPACE:
+                if (depth == 1)
+                {
+                    if (text == null)
+                        text = new StringBuilder();
+                    text.append(reader.getText());
+                }
+                break;
+            }
+        }
+        return (text == null) ? "" : text.toString();
+    }
+
+    /**
+     * The elements of a kind found in a document, in document order. When
+     * some of them are in the PIDF namespace, only these ones are considered.
+     *
+     * @param <T> the type of the content of the elements
+     */
+    static class PidfElements<T>
+    {
+        private final List<T> all = new ArrayList<T>(2);
+
+        private final List<T> pidf = new ArrayList<T>(2);
+
+        /**
+         * Adds the content of an element.
+         *
+         * @param element the content of the element
+         * @param inPidfNamespace whether the element is in the PIDF namespace
+         */
+        void add(T element, boolean inPidfNamespace)
+        {
+            all.add(element);
+            if (inPidfNamespace)
+                pidf.add(element);
+        }
+
+        /**
+         * Gets the elements in the PIDF namespace if there are some, all of
+         * them otherwise.
+         *
+         * @return the elements to consider
+         */
+        List<T> get()
+        {
+            return pidf.isEmpty() ? all : pidf;
+        }
+
+        /**
+         * Gets the last element to consider.
+         *
+         * @return the last element to consider or <tt>null</tt> if there
+         * are none
+         */
+        T getLast()
+        {
+            List<T> elements = get();
+
+            return elements.isEmpty() ? null : elements.get(elements.size() - 1);
+        }
+    }
+
+    /**
+     * The content of a presence element.
+     */
+    static class Presence
+    {
+        /**
+         * The entity attribute of the presence element.
+         */
+        final String entity;
+
+        /**
+         * The first known RPID activity of the first person, one of
+         * {@link #AWAY_ELEMENT}, {@link #BUSY_ELEMENT} and {@link #OTP_ELEMENT},
+         * <tt>null</tt> if there is none.
+         */
+        String activity;
+
+        /**
+         * The status icon of the first person, <tt>null</tt> if there is
+         * none.
+         */
+        String statusIcon;
+
+        /**
+         * All the notes of the document, the ones of the tuples included.
+         */
+        final PidfElements<String> notes = new PidfElements<String>();
+
+        /**
+         * The tuples of the document.
+         */
+        final PidfElements<Tuple> tuples = new PidfElements<Tuple>();
+
+        Presence(String entity)
+        {
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * The content of a tuple element.
+     */
+    static class Tuple
+    {
+        private final boolean pidf;
+
+        final PidfElements<TupleContact> contacts
+            = new PidfElements<TupleContact>();
+
+        final PidfElements<Status> statuses = new PidfElements<Status>();
+
+        final PidfElements<String> notes = new PidfElements<String>();
+
+        Tuple(boolean pidf)
+        {
+            this.pidf = pidf;
+        }
+    }
+
+    /**
+     * The content of a contact element of a tuple.
+     */
+    static class TupleContact
+    {
+        final String uri;
+
+        /**
+         * The priority attribute, an empty string if there is none.
+         */
+        final String priority;
+
+        TupleContact(String uri, String priority)
+        {
+            this.uri = uri;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * The content of a status element of a tuple.
+     */
+    static class Status
+    {
+        private final boolean pidf;
+
+        final PidfElements<String> basics = new PidfElements<String>();
+
+        Status(boolean pidf)
+        {
+            this.pidf = pidf;
+        }
+    }
+
+    /**
+     * The content of a watcherinfo element.
+     */
+    static class WatcherInfo
+    {
+        final String state;
+
+        /**
+         * The version attribute, an empty string if there is none.
+         */
+        final String version;
+
+        final List<WatcherList> watcherLists = new ArrayList<WatcherList>(1);
+
+        WatcherInfo(String state, String version)
+        {
+            this.state = state;
+            this.version = version;
+        }
+
+        /**
+         * Gets the watcher list of a resource.
+         *
+         * @param resource the URI of the resource
+         * @return the first watcher list of <tt>resource</tt> or
+         * <tt>null</tt> if there is none
+         */
+        WatcherList getWatcherList(String resource)
+        {
+            for (WatcherList watcherList : watcherLists)
+            {
+                if (watcherList.resource.equals(resource))
+                    return watcherList;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The content of a watcher-list element.
+     */
+    static class WatcherList
+    {
+        final String resource;
+
+        final String eventPackage;
+
+        final List<Watcher> watchers = new ArrayList<Watcher>();
+
+        WatcherList(String resource, String eventPackage)
+        {
+            this.resource = resource;
+            this.eventPackage = eventPackage;
+        }
+    }
+
+    /**
+     * The content of a watcher element.
+     */
+    static class Watcher
+    {
+        final String status;
+
+        final String uri;
+
+        Watcher(String status, String uri)
+        {
+            this.status = status;
+            this.uri = uri;
+        }
+    }
+}
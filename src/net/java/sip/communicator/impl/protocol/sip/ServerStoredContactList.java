@@ -507,6 +507,18 @@ private boolean isContactPersistent(String contactUri)
      */
     public abstract void destroy();
 
+    /**
+     * Gets the URI of the resource list service (rfc4662) through which the
+     * presence of all contacts can be subscribed with a single SUBSCRIBE.
+     *
+     * @return the resource list service URI or <tt>null</tt> if the server
+     * stored list does not provide one.
+     */
+    public String getRlsServiceUri()
+    {
+        return null;
+    }
+
     /**
      * Gets the pres-content image uri.
      *
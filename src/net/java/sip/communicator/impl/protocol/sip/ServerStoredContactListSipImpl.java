@@ -98,6 +98,17 @@
      */
     private RulesetType presRules;
 
+    /**
+     * The URI of our resource list service, <tt>null</tt> if the XCAP server
+     * does not support rls-services.
+     */
+    private String rlsServiceUri;
+
+    /**
+     * The names of the lists our resource list service was last put with.
+     */
+    private List<String> rlsServiceLists;
+
     /**
      * Creates a ServerStoredContactList wrapper for the specified BuddyList.
      *
@@ -203,7 +214,7 @@ synchronized public ContactSipImpl createContact(
             // Update resoure-lists
             try
             {
-                updateResourceLists();
+                updateResourceListsEntry(parentGroup, newContact, true);
             }
             catch (XCapException e)
             {
@@ -288,7 +299,7 @@ synchronized public void removeContact(ContactSipImpl contact)
             // Update resoure-lists
             try
             {
-                updateResourceLists();
+                updateResourceListsEntry(parentGroup, contact, false);
             }
             catch (XCapException e)
             {
@@ -638,6 +649,10 @@ synchronized public void init()
                 if(uri.getHost() != null && uri.getPath() != null)
                 {
                     xCapClient.connect(uri, userAddress, username, password);
+
+                    SipUri userUri = (SipUri) userAddress.getURI();
+                    rlsServiceUri = "sip:" + userUri.getUser()
+                        + "+presence@" + userUri.getHost();
                 }
             }
         }
@@ -762,6 +777,7 @@ synchronized public void init()
                 if(updateRules)
                     updatePresRules();
             }
+            updateRlsServices();
         }
         catch (XCapException e)
         {
@@ -832,6 +848,25 @@ synchronized public void destroy()
             contact.setResolved(false);
         }
         presRules = null;
+        rlsServiceUri = null;
+        rlsServiceLists = null;
+    }
+
+    /**
+     * Gets the URI of our resource list service, the one to subscribe to in
+     * order to receive the presence of all our contacts in a single dialog.
+     *
+     * @return the resource list service URI or <tt>null</tt> if the XCAP
+     * server does not support rls-services.
+     */
+    @Override
+    synchronized public String getRlsServiceUri()
+    {
+        if (rlsServiceLists == null)
+        {
+            return null;
+        }
+        return rlsServiceUri;
     }
 
     /**
@@ -1386,6 +1421,91 @@ synchronized void updateResourceLists()
         resourceLists.getList().add(serverRootList);
 
         xCapClient.putResourceLists(resourceLists);
+        updateRlsServices();
+    }
+
+    /**
+     * Puts to or deletes from the server the entry of a contact in the
+     * resource-lists, or the whole resource-lists if the server cannot change
+     * the single entry.
+     *
+     * @param parentGroup the group of the contact.
+     * @param contact the contact which has been added or removed.
+     * @param added whether the contact has been added to or removed from
+     * <tt>parentGroup</tt>.
+     * @throws XCapException if there is some error during operation.
+     */
+    private synchronized void updateResourceListsEntry(
+            ContactGroupSipImpl parentGroup,
+            ContactSipImpl contact,
+            boolean added)
+            throws XCapException
+    {
+        if (!xCapClient.isConnected()
+            || !xCapClient.isResourceListsSupported())
+        {
+            return;
+        }
+        // the names of the server lists from the top level one
+        LinkedList<String> listNames = new LinkedList<String>();
+        ContactGroupSipImpl group = parentGroup;
+        while (!rootGroup.equals(group))
+        {
+            listNames.addFirst(group.getList().getName());
+            group = (ContactGroupSipImpl) group.getParentContactGroup();
+            if (group == null)
+            {
+                updateResourceLists();
+                return;
+            }
+        }
+        if (listNames.isEmpty())
+        {
+            listNames.add(ROOT_GROUP_NAME);
+        }
+
+        boolean updated = added
+            ? xCapClient.putResourceListsEntry(listNames, contact.getEntry())
+            : xCapClient.deleteResourceListsEntry(listNames, contact.getUri());
+        if (!updated)
+        {
+            updateResourceLists();
+        }
+    }
+
+    /**
+     * Puts rls-services to the server if the lists of our resource-lists
+     * document changed since the last time we did.
+     *
+     * @throws XCapException if there is some error during operation.
+     */
+    private synchronized void updateRlsServices()
+            throws XCapException
+    {
+        if (rlsServiceUri == null
+            || !xCapClient.isConnected()
+            || !xCapClient.isRlsServicesSupported())
+        {
+            return;
+        }
+        List<String> listNames = new ArrayList<String>();
+        for (ListType list : rootGroup.getList().getLists())
+        {
+            listNames.add(list.getName());
+        }
+        listNames.add(ROOT_GROUP_NAME);
+        if (listNames.equals(rlsServiceLists))
+        {
+            return;
+        }
+        if (!xCapClient.putRlsServices(rlsServiceUri, listNames))
+        {
+            // a list cannot be referenced, so the contacts are subscribed to
+            // one by one
+            rlsServiceLists = null;
+            return;
+        }
+        rlsServiceLists = listNames;
     }
 
     /**
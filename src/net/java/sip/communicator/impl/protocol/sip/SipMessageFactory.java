@@ -1013,33 +1013,20 @@ public Request createAck(ClientTransaction clientTransaction)
     }
 
     /**
-     * Verifies wither we have already authenticated requests with the same
-     * <tt>Call-ID</tt> as <tt>request</tt> and attaches the corresponding
-     * credentials in an effort to avoid receiving an authentication challenge
-     * from the server and having to re-send the request. This method has no
-     * effect if the <tt>Call-ID</tt> has not been seen by our security manager.
+     * Verifies whether we have already authenticated requests to the same
+     * next hop or with the same <tt>Call-ID</tt> as <tt>request</tt> and
+     * attaches the corresponding credentials in an effort to avoid receiving
+     * an authentication challenge from the server and having to re-send the
+     * request. This method has no effect if neither the next hop nor the
+     * <tt>Call-ID</tt> have been seen by our security manager, or if
+     * <tt>request</tt> already carries credentials.
      *
      * @param request the request that we'd like to try pre-authenticating.
      */
     public void preAuthenticateRequest( Request request )
     {
-        //check whether there's a cached authorization header for this
-        // call id and if so - attach it to the request.
-        // add authorization header
-        CallIdHeader callIdHeader
-            = (CallIdHeader) request.getHeader(CallIdHeader.NAME);
-
-        if(callIdHeader == null)
-            return;
-
-        String callid = callIdHeader.getCallId();
-
-        AuthorizationHeader authorization =
-            protocolProvider.getSipSecurityManager()
-                .getCachedAuthorizationHeader(callid);
-
-        if (authorization != null)
-            request.setHeader(authorization);
+        protocolProvider.getSipSecurityManager()
+            .preAuthenticateRequest(request);
     }
 
     /**
@@ -94,6 +94,15 @@
     private final Set<ProtocolProviderServiceSipImpl> listeners
         = new HashSet<ProtocolProviderServiceSipImpl>();
 
+    /**
+     * The candidate recipients indexed by the user ID of their account, so
+     * that dispatching a request only has to look at the accounts whose user
+     * name matches the Request-URI. Guarded by <tt>listeners</tt>.
+     */
+    private final Map<String, List<ProtocolProviderServiceSipImpl>>
+        listenersByUserID
+            = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
     /**
      * The property indicating the preferred UDP and TCP
      * port to bind to for clear communications.
@@ -200,7 +209,19 @@ public void addSipListener(ProtocolProviderServiceSipImpl listener)
         {
             if(this.listeners.size() == 0)
                 startListening();
-            this.listeners.add(listener);
+            if(this.listeners.add(listener))
+            {
+                String userID = listener.getAccountID().getUserID();
+                List<ProtocolProviderServiceSipImpl> sameUser
+                    = listenersByUserID.get(userID);
+
+                if (sameUser == null)
+                {
+                    sameUser = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+                    listenersByUserID.put(userID, sameUser);
+                }
+                sameUser.add(listener);
+            }
             if (logger.isTraceEnabled())
                 logger.trace(this.listeners.size() + " listeners now");
         }
@@ -217,7 +238,17 @@ public void removeSipListener(ProtocolProviderServiceSipImpl listener)
     {
         synchronized(this.listeners)
         {
-            this.listeners.remove(listener);
+            if(this.listeners.remove(listener))
+            {
+                String userID = listener.getAccountID().getUserID();
+                List<ProtocolProviderServiceSipImpl> sameUser
+                    = listenersByUserID.get(userID);
+
+                if (sameUser != null
+                        && sameUser.remove(listener)
+                        && sameUser.isEmpty())
+                    listenersByUserID.remove(userID);
+            }
 
             int listenerCount = listeners.size();
             if (logger.isTraceEnabled())
@@ -240,6 +271,27 @@ private Set<ProtocolProviderServiceSipImpl> getSipListeners()
         }
     }
 
+    /**
+     * Returns a copy of the candidate recipients whose account has the given
+     * user ID.
+     *
+     * @param userID the user part of the Request-URI we are dispatching.
+     * @return a (possibly empty) copy of the listeners with <tt>userID</tt>.
+     */
+    private List<ProtocolProviderServiceSipImpl> getSipListenersFor(
+            String userID)
+    {
+        synchronized(this.listeners)
+        {
+            List<ProtocolProviderServiceSipImpl> sameUser
+                = (userID == null) ? null : listenersByUserID.get(userID);
+
+            return (sameUser == null)
+                ? new ArrayList<ProtocolProviderServiceSipImpl>(0)
+                : new ArrayList<ProtocolProviderServiceSipImpl>(sameUser);
+        }
+    }
+
     /**
      * Returns the JAIN-SIP <tt>ListeningPoint</tt> associated to the given
      * transport string.
@@ -908,43 +960,25 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
-
-        // Let's first narrow down candidate choice by comparing
-        // addresses and ports (no point in delivering to a provider with a
-        // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
-
-        if(currentListenersCopy.size() == 0)
-        {
-            logger.error("no listeners");
-            return null;
-        }
-
         URI requestURI = request.getRequestURI();
 
         if(requestURI.isSipURI())
         {
             String requestUser = ((SipURI) requestURI).getUser();
 
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
+            // only the accounts with the Request-URI username are looked at,
+            // and among them we drop those with a non matching IP address
+            // since they will reject the request anyway.
+            List<ProtocolProviderServiceSipImpl> candidates
+                = getSipListenersFor(requestUser);
+
+            filterByAddress(candidates, request);
 
-            // check if the Request-URI username is
-            // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
+            if (logger.isTraceEnabled())
             {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
-                {
-                    if (logger.isTraceEnabled())
-                        logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
-                }
+                for (ProtocolProviderServiceSipImpl candidate : candidates)
+                    logger.trace("suitable candidate found: "
+                            + candidate.getAccountID());
             }
 
             // the perfect match
@@ -1025,7 +1059,19 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
                 return target;
             }
 
-            // fallback on any account
+            // fallback on any account, once again narrowed down by address
+            List<ProtocolProviderServiceSipImpl> currentListenersCopy
+                = new ArrayList<ProtocolProviderServiceSipImpl>(
+                                    this.getSipListeners());
+
+            filterByAddress(currentListenersCopy, request);
+
+            if(currentListenersCopy.size() == 0)
+            {
+                logger.error("no listeners");
+                return null;
+            }
+
             ProtocolProviderServiceSipImpl target =
                 currentListenersCopy.iterator().next();
             if (logger.isDebugEnabled())
@@ -1351,7 +1397,7 @@ public void configurationChanged(ChangeEvent event)
      * to wrong interfaces. So we will replace them.
      */
     private class ResetListeningPoint
-            extends TimerTask
+            extends TimerScheduler.Task
             implements RegistrationStateChangeListener
     {
         /**
@@ -1381,7 +1427,8 @@ public void registrationStateChanged(RegistrationStateChangeEvent evt)
         {
             if(evt.getNewState() == RegistrationState.UNREGISTERING)
             {
-                new Timer().schedule(this, TIME_FOR_PP_TO_UNREGISTER);
+                new TimerScheduler().schedule(
+                    this, TIME_FOR_PP_TO_UNREGISTER);
             }
             else
             {
@@ -25,40 +25,55 @@
  * construction time. It also allows the currently scheduled
  * <code>TimerTask</code>s to be canceled while still being able to schedule new
  * <code>TimerTask</code>s later on.
+ * <p>
+ * All <tt>TimerScheduler</tt>s run their tasks on the single thread of a
+ * {@link HashedWheelTimer} shared by all SIP accounts instead of a thread of
+ * their own, so many of them can be created cheaply. The tasks are
+ * {@link Task}s which, unlike plain <code>TimerTask</code>s, let the timer know
+ * when they are canceled.
  *
  * @author Lubomir Marinov
  */
 public class TimerScheduler
 {
-
     /**
      * The timer which will handle all scheduled tasks.
      */
-    private Timer timer;
+    private final HashedWheelTimer timer;
 
     /**
-     * Discarding any currently scheduled <code>TimerTask</code>s.
+     * The tasks scheduled with this instance which may still be executed.
      */
-    public synchronized void cancel()
+    private final Set<Task> tasks = new HashSet<Task>();
+
+    /**
+     * Initializes a new <tt>TimerScheduler</tt> scheduling its tasks with the
+     * timer shared by all SIP accounts.
+     */
+    public TimerScheduler()
     {
-       if (timer != null)
-       {
-           timer.cancel();
-           timer = null;
-       }
+        this(HashedWheelTimer.getSharedInstance());
     }
 
     /**
-     * Gets the timer which handles all scheduled tasks. If it still doesn't
-     * exists, a new <tt>Timer</tt> is created.
+     * Initializes a new <tt>TimerScheduler</tt> scheduling its tasks with a
+     * specific timer.
      *
-     * @return the <tt>Timer</tt> which handles all scheduled tasks
+     * @param timer the timer which will handle all scheduled tasks
+     */
+    TimerScheduler(HashedWheelTimer timer)
+    {
+        this.timer = timer;
+    }
+
+    /**
+     * Discarding any currently scheduled <code>TimerTask</code>s.
      */
-    private synchronized Timer getTimer()
+    public synchronized void cancel()
     {
-       if (timer == null)
-           timer = new Timer(true);
-       return timer;
+        for (Task task : tasks)
+            task.timeout.cancel();
+        tasks.clear();
     }
 
     /**
@@ -72,9 +87,9 @@ private synchronized Timer getTimer()
      *            the delay in milliseconds before the specified
      *            <code>TimerTask</code> is executed
      */
-    public synchronized void schedule(TimerTask task, long delay)
+    public void schedule(Task task, long delay)
     {
-        getTimer().schedule(task, delay);
+        schedule(task, delay, 0);
     }
 
     /**
@@ -92,8 +107,134 @@ public synchronized void schedule(TimerTask task, long delay)
      *            the time in milliseconds between successive executions of the
      *            specified <code>TimerTask</code>
      */
-    public synchronized void schedule(TimerTask task, long delay, long period)
+    public synchronized void schedule(Task task, long delay, long period)
+    {
+        synchronized (task)
+        {
+            if (task.scheduler != null || task.cancelled)
+            {
+                throw new IllegalStateException(
+                        "Task already scheduled or cancelled");
+            }
+            task.scheduler = this;
+            task.timeout = timer.schedule(task.runner, delay, period);
+        }
+        tasks.add(task);
+    }
+
+    /**
+     * Removes a task which will not be executed anymore.
+     *
+     * @param task the task to remove
+     */
+    private synchronized void remove(Task task)
+    {
+        tasks.remove(task);
+    }
+
+    /**
+     * Returns the number of tasks scheduled with this instance which may still
+     * be executed.
+     *
+     * @return the number of tasks of this instance
+     */
+    synchronized int getTaskCount()
+    {
+        return tasks.size();
+    }
+
+    /**
+     * Returns the number of tasks waiting to be executed by the timer shared
+     * by all SIP accounts.
+     *
+     * @return the number of pending tasks of all SIP accounts
+     */
+    public static int getPendingTaskCount()
+    {
+        return HashedWheelTimer.getSharedInstance().getPendingCount();
+    }
+
+    /**
+     * A <code>TimerTask</code> which can be scheduled with a
+     * <tt>TimerScheduler</tt>. Canceling it with {@link #cancel()} removes
+     * it from the timer right away.
+     */
+    public static abstract class Task
+        extends TimerTask
     {
-        getTimer().schedule(task, delay, period);
+        /**
+         * The scheduler the task was scheduled with or <tt>null</tt> if it
+         * was not scheduled yet.
+         */
+        private TimerScheduler scheduler;
+
+        /**
+         * The handle of the task in the timer.
+         */
+        private HashedWheelTimer.Timeout timeout;
+
+        /**
+         * Whether the task was canceled.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Executes the task for the timer unless it was canceled.
+         */
+        private final Runnable runner
+            = new Runnable()
+            {
+                public void run()
+                {
+                    if (cancelled)
+                        return;
+
+                    try
+                    {
+                        Task.this.run();
+                    }
+                    finally
+                    {
+                        // the timer does not execute a task which is not
+                        // periodic again, even if it throws
+                        TimerScheduler scheduler;
+                        HashedWheelTimer.Timeout timeout;
+
+                        synchronized (Task.this)
+                        {
+                            scheduler = Task.this.scheduler;
+                            timeout = Task.this.timeout;
+                        }
+                        if (timeout.getPeriod() == 0 || timeout.isCancelled())
+                            scheduler.remove(Task.this);
+                    }
+                }
+            };
+
+        /**
+         * Cancels this task. It is not executed anymore, unless it is being
+         * executed right now.
+         *
+         * @return <tt>true</tt> if this prevented an execution of the task
+         */
+        @Override
+        public boolean cancel()
+        {
+            TimerScheduler scheduler;
+            HashedWheelTimer.Timeout timeout;
+
+            synchronized (this)
+            {
+                cancelled = true;
+                super.cancel();
+                scheduler = this.scheduler;
+                timeout = this.timeout;
+            }
+            if (timeout == null)
+                return false;
+
+            scheduler.remove(this);
+            return timeout.cancel();
+        }
     }
 }
@@ -342,7 +342,7 @@ public void handleUri(final String uri)
             final DelayRegistrationStateChangeListener listener =
                 new DelayRegistrationStateChangeListener(uri, provider);
             provider.addRegistrationStateChangeListener(listener);
-            new Timer().schedule(new TimerTask()
+            new TimerScheduler().schedule(new TimerScheduler.Task()
             {
                 @Override
                 public void run()
@@ -205,7 +205,8 @@ public static MediaDescription createDisablingAnswer(
      * @param rtpmap an SDP <tt>Attribute</tt> mapping the <tt>payloadType</tt>
      * to an encoding name.
      * @param fmtp a list of format specific parameters
-     * @param advp list of advanced parameters
+     * @param advancedAttrMap the advanced parameters of the media description
+     * or <tt>null</tt> if there are none
      * @param ptRegistry the {@link DynamicPayloadTypeRegistry} that we are to
      * use in case <tt>payloadType</tt> is dynamic and <tt>rtpmap</tt> is
      * <tt>null</tt> (in which case we can hope its in the registry).
@@ -218,12 +219,12 @@ public static MediaDescription createDisablingAnswer(
      * the one in the jain-sip-ri isn't doing it.
      */
     private static MediaFormat createFormat(
-                                        byte                       payloadType,
-                                        Attribute                  rtpmap,
-                                        Attribute                  fmtp,
-                                        float                      frameRate,
-                                        List<Attribute>            advp,
-                                        DynamicPayloadTypeRegistry ptRegistry)
+                                    byte                       payloadType,
+                                    Attribute                  rtpmap,
+                                    Attribute                  fmtp,
+                                    float                      frameRate,
+                                    Map<String, String>        advancedAttrMap,
+                                    DynamicPayloadTypeRegistry ptRegistry)
         throws SdpException
     {
         //default values in case rtpmap is null.
@@ -294,13 +295,14 @@ private static MediaFormat createFormat(
 
         //Format parameters
         Map<String, String> fmtParamsMap = null;
-        Map<String, String> advancedAttrMap = null;
 
         if (fmtp != null)
             fmtParamsMap = parseFmtpAttribute(fmtp);
 
-        if (advp != null)
-            advancedAttrMap = parseAdvancedAttributes(advp);
+        //the advanced parameters are shared by all the formats of the media
+        //description, give each format its own copy.
+        if (advancedAttrMap != null)
+            advancedAttrMap = new Hashtable<String, String>(advancedAttrMap);
 
         // Many implementations use opus as "opus/48000", while the specification
         // mandates "opus/48000/2". Our upper layers only support 2 channels, so
@@ -1046,6 +1048,30 @@ public static List<MediaFormat> extractFormats(
             // do nothing
         }
 
+        //index the rtpmap: and fmtp: attributes by payload type in a single
+        //pass instead of going through all the attributes for every format.
+        Map<String, Attribute> rtpmaps = new HashMap<String, Attribute>();
+        Map<String, Attribute> fmtps = new HashMap<String, Attribute>();
+        Map<String, String> advancedAttrMap = null;
+
+        try
+        {
+            Vector<Attribute> mediaAttributes = mediaDesc.getAttributes(false);
+
+            indexPayloadTypeSpecificAttributes(
+                    mediaAttributes, SdpConstants.RTPMAP, rtpmaps);
+            indexPayloadTypeSpecificAttributes(mediaAttributes, "fmtp", fmtps);
+            advancedAttrMap
+                = parseAdvancedAttributes(
+                        findAdvancedAttributes(mediaAttributes));
+        }
+        catch (SdpException e)
+        {
+            //there was a problem parsing the attributes. try to ignore.
+            if (logger.isDebugEnabled())
+                logger.debug("Problem parsing the attributes", e);
+        }
+
         for(String ptStr : formatStrings)
         {
             byte pt;
@@ -1062,63 +1088,14 @@ public static List<MediaFormat> extractFormats(
                 continue;
             }
 
-            Attribute rtpmap = null;
-            try
-            {
-                rtpmap = findPayloadTypeSpecificAttribute(
-                    mediaDesc.getAttributes(false), SdpConstants.RTPMAP,
-                    Byte.toString(pt));
-            }
-            catch (SdpException e)
-            {
-                //there was a problem parsing the rtpmap. try to ignore.
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug(
-                            rtpmap
-                                + " does not seem like a valid rtpmap:"
-                                + " attribute",
-                            e);
-                }
-            }
-
-            Attribute fmtp = null;
-
-            try
-            {
-                fmtp = findPayloadTypeSpecificAttribute(
-                    mediaDesc.getAttributes(false), "fmtp", ptStr);
-            }
-            catch (SdpException e)
-            {
-                //there was a problem parsing the fmtp: try to ignore.
-                if (logger.isDebugEnabled())
-                {
-                    logger.debug(
-                            fmtp
-                                + " does not seem like a valid fmtp: attribute",
-                            e);
-                }
-            }
-
-            List<Attribute> advp = null;
-
-            try
-            {
-                advp = findAdvancedAttributes(mediaDesc.getAttributes(false),
-                        ptStr);
-            }
-            catch(SdpException e)
-            {
-                if (logger.isDebugEnabled())
-                    logger.debug("Problem parsing advanced attributes", e);
-            }
+            Attribute rtpmap = rtpmaps.get(Byte.toString(pt));
+            Attribute fmtp = fmtps.get(ptStr);
 
             MediaFormat mediaFormat = null;
             try
             {
                 mediaFormat = createFormat(
-                    pt, rtpmap, fmtp, frameRate, advp, ptRegistry);
+                    pt, rtpmap, fmtp, frameRate, advancedAttrMap, ptRegistry);
             }
             catch (SdpException e)
             {
@@ -1238,21 +1215,20 @@ public static List<RTPExtension> extractRTPExtensions(
     }
 
     /**
-     * Tries to find advanced attributes (i.e. that are not fmtp or rtpmap
-     * pertaining to the specified <tt>payloadType</tt> in the
-     * <tt>mediaAttributes</tt> list and returns them if they exists.
+     * Tries to find advanced attributes (i.e. that are not fmtp or rtpmap)
+     * in the <tt>mediaAttributes</tt> list and returns them if they exists.
+     * These attributes are the same for all the payload types of a media
+     * description.
      *
      * @param mediaAttributes the list of <tt>Attribute</tt> fields where we
      * are to look for the attribute
-     * @param payloadType the payloadType that we are trying to find
-     * @return the list of advanced <tt>Attribute</tt> and whose value pertains
-     * to <tt>payloadType</tt> or <tt>null</tt> if no such attributes were found
+     * @return the list of advanced <tt>Attribute</tt>s or <tt>null</tt> if no
+     * such attributes were found
      * @throws SdpException when ... well never really, it's there just for ...
      * fun?
      */
     private static List<Attribute> findAdvancedAttributes(
-                                    Vector<Attribute> mediaAttributes,
-                                    String            payloadType)
+                                    Vector<Attribute> mediaAttributes)
         throws SdpException
     {
         if( mediaAttributes == null || mediaAttributes.size() == 0)
@@ -1271,8 +1247,6 @@ private static List<Attribute> findAdvancedAttributes(
                     || attrValue == null)
                 continue;
 
-            attrValue = attrValue.trim();
-
             /* have to match payload type or wildcard
             if(!attrValue.startsWith(payloadType + " ")
                     && !attrValue.startsWith("* "))
@@ -1291,28 +1265,24 @@ private static List<Attribute> findAdvancedAttributes(
     }
 
     /**
-     * Tries to find an attribute with the specified <tt>attibuteName</tt>
-     * pertaining to the specified <tt>payloadType</tt> in the
-     * <tt>mediaAttributes</tt> list and returns it if it exists.
+     * Indexes the attributes with the specified <tt>attributeName</tt> in the
+     * <tt>mediaAttributes</tt> list by the payload type their value starts
+     * with. Only the first attribute of each payload type is kept.
      *
-     * @param mediaAttributes the list of <tt>Attribute</tt> fields where we
-     * are to look for the attribute.
-     * @param payloadType the payloadType that we are trying to find.
-     * @param attributeName the name of the attribute we are looking for.
-     * @return the first Attribute whose name matches <tt>attributeName</tt>
-     * and whose value pertains to <tt>payloadType</tt> or <tt>null</tt> if no
-     * such attribute was found.
+     * @param mediaAttributes the list of <tt>Attribute</tt> fields to index.
+     * @param attributeName the name of the attributes to index (e.g. rtpmap).
+     * @param index the <tt>Map</tt> to add the attributes to, by payload type.
      * @throws SdpException when ... well never really, it's there just for ...
      * fun?
      */
-    private static Attribute findPayloadTypeSpecificAttribute(
-                                    Vector<Attribute> mediaAttributes,
-                                    String            attributeName,
-                                    String            payloadType)
+    private static void indexPayloadTypeSpecificAttributes(
+                                    Vector<Attribute>      mediaAttributes,
+                                    String                 attributeName,
+                                    Map<String, Attribute> index)
         throws SdpException
     {
         if( mediaAttributes == null || mediaAttributes.size() == 0)
-            return null;
+            return;
 
         for (Attribute attr : mediaAttributes)
         {
@@ -1326,14 +1296,16 @@ private static Attribute findPayloadTypeSpecificAttribute(
 
             attrValue = attrValue.trim();
 
-            if(!attrValue.startsWith(payloadType + " "))
+            int payloadTypeEnd = attrValue.indexOf(' ');
+
+            if(payloadTypeEnd == -1)
                 continue;
 
-            //that's it! we have the attribute we are looking for.
-            return attr;
-        }
+            String payloadType = attrValue.substring(0, payloadTypeEnd);
 
-        return null;
+            if(!index.containsKey(payloadType))
+                index.put(payloadType, attr);
+        }
     }
 
     /**
@@ -19,6 +19,7 @@
 
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 import javax.sip.header.*;
 
@@ -48,6 +49,49 @@
     private Hashtable<String, AuthorizationHeader> authenticatedCalls
                             =  new Hashtable<String, AuthorizationHeader>();
 
+    /**
+     * Contains realm->lock mappings, serializing the authentication against
+     * each realm without blocking the others.
+     */
+    private final ConcurrentMap<String, Object> realmLocks
+                            = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Returns the lock to hold while authenticating against <tt>realm</tt>.
+     *
+     * @param realm the realm that we are authenticating against
+     * @return the lock of <tt>realm</tt>
+     */
+    Object getRealmLock(String realm)
+    {
+        Object lock = realmLocks.get(realm);
+
+        if (lock == null)
+        {
+            Object newLock = new Object();
+
+            lock = realmLocks.putIfAbsent(realm, newLock);
+            if (lock == null)
+                lock = newLock;
+        }
+        return lock;
+    }
+
+    /**
+     * Returns a copy of the realm->credentials mappings.
+     *
+     * @return the realms that we have credentials for along with these
+     * credentials.
+     */
+    List<Entry<String, CredentialsCacheEntry>> getEntries()
+    {
+        synchronized (authenticatedRealms)
+        {
+            return new ArrayList<Entry<String, CredentialsCacheEntry>>(
+                    authenticatedRealms.entrySet());
+        }
+    }
+
     /**
      * Cache credentials for the specified call and realm
      * @param realm the realm that the specify credentials apply to
@@ -17,8 +17,11 @@
  */
 package net.java.sip.communicator.impl.protocol.sip.security;
 
+import java.security.*;
 import java.util.*;
 
+import javax.sip.header.*;
+
 import net.java.sip.communicator.service.protocol.*;
 
 /**
@@ -41,6 +44,43 @@
      */
     private Vector<String> transactionHistory = new Vector<String>();
 
+    /**
+     * The generator of the client nonces.
+     */
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * The last challenge answered with these credentials or <tt>null</tt> if
+     * they have not been used yet. It lets us authorize the next requests to
+     * the same domain before they get challenged.
+     */
+    private WWWAuthenticateHeader challenge = null;
+
+    /**
+     * The host of the next hop of the request which got {@link #challenge}.
+     */
+    private String challengedHost = null;
+
+    /**
+     * The method of the request which got {@link #challenge}.
+     */
+    private String challengedMethod = null;
+
+    /**
+     * The time in nanoseconds at which {@link #challenge} was answered.
+     */
+    private long challengeTime = 0;
+
+    /**
+     * The number of requests authorized with the nonce of {@link #challenge}.
+     */
+    private int nonceCount = 0;
+
+    /**
+     * The client nonce used with the nonce of {@link #challenge}.
+     */
+    private String cnonce = null;
+
     /**
      * Adds the specified branch id to the transaction history list so that we
      * know that we've seen it and don't try to authenticate with the same
@@ -82,4 +122,101 @@ boolean containsBranchID(String branchID)
     {
         return transactionHistory.contains(branchID);
     }
+
+    /**
+     * Remembers the last challenge answered with these credentials. The nonce
+     * count starts over when the challenge carries a new nonce.
+     *
+     * @param challenge the challenge
+     * @param challengedHost the host of the next hop of the request which
+     * got <tt>challenge</tt>
+     * @param challengedMethod the method of the request which got
+     * <tt>challenge</tt>
+     */
+    synchronized void setChallenge(WWWAuthenticateHeader challenge,
+                                   String                challengedHost,
+                                   String                challengedMethod)
+    {
+        if ((this.challenge == null)
+                || (this.challenge.getNonce() == null)
+                || !this.challenge.getNonce().equals(challenge.getNonce()))
+        {
+            nonceCount = 0;
+            cnonce = Long.toHexString(random.nextLong());
+        }
+        this.challenge = challenge;
+        this.challengedHost = challengedHost;
+        this.challengedMethod = challengedMethod;
+        this.challengeTime = System.nanoTime();
+    }
+
+    /**
+     * Returns the last challenge answered with these credentials.
+     *
+     * @return the last challenge answered with these credentials or
+     * <tt>null</tt> if there has been none.
+     */
+    synchronized WWWAuthenticateHeader getChallenge()
+    {
+        return challenge;
+    }
+
+    /**
+     * Returns the method of the request which got the last challenge
+     * answered with these credentials.
+     *
+     * @return the method of the last challenged request or <tt>null</tt> if
+     * there has been none.
+     */
+    synchronized String getChallengedMethod()
+    {
+        return challengedMethod;
+    }
+
+    /**
+     * Returns the time in nanoseconds at which the last challenge was answered
+     * with these credentials.
+     *
+     * @return the time of the last challenge as given by
+     * <tt>System.nanoTime()</tt>.
+     */
+    synchronized long getChallengeTime()
+    {
+        return challengeTime;
+    }
+
+    /**
+     * Determines whether a request to <tt>host</tt> could be authorized
+     * with the last challenge answered with these credentials.
+     *
+     * @param host the host of the next hop of a request
+     * @return <tt>true</tt> if a request to the same host got the last
+     * challenge answered with these credentials.
+     */
+    synchronized boolean isChallengedBy(String host)
+    {
+        return (challenge != null)
+            && (host != null)
+            && host.equalsIgnoreCase(challengedHost);
+    }
+
+    /**
+     * Counts one more request authorized with the nonce of the last challenge.
+     *
+     * @return the nonce count to use in the authorization of the request.
+     */
+    synchronized int nextNonceCount()
+    {
+        return ++nonceCount;
+    }
+
+    /**
+     * Returns the client nonce used with the nonce of the last challenge.
+     *
+     * @return the client nonce used with the nonce of the last challenge.
+     */
+    synchronized String getCNonce()
+    {
+        return cnonce;
+    }
 }
@@ -24,6 +24,7 @@
 import java.util.*;
 
 import javax.sip.*;
+import javax.sip.address.*;
 import javax.sip.header.*;
 import javax.sip.message.*;
 
@@ -126,7 +127,7 @@ public void setHeaderFactory(HeaderFactory headerFactory)
      * @throws OperationFailedException if we fail to acquire a password from
      * our security authority.
      */
-    public synchronized ClientTransaction handleChallenge(
+    public ClientTransaction handleChallenge(
                                     Response          challenge,
                                     ClientTransaction challengedTransaction,
                                     SipProvider       transactionCreator)
@@ -167,7 +168,7 @@ public synchronized ClientTransaction handleChallenge(
      * @throws OperationFailedException if we fail to acquire a password from
      * our security authority.
      */
-    public synchronized ClientTransaction handleChallenge(
+    public ClientTransaction handleChallenge(
                                     Response          challenge,
                                     ClientTransaction challengedTransaction,
                                     SipProvider       transactionCreator,
@@ -208,147 +209,192 @@ public synchronized ClientTransaction handleChallenge(
             WWWAuthenticateHeader authHeader = authHeaders.next();
             String realm = authHeader.getRealm();
 
-            //Check whether we have cached credentials for authHeader's realm.
-            //We remove them with the intention to re-add them at the end of the
-            //method. If we fail to get to the end then it's best for the cache
-            //entry to remain outside since it might have caused the problem
-            CredentialsCacheEntry ccEntry = cachedCredentials.remove(realm);
+            //challenges against different realms are answered concurrently,
+            //the ones against the same realm share its cache entry.
+            synchronized (cachedCredentials.getRealmLock(realm))
+            {
+                authorizeRequest(
+                    authHeader, branchID, reoriginatedRequest, retryTran);
+            }
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Returning authorization transaction.");
+        return retryTran;
+    }
+
+    /**
+     * Answers a challenge against a realm: obtains the credentials for the
+     * realm and adds the corresponding authorization header to the
+     * reoriginated request. The caller holds the lock of the realm.
+     *
+     * @param authHeader the challenge to answer
+     * @param branchID the branch id of the challenged transaction
+     * @param reoriginatedRequest the request to send again
+     * @param retryTran the transaction of <tt>reoriginatedRequest</tt>
+     *
+     * @throws OperationFailedException if we fail to acquire a password from
+     * our security authority.
+     */
+    private void authorizeRequest(WWWAuthenticateHeader authHeader,
+                                  String                branchID,
+                                  Request               reoriginatedRequest,
+                                  ClientTransaction     retryTran)
+        throws OperationFailedException
+    {
+        String realm = authHeader.getRealm();
+
+        //Check whether we have cached credentials for authHeader's realm.
+        //We remove them with the intention to re-add them at the end of the
+        //method. If we fail to get to the end then it's best for the cache
+        //entry to remain outside since it might have caused the problem
+        CredentialsCacheEntry ccEntry = cachedCredentials.remove(realm);
 
-            boolean ccEntryHasSeenTran = false;
+        boolean ccEntryHasSeenTran = false;
 
-            if (ccEntry != null)
-                ccEntryHasSeenTran = ccEntry.popBranchID(branchID);
+        if (ccEntry != null)
+            ccEntryHasSeenTran = ccEntry.popBranchID(branchID);
 
-            // remember when the authentication has started, cause we will
-            // need it later to see is the user has waited too long.
-            long authenticationDuration = System.currentTimeMillis();
+        // remember when the authentication has started, cause we will
+        // need it later to see is the user has waited too long.
+        long authenticationDuration = System.currentTimeMillis();
 
-            String storedPassword = SipActivator.getProtocolProviderFactory()
-                .loadPassword(accountID);
+        String storedPassword = SipActivator.getProtocolProviderFactory()
+            .loadPassword(accountID);
 
-            if(ccEntry == null)
+        if(ccEntry == null)
+        {
+            //we haven't yet authenticated this realm since we were started.
+            if(storedPassword != null)
             {
-                //we haven't yet authenticated this realm since we were started.
-                if(storedPassword != null)
-                {
-                    //there's a stored password though so let's try it.
-                    ccEntry = createCcEntryWithStoredPassword(storedPassword);
-                    if (logger.isTraceEnabled())
-                        logger.trace("seem to have a stored pass! Try with it.");
-                }
-                else
-                {
-                    //obtain new credentials
-                    if (logger.isTraceEnabled())
-                        logger.trace("We don't seem to have a good pass! Get one.");
-
-                    ccEntry = createCcEntryWithNewCredentials(
-                        realm, SecurityAuthority.AUTHENTICATION_REQUIRED);
-
-                    if(ccEntry == null)
-                        throw new OperationFailedException(
-                            "User has canceled the authentication process.",
-                            OperationFailedException.AUTHENTICATION_CANCELED);
-                }
+                //there's a stored password though so let's try it.
+                ccEntry = createCcEntryWithStoredPassword(storedPassword);
+                if (logger.isTraceEnabled())
+                    logger.trace("seem to have a stored pass! Try with it.");
             }
             else
             {
-                //we have already authenticated against this realm since we were
-                //started. this authentication is either for a different request
-                //or the previous authentication used a wrong pass.
-
-                if (ccEntryHasSeenTran && !authHeader.isStale())
-                {
-                    //this is the transaction that created the cc entry. if we
-                    //need to authenticate the same transaction then the
-                    //credentials we supplied the first time were wrong.
-                    //remove password and ask user again.
-                    SipActivator.getProtocolProviderFactory().storePassword(
-                        accountID, null);
+                //obtain new credentials
+                if (logger.isTraceEnabled())
+                    logger.trace("We don't seem to have a good pass! Get one.");
 
-                    protocolProvider.getRegistrarConnection()
-                        .setRegistrationState(
-                            RegistrationState.AUTHENTICATION_FAILED,
-                            RegistrationStateChangeEvent
-                                .REASON_AUTHENTICATION_FAILED,
-                            null
-                        );
-
-                    ccEntry = createCcEntryWithNewCredentials(
-                        realm, SecurityAuthority.WRONG_PASSWORD);
-
-                    if(ccEntry == null)
-                        throw new OperationFailedException(
-                            "User has canceled the authentication process.",
-                            OperationFailedException.AUTHENTICATION_CANCELED);
-                }
-                else
-                {
-                    //we have a cache entry and it has not seen this transaction
-                    //lets use it again.
-                    //(this "else" is here for readability only)
-                    if (logger.isTraceEnabled())
-                        logger.trace( "We seem to have a pass in the cache. "
-                                  +"Let's try with it.");
-                }
+                ccEntry = createCcEntryWithNewCredentials(
+                    realm, SecurityAuthority.AUTHENTICATION_REQUIRED);
+
+                if(ccEntry == null)
+                    throw new OperationFailedException(
+                        "User has canceled the authentication process.",
+                        OperationFailedException.AUTHENTICATION_CANCELED);
             }
+        }
+        else
+        {
+            //we have already authenticated against this realm since we were
+            //started. this authentication is either for a different request
+            //or the previous authentication used a wrong pass.
 
-            //if user canceled or sth else went wrong
-            if (ccEntry.userCredentials == null)
+            if (ccEntryHasSeenTran && !authHeader.isStale())
             {
-                throw new OperationFailedException(
-                    "Unable to authenticate with realm " + realm
-                    + ". User did not provide credentials."
-                    , OperationFailedException.AUTHENTICATION_FAILED);
+                //this is the transaction that created the cc entry. if we
+                //need to authenticate the same transaction then the
+                //credentials we supplied the first time were wrong.
+                //remove password and ask user again.
+                SipActivator.getProtocolProviderFactory().storePassword(
+                    accountID, null);
+
+                protocolProvider.getRegistrarConnection()
+                    .setRegistrationState(
+                        RegistrationState.AUTHENTICATION_FAILED,
+                        RegistrationStateChangeEvent
+                            .REASON_AUTHENTICATION_FAILED,
+                        null
+                    );
+
+                ccEntry = createCcEntryWithNewCredentials(
+                    realm, SecurityAuthority.WRONG_PASSWORD);
+
+                if(ccEntry == null)
+                    throw new OperationFailedException(
+                        "User has canceled the authentication process.",
+                        OperationFailedException.AUTHENTICATION_CANCELED);
+            }
+            else
+            {
+                //we have a cache entry and it has not seen this transaction
+                //lets use it again.
+                //(this "else" is here for readability only)
+                if (logger.isTraceEnabled())
+                    logger.trace( "We seem to have a pass in the cache. "
+                              +"Let's try with it.");
             }
+        }
+
+        //if user canceled or sth else went wrong
+        if (ccEntry.userCredentials == null)
+        {
+            throw new OperationFailedException(
+                "Unable to authenticate with realm " + realm
+                + ". User did not provide credentials."
+                , OperationFailedException.AUTHENTICATION_FAILED);
+        }
 
-            // Check whether the user has spent more than 25 seconds
-            // entering the password, if so don't cache the branch-id, late used
-            // to check for wrong password. This way we add the chance
-            // server to challenge us one more time before we decide its a
-            // wrong password. This is done cause some servers(*) destroy
-            // the dialog after some amount of time and even if our password
-            // is correct it challenge us one more time and we decide
-            // its a wrong password challenge.
-            boolean authDurTooLong =
-                    (System.currentTimeMillis() - authenticationDuration)
-                            > 25*1000;
-
-            AuthorizationHeader authorization =
-                this.createAuthorizationHeader(
-                    reoriginatedRequest.getMethod(),
-                    reoriginatedRequest.getRequestURI().toString(),
-                    ( reoriginatedRequest.getContent() == null )
-                                ? ""
-                                : reoriginatedRequest.getContent().toString(),
-                    authHeader,
-                    ccEntry.userCredentials);
-
-            if(!authDurTooLong)
-                ccEntry.pushBranchID(retryTran.getBranchId());
-            cachedCredentials.cacheEntry(realm, ccEntry);
+        // Check whether the user has spent more than 25 seconds
+        // entering the password, if so don't cache the branch-id, late used
+        // to check for wrong password. This way we add the chance
+        // server to challenge us one more time before we decide its a
+        // wrong password. This is done cause some servers(*) destroy
+        // the dialog after some amount of time and even if our password
+        // is correct it challenge us one more time and we decide
+        // its a wrong password challenge.
+        boolean authDurTooLong =
+                (System.currentTimeMillis() - authenticationDuration)
+                        > 25*1000;
+
+        //remember the challenge so that the next requests to the same domain
+        //could be authorized before getting challenged.
+        int nonceCount;
+        String cnonce;
+
+        synchronized (ccEntry)
+        {
+            ccEntry.setChallenge(
+                authHeader,
+                getNextHopHost(reoriginatedRequest),
+                reoriginatedRequest.getMethod());
+            nonceCount = ccEntry.nextNonceCount();
+            cnonce = ccEntry.getCNonce();
+        }
 
-            if (logger.isDebugEnabled())
-                logger.debug("Created authorization header: " +
-                         authorization.toString());
+        AuthorizationHeader authorization =
+            this.createAuthorizationHeader(
+                reoriginatedRequest.getMethod(),
+                reoriginatedRequest.getRequestURI().toString(),
+                getRequestBody(reoriginatedRequest),
+                authHeader,
+                ccEntry.userCredentials,
+                nonceCount,
+                cnonce);
+
+        if(!authDurTooLong)
+            ccEntry.pushBranchID(retryTran.getBranchId());
+        cachedCredentials.cacheEntry(realm, ccEntry);
 
-            // get the unique Call-ID
-            CallIdHeader call = (CallIdHeader)reoriginatedRequest
-                .getHeader(CallIdHeader.NAME);
+        if (logger.isDebugEnabled())
+            logger.debug("Created authorization header: " +
+                     authorization.toString());
 
-            if(call != null)
-            {
-                String callid = call.getCallId();
-                cachedCredentials
-                    .cacheAuthorizationHeader (callid, authorization);
-            }
+        // get the unique Call-ID
+        CallIdHeader call = (CallIdHeader)reoriginatedRequest
+            .getHeader(CallIdHeader.NAME);
 
-            reoriginatedRequest.addHeader(authorization);
+        if(call != null)
+        {
+            String callid = call.getCallId();
+            cachedCredentials
+                .cacheAuthorizationHeader (callid, authorization);
         }
 
-        if (logger.isDebugEnabled())
-            logger.debug("Returning authorization transaction.");
-        return retryTran;
+        reoriginatedRequest.addHeader(authorization);
     }
 
     /**
@@ -593,6 +639,10 @@ else if (challenge.getStatusCode()
      * @param requestBody the body of the request.
      * @param authHeader the challenge that we should respond to
      * @param userCredentials username and pass
+     * @param nonceCount the number of requests authorized with the nonce of
+     * <tt>authHeader</tt>, this one included
+     * @param cnonce the client nonce used with the nonce of
+     * <tt>authHeader</tt>
      *
      * @return an authorization header in response to authHeader.
      *
@@ -603,17 +653,17 @@ private AuthorizationHeader createAuthorizationHeader(
                 String                uri,
                 String                requestBody,
                 WWWAuthenticateHeader authHeader,
-                UserCredentials       userCredentials)
+                UserCredentials       userCredentials,
+                int                   nonceCount,
+                String                cnonce)
         throws OperationFailedException
     {
         String response = null;
 
         // JvB: authHeader.getQop() is a quoted _list_ of qop values
         // (e.g. "auth,auth-int") Client is supposed to pick one
-        String qopList = authHeader.getQop();
-        String qop = (qopList != null) ? "auth" : null;
-        String nc_value = "00000001";
-        String cnonce = "xyz";
+        String qop = selectQop(authHeader.getQop());
+        String nc_value = String.format("%08x", nonceCount);
 
         try
         {
@@ -672,7 +722,7 @@ private AuthorizationHeader createAuthorizationHeader(
             {
                 authorization.setQop(qop);
                 authorization.setCNonce(cnonce);
-                authorization.setNonceCount( Integer.parseInt(nc_value) );
+                authorization.setNonceCount(nonceCount);
             }
 
             authorization.setResponse(response);
@@ -809,6 +859,225 @@ private CredentialsCacheEntry createCcEntryWithStoredPassword(
         return ccEntry;
     }
 
+    /**
+     * Attaches to <tt>request</tt> an authorization header in an effort to
+     * spare it a challenge. A new request outside of a dialog gets a fresh
+     * answer, with an incremented nonce count, to the last challenge against
+     * the realm which challenged a request to the same next hop. When the
+     * server does not accept the nonce anymore it challenges the request with
+     * a stale nonce which <tt>handleChallenge</tt> answers as usual. Any other
+     * request gets the header cached for its <tt>Call-ID</tt>, if any. The
+     * authorization headers already in <tt>request</tt> are left alone.
+     *
+     * @param request the request that we'd like to pre-authenticate.
+     *
+     * @return <tt>true</tt> if an authorization header has been attached to
+     * <tt>request</tt> and <tt>false</tt> otherwise.
+     */
+    public boolean preAuthenticateRequest(Request request)
+    {
+        if ((request.getHeader(AuthorizationHeader.NAME) != null)
+                || (request.getHeader(ProxyAuthorizationHeader.NAME) != null))
+            return false;
+
+        if (isNewOutOfDialogRequest(request))
+        {
+            AuthorizationHeader authorization
+                = createPreAuthorizationHeader(request);
+
+            if (authorization != null)
+            {
+                request.addHeader(authorization);
+                return true;
+            }
+        }
+
+        //fall back to the header which authorized the call
+        CallIdHeader callIdHeader
+            = (CallIdHeader) request.getHeader(CallIdHeader.NAME);
+        AuthorizationHeader callAuthorization = (callIdHeader == null)
+            ? null
+            : cachedCredentials.getCachedAuthorizationHeader(
+                    callIdHeader.getCallId());
+
+        if (callAuthorization != null)
+        {
+            request.setHeader(callAuthorization);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Answers again the last challenge against the realm which challenged a
+     * request to the same next hop as <tt>request</tt>. When several realms
+     * did, the one which challenged the same method is preferred, then the
+     * one which challenged last.
+     *
+     * @param request a new request outside of a dialog.
+     *
+     * @return the authorization header for <tt>request</tt> or <tt>null</tt>
+     * if there is no challenge that we could answer before sending it.
+     */
+    private AuthorizationHeader createPreAuthorizationHeader(Request request)
+    {
+        String host = getNextHopHost(request);
+
+        if (host == null)
+            return null;
+
+        String method = request.getMethod();
+        String realm = null;
+        CredentialsCacheEntry ccEntry = null;
+        boolean sameMethod = false;
+        long challengeTime = 0;
+
+        for (Map.Entry<String, CredentialsCacheEntry> entry
+                : cachedCredentials.getEntries())
+        {
+            CredentialsCacheEntry candidate = entry.getValue();
+
+            if (!candidate.isChallengedBy(host))
+                continue;
+
+            boolean candidateSameMethod
+                = method.equals(candidate.getChallengedMethod());
+            long candidateChallengeTime = candidate.getChallengeTime();
+
+            if ((ccEntry == null)
+                    || (candidateSameMethod && !sameMethod)
+                    || ((candidateSameMethod == sameMethod)
+                        && (candidateChallengeTime - challengeTime > 0)))
+            {
+                realm = entry.getKey();
+                ccEntry = candidate;
+                sameMethod = candidateSameMethod;
+                challengeTime = candidateChallengeTime;
+            }
+        }
+
+        if (ccEntry == null)
+            return null;
+
+        WWWAuthenticateHeader challenge;
+        int nonceCount;
+        String cnonce;
+
+        synchronized (ccEntry)
+        {
+            challenge = ccEntry.getChallenge();
+            //the body of the request is not known yet so it cannot be
+            //protected.
+            if ((challenge == null)
+                    || (ccEntry.userCredentials == null)
+                    || "auth-int".equals(selectQop(challenge.getQop())))
+                return null;
+            nonceCount = ccEntry.nextNonceCount();
+            cnonce = ccEntry.getCNonce();
+        }
+
+        try
+        {
+            return createAuthorizationHeader(
+                    method,
+                    request.getRequestURI().toString(),
+                    "",
+                    challenge,
+                    ccEntry.userCredentials,
+                    nonceCount,
+                    cnonce);
+        }
+        catch (OperationFailedException ex)
+        {
+            logger.warn("Failed to pre-authenticate against " + realm, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Determines whether <tt>request</tt> is a new request outside of a
+     * dialog, the only requests whose nonce count is assigned when they are
+     * created. The requests of a dialog may be created in advance or sent in
+     * another order than the one they were created in.
+     *
+     * @param request the request to check.
+     *
+     * @return <tt>true</tt> if <tt>request</tt> is a new request outside of a
+     * dialog and <tt>false</tt> otherwise.
+     */
+    private static boolean isNewOutOfDialogRequest(Request request)
+    {
+        //a CANCEL is not challenged, it belongs to its INVITE
+        if (Request.CANCEL.equals(request.getMethod()))
+            return false;
+
+        ToHeader to = (ToHeader) request.getHeader(ToHeader.NAME);
+
+        return (to == null) || (to.getTag() == null);
+    }
+
+    /**
+     * Picks the quality of protection to apply to an authorization among the
+     * ones offered by a challenge, preferring "auth" because it does not
+     * depend on the body of the request.
+     *
+     * @param qopList the comma separated qop values of the challenge or
+     * <tt>null</tt> if it does not have any.
+     *
+     * @return "auth", "auth-int" or <tt>null</tt> if <tt>qopList</tt> is
+     * <tt>null</tt>.
+     */
+    static String selectQop(String qopList)
+    {
+        if (qopList == null)
+            return null;
+
+        boolean authInt = false;
+
+        for (String qop : qopList.split(","))
+        {
+            qop = qop.trim();
+            if (qop.equalsIgnoreCase("auth"))
+                return "auth";
+            if (qop.equalsIgnoreCase("auth-int"))
+                authInt = true;
+        }
+        return authInt ? "auth-int" : "auth";
+    }
+
+    /**
+     * Returns the body of <tt>request</tt> as used in an "auth-int" digest.
+     *
+     * @param request the request whose body we need.
+     * @return the body of <tt>request</tt> or an empty string if it has none.
+     */
+    private static String getRequestBody(Request request)
+    {
+        byte[] content = request.getRawContent();
+
+        return (content == null) ? "" : new String(content);
+    }
+
+    /**
+     * Returns the host of the next hop of <tt>request</tt>, i.e. of its top
+     * Route or of its Request-URI if it has no Route, the server the
+     * challenges it gets come from.
+     *
+     * @param request the <tt>Request</tt> whose next hop we need.
+     * @return the host of the next hop of <tt>request</tt> or <tt>null</tt>
+     * if it is not a SIP URI.
+     */
+    private static String getNextHopHost(Request request)
+    {
+        RouteHeader route = (RouteHeader) request.getHeader(RouteHeader.NAME);
+        URI uri = (route == null)
+            ? request.getRequestURI()
+            : route.getAddress().getURI();
+
+        return (uri instanceof SipURI) ? ((SipURI) uri).getHost() : null;
+    }
+
     /**
      * Returns an authorization header cached against the specified
      * <tt>callID</tt> or <tt>null</tt> if no auth. header has been previously
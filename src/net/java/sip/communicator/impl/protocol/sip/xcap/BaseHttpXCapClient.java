@@ -38,6 +38,7 @@
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.*;
 import org.apache.http.impl.client.*;
+import org.apache.http.util.EntityUtils;
 import org.osgi.framework.*;
 
 /**
@@ -70,6 +71,11 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
 
+    /**
+     * HTTP If-Match header.
+     */
+    public static final String HEADER_IF_MATCH = "If-Match";
+
     /**
      * XCap-error content type.
      */
@@ -106,6 +112,17 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     private CertificateService certificateVerification;
 
+    /**
+     * The HTTP client used for all requests while connected, so that its
+     * connection to the server is reused.
+     */
+    private DefaultHttpClient httpClient;
+
+    /**
+     * The resources we got from or put to the server, with their entity tags.
+     */
+    private final XCapDocumentCache documentCache = new XCapDocumentCache();
+
     /**
      * Creates an instance of this XCAP client.
      */
@@ -163,6 +180,14 @@ public void disconnect()
         this.userAddress = null;
         this.password = null;
         connected = false;
+        synchronized (this)
+        {
+            if (httpClient != null)
+            {
+                httpClient.getConnectionManager().shutdown();
+                httpClient = null;
+            }
+        }
     }
 
     /**
@@ -190,16 +215,42 @@ public XCapHttpResponse get(XCapResourceId resourceId)
     protected XCapHttpResponse get(URI uri)
             throws XCapException
     {
-        DefaultHttpClient httpClient = null;
+        String cacheKey = uri.toString();
+        XCapDocumentCache.Entry cached = documentCache.get(cacheKey);
         try
         {
-            httpClient = createHttpClient();
-
             HttpGet getMethod = new HttpGet(uri);
-            getMethod.setHeader("Connection", "close");
+            // we can only do without the content if we have it
+            if (cached != null && cached.content != null)
+            {
+                getMethod.setHeader(HEADER_IF_NONE_MATCH, cached.eTag);
+            }
+
+            XCapHttpResponse result = execute(getMethod);
+            int httpCode = result.getHttpCode();
+            if (httpCode == HttpStatus.SC_NOT_MODIFIED && cached != null)
+            {
+                result = new XCapHttpResponse();
+                result.setHttpCode(HttpStatus.SC_OK);
+                result.setContentType(cached.contentType);
+                result.setContent(cached.content);
+                result.setETag(cached.eTag);
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Resource " + uri + " has not changed");
+                }
+                return result;
+            }
+            else if (httpCode == HttpStatus.SC_OK)
+            {
+                documentCache.put(cacheKey, result.getETag(),
+                        result.getContentType(), result.getContent());
+            }
+            else if (httpCode == HttpStatus.SC_NOT_FOUND)
+            {
+                documentCache.remove(cacheKey);
+            }
 
-            HttpResponse response = httpClient.execute(getMethod);
-            XCapHttpResponse result = createResponse(response);
             if (logger.isDebugEnabled())
             {
                 byte[] contentBytes = result.getContent();
@@ -238,11 +289,6 @@ protected XCapHttpResponse get(URI uri)
             showError(e, null, errorMessage);
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -287,15 +333,14 @@ static void showError(Exception ex, String title, String message)
     public XCapHttpResponse put(XCapResource resource)
             throws XCapException
     {
-        DefaultHttpClient httpClient = null;
+        String documentKey = getDocumentURI(resource.getId()).toString();
         try
         {
-            httpClient = createHttpClient();
-
             URI resourceUri = getResourceURI(resource.getId());
             HttpPut putMethod = new HttpPut(resourceUri);
-            putMethod.setHeader("Connection", "close");
-            StringEntity stringEntity = new StringEntity(resource.getContent());
+            setIfMatchHeader(putMethod, documentKey);
+            StringEntity stringEntity
+                = new StringEntity(resource.getContent(), "UTF-8");
             stringEntity.setContentType(resource.getContentType());
             stringEntity.setContentEncoding("UTF-8");
             putMethod.setEntity(stringEntity);
@@ -309,8 +354,29 @@ public XCapHttpResponse put(XCapResource resource)
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(putMethod);
-            return createResponse(response);
+            XCapHttpResponse response = execute(putMethod);
+            int httpCode = response.getHttpCode();
+            if (httpCode == HttpStatus.SC_OK
+                    || httpCode == HttpStatus.SC_CREATED)
+            {
+                // the document we have put is the one the server has now
+                if (resource.getId().getNode() == null)
+                {
+                    documentCache.put(documentKey, response.getETag(),
+                            resource.getContentType(),
+                            resource.getContent().getBytes("UTF-8"));
+                }
+                else
+                {
+                    documentCache.put(documentKey, response.getETag(),
+                            null, null);
+                }
+            }
+            else if (httpCode == HttpStatus.SC_PRECONDITION_FAILED)
+            {
+                documentCache.remove(documentKey);
+            }
+            return response;
         }
         catch (IOException e)
         {
@@ -319,11 +385,6 @@ public XCapHttpResponse put(XCapResource resource)
                     resource.getId().toString());
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -338,14 +399,12 @@ public XCapHttpResponse delete(XCapResourceId resourceId)
             throws XCapException
     {
         assertConnected();
-        DefaultHttpClient httpClient = null;
+        String documentKey = getDocumentURI(resourceId).toString();
         try
         {
-            httpClient = createHttpClient();
-
             URI resourceUri = getResourceURI(resourceId);
             HttpDelete deleteMethod = new HttpDelete(resourceUri);
-            deleteMethod.setHeader("Connection", "close");
+            setIfMatchHeader(deleteMethod, documentKey);
 
             if (logger.isDebugEnabled())
             {
@@ -355,8 +414,20 @@ public XCapHttpResponse delete(XCapResourceId resourceId)
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(deleteMethod);
-            return createResponse(response);
+            XCapHttpResponse response = execute(deleteMethod);
+            int httpCode = response.getHttpCode();
+            if (httpCode == HttpStatus.SC_OK && resourceId.getNode() != null)
+            {
+                documentCache.put(documentKey, response.getETag(),
+                        null, null);
+            }
+            else if (httpCode == HttpStatus.SC_OK
+                    || httpCode == HttpStatus.SC_NOT_FOUND
+                    || httpCode == HttpStatus.SC_PRECONDITION_FAILED)
+            {
+                documentCache.remove(documentKey);
+            }
+            return response;
         }
         catch (IOException e)
         {
@@ -365,11 +436,6 @@ public XCapHttpResponse delete(XCapResourceId resourceId)
                     resourceId.toString());
             throw new XCapException(errorMessage, e);
         }
-        finally
-        {
-            if(httpClient != null)
-                httpClient.getConnectionManager().shutdown();
-        }
     }
 
     /**
@@ -425,6 +491,71 @@ protected URI getResourceURI(XCapResourceId resourceId)
         }
     }
 
+    /**
+     * Gets the uri of the document of a resource.
+     *
+     * @param resourceId the resource identifier.
+     * @return the document uri.
+     */
+    private URI getDocumentURI(XCapResourceId resourceId)
+    {
+        return getResourceURI(new XCapResourceId(resourceId.getDocument()));
+    }
+
+    /**
+     * Makes a request changing a document conditional on the document not
+     * having changed since we last saw it.
+     *
+     * @param request the request.
+     * @param documentKey the uri of the document the request changes.
+     */
+    private void setIfMatchHeader(HttpRequestBase request, String documentKey)
+    {
+        XCapDocumentCache.Entry cached = documentCache.get(documentKey);
+        if (cached != null)
+        {
+            request.setHeader(HEADER_IF_MATCH, cached.eTag);
+        }
+    }
+
+    /**
+     * Executes a request with the HTTP client of this XCAP client and reads
+     * its response. Requests are executed one at a time to reuse the same
+     * connection.
+     *
+     * @param request the request.
+     * @return the XCAP response.
+     * @throws IOException if there is error during the request.
+     */
+    private synchronized XCapHttpResponse execute(HttpRequestBase request)
+            throws IOException
+    {
+        if (httpClient == null)
+        {
+            httpClient = createHttpClient();
+        }
+        try
+        {
+            HttpResponse response = httpClient.execute(request);
+            try
+            {
+                return createResponse(response);
+            }
+            finally
+            {
+                // release the connection for the next request
+                EntityUtils.consume(response.getEntity());
+            }
+        }
+        catch (IOException e)
+        {
+            // start again with a new connection
+            httpClient.getConnectionManager().shutdown();
+            httpClient = null;
+            throw e;
+        }
+    }
+
     /**
      * Creates HTTP client with special parameters.
      *
@@ -17,6 +17,8 @@
  */
 package net.java.sip.communicator.impl.protocol.sip.xcap;
 
+import java.util.*;
+
 import net.java.sip.communicator.impl.protocol.sip.xcap.model.resourcelists.*;
 
 /**
@@ -49,6 +51,29 @@
      */
     public static String NAMESPACE = "urn:ietf:params:xml:ns:xcap-caps";
 
+    /**
+     * Rls-services uri format.
+     */
+    public static String RLS_SERVICES_DOCUMENT_FORMAT
+            = "rls-services/users/%2s/index";
+
+    /**
+     * Rls-services content type.
+     */
+    public static String RLS_SERVICES_CONTENT_TYPE =
+            "application/rls-services+xml";
+
+    /**
+     * Rls-services application usage.
+     */
+    public static String RLS_SERVICES_AUID = "rls-services";
+
+    /**
+     * Rls-services namespace.
+     */
+    public static String RLS_SERVICES_NAMESPACE =
+            "urn:ietf:params:xml:ns:rls-services";
+
     /**
      * Puts the resource-lists to the server.
      *
@@ -78,6 +103,40 @@ public ResourceListsType getResourceLists()
     public void deleteResourceLists()
             throws XCapException;
 
+    /**
+     * Puts an entry of a list of the resource-lists document to the server,
+     * without putting the whole document.
+     *
+     * @param listNames the names of the list of the entry and of its
+     * ancestors, starting with the top level list.
+     * @param entry the entry to be saved on the server.
+     * @return false if the server cannot put the entry (e.g. its list is not
+     * on the server) and the whole document must be put instead.
+     * @throws IllegalStateException if the user has not been connected.
+     * @throws XCapException         if there is some error during operation.
+     */
+    public boolean putResourceListsEntry(
+            List<String> listNames,
+            EntryType entry)
+            throws XCapException;
+
+    /**
+     * Deletes an entry of a list of the resource-lists document from the
+     * server, without putting the whole document.
+     *
+     * @param listNames the names of the list of the entry and of its
+     * ancestors, starting with the top level list.
+     * @param entryUri the uri of the entry to be deleted.
+     * @return false if the server cannot delete the entry and the whole
+     * document must be put instead.
+     * @throws IllegalStateException if the user has not been connected.
+     * @throws XCapException         if there is some error during operation.
+     */
+    public boolean deleteResourceListsEntry(
+            List<String> listNames,
+            String entryUri)
+            throws XCapException;
+
     /**
      * Gets the resource-lists from the server.
      *
@@ -89,4 +148,21 @@ public void deleteResourceLists()
     public ListType getList(String anchor)
             throws XCapException;
 
+    /**
+     * Puts to the server a rls-services document with a single presence
+     * service whose members are the given lists of our resource-lists
+     * document (rfc4826). A subscription to <tt>serviceUri</tt> is then
+     * handled by the server as a subscription to every contact of these lists.
+     *
+     * @param serviceUri the SIP URI of the resource list service.
+     * @param listNames the names of the top level lists of our resource-lists
+     * document the service is made of.
+     * @return false if a list name cannot be quoted in a node selector and
+     * the service cannot be made of all the lists.
+     * @throws IllegalStateException if the user has not been connected.
+     * @throws XCapException         if there is some error during operation.
+     */
+    public boolean putRlsServices(String serviceUri, List<String> listNames)
+            throws XCapException;
+
 }
@@ -49,4 +49,11 @@ public interface XCapClient extends HttpXCapClient,
      */
     public boolean isPresContentSupported();
 
+    /**
+     * Gets information about XCAP rls-services support information.
+     *
+     * @return true if rls-services is supported.
+     */
+    public boolean isRlsServicesSupported();
+
 }
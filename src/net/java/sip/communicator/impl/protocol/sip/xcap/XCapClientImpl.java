@@ -19,6 +19,7 @@
 
 import java.io.*;
 import java.net.URI;
+import java.util.List;
 
 import javax.sip.address.*;
 
@@ -32,6 +33,8 @@
 
 import org.apache.http.*;
 import org.jitsi.util.*;
+import org.jitsi.util.xml.*;
+import org.w3c.dom.*;
 
 /**
  * XCAP client implementation.
@@ -63,6 +66,11 @@ public class XCapClientImpl extends BaseHttpXCapClient implements XCapClient
      */
     private boolean presContentSupported;
 
+    /**
+     * Indicates whether or not rls-services is supported.
+     */
+    private boolean rlsServicesSupported;
+
     /**
      * Connects user to XCap server. Loads xcap-caps server capabilities and
      * anaylyze if resource-lists, pres-rules, pres-content is supported.
@@ -101,6 +109,16 @@ public void connect(URI uri, Address userAddress, String username, String passwo
             {
                 presContentSupported = true;
             }
+            if (ResourceListsClient.RLS_SERVICES_NAMESPACE.equals(namespace))
+            {
+                rlsServicesSupported = true;
+            }
+        }
+        if (xCapCaps.getAuids() != null
+                && xCapCaps.getAuids().getAuid().contains(
+                        ResourceListsClient.RLS_SERVICES_AUID))
+        {
+            rlsServicesSupported = true;
         }
     }
 
@@ -113,6 +131,7 @@ public void disconnect()
         super.disconnect();
         xCapCaps = null;
         resourceListsSupported = false;
+        rlsServicesSupported = false;
     }
 
     /**
@@ -197,6 +216,159 @@ public void deleteResourceLists()
         deleteResource(resourceId);
     }
 
+    /**
+     * Puts an entry of a list of the resource-lists document to the server,
+     * without putting the whole document.
+     *
+     * @param listNames the names of the list of the entry and of its
+     * ancestors, starting with the top level list.
+     * @param entry the entry to be saved on the server.
+     * @return false if the server cannot put the entry (e.g. its list is not
+     * on the server) and the whole document must be put instead.
+     * @throws IllegalStateException if the user has not been connected, or
+     *                               resource-lists is not supported.
+     * @throws XCapException         if there is some error during operation.
+     */
+    public boolean putResourceListsEntry(
+            List<String> listNames,
+            EntryType entry)
+            throws XCapException
+    {
+        assertConnected();
+        assertResourceListsSupported();
+        String node = getEntryNode(listNames, entry.getUri());
+        if (node == null)
+        {
+            return false;
+        }
+        XCapResourceId resourceId
+                = new XCapResourceId(getResourceListsDocument(), node);
+        try
+        {
+            XCapResource resource = new XCapResource(resourceId,
+                    ResourceListsParser.toXml(entry),
+                    ResourceListsClient.ELEMENT_CONTENT_TYPE);
+            XCapHttpResponse response = this.put(resource);
+            int httpCode = response.getHttpCode();
+            // the list of the entry is not on the server
+            if (httpCode == HttpStatus.SC_CONFLICT
+                    || httpCode == HttpStatus.SC_NOT_FOUND)
+            {
+                return false;
+            }
+            assertPutSucceeded(resourceId, response);
+            return true;
+        }
+        catch (ParsingException e)
+        {
+            throw new XCapException("Entry cannot be parsed", e);
+        }
+    }
+
+    /**
+     * Deletes an entry of a list of the resource-lists document from the
+     * server, without putting the whole document.
+     *
+     * @param listNames the names of the list of the entry and of its
+     * ancestors, starting with the top level list.
+     * @param entryUri the uri of the entry to be deleted.
+     * @return false if the server cannot delete the entry and the whole
+     * document must be put instead.
+     * @throws IllegalStateException if the user has not been connected, or
+     *                               resource-lists is not supported.
+     * @throws XCapException         if there is some error during operation.
+     */
+    public boolean deleteResourceListsEntry(
+            List<String> listNames,
+            String entryUri)
+            throws XCapException
+    {
+        assertConnected();
+        assertResourceListsSupported();
+        String node = getEntryNode(listNames, entryUri);
+        if (node == null)
+        {
+            return false;
+        }
+        deleteResource(new XCapResourceId(getResourceListsDocument(), node));
+        return true;
+    }
+
+    /**
+     * Puts to the server a rls-services document with a single presence
+     * service whose members are the given lists of our resource-lists
+     * document.
+     *
+     * @param serviceUri the SIP URI of the resource list service.
+     * @param listNames the names of the top level lists of our resource-lists
+     * document the service is made of.
+     * @return false if a list name cannot be quoted in a node selector and
+     * the service cannot be made of all the lists.
+     * @throws IllegalStateException if the user has not been connected, or
+     *                               rls-services is not supported.
+     * @throws XCapException         if there is some error during operation.
+     */
+    public boolean putRlsServices(String serviceUri, List<String> listNames)
+            throws XCapException
+    {
+        assertConnected();
+        assertRlsServicesSupported();
+        String[] listNodes = new String[listNames.size()];
+        for (int i = 0; i < listNodes.length; i++)
+        {
+            listNodes[i] = getListNode(listNames.get(i));
+            if (listNodes[i] == null)
+            {
+                return false;
+            }
+        }
+        XCapResourceId resourceId
+                = new XCapResourceId(getRlsServicesDocument());
+        // the lists are referenced by their absolute XCAP uri
+        String resourceListsUri = getResourceURI(
+                new XCapResourceId(getResourceListsDocument())).toString();
+        String xml;
+        try
+        {
+            Document document = XMLUtils.createDocument();
+            Element rlsServicesElement = document.createElementNS(
+                    ResourceListsClient.RLS_SERVICES_NAMESPACE,
+                    "rls-services");
+            Element serviceElement = document.createElementNS(
+                    ResourceListsClient.RLS_SERVICES_NAMESPACE, "service");
+            serviceElement.setAttribute("uri", serviceUri);
+            Element listElement = document.createElementNS(
+                    ResourceListsClient.RLS_SERVICES_NAMESPACE, "list");
+            for (String listNode : listNodes)
+            {
+                Element externalElement = document.createElementNS(
+                        ResourceListsClient.RLS_SERVICES_NAMESPACE,
+                        "external");
+                externalElement.setAttribute("anchor",
+                        resourceListsUri + "/~~/resource-lists/" + listNode);
+                listElement.appendChild(externalElement);
+            }
+            serviceElement.appendChild(listElement);
+            Element packagesElement = document.createElementNS(
+                    ResourceListsClient.RLS_SERVICES_NAMESPACE, "packages");
+            Element packageElement = document.createElementNS(
+                    ResourceListsClient.RLS_SERVICES_NAMESPACE, "package");
+            packageElement.setTextContent("presence");
+            packagesElement.appendChild(packageElement);
+            serviceElement.appendChild(packagesElement);
+            rlsServicesElement.appendChild(serviceElement);
+            document.appendChild(rlsServicesElement);
+            xml = XMLUtils.createXml(document);
+        }
+        catch (Exception e)
+        {
+            throw new XCapException("RlsServices cannot be created", e);
+        }
+        putResource(new XCapResource(resourceId, xml,
+                ResourceListsClient.RLS_SERVICES_CONTENT_TYPE));
+        return true;
+    }
+
     /**
      * Gets the resource-lists from the server.
      *
@@ -558,6 +730,21 @@ protected void assertPresContentSupported()
         }
     }
 
+    /**
+     * Utility method throwing an exception if the rls-services
+     * is not supported.
+     *
+     * @throws IllegalStateException if the user is not connected.
+     */
+    protected void assertRlsServicesSupported()
+    {
+        if (!rlsServicesSupported)
+        {
+            throw new IllegalStateException(
+                    "XCAP server doesn't support rls-services");
+        }
+    }
+
     /**
      * Puts XCAP resources to the server. Analyzes HTTP code and tryes to get
      * xcap-error if possible.
@@ -568,7 +755,22 @@ protected void assertPresContentSupported()
     private void putResource(XCapResource resource)
             throws XCapException
     {
-        XCapHttpResponse response = this.put(resource);
+        assertPutSucceeded(resource.getId(), this.put(resource));
+    }
+
+    /**
+     * Analyzes HTTP code of a put response and tryes to get xcap-error if
+     * possible.
+     *
+     * @param resourceId the identifier of the resource which has been put.
+     * @param response the server response.
+     * @throws XCapException if the resource has not been put.
+     */
+    private void assertPutSucceeded(
+            XCapResourceId resourceId,
+            XCapHttpResponse response)
+            throws XCapException
+    {
         int httpCode = response.getHttpCode();
         if (httpCode != HttpStatus.SC_OK && httpCode != HttpStatus.SC_CREATED)
         {
@@ -579,7 +781,7 @@ private void putResource(XCapResource resource)
                 errorMessage = String.format(
                         "Error %1s while putting %2s to XCAP server. %3s",
                         httpCode,
-                        resource.getId().toString(),
+                        resourceId.toString(),
                         xCapErrorMessage);
             }
             else
@@ -587,7 +789,7 @@ private void putResource(XCapResource resource)
                 errorMessage = String.format(
                         "Error %1s while putting %2s to XCAP server",
                         httpCode,
-                        resource.getId().toString());
+                        resourceId.toString());
             }
             throw new XCapException(errorMessage);
         }
@@ -722,6 +924,101 @@ private String getResourceListsDocument()
                 userAddress.getURI().toString());
     }
 
+    /**
+     * Returns the node selector of an entry of the resource-lists document
+     * according to rfc4825, percent-encoded to be part of a resource uri.
+     *
+     * @param listNames the names of the list of the entry and of its
+     * ancestors, starting with the top level list.
+     * @param entryUri the uri of the entry.
+     * @return the node selector or null if the values cannot be quoted.
+     */
+    private static String getEntryNode(List<String> listNames, String entryUri)
+    {
+        StringBuilder node = new StringBuilder("resource-lists");
+        for (String listName : listNames)
+        {
+            String listNode = getListNode(listName);
+            if (listNode == null)
+            {
+                return null;
+            }
+            node.append('/').append(listNode);
+        }
+        if (entryUri.indexOf('"') != -1)
+        {
+            return null;
+        }
+        node.append("/entry%5b@uri=%22")
+                .append(encodeNodeValue(entryUri))
+                .append("%22%5d");
+        return node.toString();
+    }
+
+    /**
+     * Returns the step of a node selector which selects a list of the
+     * resource-lists document by its name, percent-encoded to be part of a
+     * resource uri.
+     *
+     * @param listName the name of the list.
+     * @return the step or null if the name cannot be quoted.
+     */
+    private static String getListNode(String listName)
+    {
+        if (listName == null || listName.indexOf('"') != -1)
+        {
+            return null;
+        }
+        return "list%5b@name=%22" + encodeNodeValue(listName) + "%22%5d";
+    }
+
+    /**
+     * Percent-encodes the UTF-8 bytes of an attribute value of a node
+     * selector, except for the unreserved characters.
+     *
+     * @param value the attribute value.
+     * @return the encoded value.
+     */
+    private static String encodeNodeValue(String value)
+    {
+        StringBuilder encoded = new StringBuilder();
+        byte[] bytes;
+        try
+        {
+            bytes = value.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        for (byte b : bytes)
+        {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || "-._~".indexOf(c) != -1)
+            {
+                encoded.append(c);
+            }
+            else
+            {
+                encoded.append('%').append(
+                        Integer.toHexString(0x100 | c).substring(1));
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Returns rls-services uri according to rfc4826.
+     *
+     * @return rls-services uri.
+     */
+    private String getRlsServicesDocument()
+    {
+        return String.format(ResourceListsClient.RLS_SERVICES_DOCUMENT_FORMAT,
+                userAddress.getURI().toString());
+    }
+
     /**
      * Returns xcap-caps uri according to rfc4825.
      *
@@ -780,4 +1077,12 @@ public boolean isPresContentSupported()
     {
         return presContentSupported;
     }
+
+    /**
+     * Indicates whether or not rls-services is supported.
+     */
+    public boolean isRlsServicesSupported()
+    {
+        return rlsServicesSupported;
+    }
 }
@@ -0,0 +1,288 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip.xcap;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.impl.protocol.sip.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Local copies of XCAP resources along with the entity tags the server gave
+ * them. They let the client ask for a resource only if it changed
+ * (If-None-Match) and change a document only if nobody else did since we last
+ * saw it (If-Match). The resources are also stored in the cache directory so
+ * that they do not have to be downloaded again after a restart.
+ * <p/>
+ * Entries are keyed by the absolute URI of the resource. As the entity tag of
+ * an element is the one of its document (rfc4825), the entry of a document
+ * may only know its entity tag and not its content after an element of the
+ * document has been changed.
+ */
+class XCapDocumentCache
+{
+    /**
+     * Class logger.
+     */
+    private static final Logger logger =
+            Logger.getLogger(XCapDocumentCache.class);
+
+    /**
+     * The directory, in the cache directory, where the resources are stored.
+     */
+    private static final String CACHE_DIR = "xcap";
+
+    /**
+     * The entries loaded or stored so far, by resource URI.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Gets the entry of a resource.
+     *
+     * @param resourceUri the absolute URI of the resource.
+     * @return the entry of the resource or <tt>null</tt> if it is unknown.
+     */
+    synchronized Entry get(String resourceUri)
+    {
+        Entry entry = entries.get(resourceUri);
+
+        if (entry == null && !entries.containsKey(resourceUri))
+        {
+            entry = load(resourceUri);
+            entries.put(resourceUri, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Stores the entity tag and the content of a resource.
+     *
+     * @param resourceUri the absolute URI of the resource.
+     * @param eTag the entity tag of the resource, <tt>null</tt> removes the
+     * entry.
+     * @param contentType the content type of the resource.
+     * @param content the content of the resource or <tt>null</tt> if only its
+     * entity tag is known.
+     */
+    synchronized void put(
+            String resourceUri,
+            String eTag,
+            String contentType,
+            byte[] content)
+    {
+        if (eTag == null)
+        {
+            remove(resourceUri);
+            return;
+        }
+
+        Entry entry = new Entry(eTag, contentType, content);
+
+        entries.put(resourceUri, entry);
+        if (content == null)
+            delete(resourceUri);
+        else
+            store(resourceUri, entry);
+    }
+
+    /**
+     * Removes the entry of a resource.
+     *
+     * @param resourceUri the absolute URI of the resource.
+     */
+    synchronized void remove(String resourceUri)
+    {
+        entries.put(resourceUri, null);
+        delete(resourceUri);
+    }
+
+    /**
+     * Gets the file a resource is stored in.
+     *
+     * @param resourceUri the absolute URI of the resource.
+     * @return the file or <tt>null</tt> if the resources cannot be stored.
+     */
+    private static File getFile(String resourceUri)
+    {
+        try
+        {
+            FileAccessService fileAccessService
+                = SipActivator.getFileAccessService();
+
+            if (fileAccessService == null)
+                return null;
+
+            // the file also contains the URI to detect the hash collisions
+            return fileAccessService.getPrivatePersistentFile(
+                    CACHE_DIR + File.separator
+                        + Integer.toHexString(resourceUri.hashCode()),
+                    FileCategory.CACHE);
+        }
+        catch (Exception e)
+        {
+            logger.error("Cannot get the XCAP cache file", e);
+            return null;
+        }
+    }
+
+    /**
+     * Loads a resource from the cache directory.
+     *
+     * @param resourceUri the absolute URI of the resource.
+     * @return the entry of the resource or <tt>null</tt> if it is not stored.
+     */
+    private static Entry load(String resourceUri)
+    {
+        File file = getFile(resourceUri);
+
+        if (file == null || !file.exists())
+            return null;
+        try
+        {
+            DataInputStream in
+                = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(file)));
+
+            try
+            {
+                if (!resourceUri.equals(in.readUTF()))
+                    return null;
+
+                String eTag = in.readUTF();
+                String contentType = in.readUTF();
+                byte[] content = new byte[in.readInt()];
+
+                in.readFully(content);
+                return new Entry(
+                        eTag,
+                        contentType.length() == 0 ? null : contentType,
+                        content);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot read XCAP cache file " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a resource in the cache directory.
+     *
+     * @param resourceUri the absolute URI of the resource.
+     * @param entry the entry of the resource.
+     */
+    private static void store(String resourceUri, Entry entry)
+    {
+        File file = getFile(resourceUri);
+
+        if (file == null)
+            return;
+        try
+        {
+            File dir = file.getParentFile();
+
+            if (!dir.exists() && !dir.mkdirs())
+            {
+                throw new IOException(
+                        "Failed to create directory: "
+                            + dir.getAbsolutePath());
+            }
+
+            DataOutputStream out
+                = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file)));
+
+            try
+            {
+                out.writeUTF(resourceUri);
+                out.writeUTF(entry.eTag);
+                out.writeUTF(
+                        entry.contentType == null ? "" : entry.contentType);
+                out.writeInt(entry.content.length);
+                out.write(entry.content);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot write XCAP cache file " + file, e);
+            file.delete();
+        }
+    }
+
+    /**
+     * Deletes a resource from the cache directory.
+     *
+     * @param resourceUri the absolute URI of the resource.
+     */
+    private static void delete(String resourceUri)
+    {
+        File file = getFile(resourceUri);
+
+        if (file != null && file.exists() && !file.delete())
+            logger.warn("Cannot delete XCAP cache file " + file);
+    }
+
+    /**
+     * The entity tag and the content of a resource.
+     */
+    static class Entry
+    {
+        /**
+         * The entity tag of the resource.
+         */
+        final String eTag;
+
+        /**
+         * The content type of the resource.
+         */
+        final String contentType;
+
+        /**
+         * The content of the resource or <tt>null</tt> if only its entity tag
+         * is known.
+         */
+        final byte[] content;
+
+        /**
+         * Creates an entry.
+         *
+         * @param eTag the entity tag of the resource.
+         * @param contentType the content type of the resource.
+         * @param content the content of the resource.
+         */
+        Entry(String eTag, String contentType, byte[] content)
+        {
+            this.eTag = eTag;
+            this.contentType = contentType;
+            this.content = content;
+        }
+    }
+}
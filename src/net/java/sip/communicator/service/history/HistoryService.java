@@ -41,6 +41,72 @@ public interface HistoryService {
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * Property used to set the maximum memory, in kilobytes, used to cache
+     * the parsed files of all histories. The least recently used files are
+     * evicted when it is exceeded.
+     */
+    public static final String CACHE_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_SIZE";
+
+    /**
+     * Property used to set the memory, in kilobytes, the parsed files of a
+     * single history can use in the cache before its least recently used
+     * files are evicted first.
+     */
+    public static final String CACHE_SIZE_PER_HISTORY_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_SIZE_PER_HISTORY";
+
+    /**
+     * Property used to set the time, in milliseconds, records added to an XML
+     * history can wait before they are written to disk, so that the records
+     * added meanwhile are written together. A value of 0 writes every record
+     * as soon as it is added.
+     */
+    public static final String WRITE_DELAY_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_DELAY";
+
+    /**
+     * Property used to set the number of records added to a history which
+     * are written to disk right away, without waiting for the write delay.
+     */
+    public static final String WRITE_BATCH_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BATCH_SIZE";
+
+    /**
+     * Property used to set the maximum number of records of all histories
+     * waiting to be written to disk. When it is reached the threads adding
+     * records write them themselves.
+     */
+    public static final String MAX_PENDING_RECORDS_PROPERTY =
+        "net.java.sip.communicator.service.history.MAX_PENDING_RECORDS";
+
+    /**
+     * Property used to set the time, in milliseconds, after which the records
+     * which could not be written to disk are written again.
+     */
+    public static final String WRITE_RETRY_DELAY_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_RETRY_DELAY";
+
+    /**
+     * Property used to select the storage engine of newly created histories,
+     * either {@link #STORAGE_ENGINE_XML} (the default) or
+     * {@link #STORAGE_ENGINE_BINARY}. Existing histories keep using the engine
+     * they were created with.
+     */
+    public static final String STORAGE_ENGINE_PROPERTY =
+        "net.java.sip.communicator.service.history.STORAGE_ENGINE";
+
+    /**
+     * Stores history records in XML files, rewritten on every new record.
+     */
+    public static final String STORAGE_ENGINE_XML = "xml";
+
+    /**
+     * Stores history records in append-only binary segment files.
+     */
+    public static final String STORAGE_ENGINE_BINARY = "binary";
+
     /**
      * Date format used in the XML history database.
      */
@@ -131,4 +197,18 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
      * @return whether a history is created and stored.
      */
     public boolean isHistoryCreated(HistoryID id);
+
+    /**
+     * Returns the number of times a parsed history file was found in the
+     * cache since the service was started.
+     * @return the number of cache hits
+     */
+    public long getCacheHitCount();
+
+    /**
+     * Returns the number of times a history file had to be read because it
+     * was not found in the cache since the service was started.
+     * @return the number of cache misses
+     */
+    public long getCacheMissCount();
 }
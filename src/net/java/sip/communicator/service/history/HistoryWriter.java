@@ -117,6 +117,15 @@ public void updateRecord(
     public void updateRecord(HistoryRecordUpdater updater)
         throws IOException;
 
+    /**
+     * Writes to disk the records added to the history which are still waiting
+     * to be written.
+     *
+     * @throws IOException if writing the records fails
+     */
+    public void flush()
+        throws IOException;
+
     /**
      * This interface is used to find a history record to update and to get the
      * new values for the record.
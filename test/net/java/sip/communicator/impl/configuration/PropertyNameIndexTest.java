@@ -0,0 +1,92 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.configuration;
+
+import java.util.*;
+
+import junit.framework.*;
+
+public class PropertyNameIndexTest
+    extends TestCase
+{
+    private static final String PREFIX = "net.java.sip.communicator.sip";
+
+    private PropertyNameIndex index;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.index = new PropertyNameIndex();
+        for (String name : new String[]
+                {
+                    PREFIX,
+                    PREFIX + ".acc1",
+                    PREFIX + ".acc1.USER_ID",
+                    PREFIX + ".acc1.SERVER.ADDRESS",
+                    PREFIX + ".acc1-old",
+                    PREFIX + ".acc2",
+                    PREFIX + ".acc2.USER_ID",
+                    PREFIX + ".x.y",
+                    PREFIX + "ext.acc3",
+                    "net.java.sip.communicator.jabber.acc4"
+                })
+        {
+            this.index.add(name);
+        }
+    }
+
+    //@Test
+    public void testExactPrefixMatch()
+    {
+        assertEquals(
+            Arrays.asList(PREFIX + ".acc1", PREFIX + ".acc1-old",
+                PREFIX + ".acc2"),
+            this.index.getByPrefix(PREFIX, true));
+        assertEquals(
+            Arrays.asList(PREFIX + ".acc1.USER_ID"),
+            this.index.getByPrefix(PREFIX + ".acc1", true));
+        assertTrue(this.index.getByPrefix(PREFIX + ".x.y", true).isEmpty());
+    }
+
+    //@Test
+    public void testSubtreeMatch()
+    {
+        List<String> names = this.index.getByPrefix(PREFIX + ".acc1", false);
+
+        assertEquals(4, names.size());
+        assertTrue(names.contains(PREFIX + ".acc1-old"));
+        assertTrue(names.contains(PREFIX + ".acc1.SERVER.ADDRESS"));
+
+        // the prefix does not need to end at a component boundary
+        assertEquals(9, this.index.getByPrefix(PREFIX, false).size());
+    }
+
+    //@Test
+    public void testRemove()
+    {
+        this.index.remove(PREFIX + ".acc1");
+
+        assertEquals(
+            Arrays.asList(PREFIX + ".acc1-old", PREFIX + ".acc2"),
+            this.index.getByPrefix(PREFIX, true));
+
+        this.index.clear();
+        assertTrue(this.index.getByPrefix("", false).isEmpty());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+
+public class HistoryKeywordIndexTest
+    extends TestCase
+{
+    private File dir;
+
+    private final Map<String, List<String>> content
+        = new HashMap<String, List<String>>();
+
+    private final HistoryKeywordIndex.FieldValueLoader loader
+        = new HistoryKeywordIndex.FieldValueLoader()
+        {
+            public List<String> loadFieldValues(String filename, String field)
+            {
+                return content.get(filename);
+            }
+        };
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.dir = File.createTempFile("history", "keywords");
+        this.dir.delete();
+        this.dir.mkdirs();
+
+        createFile("1.xml", "Hello World", null, "hello again");
+        createFile("2.xml", "nothing here", "HELLO, Wor-ld!");
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        for (File f : this.dir.listFiles())
+            f.delete();
+        this.dir.delete();
+        super.tearDown();
+    }
+
+    private void createFile(String name, String... values) throws IOException
+    {
+        this.content.put(name, Arrays.asList(values));
+        FileOutputStream out = new FileOutputStream(new File(this.dir, name));
+        out.write(name.getBytes());
+        out.close();
+    }
+
+    private HistoryKeywordIndex newIndex()
+    {
+        HistoryKeywordIndex index = new HistoryKeywordIndex(this.dir, "msg");
+        index.update(this.content.keySet(), this.loader);
+        return index;
+    }
+
+    //@Test
+    public void testTokenize()
+    {
+        assertEquals(
+            Arrays.asList("hello", "wor", "ld", "42"),
+            HistoryKeywordIndex.tokenize(" HELLO, Wor-ld! 42"));
+        assertTrue(HistoryKeywordIndex.tokenize("?!").isEmpty());
+    }
+
+    //@Test
+    public void testFindIsCaseFoldedAndPrefixBased()
+    {
+        Map<String, BitSet> result
+            = newIndex().find(new String[] { "HEL" });
+
+        assertEquals(2, result.size());
+        assertEquals(2, result.get("1.xml").cardinality());
+        assertTrue(result.get("1.xml").get(0));
+        assertTrue(result.get("1.xml").get(2));
+        assertTrue(result.get("2.xml").get(1));
+    }
+
+    //@Test
+    public void testFindRequiresAllKeywords()
+    {
+        Map<String, BitSet> result
+            = newIndex().find(new String[] { "hello", "wor" });
+
+        assertEquals(2, result.size());
+        assertEquals(1, result.get("1.xml").cardinality());
+        assertTrue(result.get("1.xml").get(0));
+
+        assertTrue(newIndex().find(new String[] { "bye" }).isEmpty());
+        assertNull(newIndex().find(new String[] { "!!" }));
+    }
+
+    //@Test
+    public void testRecordAddedAndPersistence() throws IOException
+    {
+        HistoryKeywordIndex index = newIndex();
+
+        // records are reported once they are written to their file
+        FileOutputStream out
+            = new FileOutputStream(new File(this.dir, "2.xml"), true);
+        out.write("goodbye".getBytes());
+        out.close();
+
+        index.recordAdded(
+            "2.xml", 2, new String[] { "dir", "msg_CDATA" },
+            new String[] { "in", "goodbye" });
+        index.store();
+
+        HistoryKeywordIndex loaded = new HistoryKeywordIndex(this.dir, "msg");
+        Map<String, BitSet> result = loaded.find(new String[] { "good" });
+        assertEquals(1, result.size());
+        assertTrue(result.get("2.xml").get(2));
+    }
+
+    //@Test
+    public void testRemovedFilesAreDropped() throws IOException
+    {
+        HistoryKeywordIndex index = newIndex();
+
+        this.content.remove("1.xml");
+        index.update(this.content.keySet(), this.loader);
+
+        Map<String, BitSet> result = index.find(new String[] { "hello" });
+        assertEquals(1, result.size());
+        assertTrue(result.containsKey("2.xml"));
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.records.*;
+
+public class HistorySegmentTest
+    extends TestCase
+{
+    private static final String[] NAMES = { "dir", "msg" };
+
+    private File dir;
+
+    private HistorySegment segment;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.dir = File.createTempFile("history", "segment");
+        this.dir.delete();
+        this.dir.mkdirs();
+        this.segment = new HistorySegment(new File(this.dir, "1000.seg"));
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        this.segment.delete();
+        this.dir.delete();
+        super.tearDown();
+    }
+
+    private static HistoryRecord record(int i)
+    {
+        return new HistoryRecord(
+            NAMES, new String[] { "in", "message " + i }, new Date(1000 + i));
+    }
+
+    //@Test
+    public void testAppendAndReadAll() throws IOException
+    {
+        for (int i = 0; i < 100; i++)
+            this.segment.append(record(i));
+
+        List<HistoryRecord> records = this.segment.readAll();
+        assertEquals(100, records.size());
+        assertEquals("message 42", records.get(42).getPropertyValues()[1]);
+        assertEquals(1000, this.segment.getMinTimestamp());
+        assertEquals(1099, this.segment.getMaxTimestamp());
+    }
+
+    //@Test
+    public void testNullValuesAreSkipped() throws IOException
+    {
+        this.segment.append(new HistoryRecord(
+            NAMES, new String[] { "in", null }, new Date(5)));
+
+        HistoryRecord record = this.segment.readAll().get(0);
+        assertEquals(1, record.getPropertyNames().length);
+        assertEquals("dir", record.getPropertyNames()[0]);
+    }
+
+    //@Test
+    public void testReadPeriodAndTail() throws IOException
+    {
+        for (int i = 0; i < 200; i++)
+            this.segment.append(record(i));
+
+        List<HistoryRecord> period
+            = this.segment.read(new Date(1150), new Date(1160));
+        assertEquals(10, period.size());
+        assertEquals(1150, period.get(0).getTimestamp().getTime());
+
+        List<HistoryRecord> tail = this.segment.readTail(5);
+        assertTrue(tail.size() >= 5);
+        assertTrue(tail.size() <= 5 + HistorySegment.INDEX_INTERVAL);
+        assertEquals(
+            1199, tail.get(tail.size() - 1).getTimestamp().getTime());
+    }
+
+    //@Test
+    public void testReopenRestoresMetadata() throws IOException
+    {
+        for (int i = 0; i < 70; i++)
+            this.segment.append(record(i));
+        this.segment.close();
+
+        HistorySegment reopened
+            = new HistorySegment(new File(this.dir, "1000.seg"));
+        assertEquals(70, reopened.getRecordCount());
+        assertEquals(1000, reopened.getMinTimestamp());
+        assertEquals(1069, reopened.getMaxTimestamp());
+    }
+
+    //@Test
+    public void testTornRecordIsTruncated() throws IOException
+    {
+        for (int i = 0; i < 10; i++)
+            this.segment.append(record(i));
+        this.segment.close();
+
+        File file = new File(this.dir, "1000.seg");
+        long validLength = file.length();
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] { 0, 0, 0, 50, 1, 2, 3 });
+        out.close();
+
+        HistorySegment reopened = new HistorySegment(file);
+        assertEquals(10, reopened.getRecordCount());
+        assertEquals(validLength, file.length());
+
+        reopened.append(record(10));
+        assertEquals(11, reopened.readAll().size());
+        reopened.close();
+    }
+
+    // the offset of record(index) in a segment holding record(0), record(1)...
+    private static long offsetOf(int index) throws IOException
+    {
+        long offset = 0;
+
+        for (int i = 0; i < index; i++)
+            offset += HistorySegment.encode(record(i)).length;
+        return offset;
+    }
+
+    private static void overwrite(File file, long offset, byte[] bytes)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.seek(offset);
+            raf.write(bytes);
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    //@Test
+    public void testCorruptedRecordIsSkipped() throws IOException
+    {
+        for (int i = 0; i < 10; i++)
+            this.segment.append(record(i));
+        this.segment.close();
+
+        File file = new File(this.dir, "1000.seg");
+        long fileLength = file.length();
+        // flip the last byte of the payload of the fourth record
+        long offset = offsetOf(4) - 1;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        raf.seek(offset);
+        byte b = raf.readByte();
+        raf.close();
+        overwrite(file, offset, new byte[] { (byte) ~b });
+
+        HistorySegment reopened = new HistorySegment(file);
+        assertEquals(9, reopened.getRecordCount());
+        assertEquals(fileLength, file.length());
+
+        List<HistoryRecord> records = reopened.readAll();
+        assertEquals(9, records.size());
+        assertEquals("message 2", records.get(2).getPropertyValues()[1]);
+        assertEquals("message 4", records.get(3).getPropertyValues()[1]);
+        assertEquals("message 9", records.get(8).getPropertyValues()[1]);
+
+        reopened.append(record(10));
+        assertEquals(10, reopened.readAll().size());
+        reopened.close();
+    }
+
+    //@Test
+    public void testCorruptedHeaderIsNotTruncated() throws IOException
+    {
+        for (int i = 0; i < 10; i++)
+            this.segment.append(record(i));
+        this.segment.close();
+
+        File file = new File(this.dir, "1000.seg");
+        long fileLength = file.length();
+        overwrite(file, offsetOf(5), new byte[] { (byte) 0xff, 0, 0, 0 });
+
+        HistorySegment reopened = new HistorySegment(file);
+        assertEquals(0, reopened.getRecordCount());
+        assertEquals(fileLength, file.length());
+        try
+        {
+            reopened.append(record(10));
+            fail("appended to a segment which could not be loaded");
+        }
+        catch (IOException expected)
+        {
+        }
+        assertEquals(fileLength, file.length());
+    }
+
+    //@Test
+    public void testReadFailureIsNotTruncated() throws IOException
+    {
+        for (int i = 0; i < 10; i++)
+            this.segment.append(record(i));
+        this.segment.close();
+
+        final File file = new File(this.dir, "1000.seg");
+        long fileLength = file.length();
+        final int[] failures = { 1 };
+        HistorySegment reopened = new HistorySegment(file)
+        {
+            @Override
+            InputStream openDataFile()
+                throws IOException
+            {
+                if (failures[0]-- > 0)
+                    throw new IOException("locked");
+                return super.openDataFile();
+            }
+        };
+
+        assertEquals(0, reopened.getRecordCount());
+        assertEquals(fileLength, file.length());
+
+        // the next access loads the segment
+        assertEquals(10, reopened.getRecordCount());
+        assertEquals(10, reopened.readAll().size());
+        assertEquals(fileLength, file.length());
+    }
+
+    //@Test
+    public void testRewrite() throws IOException
+    {
+        for (int i = 0; i < 50; i++)
+            this.segment.append(record(i));
+
+        List<HistoryRecord> records = this.segment.readAll();
+        records.remove(0);
+        this.segment.rewrite(records);
+
+        assertEquals(49, this.segment.getRecordCount());
+        assertEquals(1001, this.segment.getMinTimestamp());
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+import org.osgi.framework.*;
+import org.w3c.dom.*;
+
+public class HistoryWriterImplTest
+    extends TestCase
+{
+    private File dir;
+
+    private HistoryServiceImpl historyService;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.dir = File.createTempFile("history", "writer");
+        this.dir.delete();
+        this.dir.mkdirs();
+
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(HistoryService.WRITE_DELAY_PROPERTY, 20L);
+        properties.put(HistoryService.WRITE_RETRY_DELAY_PROPERTY, 50L);
+
+        final Object configService = Proxy.newProxyInstance(
+            ConfigurationService.class.getClassLoader(),
+            new Class<?>[] { ConfigurationService.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    // the getters with a default value
+                    if (args == null || args.length != 2)
+                        return null;
+                    return properties.containsKey(args[0])
+                        ? properties.get(args[0])
+                        : args[1];
+                }
+            });
+        BundleContext bundleContext = (BundleContext) Proxy.newProxyInstance(
+            BundleContext.class.getClassLoader(),
+            new Class<?>[] { BundleContext.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getServiceReference")
+                            && ConfigurationService.class.getName().equals(
+                                    args[0]))
+                    {
+                        return Proxy.newProxyInstance(
+                            ServiceReference.class.getClassLoader(),
+                            new Class<?>[] { ServiceReference.class },
+                            this);
+                    }
+                    if (method.getName().equals("getService"))
+                        return configService;
+                    return null;
+                }
+            });
+        this.historyService = new HistoryServiceImpl(bundleContext);
+    }
+
+    //@after
+    public void tearDown() throws Exception
+    {
+        for (File f : this.dir.listFiles())
+            f.delete();
+        this.dir.delete();
+        super.tearDown();
+    }
+
+    //@Test
+    public void testFailedWriteIsRetried() throws Exception
+    {
+        final int[] failures = { 1 };
+        final BlockingQueue<Integer> writes
+            = new LinkedBlockingQueue<Integer>();
+        HistoryImpl history = new HistoryImpl(
+            HistoryID.createFromRawID(new String[] { "writer" }),
+            this.dir,
+            new HistoryRecordStructure(new String[] { "msg" }),
+            this.historyService)
+        {
+            @Override
+            protected void writeFile(String filename, Document doc)
+                throws IOException
+            {
+                synchronized (failures)
+                {
+                    if (failures[0]-- > 0)
+                    {
+                        writes.add(-1);
+                        throw new IOException("disk full");
+                    }
+                }
+                writes.add(doc.getElementsByTagName("record").getLength());
+            }
+        };
+
+        history.getWriter().addRecord(new String[] { "hello" });
+
+        // the delayed write fails, then is retried without any new record
+        assertEquals(Integer.valueOf(-1), writes.poll(5, TimeUnit.SECONDS));
+        assertEquals(Integer.valueOf(1), writes.poll(5, TimeUnit.SECONDS));
+
+        // nothing is left to write
+        history.flushWriter();
+        assertNull(writes.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
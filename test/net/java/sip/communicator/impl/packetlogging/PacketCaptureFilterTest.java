@@ -0,0 +1,87 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import junit.framework.*;
+
+public class PacketCaptureFilterTest
+    extends TestCase
+{
+    private static final byte[] LOCAL = new byte[] { 10, 0, 0, 1 };
+
+    private static final byte[] REMOTE = new byte[] { 10, 0, 0, 2 };
+
+    private static final byte[] MAPPED_REMOTE
+        = new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, -1, -1, 10, 0, 0, 2 };
+
+    //@Test
+    public void testAddressAndPortPredicates()
+    {
+        PacketCaptureFilter filter
+            = new PacketCaptureFilter("10.0.0.2, ::1", "5060,10000-10010",
+                0, 1, 0);
+
+        assertEquals(100, filter.getCaptureLength(
+            LOCAL, 40000, REMOTE, 5060, 100));
+        assertEquals(100, filter.getCaptureLength(
+            MAPPED_REMOTE, 10005, LOCAL, 40000, 100));
+        assertEquals(-1, filter.getCaptureLength(
+            LOCAL, 40000, REMOTE, 10011, 100));
+        assertEquals(-1, filter.getCaptureLength(
+            LOCAL, 5060, new byte[] { 10, 0, 0, 3 }, 5060, 100));
+    }
+
+    //@Test
+    public void testSnaplenAndSampling()
+    {
+        PacketCaptureFilter filter
+            = new PacketCaptureFilter(null, null, 12, 3, 0);
+        int captured = 0;
+
+        for (int i = 0; i < 9; i++)
+        {
+            int length
+                = filter.getCaptureLength(LOCAL, 5000, REMOTE, 5002, 172);
+
+            if (length != -1)
+            {
+                assertEquals(12, length);
+                captured++;
+            }
+        }
+        assertEquals(3, captured);
+        assertEquals(8, new PacketCaptureFilter(null, null, 12, 1, 0)
+            .getCaptureLength(LOCAL, 5000, REMOTE, 5002, 8));
+    }
+
+    //@Test
+    public void testRateCap()
+    {
+        PacketCaptureFilter filter
+            = new PacketCaptureFilter(null, "5000", 0, 1, 5);
+        int captured = 0;
+
+        for (int i = 0; i < 20; i++)
+        {
+            if (filter.getCaptureLength(LOCAL, 5000, REMOTE, 5002, 10) != -1)
+                captured++;
+        }
+        // the packets may have been logged across a second boundary
+        assertTrue(captured == 5 || captured == 10);
+    }
+}
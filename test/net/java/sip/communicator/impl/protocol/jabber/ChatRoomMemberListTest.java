@@ -0,0 +1,121 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.protocol.*;
+
+public class ChatRoomMemberListTest
+    extends TestCase
+{
+    private static ChatRoomMember newMember()
+    {
+        return (ChatRoomMember) Proxy.newProxyInstance(
+                ChatRoomMember.class.getClassLoader(),
+                new Class<?>[] { ChatRoomMember.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(
+                            Object proxy, Method method, Object[] args)
+                    {
+                        if (method.getName().equals("equals"))
+                            return proxy == args[0];
+                        if (method.getName().equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        return null;
+                    }
+                });
+    }
+
+    //@Test
+    public void testViewsAreNotChangedByLaterChanges()
+    {
+        ChatRoomMemberList list = new ChatRoomMemberList();
+        List<ChatRoomMember> added = new ArrayList<ChatRoomMember>();
+        List<List<ChatRoomMember>> views
+            = new ArrayList<List<ChatRoomMember>>();
+
+        // enough members to grow the array
+        for (int i = 0; i < 40; i++)
+        {
+            ChatRoomMember member = newMember();
+
+            list.add(member);
+            added.add(member);
+            views.add(list.getMembers());
+        }
+        assertSame(views.get(39), list.getMembers());
+
+        list.remove(added.get(0));
+        list.remove(added.get(20));
+        list.remove(added.get(39));
+
+        for (int i = 0; i < 40; i++)
+            assertEquals(added.subList(0, i + 1), views.get(i));
+
+        List<ChatRoomMember> expected
+            = new ArrayList<ChatRoomMember>(added);
+
+        expected.remove(39);
+        expected.remove(20);
+        expected.remove(0);
+        assertEquals(expected, list.getMembers());
+
+        List<ChatRoomMember> beforeClear = list.getMembers();
+
+        list.clear();
+        assertTrue(list.getMembers().isEmpty());
+        assertEquals(expected, beforeClear);
+    }
+
+    //@Test
+    public void testRemoveWithoutViews()
+    {
+        ChatRoomMemberList list = new ChatRoomMemberList();
+        ChatRoomMember a = newMember();
+        ChatRoomMember b = newMember();
+        ChatRoomMember c = newMember();
+
+        list.add(a);
+        list.add(b);
+        list.add(c);
+        assertTrue(list.remove(b));
+        assertFalse(list.remove(b));
+        list.add(b);
+        assertEquals(Arrays.asList(a, c, b), list.getMembers());
+    }
+
+    //@Test
+    public void testViewsAreReadOnly()
+    {
+        ChatRoomMemberList list = new ChatRoomMemberList();
+
+        list.add(newMember());
+        try
+        {
+            list.getMembers().add(newMember());
+            fail();
+        }
+        catch (UnsupportedOperationException expected)
+        {
+        }
+    }
+}
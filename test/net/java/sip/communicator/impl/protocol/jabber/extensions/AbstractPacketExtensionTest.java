@@ -0,0 +1,140 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions;
+
+import java.io.*;
+
+import junit.framework.*;
+
+import org.xmlpull.mxp1.*;
+import org.xmlpull.v1.*;
+
+public class AbstractPacketExtensionTest
+    extends TestCase
+{
+    private static class TestExtension
+        extends AbstractPacketExtension
+    {
+        TestExtension(String namespace, String elementName)
+        {
+            super(namespace, elementName);
+        }
+    }
+
+    /**
+     * An extension which only overrides <tt>toXML()</tt>, as extensions
+     * written before <tt>toXML(StringBuilder)</tt> existed do.
+     */
+    private static class LegacyExtension
+        extends AbstractPacketExtension
+    {
+        LegacyExtension()
+        {
+            super(null, "legacy");
+        }
+
+        @Override
+        public String toXML()
+        {
+            return "<legacy>" + super.toXML() + "</legacy>";
+        }
+    }
+
+    //@Test
+    public void testNestedExtensions()
+    {
+        TestExtension parent = new TestExtension("urn:test", "parent");
+        TestExtension child = new TestExtension(null, "child");
+        TestExtension empty = new TestExtension(null, "empty");
+
+        parent.setAttribute("id", 1);
+        child.setAttribute("name", "a");
+        child.setText("text");
+        child.addChildExtension(empty);
+        parent.addChildExtension(child);
+
+        assertEquals(
+                "<parent xmlns='urn:test' id='1'>"
+                    + "<child name='a'><empty/>text</child>"
+                    + "</parent>",
+                parent.toXML());
+    }
+
+    //@Test
+    public void testEscaping()
+    {
+        TestExtension ext = new TestExtension(null, "ext");
+
+        ext.setAttribute("name", "O'Brien & \"Sons\" <ltd>");
+        ext.setText("a < b & 'c'");
+
+        assertEquals(
+                "<ext name='O&apos;Brien &amp; &quot;Sons&quot; &lt;ltd&gt;'>"
+                    + "a &lt; b &amp; 'c'</ext>",
+                ext.toXML());
+    }
+
+    //@Test
+    public void testToXMLOverride()
+    {
+        TestExtension parent = new TestExtension(null, "parent");
+
+        parent.addChildExtension(new LegacyExtension());
+
+        assertEquals(
+                "<parent><legacy><legacy/></legacy></parent>",
+                parent.toXML());
+    }
+
+    //@Test
+    public void testEscapedAttributesRoundTrip()
+        throws Exception
+    {
+        String uri = "sip:conf@example.com?a=1&b=2";
+        String name = "R&D <weekly>";
+        ConferenceDescriptionPacketExtension ext
+            = new ConferenceDescriptionPacketExtension(uri);
+
+        ext.setName(name);
+
+        String xml = ext.toXML();
+
+        assertTrue(
+                xml,
+                xml.contains("uri='sip:conf@example.com?a=1&amp;b=2'"));
+        assertTrue(
+                xml,
+                xml.contains("conference_name='R&amp;D &lt;weekly&gt;'"));
+
+        XmlPullParser parser = new MXParser();
+
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        parser.next();
+
+        ConferenceDescriptionPacketExtension parsed
+            = (ConferenceDescriptionPacketExtension)
+                new ConferenceDescriptionPacketExtension.Provider()
+                    .parseExtension(parser);
+
+        assertEquals(uri, parsed.getUri());
+        assertEquals(
+                name,
+                parsed.toConferenceDescription().getDisplayName());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.extensions;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.impl.protocol.jabber.*;
+import net.java.sip.communicator.service.protocol.jabber.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.provider.*;
+import org.xmlpull.mxp1.*;
+import org.xmlpull.v1.*;
+
+public class DefaultPacketExtensionProviderTest
+    extends TestCase
+{
+    private static final String NAMESPACE = "urn:test:provider";
+
+    public static class Parent
+        extends AbstractPacketExtension
+    {
+        public Parent()
+        {
+            super(NAMESPACE, "parent");
+        }
+    }
+
+    public static class Child
+        extends AbstractPacketExtension
+    {
+        public Child()
+        {
+            super(NAMESPACE, "child");
+        }
+    }
+
+    @Override
+    protected void setUp()
+    {
+        AbstractSmackInteroperabilityLayer.setImplementationClass(
+                SmackV3InteroperabilityLayer.class);
+    }
+
+    private static XmlPullParser newParser(String xml)
+        throws Exception
+    {
+        XmlPullParser parser = new MXParser();
+
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(new StringReader(xml));
+        parser.next();
+        return parser;
+    }
+
+    //@Test
+    public void testParseNested()
+        throws Exception
+    {
+        AbstractSmackInteroperabilityLayer.getInstance().addExtensionProvider(
+                "child",
+                NAMESPACE,
+                new DefaultPacketExtensionProvider<Child>(Child.class));
+
+        DefaultPacketExtensionProvider<Parent> provider
+            = new DefaultPacketExtensionProvider<Parent>(Parent.class);
+        String xml
+            = "<parent xmlns='" + NAMESPACE + "' id='1'>"
+                + "<child ssrc='10'/><unknown/><child ssrc='20'>text</child>"
+                + "</parent>";
+
+        for (int i = 0; i < 2; i++)
+        {
+            Parent parent = provider.parseExtension(newParser(xml));
+
+            assertEquals("1", parent.getAttributeAsString("id"));
+
+            List<Child> children = parent.getChildExtensionsOfType(Child.class);
+
+            assertEquals(2, children.size());
+            assertEquals(10, children.get(0).getAttributeAsInt("ssrc"));
+            assertEquals(20, children.get(1).getAttributeAsInt("ssrc"));
+            assertEquals("text", children.get(1).getText());
+            assertEquals(NAMESPACE, children.get(1).getNamespace());
+        }
+    }
+
+    //@Test
+    public void testRegistryFallsBackToProviderManager()
+    {
+        PacketExtensionProvider provider
+            = new DefaultPacketExtensionProvider<Child>(Child.class);
+
+        ProviderManager.getInstance().addExtensionProvider(
+                "direct", NAMESPACE, provider);
+        assertSame(
+                provider,
+                ExtensionProviderRegistry.getExtensionProvider(
+                        "direct", NAMESPACE));
+        assertNull(
+                ExtensionProviderRegistry.getExtensionProvider(
+                        "missing", NAMESPACE));
+
+        // a provider registered through the interoperability layer replaces
+        // the one that was looked up
+        PacketExtensionProvider replacement
+            = new DefaultPacketExtensionProvider<Child>(Child.class);
+
+        AbstractSmackInteroperabilityLayer.getInstance().addExtensionProvider(
+                "direct", NAMESPACE, replacement);
+        assertSame(
+                replacement,
+                ExtensionProviderRegistry.getExtensionProvider(
+                        "direct", NAMESPACE));
+    }
+
+    //@Test
+    public void testAttributeNamesAreShared()
+        throws Exception
+    {
+        DefaultPacketExtensionProvider<Child> provider
+            = new DefaultPacketExtensionProvider<Child>(Child.class);
+        Child first
+            = provider.parseExtension(
+                    newParser("<child xmlns='" + NAMESPACE + "' ssrc='1'/>"));
+        Child second
+            = provider.parseExtension(
+                    newParser("<child xmlns='" + NAMESPACE + "' ssrc='2'/>"));
+
+        assertSame(
+                first.getAttributeNames().get(0),
+                second.getAttributeNames().get(0));
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import junit.framework.*;
+
+public class EventListContentTest
+    extends TestCase
+{
+    private static final String CRLF = "\r\n";
+
+    private static final String BOB_PIDF
+        = "<?xml version=\"1.0\"?>" + CRLF
+            + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\""
+            + " entity=\"sip:bob@example.com\">" + CRLF
+            + "<tuple id=\"t1\"><status><basic>open</basic></status></tuple>"
+            + CRLF + "</presence>";
+
+    private static final String CAROL_PIDF
+        = "<?xml version=\"1.0\"?>" + CRLF
+            + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\""
+            + " entity=\"sip:carol@example.com\">" + CRLF
+            + "<tuple id=\"t2\"><status><basic>closed</basic></status></tuple>"
+            + CRLF + "</presence>";
+
+    //@Test
+    public void testGetParameter()
+    {
+        String contentType
+            = "multipart/related;type=\"application/rlmi+xml\";"
+                + " boundary=\"50UBfW7LSCVLtggUPe5z\"";
+
+        assertEquals("50UBfW7LSCVLtggUPe5z",
+            EventListContent.getParameter(contentType, "boundary"));
+        assertEquals("application/rlmi+xml",
+            EventListContent.getParameter(contentType, "TYPE"));
+        assertNull(EventListContent.getParameter(contentType, "start"));
+    }
+
+    //@Test
+    public void testFlatList()
+    {
+        String rlmi
+            = "<?xml version=\"1.0\"?>" + CRLF
+                + "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\""
+                + " uri=\"sip:alice+presence@example.com\" version=\"1\""
+                + " fullState=\"true\">" + CRLF
+                + "<resource uri=\"sip:bob@example.com\">"
+                + "<instance id=\"b1\" state=\"active\" cid=\"bob@x\"/>"
+                + "</resource>" + CRLF
+                + "<resource uri=\"sip:dave@example.com\">"
+                + "<instance id=\"d1\" state=\"terminated\""
+                + " reason=\"rejected\"/>"
+                + "</resource>" + CRLF
+                + "<resource uri=\"sip:erin@example.com\"/>" + CRLF
+                + "</list>";
+        String body
+            = "--b1" + CRLF
+                + "Content-Transfer-Encoding: binary" + CRLF
+                + "Content-ID: <root@x>" + CRLF
+                + "Content-Type: application/rlmi+xml;charset=\"UTF-8\""
+                + CRLF + CRLF
+                + rlmi + CRLF
+                + "--b1" + CRLF
+                + "Content-ID: <bob@x>" + CRLF
+                + "Content-Type: application/pidf+xml" + CRLF + CRLF
+                + BOB_PIDF + CRLF
+                + "--b1--" + CRLF;
+
+        EventListContent content
+            = new EventListContent(body, "b1", "pidf+xml");
+
+        assertEquals(Arrays.asList(BOB_PIDF), content.getDocuments());
+
+        List<EventListContent.Resource> resources = content.getResources();
+
+        assertEquals(3, resources.size());
+        assertEquals("sip:bob@example.com", resources.get(0).uri);
+        assertEquals("active", resources.get(0).state);
+        assertNull(resources.get(0).reason);
+        assertEquals("bob@x", resources.get(0).cid);
+        assertEquals("terminated", resources.get(1).state);
+        assertEquals("rejected", resources.get(1).reason);
+        assertNull(resources.get(1).cid);
+        assertNull(resources.get(2).state);
+    }
+
+    //@Test
+    public void testNestedList()
+    {
+        String innerRlmi
+            = "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\""
+                + " uri=\"sip:friends@example.com\" version=\"3\""
+                + " fullState=\"false\">"
+                + "<resource uri=\"sip:carol@example.com\">"
+                + "<instance id=\"c1\" state=\"pending\" cid=\"carol@x\"/>"
+                + "</resource></list>";
+        String inner
+            = "--inner" + CRLF
+                + "Content-Type: application/rlmi+xml" + CRLF + CRLF
+                + innerRlmi + CRLF
+                + "--inner" + CRLF
+                + "Content-Type: application/pidf+xml" + CRLF + CRLF
+                + CAROL_PIDF + CRLF
+                + "--inner--";
+        String outerRlmi
+            = "<list xmlns=\"urn:ietf:params:xml:ns:rlmi\""
+                + " uri=\"sip:alice+presence@example.com\" version=\"3\""
+                + " fullState=\"false\">"
+                + "<resource uri=\"sip:friends@example.com\">"
+                + "<instance id=\"f1\" state=\"active\" cid=\"friends@x\"/>"
+                + "</resource></list>";
+        String body
+            = "preamble to ignore" + CRLF
+                + "--outer" + CRLF
+                + "Content-Type: application/rlmi+xml" + CRLF + CRLF
+                + outerRlmi + CRLF
+                + "--outer" + CRLF
+                + "Content-Type: multipart/related;"
+                + "type=\"application/rlmi+xml\";boundary=\"inner\""
+                + CRLF + CRLF
+                + inner + CRLF
+                + "--outer" + CRLF
+                + "Content-Type: application/watcherinfo+xml" + CRLF + CRLF
+                + "<ignored/>" + CRLF
+                + "--outer--" + CRLF;
+
+        EventListContent content
+            = new EventListContent(body, "outer", "pidf+xml");
+
+        assertEquals(Arrays.asList(CAROL_PIDF), content.getDocuments());
+
+        List<EventListContent.Resource> resources = content.getResources();
+
+        assertEquals(2, resources.size());
+        assertEquals("sip:friends@example.com", resources.get(0).uri);
+        assertEquals("sip:carol@example.com", resources.get(1).uri);
+        assertEquals("pending", resources.get(1).state);
+    }
+
+    //@Test
+    public void testTruncatedBody()
+    {
+        String body
+            = "--b1" + CRLF
+                + "Content-Type: application/pidf+xml" + CRLF + CRLF
+                + BOB_PIDF + CRLF
+                + "--b1" + CRLF
+                + "Content-Type: application/pidf+xml" + CRLF + CRLF
+                + CAROL_PIDF;
+
+        EventListContent content
+            = new EventListContent(body, "b1", "pidf+xml");
+
+        assertEquals(Arrays.asList(BOB_PIDF), content.getDocuments());
+        assertTrue(content.getResources().isEmpty());
+    }
+}
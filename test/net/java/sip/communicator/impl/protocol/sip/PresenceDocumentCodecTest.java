@@ -0,0 +1,174 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import junit.framework.*;
+
+public class PresenceDocumentCodecTest
+    extends TestCase
+{
+    //@Test
+    public void testReadPidf()
+        throws Exception
+    {
+        String doc
+            = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\""
+                + " xmlns:dm=\"urn:ietf:params:xml:ns:pidf:data-model\""
+                + " xmlns:rpid=\"urn:ietf:params:xml:ns:pidf:rpid\""
+                + " entity=\"pres:bob@example.com\">"
+                + "<dm:person id=\"p1\">"
+                + "<rpid:activities><rpid:unknown/><rpid:busy/>"
+                + "<rpid:away/></rpid:activities>"
+                + "<rpid:status-icon>http://example.com/bob.png"
+                + "</rpid:status-icon>"
+                + "<dm:note>Busy</dm:note>"
+                + "</dm:person>"
+                + "<tuple id=\"t1\">"
+                + "<status><basic>closed</basic><basic>open</basic></status>"
+                + "<contact priority=\"0.8\">sip:bob@example.com</contact>"
+                + "<contact>sip:bob@work.example.com</contact>"
+                + "<note>Away</note>"
+                + "</tuple>"
+                + "<note>Available</note>"
+                + "</presence>";
+
+        PresenceDocumentCodec.Presence presence
+            = PresenceDocumentCodec.readPidf(doc);
+
+        assertEquals("pres:bob@example.com", presence.entity);
+        assertEquals(PresenceDocumentCodec.BUSY_ELEMENT, presence.activity);
+        assertEquals("http://example.com/bob.png", presence.statusIcon);
+        // the note of the person is not in the pidf namespace
+        assertEquals(
+                Arrays.asList("Away", "Available"), presence.notes.get());
+        assertEquals("Available", presence.notes.getLast());
+
+        List<PresenceDocumentCodec.Tuple> tuples = presence.tuples.get();
+
+        assertEquals(1, tuples.size());
+
+        PresenceDocumentCodec.Tuple tuple = tuples.get(0);
+        List<PresenceDocumentCodec.TupleContact> contacts
+            = tuple.contacts.get();
+
+        assertEquals(2, contacts.size());
+        assertEquals("sip:bob@example.com", contacts.get(0).uri);
+        assertEquals("0.8", contacts.get(0).priority);
+        assertEquals("", contacts.get(1).priority);
+        assertEquals("open", tuple.statuses.getLast().basics.getLast());
+        assertEquals(Arrays.asList("Away"), tuple.notes.get());
+    }
+
+    //@Test
+    public void testReadPidfWithoutNamespace()
+        throws Exception
+    {
+        String doc
+            = "<presence entity=\"sip:carol@example.com\">"
+                + "<tuple id=\"a\"><status><basic>open</basic></status></tuple>"
+                + "<tuple id=\"b\"><status><basic>closed</basic></status>"
+                + "</tuple>"
+                + "</presence>";
+
+        PresenceDocumentCodec.Presence presence
+            = PresenceDocumentCodec.readPidf(doc);
+
+        assertNull(presence.activity);
+        assertNull(presence.statusIcon);
+        assertNull(presence.notes.getLast());
+
+        List<PresenceDocumentCodec.Tuple> tuples = presence.tuples.get();
+
+        assertEquals(2, tuples.size());
+        assertTrue(tuples.get(0).contacts.get().isEmpty());
+        assertEquals("open", tuples.get(0).statuses.getLast().basics.getLast());
+        assertEquals(
+                "closed", tuples.get(1).statuses.getLast().basics.getLast());
+        assertNull(PresenceDocumentCodec.readPidf("<other/>"));
+    }
+
+    //@Test
+    public void testWritePidf()
+        throws Exception
+    {
+        byte[] content
+            = PresenceDocumentCodec.writePidf(
+                    "sip:alice@example.com",
+                    "p1",
+                    "t1",
+                    PresenceDocumentCodec.OTP_ELEMENT,
+                    "http://example.com/a&b.png",
+                    "open",
+                    "On the phone");
+        PresenceDocumentCodec.Presence presence
+            = PresenceDocumentCodec.readPidf(new String(content, "UTF-8"));
+
+        assertEquals("sip:alice@example.com", presence.entity);
+        assertEquals(PresenceDocumentCodec.OTP_ELEMENT, presence.activity);
+        assertEquals("http://example.com/a&b.png", presence.statusIcon);
+        assertEquals("On the phone", presence.notes.getLast());
+
+        PresenceDocumentCodec.Tuple tuple = presence.tuples.getLast();
+
+        assertEquals(
+                "sip:alice@example.com", tuple.contacts.getLast().uri);
+        assertEquals("open", tuple.statuses.getLast().basics.getLast());
+    }
+
+    //@Test
+    public void testReadWatcherInfo()
+        throws Exception
+    {
+        String doc
+            = "<?xml version=\"1.0\"?>"
+                + "<watcherinfo xmlns=\"urn:ietf:params:xml:ns:watcherinfo\""
+                + " version=\"4\" state=\"full\">"
+                + "<watcher-list resource=\"sip:other@example.com\""
+                + " package=\"presence\">"
+                + "<watcher id=\"w0\" event=\"subscribe\" status=\"pending\">"
+                + "sip:eve@example.com</watcher>"
+                + "</watcher-list>"
+                + "<watcher-list resource=\"sip:alice@example.com\""
+                + " package=\"presence\">"
+                + "<watcher id=\"w1\" event=\"subscribe\" status=\"waiting\">"
+                + "sip:bob@example.com</watcher>"
+                + "<watcher id=\"w2\" event=\"approved\">"
+                + "sip:carol@example.com</watcher>"
+                + "</watcher-list>"
+                + "</watcherinfo>";
+
+        PresenceDocumentCodec.WatcherInfo watcherInfo
+            = PresenceDocumentCodec.readWatcherInfo(doc);
+
+        assertEquals("full", watcherInfo.state);
+        assertEquals("4", watcherInfo.version);
+        assertNull(watcherInfo.getWatcherList("sip:nobody@example.com"));
+
+        PresenceDocumentCodec.WatcherList watcherList
+            = watcherInfo.getWatcherList("sip:alice@example.com");
+
+        assertEquals("presence", watcherList.eventPackage);
+        assertEquals(2, watcherList.watchers.size());
+        assertEquals("waiting", watcherList.watchers.get(0).status);
+        assertEquals("sip:bob@example.com", watcherList.watchers.get(0).uri);
+        assertEquals("", watcherList.watchers.get(1).status);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import junit.framework.*;
+
+public class TimerSchedulerTest
+    extends TestCase
+{
+    private HashedWheelTimer wheel;
+
+    private TimerScheduler scheduler;
+
+    //@before
+    public void setUp() throws Exception
+    {
+        super.setUp();
+        this.wheel = new HashedWheelTimer("TimerSchedulerTest");
+        this.scheduler = new TimerScheduler(this.wheel);
+    }
+
+    //@Test
+    public void testScheduleAndCancelTask()
+        throws Exception
+    {
+        CountingTask expiring = new CountingTask();
+        CountingTask cancelled = new CountingTask();
+
+        this.scheduler.schedule(expiring, 50);
+        this.scheduler.schedule(cancelled, 50);
+        assertEquals(2, this.wheel.getPendingCount());
+
+        assertTrue(cancelled.cancel());
+        assertEquals(1, this.wheel.getPendingCount());
+
+        assertTrue(expiring.latch.await(2, TimeUnit.SECONDS));
+        Thread.sleep(3 * HashedWheelTimer.TICK_DURATION);
+        assertEquals(1, expiring.count.get());
+        assertEquals(0, cancelled.count.get());
+        assertEquals(0, this.wheel.getPendingCount());
+
+        try
+        {
+            this.scheduler.schedule(cancelled, 0);
+            fail("a canceled task must not be scheduled");
+        }
+        catch (IllegalStateException e)
+        {
+        }
+    }
+
+    //@Test
+    public void testPeriodicTaskAndSchedulerCancel()
+        throws Exception
+    {
+        CountingTask periodic = new CountingTask(3);
+        CountingTask later = new CountingTask();
+
+        this.scheduler.schedule(periodic, 0, 100);
+        this.scheduler.schedule(later, 60000);
+
+        assertTrue(periodic.latch.await(5, TimeUnit.SECONDS));
+        this.scheduler.cancel();
+        assertEquals(0, this.wheel.getPendingCount());
+
+        int count = periodic.count.get();
+
+        Thread.sleep(3 * HashedWheelTimer.TICK_DURATION);
+        assertEquals(count, periodic.count.get());
+        assertEquals(0, later.count.get());
+
+        // the scheduler can still be used once canceled
+        CountingTask again = new CountingTask();
+
+        this.scheduler.schedule(again, 0);
+        assertTrue(again.latch.await(2, TimeUnit.SECONDS));
+    }
+
+    //@Test
+    public void testThrowingTaskIsRemoved()
+        throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        TimerScheduler.Task throwing
+            = new TimerScheduler.Task()
+            {
+                @Override
+                public void run()
+                {
+                    latch.countDown();
+                    throw new RuntimeException("expected by the test");
+                }
+            };
+
+        this.scheduler.schedule(throwing, 0);
+        assertEquals(1, this.scheduler.getTaskCount());
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        Thread.sleep(3 * HashedWheelTimer.TICK_DURATION);
+        assertEquals(0, this.scheduler.getTaskCount());
+        assertEquals(0, this.wheel.getPendingCount());
+
+        // the timer still executes the other tasks
+        CountingTask next = new CountingTask();
+
+        this.scheduler.schedule(next, 0);
+        assertTrue(next.latch.await(2, TimeUnit.SECONDS));
+    }
+
+    private static class CountingTask
+        extends TimerScheduler.Task
+    {
+        final AtomicInteger count = new AtomicInteger();
+
+        final CountDownLatch latch;
+
+        CountingTask()
+        {
+            this(1);
+        }
+
+        CountingTask(int expectedCount)
+        {
+            this.latch = new CountDownLatch(expectedCount);
+        }
+
+        @Override
+        public void run()
+        {
+            count.incrementAndGet();
+            latch.countDown();
+        }
+    }
+}